@@ -0,0 +1,40 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.List;
+
+import org.terracotta.persistence.IPlatformPersistence;
+
+
+/**
+ * An optional extension of IPlatformPersistence which can store several new sequence entries for the same index at once.
+ * The server thread uses this to commit the transaction order of a whole batch of messages together, instead of one call
+ * per message.  Persistence implementations which don't implement this are given the entries one at a time.
+ */
+public interface IBatchedSequencePersistence {
+  /**
+   * Equivalent to calling IPlatformPersistence.fastStoreSequence for each entry, in order, with its own
+   * oldestValidSequenceID.  Note that these don't only increase:  a re-sent message, for example, passes 0.
+   * 
+   * @param sequenceIndex The index of the sequence
+   * @param newEntries The new entries, in the order they were received
+   * @param oldestValidSequenceIDs The oldestValidSequenceID passed with each entry (entries with an older local sequence ID
+   * can be discarded), at the same index as the entry (the array may be longer than the list)
+   */
+  public void fastStoreSequenceBatch(long sequenceIndex, List<IPlatformPersistence.SequenceTuple> newEntries, long[] oldestValidSequenceIDs);
+}
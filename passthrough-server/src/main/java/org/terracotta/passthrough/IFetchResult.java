@@ -24,5 +24,9 @@ import org.terracotta.exception.EntityException;
  * simple call-return structure is that the fetch may block on lock acquisition.
  */
 public interface IFetchResult {
-  public void onFetchComplete(byte[] config, EntityException error);
+  /**
+   * @param response The entity handle and configuration (see PassthroughMessageCodec.createFetchResponse), or null on error
+   * @param error The reason the fetch failed, or null on success
+   */
+  public void onFetchComplete(byte[] response, EntityException error);
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.terracotta.exception.EntityException;
+
+
+/**
+ * Defines the callback invoked on completion of an invoke message.  The reason why we need a callback and not a simple
+ * call-return structure is that the invoke may be executed on one of the server's execution lanes, instead of the server
+ * thread.
+ */
+public interface IInvokeResult {
+  public void onInvokeComplete(byte[] response, EntityException error);
+}
@@ -16,6 +16,8 @@
  */
 package org.terracotta.passthrough;
 
+import org.terracotta.exception.EntityException;
+
 /**
  * An interface used to represent the party who sent a message to a server.
  * This exists so that the core message handling code can work the same way, whether the sender of the message was a client
@@ -30,6 +32,39 @@ public interface IMessageSenderWrapper {
   void sendAck(PassthroughMessage ack);
   void sendComplete(PassthroughMessage complete, boolean monitor);
   void sendRetire(PassthroughMessage retire);
+  /**
+   * Called when a message is logically done.  By default, this creates the complete and retire messages and passes them to
+   * sendComplete() and sendRetire() but implementations may instead send them as a single message (along with the ack, if
+   * it is still waiting to be sent).
+   */
+  default void sendCompleteAndRetire(long transactionID, byte[] response, EntityException error) {
+    PassthroughMessage complete = PassthroughMessageCodec.createCompleteMessage(response, error, includeStackTraces());
+    // The oldestTransactionID isn't relevant when sent back.
+    long oldestTransactionID = -1;
+    complete.setTransactionTracking(transactionID, oldestTransactionID);
+    sendComplete(complete, true);
+    
+    // Note that we will create the retire message, as well, at this point.  At this level, we don't distinguish between
+    // "complete" and "retire" since the operation is logically "done".
+    // We just need to create both message instances and pass them back to the sender where it will determine if the retire
+    // should be sent immediately, or held until later.
+    PassthroughMessage retire = PassthroughMessageCodec.createRetireMessage();
+    retire.setTransactionTracking(transactionID, oldestTransactionID);
+    sendRetire(retire);
+  }
+  /**
+   * @return True if exceptions sent to this sender should include their stack traces, even where they could omit them
+   */
+  default boolean includeStackTraces() {
+    return false;
+  }
+  /**
+   * @return The receiving side of the string dictionary of the client connection which sent the message (only the senders
+   * of client messages have one)
+   */
+  default PassthroughStringDictionary getClientSymbols() {
+    return null;
+  }
   PassthroughClientDescriptor clientDescriptorForID(long clientInstanceID);
   /**
    * Used for identifying a PassthroughConnection or anything which wraps one as an IMessageSenderWrapper.  This allows for
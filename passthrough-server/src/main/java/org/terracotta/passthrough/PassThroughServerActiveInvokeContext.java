@@ -34,15 +34,23 @@ public class PassThroughServerActiveInvokeContext<M extends EntityMessage, R ext
   private final ClientDescriptor descriptor;
   private final IMessageSenderWrapper monitor;
   private final PassthroughRetirementManager retirement;
+  // The handle of the message, if it was passed as an object.
+  private final PassthroughObjectHandoff.Registration request;
 
   public PassThroughServerActiveInvokeContext(M message, ClientDescriptor descriptor, int concurrencyKey, long current, long
     oldest, IMessageSenderWrapper monitor, PassthroughRetirementManager retirement, MessageCodec<M, R> codec) {
+    this(message, descriptor, concurrencyKey, current, oldest, monitor, retirement, codec, null);
+  }
+
+  public PassThroughServerActiveInvokeContext(M message, ClientDescriptor descriptor, int concurrencyKey, long current, long
+    oldest, IMessageSenderWrapper monitor, PassthroughRetirementManager retirement, MessageCodec<M, R> codec, PassthroughObjectHandoff.Registration request) {
     super(descriptor == null ? null : descriptor.getSourceId(), concurrencyKey, current, oldest);
     this.message = message;
     this.descriptor = descriptor;
     this.monitor = monitor;
     this.retirement = retirement;
     this.codec = codec;
+    this.request = request;
   }
 
   @Override
@@ -57,7 +65,8 @@ public class PassThroughServerActiveInvokeContext<M extends EntityMessage, R ext
       @Override
       public void sendResponse(R response) {
         try {
-          byte[] r = codec.encodeResponse(response);
+          // A client in object-passing mode is handed the response object directly.
+          byte[] r = (null != request) ? request.registerResponse(response) : codec.encodeResponse(response);
           PassthroughMessage msg = PassthroughMessageCodec.createMonitorMessage(r, null);
           msg.setTransactionTracking(PassThroughServerActiveInvokeContext.this.getCurrentTransactionId(),PassThroughServerActiveInvokeContext.this.getOldestTransactionId());
           monitor.sendComplete(msg, false);
@@ -69,7 +78,7 @@ public class PassThroughServerActiveInvokeContext<M extends EntityMessage, R ext
       @Override
       public void sendException(Exception excptn) {
         EntityException exp = (excptn instanceof EntityException) ? (EntityException)excptn : new EntityServerException(null, null, null, excptn);
-        PassthroughMessage msg = PassthroughMessageCodec.createMonitorMessage(null, exp);
+        PassthroughMessage msg = PassthroughMessageCodec.createMonitorMessage(null, exp, monitor.includeStackTraces());
         msg.setTransactionTracking(PassThroughServerActiveInvokeContext.this.getCurrentTransactionId(), PassThroughServerActiveInvokeContext.this.getOldestTransactionId());
         monitor.sendComplete(msg, false);
       }
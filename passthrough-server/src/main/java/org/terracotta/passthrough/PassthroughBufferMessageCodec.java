@@ -0,0 +1,39 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.nio.ByteBuffer;
+
+import org.terracotta.entity.EntityMessage;
+import org.terracotta.entity.EntityResponse;
+import org.terracotta.entity.MessageCodecException;
+
+
+/**
+ * May be implemented by an entity's MessageCodec, as well as MessageCodec, so that the passthrough can decode messages and
+ * responses from read-only views of the message it received, instead of first copying them out into a byte[].
+ * The buffers are only valid for the duration of the call (the message they view may be reused afterward) so the codec
+ * must copy anything it needs to keep.
+ *
+ * @param <M> The entity message type
+ * @param <R> The entity response type
+ */
+public interface PassthroughBufferMessageCodec<M extends EntityMessage, R extends EntityResponse> {
+  public M decodeMessage(ByteBuffer payload) throws MessageCodecException;
+
+  public R decodeResponse(ByteBuffer payload) throws MessageCodecException;
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A pool of PassthroughPooledBuffer instances, used for the messages a connection sends to the server.  Those messages live
+ * until they are retired (the client keeps them for re-send) so, without the pool, they are long-lived garbage:  exactly the
+ * kind the collector is worst at.
+ * Buffers are kept in power-of-two size classes, each holding a bounded number of free buffers.  Messages too large for the
+ * largest class get a buffer which isn't pooled.
+ * Buffers are usually acquired by one thread (the client thread sending) and released by several (the client thread
+ * handling the retire, the server threads) so each class is guarded by its own lock.
+ */
+public class PassthroughBufferPool {
+  private static final int MIN_CLASS_SHIFT = 6;
+  private static final int MAX_CLASS_SHIFT = 16;
+  private static final int DEFAULT_BUFFERS_PER_CLASS = 64;
+
+  private final SizeClass[] sizeClasses;
+  private final AtomicLong allocatedCount = new AtomicLong();
+  private final AtomicLong reusedCount = new AtomicLong();
+
+  public PassthroughBufferPool() {
+    this(DEFAULT_BUFFERS_PER_CLASS);
+  }
+
+  /**
+   * @param buffersPerClass The most free buffers to keep for each size class
+   */
+  public PassthroughBufferPool(int buffersPerClass) {
+    Assert.assertTrue(buffersPerClass >= 0);
+    this.sizeClasses = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    for (int i = 0; i < this.sizeClasses.length; ++i) {
+      this.sizeClasses[i] = new SizeClass(1 << (MIN_CLASS_SHIFT + i), buffersPerClass);
+    }
+  }
+
+  /**
+   * Returns a buffer of at least the given size, with one reference owned by the caller.
+   * 
+   * @param size The number of bytes needed
+   * @return The buffer
+   */
+  public PassthroughPooledBuffer acquire(int size) {
+    PassthroughPooledBuffer buffer = null;
+    int classIndex = classIndexFor(size);
+    if (classIndex < this.sizeClasses.length) {
+      SizeClass sizeClass = this.sizeClasses[classIndex];
+      buffer = sizeClass.pop();
+      if (null != buffer) {
+        this.reusedCount.incrementAndGet();
+      } else {
+        buffer = new PassthroughPooledBuffer(this, sizeClass.bufferSize);
+        this.allocatedCount.incrementAndGet();
+      }
+    } else {
+      // Too big to pool.
+      buffer = new PassthroughPooledBuffer(null, size);
+      this.allocatedCount.incrementAndGet();
+    }
+    buffer.acquired();
+    return buffer;
+  }
+
+  /**
+   * Serializes a message into a buffer from the pool.
+   * 
+   * @param message The message
+   * @return The buffer, with one reference owned by the caller
+   */
+  public PassthroughPooledBuffer acquire(PassthroughMessage message) {
+    PassthroughPooledBuffer buffer = acquire(message.serializedSize());
+    buffer.write(message);
+    return buffer;
+  }
+
+  /**
+   * @return The number of buffers this pool has had to allocate
+   */
+  public long getAllocatedCount() {
+    return this.allocatedCount.get();
+  }
+
+  /**
+   * @return The number of times this pool has handed out a recycled buffer
+   */
+  public long getReusedCount() {
+    return this.reusedCount.get();
+  }
+
+  void recycle(PassthroughPooledBuffer buffer) {
+    int classIndex = classIndexFor(buffer.capacity());
+    // Only our own (pooled) buffers come back and they are all exactly a class size.
+    Assert.assertTrue((classIndex < this.sizeClasses.length) && (this.sizeClasses[classIndex].bufferSize == buffer.capacity()));
+    // If the class is full, the buffer is just dropped.
+    this.sizeClasses[classIndex].push(buffer);
+  }
+
+  private static int classIndexFor(int size) {
+    int shift = (size <= (1 << MIN_CLASS_SHIFT)) ? MIN_CLASS_SHIFT : (Integer.SIZE - Integer.numberOfLeadingZeros(size - 1));
+    return shift - MIN_CLASS_SHIFT;
+  }
+
+  private static class SizeClass {
+    public final int bufferSize;
+    private final PassthroughPooledBuffer[] free;
+    private int freeCount;
+
+    public SizeClass(int bufferSize, int capacity) {
+      this.bufferSize = bufferSize;
+      this.free = new PassthroughPooledBuffer[capacity];
+    }
+
+    public synchronized PassthroughPooledBuffer pop() {
+      PassthroughPooledBuffer buffer = null;
+      if (this.freeCount > 0) {
+        this.freeCount -= 1;
+        buffer = this.free[this.freeCount];
+        this.free[this.freeCount] = null;
+      }
+      return buffer;
+    }
+
+    public synchronized void push(PassthroughPooledBuffer buffer) {
+      if (this.freeCount < this.free.length) {
+        this.free[this.freeCount] = buffer;
+        this.freeCount += 1;
+      }
+    }
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.nio.ByteBuffer;
+
+import org.terracotta.entity.EntityMessage;
+import org.terracotta.entity.MessageCodecException;
+
+
+/**
+ * The equivalent of PassthroughBufferMessageCodec for an entity's SyncMessageCodec:  sync payloads are decoded from a
+ * read-only view of the sync message, which is only valid for the duration of the call.
+ *
+ * @param <S> The sync message type
+ */
+public interface PassthroughBufferSyncMessageCodec<S extends EntityMessage> {
+  public S decode(int concurrencyKey, ByteBuffer payload) throws MessageCodecException;
+}
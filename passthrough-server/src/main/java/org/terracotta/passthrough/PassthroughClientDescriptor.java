@@ -30,6 +30,8 @@ public class PassthroughClientDescriptor implements ClientDescriptor {
   public final PassthroughServerProcess server;
   public PassthroughConnection sender;
   public long clientInstanceID;
+  // Created on first use since entities ask for it on every invoke.
+  private PassthroughClientSourceId sourceId;
 
   public PassthroughClientDescriptor(PassthroughServerProcess server, PassthroughConnection sender, long clientInstanceID) {
     this.server = server;
@@ -51,7 +53,13 @@ public class PassthroughClientDescriptor implements ClientDescriptor {
 
   @Override
   public ClientSourceId getSourceId() {
-    return new PassthroughClientSourceId(sender == null ? -1 : sender.getUniqueConnectionID());
+    // PassthroughClientSourceId is immutable so racing to create it is harmless.
+    PassthroughClientSourceId id = this.sourceId;
+    if (null == id) {
+      id = new PassthroughClientSourceId(sender == null ? -1 : sender.getUniqueConnectionID());
+      this.sourceId = id;
+    }
+    return id;
   }
 
   @Override
@@ -0,0 +1,146 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ * A fixed number of threads which handle the messages from the server for any number of client connections, instead of
+ * each connection having its own client thread, so that a test can simulate thousands of clients without thousands of
+ * mostly idle threads.
+ * A connection is scheduled on the group when a message arrives for it and one of the group's threads then handles its
+ * messages, up to a limit so that a busy connection doesn't starve the others, before moving on.  A connection is only
+ * ever scheduled once at a time so its messages are still handled one at a time and in order.
+ * Note that the group's threads act as the client thread of each of its connections so anything a callback must not do on
+ * a connection's client thread (such as waiting for the server to answer) it must not do on any connection of the group.
+ * The group is owned by the test:  it can be shared by the connections of several servers (and keeps serving them across
+ * a fail-over) and must be shut down once they are closed.
+ */
+public class PassthroughClientDispatcherGroup {
+  /**
+   * The number of messages a thread handles for one connection before moving on to the next scheduled connection.
+   */
+  public static final int DEFAULT_DISPATCH_LIMIT = 64;
+  // Scheduled once per thread, by shutdown(), to stop it.
+  private static final Runnable STOP = () -> {};
+
+  private final LinkedBlockingQueue<Runnable> scheduled = new LinkedBlockingQueue<>();
+  private final Thread[] threads;
+  private final int dispatchLimit;
+
+  public PassthroughClientDispatcherGroup(int threadCount) {
+    this("Client dispatcher", threadCount, PassthroughThreadMode.PLATFORM, DEFAULT_DISPATCH_LIMIT);
+  }
+
+  /**
+   * @param name The name prefix of the group's threads
+   * @param threadCount The number of threads
+   * @param threadMode The kind of threads (VIRTUAL requires JDK 21+)
+   * @param dispatchLimit The number of messages a thread handles for one connection before moving on
+   */
+  public PassthroughClientDispatcherGroup(String name, int threadCount, PassthroughThreadMode threadMode, int dispatchLimit) {
+    Assert.assertTrue(threadCount > 0);
+    Assert.assertTrue(dispatchLimit > 0);
+    if (!threadMode.isSupported()) {
+      throw new UnsupportedOperationException("Thread mode " + threadMode + " isn't supported by this JVM");
+    }
+    this.dispatchLimit = dispatchLimit;
+    this.threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; ++i) {
+      Thread thread = threadMode.newThread(name + " " + i, () -> runDispatcher());
+      thread.setUncaughtExceptionHandler(PassthroughUncaughtExceptionHandler.sharedInstance);
+      // The test owns the group so a forgotten shutdown shouldn't keep the VM alive.
+      thread.setDaemon(true);
+      this.threads[i] = thread;
+    }
+    for (Thread thread : this.threads) {
+      thread.start();
+    }
+  }
+
+  /**
+   * Called by a connection, which isn't already scheduled, when it has messages to handle.
+   * 
+   * @param dispatch Handles some of the connection's messages
+   */
+  public void schedule(Runnable dispatch) {
+    this.scheduled.add(dispatch);
+  }
+
+  /**
+   * @return The number of messages a thread handles for one connection before moving on
+   */
+  public int getDispatchLimit() {
+    return this.dispatchLimit;
+  }
+
+  public int getThreadCount() {
+    return this.threads.length;
+  }
+
+  /**
+   * @return True if called on one of the group's threads
+   */
+  public boolean isDispatcherThread() {
+    Thread current = Thread.currentThread();
+    for (Thread thread : this.threads) {
+      if (current == thread) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stops the group's threads once they have handled the connections already scheduled.  The connections must be closed
+   * first.
+   */
+  public void shutdown() throws InterruptedException {
+    Assert.assertTrue(!isDispatcherThread());
+    // Each thread takes one of these and stops.
+    for (int i = 0; i < this.threads.length; ++i) {
+      this.scheduled.add(STOP);
+    }
+    for (Thread thread : this.threads) {
+      thread.join();
+    }
+  }
+
+  private void runDispatcher() {
+    while (true) {
+      Runnable dispatch;
+      try {
+        dispatch = this.scheduled.take();
+      } catch (InterruptedException e) {
+        // Nothing interrupts these threads.
+        Assert.unexpected(e);
+        return;
+      }
+      if (STOP == dispatch) {
+        break;
+      }
+      try {
+        dispatch.run();
+      } catch (Throwable t) {
+        // A failure handling a message would kill the thread of a connection which has one.  Here, the connection is
+        //  left scheduled, so it is never dispatched again, but the thread carries on with the other connections.
+        PassthroughUncaughtExceptionHandler.sharedInstance.uncaughtException(Thread.currentThread(), t);
+      }
+    }
+  }
+}
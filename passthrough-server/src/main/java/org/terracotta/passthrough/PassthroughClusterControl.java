@@ -47,7 +47,8 @@ public class PassthroughClusterControl implements IClusterControl {
    */
   public PassthroughClusterControl(String stripeName, PassthroughServer passthroughServer, PassthroughServer... passthroughServers) {
     this.stripeName = stripeName;
-    this.crasher = new PassthroughServerCrasher(this);
+    // The crasher is shared by the whole stripe so it uses the thread mode of the first server.
+    this.crasher = new PassthroughServerCrasher(this, passthroughServer.getThreadMode());
     this.crasher.start();
     Assert.assertTrue(passthroughServer != null);
     this.passthroughServers.add(passthroughServer);
@@ -61,6 +62,10 @@ public class PassthroughClusterControl implements IClusterControl {
     bootstrapCluster();
   }
 
+  public String getStripeName() {
+    return this.stripeName;
+  }
+
   @Override
   public synchronized void waitForActive() throws Exception {
     while (this.activeServer == null) {
@@ -16,8 +16,6 @@
  */
 package org.terracotta.passthrough;
 
-import java.util.concurrent.Future;
-
 import org.terracotta.entity.ClientCommunicator;
 import org.terracotta.entity.ClientDescriptor;
 import org.terracotta.entity.CommonServerEntity;
@@ -53,19 +51,17 @@ public class PassthroughCommunicatorService implements ClientCommunicator {
     prepareAndSendMessage(clientDescriptor, message);
   }
 
-  private Future<Void> prepareAndSendMessage(ClientDescriptor clientDescriptor, EntityResponse entityMessage) throws MessageCodecException {
+  private void prepareAndSendMessage(ClientDescriptor clientDescriptor, EntityResponse entityMessage) throws MessageCodecException {
     PassthroughClientDescriptor rawDescriptor = (PassthroughClientDescriptor) clientDescriptor;
     PassthroughConnection connection = rawDescriptor.sender;
     long clientInstanceID = rawDescriptor.clientInstanceID;
-    Future<Void> waiter = connection.createClientResponseFuture();
     
     // We know that the entity better exist, by this point, to use the service.
     CommonServerEntity<?, ?> entity = this.container.getEntity();
     Assert.assertTrue(null != entity);
     byte[] payload = serialize(this.container.codec, entityMessage);
     PassthroughMessage message = PassthroughMessageCodec.createMessageToClient(clientInstanceID, payload);
-    connection.sendMessageToClient(rawDescriptor.server, message.asSerializedBytes());
-    return waiter;
+    rawDescriptor.server.sendMessageToClient(connection, message);
   }
 
   @SuppressWarnings("unchecked")
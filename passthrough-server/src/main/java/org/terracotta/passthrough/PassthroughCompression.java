@@ -0,0 +1,279 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.terracotta.passthrough.PassthroughMessage.Type;
+
+
+/**
+ * The compression stage of the codec:  a message whose payload (everything after the header) is at least the threshold is
+ * sent with its payload deflated, and a flag in its header, so the receiving side inflates it before decoding.  This trades
+ * the CPU time of deflating (and inflating) for the size of the message while it is queued and retained for re-send.
+ * The compression ratio and time are tracked per message type.
+ * An instance can be shared between connections and servers.
+ */
+public class PassthroughCompression {
+  private static final int MAX_FREE_DEFLATERS = 4;
+
+  private final int threshold;
+  private final int level;
+  // A Deflater holds a sizable native buffer so a few are kept for reuse, instead of creating one for every message.  Any
+  //  more than that are ended once used so that their native memory is freed right away.
+  private final Deflater[] freeDeflaters;
+  private int freeDeflaterCount;
+  private final Map<Type, Statistics> statistics;
+
+  /**
+   * @param threshold The smallest payload, in bytes, to compress
+   * @param level The deflate level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION (or Deflater.DEFAULT_COMPRESSION)
+   */
+  public PassthroughCompression(int threshold, int level) {
+    Assert.assertTrue(threshold >= 0);
+    Assert.assertTrue((Deflater.DEFAULT_COMPRESSION == level) || ((level >= Deflater.NO_COMPRESSION) && (level <= Deflater.BEST_COMPRESSION)));
+    this.threshold = threshold;
+    this.level = level;
+    this.freeDeflaters = new Deflater[MAX_FREE_DEFLATERS];
+    this.statistics = new EnumMap<>(Type.class);
+    for (Type type : Type.values()) {
+      this.statistics.put(type, new Statistics());
+    }
+  }
+
+  public int getThreshold() {
+    return this.threshold;
+  }
+
+  public int getLevel() {
+    return this.level;
+  }
+
+  /**
+   * @param type A message type
+   * @return The statistics of the messages of that type given to compress()
+   */
+  public Statistics getStatistics(Type type) {
+    return this.statistics.get(type);
+  }
+
+  /**
+   * Returns the message to send in place of the given one:  a compressed copy, if its payload is at least the threshold and
+   * deflating it makes it smaller, or the message itself.
+   * The compressed copy takes the message's current transaction tracking, which can still be set on the copy.
+   * 
+   * @param message The message to send
+   * @return The message to send instead
+   */
+  public PassthroughMessage compress(PassthroughMessage message) {
+    PassthroughMessage toSend = message;
+    int payloadSize = message.payloadSize();
+    if (payloadSize >= this.threshold) {
+      long start = System.nanoTime();
+      ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+      message.populateBuffer(payload);
+      // Anything which doesn't fit in the original size isn't worth sending compressed.
+      byte[] deflated = new byte[payloadSize];
+      int deflatedSize = 0;
+      boolean finished;
+      Deflater deflater = takeDeflater();
+      try {
+        deflater.setInput(payload.array());
+        deflater.finish();
+        while (!deflater.finished() && (deflatedSize < deflated.length)) {
+          deflatedSize += deflater.deflate(deflated, deflatedSize, deflated.length - deflatedSize);
+        }
+        finished = deflater.finished();
+      } finally {
+        returnDeflater(deflater);
+      }
+      Statistics typeStatistics = this.statistics.get(message.type);
+      if (finished && ((Integer.BYTES + deflatedSize) < payloadSize)) {
+        toSend = new DeflatedMessage(message, payloadSize, deflated, deflatedSize);
+        typeStatistics.compressed(payloadSize, Integer.BYTES + deflatedSize, System.nanoTime() - start);
+      } else {
+        typeStatistics.skipped(System.nanoTime() - start);
+      }
+    }
+    return toSend;
+  }
+
+  private Deflater takeDeflater() {
+    Deflater deflater = null;
+    synchronized (this.freeDeflaters) {
+      if (this.freeDeflaterCount > 0) {
+        this.freeDeflaterCount -= 1;
+        deflater = this.freeDeflaters[this.freeDeflaterCount];
+        this.freeDeflaters[this.freeDeflaterCount] = null;
+      }
+    }
+    return (null != deflater) ? deflater : new Deflater(this.level);
+  }
+
+  private void returnDeflater(Deflater deflater) {
+    deflater.reset();
+    boolean kept = false;
+    synchronized (this.freeDeflaters) {
+      if (this.freeDeflaterCount < this.freeDeflaters.length) {
+        this.freeDeflaters[this.freeDeflaterCount] = deflater;
+        this.freeDeflaterCount += 1;
+        kept = true;
+      }
+    }
+    if (!kept) {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Inflates the payload of a message sent by compress().
+   * 
+   * @param rawMessage The message
+   * @param offset The offset of the deflated payload in the message
+   * @param inflatedSize The size of the original payload
+   * @return The original payload
+   */
+  static byte[] inflate(byte[] rawMessage, int offset, int inflatedSize) {
+    byte[] payload = new byte[inflatedSize];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(rawMessage, offset, rawMessage.length - offset);
+      int inflated = 0;
+      while (inflated < inflatedSize) {
+        int count = inflater.inflate(payload, inflated, inflatedSize - inflated);
+        // We wrote the whole payload so it can't need more input.
+        Assert.assertTrue((count > 0) || !inflater.needsInput());
+        inflated += count;
+      }
+      Assert.assertTrue(inflater.finished());
+    } catch (DataFormatException e) {
+      // We wrote this so it can't be malformed.
+      Assert.unexpected(e);
+    } finally {
+      inflater.end();
+    }
+    return payload;
+  }
+
+
+  /**
+   * The compression statistics of one message type.
+   */
+  public static class Statistics {
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    void compressed(int uncompressedSize, int compressedSize, long elapsedNanos) {
+      this.compressedCount.incrementAndGet();
+      this.uncompressedBytes.addAndGet(uncompressedSize);
+      this.compressedBytes.addAndGet(compressedSize);
+      this.nanos.addAndGet(elapsedNanos);
+    }
+
+    void skipped(long elapsedNanos) {
+      this.skippedCount.incrementAndGet();
+      this.nanos.addAndGet(elapsedNanos);
+    }
+
+    /**
+     * @return The number of messages sent compressed
+     */
+    public long getCompressedCount() {
+      return this.compressedCount.get();
+    }
+
+    /**
+     * @return The number of messages over the threshold sent uncompressed since deflating didn't make them smaller
+     */
+    public long getSkippedCount() {
+      return this.skippedCount.get();
+    }
+
+    /**
+     * @return The total payload size of the messages sent compressed, before compression
+     */
+    public long getUncompressedBytes() {
+      return this.uncompressedBytes.get();
+    }
+
+    /**
+     * @return The total payload size of the messages sent compressed, after compression
+     */
+    public long getCompressedBytes() {
+      return this.compressedBytes.get();
+    }
+
+    /**
+     * @return The compressed size over the uncompressed size of the messages sent compressed (1.0 if there are none)
+     */
+    public double getCompressionRatio() {
+      long uncompressed = this.uncompressedBytes.get();
+      return (0 != uncompressed) ? ((double) this.compressedBytes.get() / uncompressed) : 1.0;
+    }
+
+    /**
+     * @return The total time spent deflating, including the messages which were then sent uncompressed
+     */
+    public long getCompressionNanos() {
+      return this.nanos.get();
+    }
+  }
+
+
+  /**
+   * A message sent with its payload deflated:  the payload is the size of the original payload followed by the deflated
+   * bytes.
+   */
+  private static class DeflatedMessage extends PassthroughMessage {
+    private final int inflatedSize;
+    private final byte[] deflated;
+    private final int deflatedSize;
+
+    public DeflatedMessage(PassthroughMessage original, int inflatedSize, byte[] deflated, int deflatedSize) {
+      super(original.type, original.shouldReplicateToPassives);
+      setTransactionTracking(original.transactionID, original.oldestTransactionID);
+      this.inflatedSize = inflatedSize;
+      this.deflated = deflated;
+      this.deflatedSize = deflatedSize;
+    }
+
+    @Override
+    protected byte headerFlags() {
+      return (byte) (super.headerFlags() | FLAG_DEFLATED);
+    }
+
+    @Override
+    protected int payloadSize() {
+      return Integer.BYTES + this.deflatedSize;
+    }
+
+    @Override
+    protected void populateBuffer(ByteBuffer output) {
+      output.putInt(this.inflatedSize);
+      output.put(this.deflated, 0, this.deflatedSize);
+    }
+  }
+}
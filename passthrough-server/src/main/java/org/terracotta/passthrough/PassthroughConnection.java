@@ -18,16 +18,17 @@ package org.terracotta.passthrough;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.terracotta.connection.Connection;
 import org.terracotta.connection.entity.Entity;
@@ -53,6 +54,12 @@ import static org.terracotta.entity.InvocationCallback.Types.RETIRED;
  * Internally, this runs a single thread to handle incoming ACKs, completions, and messages.
  */
 public class PassthroughConnection implements Connection {
+  /**
+   * The connection property which enables object-passing mode (see setObjectPassing).  Its value is the codec verification
+   * interval.
+   */
+  public static final String OBJECT_PASSING_PROPERTY = "passthrough.objectPassing";
+
   // Information that we collect and only pass through for M&M reasons.
   private final String connectionName;
   private final String uuid;
@@ -70,16 +77,39 @@ public class PassthroughConnection implements Connection {
   // ivars related to message passing and client thread.
   private volatile State state = State.INIT;
   private Thread clientThread;
-  private final List<ServerToClientMessageRecord> messageQueue;
-  // NOTE:  this queue exists to carry any Futures pushed in when the server-side injects a message to the client.
-  // This approach is an ugly work-around for limitations imposed by running the server message processing and server
-  // execution on a single thread.  Ideally, we would send another message to the server, in this case, to better emulate
-  // the real implementation.
-  // TODO:  Remove this in favor of splitting the server-side execution thread from its message processing thread.
-  private final List<Waiter> clientResponseWaitQueue;
+  private final PassthroughInboundQueue<ServerToClientMessageRecord> messageQueue;
+  // The group which handles our messages, instead of a client thread, if we were started on one.
+  private volatile PassthroughClientDispatcherGroup dispatcherGroup;
+  // Set while we are scheduled on the dispatcher group, so that we are only scheduled once at a time.
+  private final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+  // Held while a dispatcher handles our messages so that close() can wait for it (it is reentrant since a message handler
+  //  can close the connection).
+  private final ReentrantLock dispatchLock = new ReentrantLock();
+  private final Runnable dispatchTask = () -> dispatchClientMessages();
+  // The connection whose messages the current thread is handling, if it is a dispatcher group thread.
+  private static final ThreadLocal<PassthroughConnection> DISPATCHING = new ThreadLocal<>();
   
   // This is only used during reconnect.
   private Map<Long, PassthroughInvocationCallback> invocationsToResend;
+  
+  // Object-passing mode:  -1 if disabled, otherwise every Nth invoke is still sent through the codec (0 for none).
+  private volatile int codecVerificationInterval = -1;
+  private final AtomicLong objectPassingInvokeCount = new AtomicLong();
+  // The objects handed to and from the servers in object-passing mode (null until it is first enabled).
+  private volatile PassthroughObjectHandoff objectHandoff;
+  // How the client thread waits for the next message from the server.
+  private volatile PassthroughWaitStrategy waitStrategy = PassthroughWaitStrategy.BLOCKING;
+  // The messages we send to the server are serialized into buffers from here (null if they aren't pooled).
+  private volatile PassthroughBufferPool bufferPool = new PassthroughBufferPool();
+  // The large messages we send to the server are deflated by this (null if they aren't compressed).
+  private volatile PassthroughCompression compression;
+  // The entity class names and entity names in our fetch and reconnect messages are encoded against this.
+  private final PassthroughConnectionDictionary symbols = new PassthroughConnectionDictionary();
+
+  // The server asks for the descriptor of one of our client instances on every invoke so it interns the most recent ones
+  //  here, indexed by the low bits of the clientInstanceID.
+  private static final int CLIENT_DESCRIPTOR_CACHE_SIZE = 16;
+  private final PassthroughClientDescriptor[] clientDescriptorCache = new PassthroughClientDescriptor[CLIENT_DESCRIPTOR_CACHE_SIZE];
 
   public PassthroughConnection(String connectionName, String readerThreadName, PassthroughServerProcess serverProcess, List<EntityClientService<?, ?, ? extends EntityMessage, ? extends EntityResponse, ?>> entityClientServices, Runnable onClose, long uniqueConnectionID) {
     this(connectionName, readerThreadName, serverProcess, entityClientServices, onClose, uniqueConnectionID, new PassthroughEndpointConnectorImpl());
@@ -97,8 +127,7 @@ public class PassthroughConnection implements Connection {
     this.uniqueConnectionID = uniqueConnectionID;
     this.endpointConnector = endpointConnector;
     this.readerThreadName = readerThreadName;
-    this.messageQueue = new Vector<ServerToClientMessageRecord>();
-    this.clientResponseWaitQueue = new Vector<Waiter>();
+    this.messageQueue = new PassthroughInboundQueue<ServerToClientMessageRecord>();
   }
 
   @Override
@@ -107,13 +136,99 @@ public class PassthroughConnection implements Connection {
   }
 
   public void startProcessingRequests() {
-    this.clientThread = new Thread(() -> runClientThread());
-    this.clientThread.setName(readerThreadName);
+    startProcessingRequests(PassthroughThreadMode.PLATFORM);
+  }
+
+  public void startProcessingRequests(PassthroughThreadMode threadMode) {
+    this.clientThread = threadMode.newThread(readerThreadName, () -> runClientThread());
     this.clientThread.setUncaughtExceptionHandler(PassthroughUncaughtExceptionHandler.sharedInstance);
     this.state = State.RUNNING;
     this.clientThread.start();
   }
 
+  /**
+   * Starts handling messages from the server on the threads of a shared group, instead of a client thread of our own.
+   * 
+   * @param dispatcherGroup The group
+   */
+  public void startProcessingRequests(PassthroughClientDispatcherGroup dispatcherGroup) {
+    Assert.assertTrue(null != dispatcherGroup);
+    this.state = State.RUNNING;
+    this.dispatcherGroup = dispatcherGroup;
+    // Messages which arrived before we had a group weren't scheduled.
+    if (!this.messageQueue.isEmpty()) {
+      scheduleDispatch(dispatcherGroup);
+    }
+  }
+
+  /**
+   * Sets the pool the messages this connection sends to the server are serialized into.  Each connection has its own pool
+   * by default but connections may share one.
+   * 
+   * @param bufferPool The pool, or null to allocate a new array for every message
+   */
+  public void setBufferPool(PassthroughBufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+  }
+
+  public PassthroughBufferPool getBufferPool() {
+    return this.bufferPool;
+  }
+
+  /**
+   * @return The string dictionary the names in our fetch and reconnect messages are encoded against
+   */
+  public PassthroughConnectionDictionary getSymbols() {
+    return this.symbols;
+  }
+
+  /**
+   * Enables or disables object-passing mode, where invokes hand their EntityMessage and EntityResponse objects directly to
+   * and from the server instead of running them through the entity's MessageCodec.  This is meant for benchmarks, where the
+   * codec cost would otherwise hide the entity logic being measured.
+   * So that codec bugs aren't hidden, every Nth invoke can still be sent through the codec.
+   * 
+   * @param enabled True to pass objects directly
+   * @param codecVerificationInterval When enabled, every Nth invoke is still sent through the codec (0 for none)
+   */
+  public synchronized void setObjectPassing(boolean enabled, int codecVerificationInterval) {
+    Assert.assertTrue(codecVerificationInterval >= 0);
+    // The handoff is kept if this is disabled since invokes already in-flight may still be using it.
+    if (enabled && (null == this.objectHandoff)) {
+      this.objectHandoff = PassthroughObjectHandoff.open();
+    }
+    this.codecVerificationInterval = enabled ? codecVerificationInterval : -1;
+  }
+
+  /**
+   * @return The handoff of the objects passed in object-passing mode, or null if it has never been enabled
+   */
+  public PassthroughObjectHandoff getObjectHandoff() {
+    return this.objectHandoff;
+  }
+
+  /**
+   * @return True if object-passing mode is enabled
+   */
+  public boolean isObjectPassing() {
+    return this.codecVerificationInterval >= 0;
+  }
+
+  /**
+   * Called for each invoke to decide whether to pass its message as an object or to encode it.
+   * 
+   * @return True if the next invoke should pass its message as an object
+   */
+  public boolean shouldPassObject() {
+    int interval = this.codecVerificationInterval;
+    boolean shouldPass = false;
+    if (interval >= 0) {
+      long count = this.objectPassingInvokeCount.incrementAndGet();
+      shouldPass = (0 == interval) || (0 != (count % interval));
+    }
+    return shouldPass;
+  }
+
   /**
    * @return The name, optionally set by the user via ConnectionPropertyNames.CONNECTION_NAME, in Properties.
    */
@@ -135,7 +250,38 @@ public class PassthroughConnection implements Connection {
     return this.uniqueConnectionID;
   }
 
+  /**
+   * Returns the server-side descriptor of one of our client instances, reusing the last one created for it when possible.
+   * 
+   * @param server The server asking for the descriptor
+   * @param clientInstanceID The client instance
+   * @return The descriptor of the client instance on the server
+   */
+  public PassthroughClientDescriptor clientDescriptorFor(PassthroughServerProcess server, long clientInstanceID) {
+    int slot = (int) (clientInstanceID & (CLIENT_DESCRIPTOR_CACHE_SIZE - 1));
+    // This is almost always called on the same server thread so the lock is uncontended.
+    synchronized (this.clientDescriptorCache) {
+      PassthroughClientDescriptor descriptor = this.clientDescriptorCache[slot];
+      if ((null == descriptor) || (descriptor.server != server) || (descriptor.clientInstanceID != clientInstanceID)) {
+        descriptor = new PassthroughClientDescriptor(server, this, clientInstanceID);
+        this.clientDescriptorCache[slot] = descriptor;
+      }
+      return descriptor;
+    }
+  }
+
   public byte[] invokeAndRetire(PassthroughMessage message) throws ExecutionException, InterruptedException {
+    return invokeAndRetireAsync(message).get();
+  }
+
+  /**
+   * Sends a message without waiting for it.  The returned future is completed, by the client thread, with the response once
+   * the message is retired, or with the exception the server failed it with.
+   * 
+   * @param message The message to send
+   * @return The future of the response
+   */
+  public CompletableFuture<byte[]> invokeAndRetireAsync(PassthroughMessage message) {
     CompletableFuture<byte[]> future = new CompletableFuture<>();
     invoke(message, new InvocationCallback<byte[]>() {
 
@@ -157,7 +303,7 @@ public class PassthroughConnection implements Connection {
       }
     }, of(RESULT, FAILURE, RETIRED));
 
-    return future.get();
+    return future;
   }
 
   public <R extends EntityResponse> Invocation.Task invoke(PassthroughMessage message, InvocationCallback<byte[]> callback, Set<InvocationCallback.Types> callbacks) {
@@ -168,37 +314,110 @@ public class PassthroughConnection implements Connection {
     if (state == State.CLOSED) {
       throw new ConnectionClosedException("Connection already closed");
     }
-    this.connectionState.sendNormal(this, message, callback);
+    // Compress here, on the caller's thread, before the connection state reserves the message's transaction.
+    PassthroughCompression compression = this.compression;
+    PassthroughMessage toSend = (null != compression) ? compression.compress(message) : message;
+    this.connectionState.sendNormal(this, toSend, callback);
 
     //cannot cancel passthrough messages (atm)
     return () -> false;
   }
 
-  @SuppressWarnings({ "unchecked" })
+  /**
+   * Sends several messages as a single unit (see PassthroughInvocationBatch).
+   * 
+   * @param messages The messages to send, in order
+   * @param callbacks The callback for each message
+   */
+  public void invokeBatch(List<PassthroughMessage> messages, List<? extends InvocationCallback<byte[]>> callbacks) {
+    if(state == State.INIT) {
+      throw new IllegalStateException("Connection is not in " + State.RUNNING + " state");
+    }
+    if (state == State.CLOSED) {
+      throw new ConnectionClosedException("Connection already closed");
+    }
+    PassthroughCompression compression = this.compression;
+    List<PassthroughMessage> toSend = messages;
+    if (null != compression) {
+      toSend = new ArrayList<>(messages.size());
+      for (PassthroughMessage message : messages) {
+        toSend.add(compression.compress(message));
+      }
+    }
+    this.connectionState.sendNormalBatch(this, toSend, callbacks);
+  }
+
+  /**
+   * @return A new, empty, batch of invocations to send to the server together
+   */
+  public PassthroughInvocationBatch createInvocationBatch() {
+    return new PassthroughInvocationBatch(this);
+  }
+
   public <T, U> T createEntityInstance(Class<?> cls, String name, final long clientInstanceID, long clientSideVersion, byte[] config, U userData) {
+    return createEntityInstance(cls, name, clientInstanceID, clientSideVersion, PassthroughMessageCodec.NO_ENTITY_HANDLE, config, userData);
+  }
+
+  @SuppressWarnings({ "unchecked" })
+  public <T, U> T createEntityInstance(Class<?> cls, String name, final long clientInstanceID, long clientSideVersion, long entityHandle, byte[] config, U userData) {
     EntityClientService<?, ?, ? extends EntityMessage, ? extends EntityResponse, U> service = (EntityClientService<?, ?, ? extends EntityMessage, ? extends EntityResponse, U>) getEntityClientService(cls);
-    return (T) storeNewEndpointAndCreateInstance(cls, name, clientInstanceID, config, service, userData);
+    return (T) storeNewEndpointAndCreateInstance(cls, name, clientInstanceID, entityHandle, config, service, userData);
   }
 
   // Exists to create a generic type context for M and R.
-  private <M extends EntityMessage, R extends EntityResponse, U> Entity storeNewEndpointAndCreateInstance(Class<?> cls, String name, final long clientInstanceID, byte[] config, EntityClientService<?, ?, M, R, U> service, U userData) {
+  private <M extends EntityMessage, R extends EntityResponse, U> Entity storeNewEndpointAndCreateInstance(Class<?> cls, String name, final long clientInstanceID, long entityHandle, byte[] config, EntityClientService<?, ?, M, R, U> service, U userData) {
     Runnable onClose = new Runnable() {
       @Override
       public void run() {
         localEndpoints.remove(clientInstanceID);
       }
     };
-    PassthroughEntityClientEndpoint<M, R> endpoint = new PassthroughEntityClientEndpoint<M, R>(this, cls, name, clientInstanceID, config, service.getMessageCodec(), onClose);
+    PassthroughEntityClientEndpoint<M, R> endpoint = new PassthroughEntityClientEndpoint<M, R>(this, cls, name, clientInstanceID, entityHandle, config, service.getMessageCodec(), onClose);
     this.localEndpoints.put(clientInstanceID, endpoint);
     return this.endpointConnector.connect(endpoint, service, userData);
   }
 
-  public synchronized void sendMessageToClient(PassthroughServerProcess sender, byte[] payload) {
+  public void sendMessageToClient(PassthroughServerProcess sender, byte[] payload) {
     // The sender is used to determine if this is a message coming in from a stale connection - checked on dequeue to avoid race conditions.
     if (this.connectionState.isConnected(sender)) {
       ServerToClientMessageRecord record = new ServerToClientMessageRecord(sender, payload);
+      // This doesn't take our monitor so the server never contends with the client API calls.
       this.messageQueue.add(record);
-      notifyAll();
+      PassthroughClientDispatcherGroup group = this.dispatcherGroup;
+      if (null != group) {
+        scheduleDispatch(group);
+      }
+    }
+  }
+
+  private void scheduleDispatch(PassthroughClientDispatcherGroup group) {
+    if (this.dispatchScheduled.compareAndSet(false, true)) {
+      group.schedule(this.dispatchTask);
+    }
+  }
+
+  /**
+   * Called on one of the dispatcher group's threads to handle some of our messages.
+   */
+  private void dispatchClientMessages() {
+    PassthroughClientDispatcherGroup group = this.dispatcherGroup;
+    this.dispatchLock.lock();
+    DISPATCHING.set(this);
+    try {
+      int limit = group.getDispatchLimit();
+      ServerToClientMessageRecord message = null;
+      for (int handled = 0; (handled < limit) && (state == State.RUNNING) && (null != (message = this.messageQueue.poll())); ++handled) {
+        handleMessage(message);
+      }
+    } finally {
+      DISPATCHING.remove();
+      this.dispatchLock.unlock();
+    }
+    // (if handling a message throws, we stay scheduled so we are never dispatched again, just as a client thread would die)
+    this.dispatchScheduled.set(false);
+    // Either we stopped at the limit or a message arrived after we stopped polling, and its sender saw us still scheduled.
+    if ((state == State.RUNNING) && !this.messageQueue.isEmpty()) {
+      scheduleDispatch(group);
     }
   }
   
@@ -211,28 +430,92 @@ public class PassthroughConnection implements Connection {
   private boolean handleNextMessage() {
     ServerToClientMessageRecord message = getNextClientMessage();
     if (message != null) {
-      if (this.connectionState.isConnected(message.sender)) {
-        clientThreadHandleMessage(message.sender, message.payload);
-      }
+      handleMessage(message);
       return true;
     } else {
       return false;
     }
   }
+
+  private void handleMessage(ServerToClientMessageRecord message) {
+    if (this.connectionState.isConnected(message.sender)) {
+      clientThreadHandleMessage(message.sender, message.payload);
+    }
+  }
   
-  private synchronized ServerToClientMessageRecord getNextClientMessage() {
-    while (state == State.RUNNING) {
-      if (!this.messageQueue.isEmpty()) {
-        return this.messageQueue.remove(0);
+  /**
+   * Selects how the client thread waits for the next message from the server.
+   * 
+   * @param waitStrategy The wait strategy
+   */
+  public void setWaitStrategy(PassthroughWaitStrategy waitStrategy) {
+    Assert.assertTrue(null != waitStrategy);
+    this.waitStrategy = waitStrategy;
+  }
+
+  /**
+   * Sets how the invokes this connection sends are compressed.
+   * 
+   * @param compression The compression, or null to send them uncompressed
+   */
+  public void setCompression(PassthroughCompression compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * Limits how many messages this connection can have in-flight (sent but not yet retired) at once.
+   * 
+   * @param inFlightWindow The window, or null for no limit (the default)
+   */
+  public void setInFlightWindow(PassthroughInFlightWindow inFlightWindow) {
+    this.connectionState.setInFlightWindow(inFlightWindow);
+  }
+
+  /**
+   * @return The window limiting this connection's in-flight messages, and holding its statistics, or null if there is no limit
+   */
+  public PassthroughInFlightWindow getInFlightWindow() {
+    return this.connectionState.getInFlightWindow();
+  }
+
+  /**
+   * @return True if called on the thread which handles this connection's messages from the server (if it has a dispatcher
+   * group, only while that thread is handling this connection's messages, not another connection's)
+   */
+  public boolean isClientThread() {
+    return (null != this.dispatcherGroup)
+        ? (DISPATCHING.get() == this)
+        : (Thread.currentThread() == this.clientThread);
+  }
+
+  /**
+   * @return True if called on a thread which may be needed to handle this connection's messages from the server:  its
+   * client thread or, if it has a dispatcher group, any of the group's threads
+   */
+  public boolean isDispatcherThread() {
+    PassthroughClientDispatcherGroup group = this.dispatcherGroup;
+    return (null != group)
+        ? group.isDispatcherThread()
+        : (Thread.currentThread() == this.clientThread);
+  }
+
+  private ServerToClientMessageRecord getNextClientMessage() {
+    // Poll for a while first, if the wait strategy allows, since parking means the server has to unpark us.
+    PassthroughWaitStrategy waitStrategy = this.waitStrategy;
+    int idleCount = 0;
+    ServerToClientMessageRecord message = null;
+    while ((state == State.RUNNING) && (null == (message = this.messageQueue.poll()))) {
+      if (waitStrategy.idle(idleCount)) {
+        idleCount += 1;
       } else {
         try {
-          this.wait();
+          this.messageQueue.park();
         } catch (InterruptedException e) {
           Assert.unexpected(e);
         }
       }
     }
-    return null;
+    return message;
   }
 
   private void clientThreadHandleMessage(final PassthroughServerProcess sender, byte[] message) {
@@ -249,23 +532,15 @@ public class PassthroughConnection implements Connection {
           case EXCEPTION_FROM_SERVER: {
             // Complete has a flag for success/failure, followed by return value and exception.
             boolean isSuccess = type != Type.EXCEPTION_FROM_SERVER && type != Type.MONITOR_EXCEPTION;
-            int length = input.readInt();
-            byte[] bytes = null;
-            if (-1 == length) {
-              // This is the case of a null result.
-            } else {
-              bytes = new byte[length];
-              input.readFully(bytes);
-            }
-            byte[] result = null;
+            // A null view is the case of a null result.  Otherwise, the result is a view of the message, not a copy.
+            ByteBuffer result = PassthroughMessageCodec.readNullableByteBufferView(input);
             EntityException error = null;
-            if (isSuccess) {
-              result = bytes;
-            } else {
-              error = PassthroughMessageCodec.deserializeExceptionFromArray(bytes);
+            if (!isSuccess) {
+              error = PassthroughMessageCodec.deserializeExceptionFromArray(PassthroughMessageCodec.toArray(result));
+              result = null;
             }
             if (type == Type.MONITOR_MESSAGE) {
-              handleMonitor(sender, transactionID, result);
+              handleMonitor(sender, transactionID, (null != result) ? PassthroughMessageCodec.toArray(result) : null);
             } else {
               handleComplete(sender, transactionID, result, error);
             }
@@ -274,11 +549,25 @@ public class PassthroughConnection implements Connection {
           case RETIRE_FROM_SERVER:
             handleRetire(sender, transactionID);
             break;
+          case COMPLETE_AND_RETIRE_FROM_SERVER: {
+            // This is handled exactly as the ack (if included), complete, and retire would have been, in that order.
+            byte flags = input.readByte();
+            ByteBuffer result = PassthroughMessageCodec.readNullableByteBufferView(input);
+            EntityException error = null;
+            if (0 != (flags & PassthroughMessageCodec.COMBINED_IS_EXCEPTION)) {
+              error = PassthroughMessageCodec.deserializeExceptionFromArray(PassthroughMessageCodec.toArray(result));
+              result = null;
+            }
+            if (0 != (flags & PassthroughMessageCodec.COMBINED_INCLUDES_ACK)) {
+              handleAck(sender, transactionID);
+            }
+            handleComplete(sender, transactionID, result, error);
+            handleRetire(sender, transactionID);
+            break;
+          }
           case INVOKE_ON_CLIENT: {
             long clientInstanceID = input.readLong();
-            int length = input.readInt();
-            byte[] result = new byte[length];
-            input.readFully(result);
+            ByteBuffer result = PassthroughMessageCodec.readByteBufferView(input);
             // First we handle the invoke.
             try {
               handleInvokeOnClient(clientInstanceID, result);
@@ -286,10 +575,6 @@ public class PassthroughConnection implements Connection {
               // Not expected (implies there is a serious bug in the entity being tested).
               Assert.unexpected(e);
             }
-            // Now, we need to send this response as a sort of ack, to the server.  They typically don't wait for it but
-            // they can.
-            // TODO:  Remove this in favor of splitting the server-side execution thread from its message processing thread.
-            PassthroughConnection.this.clientResponseWaitQueue.remove(0).finish();
             break;
           }
           case CREATE_ENTITY:
@@ -300,6 +585,7 @@ public class PassthroughConnection implements Connection {
           case INVOKE_ON_SERVER:
           case RECONNECT:
           case UNEXPECTED_RELEASE:
+          case DEFINE_SYMBOLS:
             // Not handled on client.
             Assert.unreachable();
             break;
@@ -321,13 +607,13 @@ public class PassthroughConnection implements Connection {
     }
   }
 
-  private void handleComplete(PassthroughServerProcess sender, long transactionID, byte[] result, EntityException error) {
+  private void handleComplete(PassthroughServerProcess sender, long transactionID, ByteBuffer result, EntityException error) {
     PassthroughInvocationCallback invocation = this.connectionState.getInvocationForTransaction(sender, transactionID);
     // Note that we may fail because this server may be dead.
     if (null != invocation) {
       try {
         if (result != null) {
-          invocation.result(result);
+          invocation.resultView(result);
         }
         if (error != null) {
           invocation.failure(error);
@@ -354,7 +640,7 @@ public class PassthroughConnection implements Connection {
     }
   }
 
-  private void handleInvokeOnClient(long clientInstanceID, byte[] result) throws MessageCodecException {
+  private void handleInvokeOnClient(long clientInstanceID, ByteBuffer result) throws MessageCodecException {
     this.localEndpoints.get(clientInstanceID).handleMessageFromServer(result);
   }
 
@@ -381,15 +667,19 @@ public class PassthroughConnection implements Connection {
       this.connectionState.forceClose();
       
       // We are going to stop processing messages so set us not running and stop our thread.
-      synchronized (this) {
-        this.state = State.CLOSED;
-        this.notifyAll();
-      }
-      try {
-        this.clientThread.join();
-      } catch (InterruptedException e) {
-        // This is not expected.
-        Assert.unexpected(e);
+      this.state = State.CLOSED;
+      this.messageQueue.close();
+      if (null != this.clientThread) {
+        try {
+          this.clientThread.join();
+        } catch (InterruptedException e) {
+          // This is not expected.
+          Assert.unexpected(e);
+        }
+      } else {
+        // Wait for any dispatcher still handling one of our messages.  Any later dispatch will see we are closed.
+        this.dispatchLock.lock();
+        this.dispatchLock.unlock();
       }
       // Continue with the shutdown.
       // First, call the runnable hook.
@@ -401,6 +691,11 @@ public class PassthroughConnection implements Connection {
       
       // We might as well drop the references from our tracking, also, since they can't reasonably be used.
       this.localEndpoints.clear();
+      // Nothing can read the objects still handed across, either.
+      PassthroughObjectHandoff handoff = this.objectHandoff;
+      if (null != handoff) {
+        handoff.close();
+      }
     } else {
       //double-close throws IllegalStateException
       throw new IllegalStateException("Connection already closed");
@@ -457,50 +752,6 @@ public class PassthroughConnection implements Connection {
     return thisClientEndpointID;
   }
 
-  public synchronized Future<Void> createClientResponseFuture() {
-    Waiter waiter = new Waiter();
-    this.clientResponseWaitQueue.add(waiter);
-    return waiter;
-  }
-
-
-  // TODO:  Remove this in favor of splitting the server-side execution thread from its message processing thread and using
-  // a real message, instead of this shared Future.
-  private static class Waiter implements Future<Void> {
-    private boolean isDone = false;
-    @Override
-    public boolean cancel(boolean mayInterruptIfRunning) {
-      Assert.unreachable();
-      return false;
-    }
-    @Override
-    public synchronized Void get() throws InterruptedException, ExecutionException {
-      while (!this.isDone) {
-        wait();
-      }
-      return null;
-    }
-    @Override
-    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-      Assert.unreachable();
-      return null;
-    }
-    @Override
-    public boolean isCancelled() {
-      Assert.unreachable();
-      return false;
-    }
-    @Override
-    public synchronized boolean isDone() {
-      return this.isDone;
-    }
-    public synchronized void finish() {
-      this.isDone = true;
-      notifyAll();
-    }
-  }
-
-
   /**
    * Note that reconnect (on either restart or fail-over) is a two-phase process:
    * 1) startReconnect - Reconstructs lock state and per-entity extended reconnect data
@@ -516,39 +767,53 @@ public class PassthroughConnection implements Connection {
   public void startReconnect(PassthroughServerProcess serverProcess) {
     Assert.assertTrue(null == this.invocationsToResend);
     // Duplicate the map to avoid ConcurrentModificationException.
-    this.invocationsToResend = new HashMap<>(this.connectionState.enterReconnectState(serverProcess));
+    this.invocationsToResend = this.connectionState.enterReconnectState(serverProcess);
+    
+    // The new server knows none of our strings so define them all before anything else (the messages we re-send may refer
+    //  to them).
+    Map<String, Integer> symbolIDs = this.symbols.reset();
+    if (!symbolIDs.isEmpty()) {
+      sendAsReconnectAndWait(PassthroughMessageCodec.createDefineSymbolsMessage(symbolIDs));
+      this.symbols.confirm(symbolIDs.keySet().toArray(new String[0]));
+    }
     
     // Tell all of our still-open end-points to reconnect to the server.
     for (PassthroughEntityClientEndpoint<?, ?> endpoint : this.localEndpoints.values()) {
       byte[] extendedData = endpoint.getExtendedReconnectData();
-      PassthroughMessage message = endpoint.buildReconnectMessage(extendedData);
-      // Send the message directly to the new process, waiting for all acks.
-      CompletableFuture<byte[]> future = new CompletableFuture<>();
-      this.connectionState.sendAsReconnect(this, message, new InvocationCallback<byte[]>() {
+      PassthroughMessage message = endpoint.buildReconnectMessage(this.symbols, extendedData);
+      byte[] response = sendAsReconnectAndWait(message);
+      // The new server may know this entity by a different handle.
+      endpoint.setEntityHandle(PassthroughMessageCodec.decodeEntityHandleFromReconnectResponse(response));
+    }
+  }
 
-        private volatile byte[] response;
+  private byte[] sendAsReconnectAndWait(PassthroughMessage message) {
+    // Send the message directly to the new process, waiting for all acks.
+    CompletableFuture<byte[]> future = new CompletableFuture<>();
+    this.connectionState.sendAsReconnect(this, message, new InvocationCallback<byte[]>() {
 
-        @Override
-        public void result(byte[] response) {
-          this.response = response;
-        }
+      private volatile byte[] response;
 
-        @Override
-        public void retired() {
-          future.complete(response);
-        }
+      @Override
+      public void result(byte[] response) {
+        this.response = response;
+      }
 
-        @Override
-        public void failure(Throwable failure) {
-          future.completeExceptionally(failure);
-        }
-      });
+      @Override
+      public void retired() {
+        future.complete(response);
+      }
 
-      try {
-        future.get();
-      } catch (InterruptedException | ExecutionException e) {
-        throw new RuntimeException(e);
+      @Override
+      public void failure(Throwable failure) {
+        future.completeExceptionally(failure);
       }
+    });
+
+    try {
+      return future.get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
     }
   }
 
@@ -0,0 +1,88 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The sending side of the table of strings (entity class names and entity names) sent by a client connection in the
+ * messages which are never replicated to the passives (fetch and reconnect).  The server keeps the receiving side, as a
+ * PassthroughStringDictionary for each connection.
+ * Unlike the link to a passive, which encodes and sends each message under its dictionary's monitor, any number of threads
+ * send on a connection so their messages can reach the server in a different order than they were created.  This means
+ * that a string is only sent as a reference once the server has answered a message which defined it, so it has already
+ * decoded the definition.  Until then, every message which uses the string defines it again (with the same ID).
+ * The table is reset when the connection reconnects, since the new server knows none of its strings:  they are all defined
+ * again, in one message, before any in-flight message is re-sent (so those can still refer to them).
+ */
+public class PassthroughConnectionDictionary {
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final AtomicInteger nextID = new AtomicInteger();
+
+  /**
+   * Called to encode a string, assigning it an ID if this is its first use.
+   *
+   * @param string The string to send
+   * @return The string's ID, if the server is known to have its definition, or the bitwise complement of its ID, if this
+   * use must define it
+   */
+  public int reference(String string) {
+    Entry entry = this.entries.computeIfAbsent(string, (key) -> new Entry(this.nextID.getAndIncrement()));
+    return entry.confirmed ? entry.id : ~entry.id;
+  }
+
+  /**
+   * Called once the server has answered a message which used the given strings so later messages can refer to them.
+   */
+  public void confirm(String... strings) {
+    for (String string : strings) {
+      Entry entry = this.entries.get(string);
+      if (null != entry) {
+        entry.confirmed = true;
+      }
+    }
+  }
+
+  /**
+   * Called when the connection enters the reconnect state:  the new server knows none of our strings so none can be
+   * referred to until they have all been defined again.
+   *
+   * @return The ID of every string, to define on the new server
+   */
+  public Map<String, Integer> reset() {
+    Map<String, Integer> ids = new HashMap<>();
+    for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+      entry.getValue().confirmed = false;
+      ids.put(entry.getKey(), entry.getValue().id);
+    }
+    return ids;
+  }
+
+  private static class Entry {
+    public final int id;
+    public volatile boolean confirmed;
+
+    public Entry(int id) {
+      this.id = id;
+    }
+  }
+}
@@ -72,7 +72,12 @@ public class PassthroughConnectionService implements ConnectionService {
       if (null == connectionName) {
         connectionName = "";
       }
-      connection = server.connectNewClient(connectionName);
+      PassthroughConnection passthroughConnection = server.connectNewClient(connectionName);
+      String codecVerificationInterval = properties.getProperty(PassthroughConnection.OBJECT_PASSING_PROPERTY);
+      if (null != codecVerificationInterval) {
+        passthroughConnection.setObjectPassing(true, Integer.parseInt(codecVerificationInterval));
+      }
+      connection = passthroughConnection;
     } else {
       throw new ConnectionException(new UnknownHostException(serverName));
     }
@@ -18,125 +18,519 @@ package org.terracotta.passthrough;
 
 import org.terracotta.entity.InvocationCallback;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 
 /**
  * Maintains the association that a connection has to its server and the in-flight messages associated with it.
  * The reason why this is managed out-of-line is that reconnect represents very specific ordering concerns and thread
  * interaction concerns, which are far more easily managed within a distinct object.
- * Note that all the methods in this object are synchronized so they can not block for any reason other than waiting.  That
- * is to say that nothing can perform a blocking operation while holding the monitor.
+ * Many application threads can share one connection, so sending is kept off any exclusive lock:
+ * -the server processes the connection is attached to are an immutable Epoch, replaced on each state transition, so
+ *  isConnected() is just a volatile read.
+ * -each send holds the read side of a StampedLock, which any number of senders can hold together, while the rare
+ *  reconnect/disconnect transitions take the write side.  This means that a transition never happens in the middle of a
+ *  send so every in-flight message is either in the reconnect snapshot or sent after the reconnect.
+ * -the in-flight messages and transaction IDs are guarded by inFlightLock, which is only held to reserve, publish or
+ *  remove a transaction.  A message is serialized, and handed to the server, outside that lock.
+ *  Its invocation is only published once it has been sent so, in the rare case where the server answers first, the
+ *  client thread waits for it.  This way, a callback always hears that its message was sent before anything else.
+ * Note that nothing can perform a blocking operation while holding any of these.  This includes a server whose message
+ * queue is full and set to block the sender:  the sender gives its transaction back and releases its locks before it
+ * waits for space, and then starts again.
+ * The waits which remain (for a server process or for an invocation to be published) use j.u.c conditions, not monitors,
+ * so that virtual client threads don't pin their carriers while they wait.
  */
 public class PassthroughConnectionState {
-  private PassthroughServerProcess serverProcess;
-  private final Map<Long, PassthroughInvocationCallback> inFlightMessages;
-  // We store the reconnecting server just to assert details of correct usage.
-  private PassthroughServerProcess reconnectingServerProcess;
+  // Holds the place of a transaction whose message is still being sent, so that no later message can claim it has already
+  //  been retired.
+  private static final PassthroughInvocationCallback RESERVED = new PassthroughInvocationCallback(new byte[0], null);
+
+  private volatile Epoch epoch;
+  private final StampedLock stateLock = new StampedLock();
+  private final PassthroughInFlightMessages inFlightMessages;
+  private final ReentrantLock inFlightLock = new ReentrantLock();
+  // Signalled when a reserved transaction's invocation is published.
+  private final Condition published = this.inFlightLock.newCondition();
+  // Signalled when the connection has a server process again.
+  private final Condition connected = this.inFlightLock.newCondition();
+  // The window limiting how many messages can be in-flight, or null if there is no limit.
+  private volatile PassthroughInFlightWindow inFlightWindow;
   
-  // Transaction IDs are managed here, as well.
+  // Transaction IDs are managed here, as well, under inFlightLock.
   private long nextTransactionID;
+  // Set, under inFlightLock, once the connection is force-closed.
+  private boolean closed;
   
   public PassthroughConnectionState(PassthroughServerProcess initialServerProcess) {
-    this.serverProcess = initialServerProcess;
-    this.inFlightMessages = new HashMap<>();
+    this.epoch = new Epoch(initialServerProcess, null);
+    this.inFlightMessages = new PassthroughInFlightMessages();
     this.nextTransactionID = 1;
   }
   
   public boolean isServerThread() {
-    return serverProcess.isServerThread();
+    return this.epoch.serverProcess.isServerThread();
+  }
+
+  /**
+   * Limits the number of normal messages which can be in-flight at once.  This only applies to messages sent after it is
+   * set.
+   * 
+   * @param inFlightWindow The window, or null for no limit
+   */
+  public void setInFlightWindow(PassthroughInFlightWindow inFlightWindow) {
+    this.inFlightWindow = inFlightWindow;
   }
 
-  public synchronized PassthroughInvocationCallback sendNormal(PassthroughConnection sender, PassthroughMessage message, InvocationCallback<byte[]> callback) {
-    // This uses the normal server process so wait for it to become available.
-    while (null == this.serverProcess) {
+  public PassthroughInFlightWindow getInFlightWindow() {
+    return this.inFlightWindow;
+  }
+
+  public PassthroughInvocationCallback sendNormal(PassthroughConnection sender, PassthroughMessage message, InvocationCallback<byte[]> callback) {
+    PassthroughInFlightWindow window = acquireWindow(sender, 1);
+    while (true) {
+      PassthroughServerProcess target;
+      long stamp = lockConnected();
       try {
-        wait();
-      } catch (InterruptedException e) {
-        // The only reason we would interrupt is to kill the test.
-        throw new RuntimeException(e);
+        target = this.epoch.serverProcess;
+        long oldestTransactionID;
+        long transactionID;
+        this.inFlightLock.lock();
+        try {
+          oldestTransactionID = oldestInFlightTransactionID();
+          transactionID = reserveTransactions(1);
+        } finally {
+          this.inFlightLock.unlock();
+        }
+        PassthroughInvocationCallback invocation = createAndSend(target, sender, message, transactionID, oldestTransactionID, callback, window);
+        if (null != invocation) {
+          return invocation;
+        }
+      } finally {
+        this.stateLock.unlockRead(stamp);
       }
+      target.awaitQueueSpace();
     }
-    long oldestTransactionID = this.nextTransactionID;
-    for (long oneID : this.inFlightMessages.keySet()) {
-      if (oneID < oldestTransactionID) {
-        oldestTransactionID = oneID;
+  }
+
+  /**
+   * Sends several messages as a single unit.  Each message still gets its own transaction and invocation, so it is acked,
+   * completed, retired and re-sent on its own.
+   * Either all the messages are sent or, if the server refuses them, none are.
+   * 
+   * @param sender The connection sending the messages
+   * @param messages The messages to send, in order
+   * @param callbacks The callback for each message
+   * @return The invocation of each message
+   */
+  public List<PassthroughInvocationCallback> sendNormalBatch(PassthroughConnection sender, List<PassthroughMessage> messages, List<? extends InvocationCallback<byte[]>> callbacks) {
+    Assert.assertTrue(messages.size() == callbacks.size());
+    int count = messages.size();
+    PassthroughInFlightWindow window = acquireWindow(sender, count);
+    while (true) {
+      PassthroughServerProcess target;
+      long stamp = lockConnected();
+      try {
+        target = this.epoch.serverProcess;
+        long oldestTransactionID;
+        long firstTransactionID;
+        this.inFlightLock.lock();
+        try {
+          oldestTransactionID = oldestInFlightTransactionID();
+          firstTransactionID = reserveTransactions(count);
+        } finally {
+          this.inFlightLock.unlock();
+        }
+        List<PassthroughInvocationCallback> invocations = createAndSendBatch(target, sender, messages, firstTransactionID, oldestTransactionID, callbacks, window);
+        if (null != invocations) {
+          return invocations;
+        }
+      } finally {
+        this.stateLock.unlockRead(stamp);
       }
+      target.awaitQueueSpace(count);
     }
-    return createAndSend(this.serverProcess, inFlightMessages, sender, message,
-            oldestTransactionID, callback);
   }
 
-  private PassthroughInvocationCallback createAndSend(PassthroughServerProcess target, Map<Long, PassthroughInvocationCallback> tracker,
-                                                      PassthroughConnection sender, PassthroughMessage message, long oldestTransactionID, InvocationCallback<byte[]> callback) {
-    long transactionID = this.nextTransactionID++;
+  private PassthroughInFlightWindow acquireWindow(PassthroughConnection sender, int count) {
+    PassthroughInFlightWindow window = this.inFlightWindow;
+    if (null != window) {
+      // This happens before we take any lock since only retiring our in-flight messages can make room.  The client thread
+      //  retires them so it can't wait, nor can any thread of a dispatcher group since they may all be waiting.
+      window.acquire(count, !sender.isDispatcherThread());
+    }
+    return window;
+  }
+
+  /**
+   * Takes the read side of the state lock once the connection has a server process, waiting for one if it is
+   * disconnected or reconnecting.
+   * 
+   * @return The stamp to unlock
+   */
+  private long lockConnected() {
+    long stamp = this.stateLock.readLock();
+    while (null == this.epoch.serverProcess) {
+      // We can't wait while holding the lock since that would block the reconnect we are waiting for.
+      this.stateLock.unlockRead(stamp);
+      this.inFlightLock.lock();
+      try {
+        while (null == this.epoch.serverProcess) {
+          try {
+            this.connected.await();
+          } catch (InterruptedException e) {
+            // The only reason we would interrupt is to kill the test.
+            throw new RuntimeException(e);
+          }
+        }
+      } finally {
+        this.inFlightLock.unlock();
+      }
+      stamp = this.stateLock.readLock();
+    }
+    return stamp;
+  }
+
+  // Must be called under inFlightLock.
+  private long oldestInFlightTransactionID() {
+    // If nothing is in-flight, the next message is the oldest.
+    return this.inFlightMessages.oldestTransactionID(this.nextTransactionID);
+  }
+
+  // Must be called under inFlightLock.
+  private long reserveTransactions(int count) {
+    long firstTransactionID = this.nextTransactionID;
+    for (int i = 0; i < count; ++i) {
+      this.inFlightMessages.put(this.nextTransactionID++, RESERVED);
+    }
+    return firstTransactionID;
+  }
+
+  private void forgetTransactions(long firstTransactionID, int count) {
+    this.inFlightLock.lock();
+    try {
+      for (int i = 0; i < count; ++i) {
+        this.inFlightMessages.remove(firstTransactionID + i);
+      }
+      // Give the IDs back, unless another sender has taken a later one in the meantime.
+      if (this.nextTransactionID == (firstTransactionID + count)) {
+        this.nextTransactionID = firstTransactionID;
+      }
+    } finally {
+      this.inFlightLock.unlock();
+    }
+  }
+
+  private static PassthroughInvocationCallback createInvocation(PassthroughConnection sender, PassthroughMessage message, long transactionID, long oldestTransactionID,
+                                                                InvocationCallback<byte[]> callback, PassthroughInFlightWindow window) {
     message.setTransactionTracking(transactionID, oldestTransactionID);
-    PassthroughInvocationCallback invocation = new PassthroughInvocationCallback(message.asSerializedBytes(), callback);
-    tracker.put(transactionID, invocation);
+    PassthroughBufferPool bufferPool = sender.getBufferPool();
+    PassthroughInvocationCallback invocation = (null != bufferPool)
+        ? new PassthroughInvocationCallback(bufferPool.acquire(message), callback)
+        : new PassthroughInvocationCallback(message.asSerializedBytes(), callback);
+    invocation.setInFlightWindow(window);
+    return invocation;
+  }
+
+  /**
+   * @return The invocation of the sent message, or null if the server's queue is full and set to block the sender, in which
+   * case the transaction has been given back and the caller must wait for space, outside its locks, and try again
+   */
+  private PassthroughInvocationCallback createAndSend(PassthroughServerProcess target, PassthroughConnection sender, PassthroughMessage message,
+                                                      long transactionID, long oldestTransactionID, InvocationCallback<byte[]> callback, PassthroughInFlightWindow window) {
+    PassthroughInvocationCallback invocation = null;
+    try {
+      invocation = createInvocation(sender, message, transactionID, oldestTransactionID, callback, window);
+      if (!trySendInvocation(target, sender, invocation)) {
+        forgetTransactions(transactionID, 1);
+        // The next attempt encodes the message again, with its new transaction, but keeps our place in the window.
+        invocation.setInFlightWindow(null);
+        invocation.releaseMessage();
+        return null;
+      }
+    } catch (RuntimeException e) {
+      // The server refused the message (its queue is full and set to fail fast) so forget it was ever sent.
+      forgetTransactions(transactionID, 1);
+      if (null != invocation) {
+        invocation.releaseMessage();
+      } else if (null != window) {
+        window.release(1);
+      }
+      throw e;
+    }
     invocation.sent();
-    target.sendMessageToServer(sender, invocation.getMessage());
+    boolean wasClosed;
+    this.inFlightLock.lock();
+    try {
+      this.inFlightMessages.put(transactionID, invocation);
+      this.published.signalAll();
+      wasClosed = this.closed;
+    } finally {
+      this.inFlightLock.unlock();
+    }
+    if (wasClosed) {
+      // The connection was force-closed while we were sending so it skipped us:  we must disconnect ourselves.
+      invocation.forceDisconnect();
+    }
     return invocation;
   }
 
-  public synchronized boolean isConnected(PassthroughServerProcess sender) {
-    return (sender == this.serverProcess) || (sender == this.reconnectingServerProcess);
+  /**
+   * The batch variant of createAndSend.
+   * 
+   * @return The invocations of the sent messages, or null if the server's queue is full and set to block the sender, in
+   * which case the transactions have been given back and the caller must wait for space, outside its locks, and try again
+   */
+  private List<PassthroughInvocationCallback> createAndSendBatch(PassthroughServerProcess target, PassthroughConnection sender, List<PassthroughMessage> messages,
+                                                                 long firstTransactionID, long oldestTransactionID, List<? extends InvocationCallback<byte[]>> callbacks, PassthroughInFlightWindow window) {
+    int count = messages.size();
+    List<PassthroughInvocationCallback> invocations = new ArrayList<>(count);
+    try {
+      for (int i = 0; i < count; ++i) {
+        invocations.add(createInvocation(sender, messages.get(i), firstTransactionID + i, oldestTransactionID, callbacks.get(i), window));
+      }
+      if (!target.trySendBatchToServer(sender, invocations)) {
+        forgetTransactions(firstTransactionID, count);
+        // The next attempt encodes the messages again, with their new transactions, but keeps their places in the window.
+        for (PassthroughInvocationCallback invocation : invocations) {
+          invocation.setInFlightWindow(null);
+          invocation.releaseMessage();
+        }
+        return null;
+      }
+    } catch (RuntimeException e) {
+      // The server refused the batch so forget it was ever sent.
+      forgetTransactions(firstTransactionID, count);
+      for (PassthroughInvocationCallback invocation : invocations) {
+        invocation.releaseMessage();
+      }
+      if (null != window) {
+        // The messages we didn't get to are still holding their places in the window.
+        window.release(count - invocations.size());
+      }
+      throw e;
+    }
+    for (PassthroughInvocationCallback invocation : invocations) {
+      invocation.sent();
+    }
+    boolean wasClosed;
+    this.inFlightLock.lock();
+    try {
+      for (int i = 0; i < count; ++i) {
+        this.inFlightMessages.put(firstTransactionID + i, invocations.get(i));
+      }
+      this.published.signalAll();
+      wasClosed = this.closed;
+    } finally {
+      this.inFlightLock.unlock();
+    }
+    if (wasClosed) {
+      // As in createAndSend, the force-close skipped these so disconnect them here.
+      for (PassthroughInvocationCallback invocation : invocations) {
+        invocation.forceDisconnect();
+      }
+    }
+    return invocations;
+  }
+
+  public boolean isConnected(PassthroughServerProcess sender) {
+    Epoch current = this.epoch;
+    return (sender == current.serverProcess) || (sender == current.reconnectingServerProcess);
   }
 
-  public synchronized PassthroughInvocationCallback sendAsReconnect(PassthroughConnection sender, PassthroughMessage message, InvocationCallback<byte[]> callback) {
+  public PassthroughInvocationCallback sendAsReconnect(PassthroughConnection sender, PassthroughMessage message, InvocationCallback<byte[]> callback) {
     // This is similar to the normal send but only happens in the reconnect state and creates a waiter in that in-flight set.
-    Assert.assertTrue(null != this.reconnectingServerProcess);
-    // We won't bother clearing transactions on re-send.
-    long oldestTransactionID = 0;
-    return createAndSend(this.reconnectingServerProcess, this.inFlightMessages, sender, message, oldestTransactionID, callback);
+    while (true) {
+      PassthroughServerProcess target;
+      long stamp = this.stateLock.readLock();
+      try {
+        target = this.epoch.reconnectingServerProcess;
+        Assert.assertTrue(null != target);
+        // We won't bother clearing transactions on re-send.
+        long oldestTransactionID = 0;
+        long transactionID;
+        this.inFlightLock.lock();
+        try {
+          transactionID = reserveTransactions(1);
+        } finally {
+          this.inFlightLock.unlock();
+        }
+        // Reconnect messages don't take a place in the window.
+        PassthroughInvocationCallback invocation = createAndSend(target, sender, message, transactionID, oldestTransactionID, callback, null);
+        if (null != invocation) {
+          return invocation;
+        }
+      } finally {
+        this.stateLock.unlockRead(stamp);
+      }
+      target.awaitQueueSpace();
+    }
   }
 
-  public synchronized Map<Long, PassthroughInvocationCallback> enterReconnectState(PassthroughServerProcess newServerProcess) {
-    Assert.assertTrue(null == this.serverProcess);
-    Assert.assertTrue(null == this.reconnectingServerProcess);
+  /**
+   * @return A snapshot of the messages which were in-flight when the connection entered the reconnect state, oldest first
+   */
+  public Map<Long, PassthroughInvocationCallback> enterReconnectState(PassthroughServerProcess newServerProcess) {
+    long stamp = this.stateLock.writeLock();
+    try {
+      Assert.assertTrue(null == this.epoch.serverProcess);
+      Assert.assertTrue(null == this.epoch.reconnectingServerProcess);
 
-    this.reconnectingServerProcess = newServerProcess;
-    return this.inFlightMessages;
+      this.epoch = new Epoch(null, newServerProcess);
+      // No send is in progress while we hold the write lock so nothing in the snapshot is still reserved.
+      this.inFlightLock.lock();
+      try {
+        return this.inFlightMessages.snapshot();
+      } finally {
+        this.inFlightLock.unlock();
+      }
+    } finally {
+      this.stateLock.unlockWrite(stamp);
+    }
   }
 
-  public synchronized void sendAsResend(PassthroughConnection sender, long transactionID, PassthroughInvocationCallback invocation) {
+  public void sendAsResend(PassthroughConnection sender, long transactionID, PassthroughInvocationCallback invocation) {
     // This is similar to the normal send but only happens in the reconnect state and creates a waiter in that in-flight set.
-    Assert.assertTrue(null != this.reconnectingServerProcess);
-    byte[] raw = invocation.getMessage();
-    this.inFlightMessages.put(transactionID, invocation);
-    this.reconnectingServerProcess.sendMessageToServer(sender, raw);
+    boolean sent = false;
+    while (!sent) {
+      PassthroughServerProcess target;
+      long stamp = this.stateLock.readLock();
+      try {
+        target = this.epoch.reconnectingServerProcess;
+        Assert.assertTrue(null != target);
+        this.inFlightLock.lock();
+        try {
+          this.inFlightMessages.put(transactionID, invocation);
+        } finally {
+          this.inFlightLock.unlock();
+        }
+        // A re-send keeps its transaction so, if the server would block us, we just send the same message again.
+        sent = trySendInvocation(target, sender, invocation);
+      } finally {
+        this.stateLock.unlockRead(stamp);
+      }
+      if (!sent) {
+        target.awaitQueueSpace();
+      }
+    }
   }
 
-  public synchronized PassthroughInvocationCallback getInvocationForTransaction(PassthroughServerProcess sender, long transactionID) {
-    PassthroughInvocationCallback waiter = this.inFlightMessages.get(transactionID);
+  private static boolean trySendInvocation(PassthroughServerProcess target, PassthroughConnection sender, PassthroughInvocationCallback invocation) {
+    PassthroughPooledBuffer buffer = invocation.getBuffer();
+    return (null != buffer)
+        ? target.trySendMessageToServer(sender, buffer)
+        : target.trySendMessageToServer(sender, invocation.getMessage());
+  }
+
+  public PassthroughInvocationCallback getInvocationForTransaction(PassthroughServerProcess sender, long transactionID) {
+    PassthroughInvocationCallback waiter;
+    this.inFlightLock.lock();
+    try {
+      waiter = awaitPublished(transactionID);
+    } finally {
+      this.inFlightLock.unlock();
+    }
     Assert.assertTrue(null != waiter);
     return waiter;
   }
 
-  public synchronized PassthroughInvocationCallback removeInvocationForTransaction(PassthroughServerProcess sender, long transactionID) {
-    PassthroughInvocationCallback waiter = this.inFlightMessages.remove(transactionID);
+  public PassthroughInvocationCallback removeInvocationForTransaction(PassthroughServerProcess sender, long transactionID) {
+    PassthroughInvocationCallback waiter;
+    this.inFlightLock.lock();
+    try {
+      waiter = awaitPublished(transactionID);
+      this.inFlightMessages.remove(transactionID);
+    } finally {
+      this.inFlightLock.unlock();
+    }
     Assert.assertTrue(null != waiter);
+    // The message is retired so it will never be re-sent.
+    waiter.releaseMessage();
+    return waiter;
+  }
+
+  // Must be called under inFlightLock.
+  private PassthroughInvocationCallback awaitPublished(long transactionID) {
+    PassthroughInvocationCallback waiter = this.inFlightMessages.get(transactionID);
+    // The server can answer before the sender has published the invocation so wait for it.
+    while (RESERVED == waiter) {
+      try {
+        this.published.await();
+      } catch (InterruptedException e) {
+        // The only reason we would interrupt is to kill the test.
+        throw new RuntimeException(e);
+      }
+      waiter = this.inFlightMessages.get(transactionID);
+    }
     return waiter;
   }
 
-  public synchronized void finishReconnectState() {
-    Assert.assertTrue(null == this.serverProcess);
-    Assert.assertTrue(null != this.reconnectingServerProcess);
-    
-    this.serverProcess = this.reconnectingServerProcess;
-    this.reconnectingServerProcess = null;
-    notifyAll();
+  public void finishReconnectState() {
+    long stamp = this.stateLock.writeLock();
+    try {
+      Assert.assertTrue(null == this.epoch.serverProcess);
+      Assert.assertTrue(null != this.epoch.reconnectingServerProcess);
+      
+      this.epoch = new Epoch(this.epoch.reconnectingServerProcess, null);
+    } finally {
+      this.stateLock.unlockWrite(stamp);
+    }
+    // Wake any senders waiting for the server process.
+    this.inFlightLock.lock();
+    try {
+      this.connected.signalAll();
+    } finally {
+      this.inFlightLock.unlock();
+    }
   }
 
-  public synchronized void enterDisconnectedState() {
-    Assert.assertTrue(null != this.serverProcess);
+  public void enterDisconnectedState() {
+    long stamp = this.stateLock.writeLock();
+    try {
+      Assert.assertTrue(null != this.epoch.serverProcess);
+
+      this.epoch = new Epoch(null, this.epoch.reconnectingServerProcess);
+    } finally {
+      this.stateLock.unlockWrite(stamp);
+    }
+  }
 
-    this.serverProcess = null;
+  public void forceClose() {
+    PassthroughInFlightWindow window = this.inFlightWindow;
+    if (null != window) {
+      // Refuse anyone waiting for room since these messages will never retire.
+      window.close();
+    }
+    this.inFlightLock.lock();
+    try {
+      // A transaction which is still reserved is disconnected by its sender, once it publishes and sees we are closed.
+      this.closed = true;
+      this.inFlightMessages.forEach(waiter -> {
+        if (RESERVED != waiter) {
+          waiter.forceDisconnect();
+        }
+      });
+    } finally {
+      this.inFlightLock.unlock();
+    }
   }
 
-  public synchronized void forceClose() {
-    for (PassthroughInvocationCallback waiter : this.inFlightMessages.values()) {
-      waiter.forceDisconnect();
+  /**
+   * The server processes a connection is attached to, between two state transitions.
+   */
+  private static class Epoch {
+    public final PassthroughServerProcess serverProcess;
+    // We store the reconnecting server just to assert details of correct usage.
+    public final PassthroughServerProcess reconnectingServerProcess;
+
+    public Epoch(PassthroughServerProcess serverProcess, PassthroughServerProcess reconnectingServerProcess) {
+      this.serverProcess = serverProcess;
+      this.reconnectingServerProcess = reconnectingServerProcess;
     }
   }
 }
@@ -19,11 +19,13 @@ package org.terracotta.passthrough;
 import org.terracotta.entity.EndpointDelegate;
 import org.terracotta.entity.EntityClientEndpoint;
 import org.terracotta.entity.Invocation;
+import org.terracotta.entity.InvocationCallback;
 import org.terracotta.entity.MessageCodecException;
 import org.terracotta.entity.EntityMessage;
 import org.terracotta.entity.EntityResponse;
 import org.terracotta.entity.MessageCodec;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.Future;
 
 import static java.util.concurrent.CompletableFuture.completedFuture;
@@ -40,6 +42,8 @@ public class PassthroughEntityClientEndpoint<M extends EntityMessage, R extends
   private final Class<?> entityClass;
   private final String entityName;
   private final long clientInstanceID;
+  // The server's handle for this entity, re-mapped on reconnect.
+  private volatile long entityHandle;
   private final byte[] config;
   private final MessageCodec<M, R> messageCodec;
   private final Runnable onClose;
@@ -49,10 +53,17 @@ public class PassthroughEntityClientEndpoint<M extends EntityMessage, R extends
   @edu.umd.cs.findbugs.annotations.SuppressFBWarnings(
     value="EI_EXPOSE_REP2")
   public PassthroughEntityClientEndpoint(PassthroughConnection passthroughConnection, Class<?> entityClass, String entityName, long clientInstanceID, byte[] config, MessageCodec<M, R> messageCodec, Runnable onClose) {
+    this(passthroughConnection, entityClass, entityName, clientInstanceID, PassthroughMessageCodec.NO_ENTITY_HANDLE, config, messageCodec, onClose);
+  }
+
+  @edu.umd.cs.findbugs.annotations.SuppressFBWarnings(
+    value="EI_EXPOSE_REP2")
+  public PassthroughEntityClientEndpoint(PassthroughConnection passthroughConnection, Class<?> entityClass, String entityName, long clientInstanceID, long entityHandle, byte[] config, MessageCodec<M, R> messageCodec, Runnable onClose) {
     this.connection = passthroughConnection;
     this.entityClass = entityClass;
     this.entityName = entityName;
     this.clientInstanceID = clientInstanceID;
+    this.entityHandle = entityHandle;
     this.config = config;
     this.messageCodec = messageCodec;
     this.onClose = onClose;
@@ -84,7 +95,35 @@ public class PassthroughEntityClientEndpoint<M extends EntityMessage, R extends
   public Invocation<R> message(M message) {
     // We can't create new invocations when the endpoint is closed.
     checkEndpointOpen();
-    return new PassthroughInvocation<>(this.connection, this.entityClass.getCanonicalName(), this.entityName, this.clientInstanceID, messageCodec, message);
+    return new PassthroughInvocation<>(this.connection, this.entityClass.getCanonicalName(), this.entityName, this.clientInstanceID, this.entityHandle, messageCodec, message);
+  }
+
+  /**
+   * Builds a batch of invocations of several messages, which are sent to the server as a single unit when the batch is
+   * invoked.  Invocations of other entities on the same connection can be added to the batch before then.
+   * 
+   * @param callback The callback of every message in the batch
+   * @param messages The messages, in the order they are sent
+   * @return The batch, which must still be invoked
+   */
+  @SafeVarargs
+  public final PassthroughInvocationBatch message(InvocationCallback<R> callback, M... messages) {
+    PassthroughInvocationBatch batch = this.connection.createInvocationBatch();
+    for (M message : messages) {
+      batch.add(message(message), callback);
+    }
+    return batch;
+  }
+
+  /**
+   * @return The server's handle for this entity, which invokes use instead of its class and name
+   */
+  public long getEntityHandle() {
+    return this.entityHandle;
+  }
+
+  public void setEntityHandle(long entityHandle) {
+    this.entityHandle = entityHandle;
   }
 
   @Override
@@ -121,6 +160,20 @@ public class PassthroughEntityClientEndpoint<M extends EntityMessage, R extends
     }
   }
 
+  /**
+   * The same as handleMessageFromServer(byte[]) for a payload which is a view of the message, which is only copied if the
+   * codec can't read it directly.
+   */
+  @SuppressWarnings("unchecked")
+  public void handleMessageFromServer(ByteBuffer payload) throws MessageCodecException {
+    if (null != this.delegate) {
+      R fromServer = (this.messageCodec instanceof PassthroughBufferMessageCodec)
+          ? ((PassthroughBufferMessageCodec<?, R>) this.messageCodec).decodeResponse(payload)
+          : this.messageCodec.decodeResponse(PassthroughMessageCodec.toArray(payload));
+      this.delegate.handleMessage(fromServer);
+    }
+  }
+
   public byte[] getExtendedReconnectData() {
     byte[] toReturn = null;
     if (null != this.delegate) {
@@ -133,10 +186,10 @@ public class PassthroughEntityClientEndpoint<M extends EntityMessage, R extends
     return toReturn;
   }
 
-  public PassthroughMessage buildReconnectMessage(byte[] extendedData) {
+  public PassthroughMessage buildReconnectMessage(PassthroughConnectionDictionary symbols, byte[] extendedData) {
     // Construct the reconnect message.
     // NOTE:  This currently only describes the entity we are referencing.
-    return PassthroughMessageCodec.createReconnectMessage(this.entityClass.getCanonicalName(), this.entityName, this.clientInstanceID, extendedData);
+    return PassthroughMessageCodec.createReconnectMessage(symbols, this.entityClass.getCanonicalName(), this.entityName, this.clientInstanceID, extendedData);
   }
 
   /**
@@ -16,7 +16,10 @@
  */
 package org.terracotta.passthrough;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import org.terracotta.connection.entity.Entity;
 import org.terracotta.connection.entity.EntityRef;
 import org.terracotta.entity.EntityClientService;
@@ -63,12 +66,10 @@ public class PassthroughEntityRef<T extends Entity, C, U> implements EntityRef<T
   @Override
   public T fetchEntity(U userData) throws EntityNotFoundException, EntityVersionMismatchException {
     long clientInstanceID = this.passthroughConnection.getNewInstanceID();
-    PassthroughMessage getMessage = PassthroughMessageCodec.createFetchMessage(this.clazz, this.name, clientInstanceID, this.version);
-    // Wait for the config on the response.
-    byte[] rawConfig = null;
+    // Wait for the entity handle and config on the response.
+    byte[] response = null;
     try {
-      rawConfig = passthroughConnection.invokeAndRetire(getMessage);
-
+      response = sendFetch(clientInstanceID).get();
     } catch (ExecutionException b) {
       EntityException e = (EntityException)b.getCause();
       // Check that this is the correct type.
@@ -82,9 +83,44 @@ public class PassthroughEntityRef<T extends Entity, C, U> implements EntityRef<T
     } catch (InterruptedException e) {
       Assert.unexpected(e);
     }
+    return createInstance(clientInstanceID, response, userData);
+  }
+
+  /**
+   * The same as fetchEntity but without waiting for the server.  The returned future is completed with the entity instance,
+   * or with the EntityNotFoundException or EntityVersionMismatchException.
+   * The entity instance is created by the given executor, not by the connection's client thread:  creating it runs the
+   * entity client service's code, which must not hold up the delivery of this connection's other messages.
+   * 
+   * @param userData The user data given to the entity client service
+   * @param executor Creates the entity instance, once the server has answered
+   * @return The future of the entity instance
+   */
+  public CompletableFuture<T> fetchEntityAsync(U userData, Executor executor) {
+    long clientInstanceID = this.passthroughConnection.getNewInstanceID();
+    return sendFetch(clientInstanceID).thenApplyAsync(response -> {
+      try {
+        return createInstance(clientInstanceID, response, userData);
+      } catch (EntityNotFoundException e) {
+        throw new CompletionException(e);
+      }
+    }, executor);
+  }
+
+  private CompletableFuture<byte[]> sendFetch(long clientInstanceID) {
+    PassthroughConnectionDictionary symbols = this.passthroughConnection.getSymbols();
+    PassthroughMessage getMessage = PassthroughMessageCodec.createFetchMessage(symbols, this.clazz, this.name, clientInstanceID, this.version);
+    // Once the server has answered, even with a failure, it has decoded any names we defined so later fetches can refer to
+    //  them.
+    return this.passthroughConnection.invokeAndRetireAsync(getMessage).whenComplete((response, error) -> symbols.confirm(this.clazz, this.name));
+  }
+
+  private T createInstance(long clientInstanceID, byte[] response, U userData) throws EntityNotFoundException {
+    long entityHandle = PassthroughMessageCodec.decodeEntityHandleFromFetchResponse(response);
+    byte[] rawConfig = PassthroughMessageCodec.decodeConfigFromFetchResponse(response);
     try {
       Class<?> type = Class.forName(this.clazz);
-      return this.passthroughConnection.createEntityInstance(type, this.name, clientInstanceID, this.version, rawConfig, userData);
+      return this.passthroughConnection.createEntityInstance(type, this.name, clientInstanceID, this.version, entityHandle, rawConfig, userData);
     } catch (ClassNotFoundException notfound) {
       throw new EntityNotFoundException(clazz, name, notfound);
     }
@@ -97,65 +133,91 @@ public class PassthroughEntityRef<T extends Entity, C, U> implements EntityRef<T
 
   @Override
   public void create(C configuration) throws EntityNotProvidedException, EntityAlreadyExistsException, EntityVersionMismatchException, EntityConfigurationException {
+    try {
+      createAsync(configuration).get();
+    } catch (ExecutionException b) {
+      EntityException e = (EntityException)b.getCause();
+      // Check that this is the correct type.
+      if (e instanceof EntityNotProvidedException) {
+        throw (EntityNotProvidedException) e;
+      } else if (e instanceof EntityAlreadyExistsException) {
+        throw (EntityAlreadyExistsException) e;
+      } else if (e instanceof EntityVersionMismatchException) {
+        throw (EntityVersionMismatchException) e;
+      } else if (e instanceof EntityConfigurationException) {
+        throw (EntityConfigurationException) e;
+      } else {
+        Assert.unexpected(e);
+      }
+    } catch (InterruptedException e) {
+      Assert.unexpected(e);
+    }
+  }
+
+  /**
+   * The same as create but without waiting for the server.  The returned future is completed, by the connection's client
+   * thread, once the entity is created, or with the EntityNotProvidedException, EntityAlreadyExistsException,
+   * EntityVersionMismatchException or EntityConfigurationException.
+   * 
+   * @param configuration The configuration of the new entity
+   * @return The future of the creation
+   */
+  public CompletableFuture<Void> createAsync(C configuration) {
+    CompletableFuture<Void> future;
     // Make sure that we have a service provider.
     if (null != this.service) {
-      // NOTE:  We use a try-lock so that we can emulate the "fast fail" semantics now desired for create() - failure to acquire the lock
-      // assumes that the entity already exists.
       byte[] serializedConfiguration = this.service.serializeConfiguration(configuration);
       PassthroughMessage getMessage = PassthroughMessageCodec.createCreateMessage(this.clazz, this.name, this.version, serializedConfiguration);
-      try {
-        passthroughConnection.invokeAndRetire(getMessage);
-      } catch (ExecutionException b) {
-        EntityException e = (EntityException)b.getCause();
-        // Check that this is the correct type.
-        if (e instanceof EntityNotProvidedException) {
-          throw (EntityNotProvidedException) e;
-        } else if (e instanceof EntityAlreadyExistsException) {
-          throw (EntityAlreadyExistsException) e;
-        } else if (e instanceof EntityVersionMismatchException) {
-          throw (EntityVersionMismatchException) e;
-        } else if (e instanceof EntityConfigurationException) {
-          throw (EntityConfigurationException) e;
-        } else {
-          Assert.unexpected(e);
-        }
-      } catch (InterruptedException e) {
-        Assert.unexpected(e);
-      }
+      future = passthroughConnection.invokeAndRetireAsync(getMessage).thenApply(response -> null);
     } else {
-      throw new EntityNotProvidedException(this.clazz, this.name);
+      future = failed(new EntityNotProvidedException(this.clazz, this.name));
     }
+    return future;
   }
   
 
   @Override
   public C reconfigure(C configuration) throws EntityNotProvidedException, EntityNotFoundException, EntityConfigurationException {
     C result = null;
+    try {
+      result = reconfigureAsync(configuration).get();
+    } catch (ExecutionException b) {
+      EntityException e = (EntityException)b.getCause();        // Check that this is the correct type.
+      if (e instanceof EntityNotFoundException) {
+        throw (EntityNotFoundException) e;
+      } else if (e instanceof EntityNotProvidedException) {
+        throw (EntityNotProvidedException) e;
+      } else if (e instanceof EntityConfigurationException) {
+        throw (EntityConfigurationException) e;
+      } else {
+        // This isn't a supported entity type.
+        Assert.unexpected(e);
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    return result;
+  }
+
+  /**
+   * The same as reconfigure but without waiting for the server.  The returned future is completed, by the connection's
+   * client thread, with the entity's previous configuration, or with the EntityNotProvidedException,
+   * EntityNotFoundException or EntityConfigurationException.
+   * 
+   * @param configuration The new configuration of the entity
+   * @return The future of the previous configuration
+   */
+  public CompletableFuture<C> reconfigureAsync(C configuration) {
+    CompletableFuture<C> future;
     // Make sure that we have a service provider.
     if (null != this.service) {
       byte[] serializedConfiguration = this.service.serializeConfiguration(configuration);
       PassthroughMessage reconfig = PassthroughMessageCodec.createReconfigureMessage(this.clazz, this.name, this.version, serializedConfiguration);
-      try {
-        result = this.service.deserializeConfiguration(passthroughConnection.invokeAndRetire(reconfig));
-      } catch (ExecutionException b) {
-        EntityException e = (EntityException)b.getCause();        // Check that this is the correct type.
-        if (e instanceof EntityNotFoundException) {
-          throw (EntityNotFoundException) e;
-        } else if (e instanceof EntityNotProvidedException) {
-          throw (EntityNotProvidedException) e;
-        } else if (e instanceof EntityConfigurationException) {
-          throw (EntityConfigurationException) e;
-        } else {
-          // This isn't a supported entity type.
-          Assert.unexpected(e);
-        }
-      } catch (InterruptedException e) {
-        throw new RuntimeException(e);
-      }
+      future = passthroughConnection.invokeAndRetireAsync(reconfig).thenApply(response -> this.service.deserializeConfiguration(response));
     } else {
-      throw new EntityNotProvidedException(this.clazz, this.name);
+      future = failed(new EntityNotProvidedException(this.clazz, this.name));
     }
-    return result;
+    return future;
   }
 
   @Override
@@ -163,10 +225,20 @@ public class PassthroughEntityRef<T extends Entity, C, U> implements EntityRef<T
     return destroyEntity();
   }
 
-  private boolean destroyEntity() throws EntityNotProvidedException, EntityNotFoundException {
+  /**
+   * The same as destroy but without waiting for the server.  The returned future is completed, by the connection's client
+   * thread, with whether the entity was destroyed, or with the EntityNotProvidedException or EntityNotFoundException.
+   * 
+   * @return The future of whether the entity was destroyed
+   */
+  public CompletableFuture<Boolean> destroyAsync() {
     PassthroughMessage getMessage = PassthroughMessageCodec.createDestroyMessage(this.clazz, this.name);
+    return passthroughConnection.invokeAndRetireAsync(getMessage).thenApply(response -> response[0] != 0);
+  }
+
+  private boolean destroyEntity() throws EntityNotProvidedException, EntityNotFoundException {
     try {
-      return passthroughConnection.invokeAndRetire(getMessage)[0] != 0;
+      return destroyAsync().get();
     } catch (ExecutionException b) {
       EntityException e = (EntityException)b.getCause();      // Check that this is the correct type.
       if (e instanceof EntityNotProvidedException) {
@@ -181,4 +253,11 @@ public class PassthroughEntityRef<T extends Entity, C, U> implements EntityRef<T
     }
     return false;
   }
+
+  private static <R> CompletableFuture<R> failed(EntityException e) {
+    // CompletableFuture.failedFuture is only in Java 9.
+    CompletableFuture<R> future = new CompletableFuture<>();
+    future.completeExceptionally(e);
+    return future;
+  }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.terracotta.entity.ConcurrencyStrategy;
+
+
+/**
+ * The optional set of execution threads used by an active PassthroughServerProcess to run invokes concurrently, the way a
+ * real server would, instead of running them directly on the server thread.
+ * Each task is handed to the lane selected by its concurrency key so tasks on the same key still run in the order they
+ * were submitted.  MANAGEMENT_KEY and UNIVERSAL_KEY tasks are barriers:  they wait for every lane to drain and then run on
+ * the submitting thread, so nothing else is running while they execute.
+ * Each lane's backlog can be bounded, like the server's execution stage, in which case a submitter waits for space in a
+ * full lane.  The server bounds its lanes by the capacity of its message queue so that a slow entity pushes back through
+ * the execution stage and the server thread to the message queue, where its full policy applies to the clients.
+ */
+public class PassthroughExecutionLanes {
+  private final Lane[] lanes;
+  private volatile boolean running;
+  // The number of tasks handed to a lane which haven't yet completed.  Guarded by idleLock, whose condition is used
+  //  instead of a monitor so that a virtual execution thread waiting at a barrier doesn't pin its carrier.
+  private final ReentrantLock idleLock = new ReentrantLock();
+  private final Condition idle = this.idleLock.newCondition();
+  private int outstandingTasks;
+
+  public PassthroughExecutionLanes(String threadNamePrefix, int laneCount, Thread.UncaughtExceptionHandler crashHandler) {
+    this(threadNamePrefix, PassthroughThreadMode.PLATFORM, laneCount, crashHandler);
+  }
+
+  public PassthroughExecutionLanes(String threadNamePrefix, PassthroughThreadMode threadMode, int laneCount, Thread.UncaughtExceptionHandler crashHandler) {
+    this(threadNamePrefix, threadMode, laneCount, Integer.MAX_VALUE, crashHandler);
+  }
+
+  /**
+   * Creates lanes whose backlogs are bounded:  execute waits while the task's lane already has capacity tasks waiting.
+   */
+  public PassthroughExecutionLanes(String threadNamePrefix, PassthroughThreadMode threadMode, int laneCount, int capacity, Thread.UncaughtExceptionHandler crashHandler) {
+    Assert.assertTrue(laneCount > 0);
+    Assert.assertTrue(capacity > 0);
+    this.lanes = new Lane[laneCount];
+    for (int i = 0; i < laneCount; ++i) {
+      this.lanes[i] = new Lane(threadNamePrefix + i, threadMode, capacity, crashHandler);
+    }
+  }
+
+  public void start() {
+    Assert.assertTrue(!this.running);
+    this.running = true;
+    for (Lane lane : this.lanes) {
+      lane.thread.start();
+    }
+  }
+
+  /**
+   * Runs the given task on the lane for its concurrency key or, if the key is a barrier key, on the calling thread once all
+   * the lanes have drained.  If the lane is bounded and full, this waits for space.
+   *
+   * @param concurrencyKey The concurrency key of the message being executed
+   * @param task The execution of the message
+   * @throws InterruptedException The calling thread was interrupted while waiting for the lanes to drain or for space
+   */
+  public void execute(int concurrencyKey, Runnable task) throws InterruptedException {
+    if (isBarrierKey(concurrencyKey)) {
+      awaitIdle();
+      task.run();
+    } else {
+      this.idleLock.lock();
+      try {
+        this.outstandingTasks += 1;
+      } finally {
+        this.idleLock.unlock();
+      }
+      try {
+        this.lanes[Math.floorMod(concurrencyKey, this.lanes.length)].queue.put(task);
+      } catch (InterruptedException e) {
+        taskDone();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Blocks until every task handed to a lane has completed.
+   *
+   * @throws InterruptedException The calling thread was interrupted while waiting
+   */
+  public void awaitIdle() throws InterruptedException {
+    this.idleLock.lock();
+    try {
+      while (this.outstandingTasks > 0) {
+        this.idle.await();
+      }
+    } finally {
+      this.idleLock.unlock();
+    }
+  }
+
+  public boolean isLaneThread() {
+    Thread current = Thread.currentThread();
+    for (Lane lane : this.lanes) {
+      if (lane.thread == current) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stops all the lanes, dropping any tasks which haven't yet started (much like the server drops its queued messages on
+   * stop).
+   */
+  public void shutdown() {
+    this.running = false;
+    for (Lane lane : this.lanes) {
+      lane.thread.interrupt();
+    }
+    for (Lane lane : this.lanes) {
+      try {
+        lane.thread.join();
+      } catch (InterruptedException e) {
+        Assert.unexpected(e);
+      }
+      lane.queue.clear();
+    }
+    this.idleLock.lock();
+    try {
+      this.outstandingTasks = 0;
+      this.idle.signalAll();
+    } finally {
+      this.idleLock.unlock();
+    }
+  }
+
+  private void taskDone() {
+    this.idleLock.lock();
+    try {
+      this.outstandingTasks -= 1;
+      if (0 == this.outstandingTasks) {
+        this.idle.signalAll();
+      }
+    } finally {
+      this.idleLock.unlock();
+    }
+  }
+
+  private static boolean isBarrierKey(int concurrencyKey) {
+    return (ConcurrencyStrategy.MANAGEMENT_KEY == concurrencyKey) || (ConcurrencyStrategy.UNIVERSAL_KEY == concurrencyKey);
+  }
+
+
+  private class Lane {
+    private final Thread thread;
+    private final BlockingQueue<Runnable> queue;
+
+    public Lane(String threadName, PassthroughThreadMode threadMode, int capacity, Thread.UncaughtExceptionHandler crashHandler) {
+      this.thread = threadMode.newThread(threadName, this::runLane);
+      this.thread.setUncaughtExceptionHandler((null != crashHandler) ? crashHandler : PassthroughUncaughtExceptionHandler.sharedInstance);
+      this.queue = new LinkedBlockingQueue<>(capacity);
+    }
+
+    private void runLane() {
+      while (running) {
+        Runnable task;
+        try {
+          task = this.queue.take();
+        } catch (InterruptedException e) {
+          // We are only interrupted when shutting down.
+          Assert.assertTrue(!running);
+          break;
+        }
+        try {
+          task.run();
+        } catch (Throwable t) {
+          // Much like the server thread, an interrupt may cause entity code to fail during shutdown so only rethrow if
+          // we are still running.
+          if (running) {
+            throw t;
+          }
+        } finally {
+          taskDone();
+        }
+      }
+    }
+  }
+}
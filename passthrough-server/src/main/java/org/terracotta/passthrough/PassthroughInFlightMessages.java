@@ -0,0 +1,224 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+
+/**
+ * The in-flight invocations of a connection, keyed by transaction ID.
+ * Since transaction IDs are handed out in increasing order and mostly retired in roughly that order, this is a ring of
+ * slots indexed by the low bits of the transaction ID, covering the span from the oldest in-flight transaction to the
+ * newest.  Finding, adding and removing a transaction don't box its ID and the oldest in-flight transaction is maintained
+ * as transactions are removed, so that sending doesn't need to scan every in-flight transaction to find it.
+ * The ring's size is proportional to that span, not to the number of in-flight transactions, so it only grows if enough of
+ * the span is in-flight.  Otherwise, the transactions far behind the others (such as one which is never retired) are moved
+ * aside, to a small sorted map, so that the ring only covers the recent ones.
+ * Note that this is not thread-safe:  the PassthroughConnectionState only uses it under its in-flight lock.
+ */
+public class PassthroughInFlightMessages {
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+  // The ring only grows to cover a span if at least 1 in this many of the transactions in it are in-flight.
+  private static final int MINIMUM_DENSITY = 4;
+
+  private PassthroughInvocationCallback[] slots;
+  private int mask;
+  // The in-flight transactions are all in [oldest, end) and, unless we are empty, the slots of oldest and end - 1 are both
+  //  occupied.
+  private long oldest;
+  private long end;
+  private int count;
+  // The transactions moved aside from the ring, which are all older than those still in it.
+  private final TreeMap<Long, PassthroughInvocationCallback> outliers = new TreeMap<>();
+
+  public PassthroughInFlightMessages() {
+    this.slots = new PassthroughInvocationCallback[INITIAL_CAPACITY];
+    this.mask = INITIAL_CAPACITY - 1;
+  }
+
+  /**
+   * Adds the invocation of the given transaction, replacing any invocation it already had.
+   */
+  public void put(long transactionID, PassthroughInvocationCallback invocation) {
+    Assert.assertTrue(null != invocation);
+    if (!this.outliers.isEmpty() && (transactionID <= this.outliers.lastKey())) {
+      // The ring only holds transactions newer than the outliers.
+      this.outliers.put(transactionID, invocation);
+    } else if ((this.count > 0) && (transactionID < this.oldest) && !shouldCover(this.end - transactionID)) {
+      // This is far behind the rest so it is an outlier.
+      this.outliers.put(transactionID, invocation);
+    } else {
+      // Move aside the oldest transactions, rather than growing the ring, until the ring is dense enough to cover this one.
+      while ((this.count > 0) && (transactionID >= this.end) && !shouldCover(transactionID + 1 - this.oldest)) {
+        moveOldestAside();
+      }
+      if (0 == this.count) {
+        this.oldest = transactionID;
+        this.end = transactionID + 1;
+      } else {
+        long newOldest = Math.min(this.oldest, transactionID);
+        long newEnd = Math.max(this.end, transactionID + 1);
+        ensureCapacity(newEnd - newOldest);
+        this.oldest = newOldest;
+        this.end = newEnd;
+      }
+      int index = (int)(transactionID & this.mask);
+      if (null == this.slots[index]) {
+        this.count += 1;
+      }
+      this.slots[index] = invocation;
+    }
+  }
+
+  /**
+   * @return The invocation of the given transaction, or null if it isn't in-flight
+   */
+  public PassthroughInvocationCallback get(long transactionID) {
+    PassthroughInvocationCallback invocation = null;
+    if (isInRange(transactionID)) {
+      invocation = this.slots[(int)(transactionID & this.mask)];
+    } else if (!this.outliers.isEmpty()) {
+      invocation = this.outliers.get(transactionID);
+    }
+    return invocation;
+  }
+
+  /**
+   * Removes the given transaction.
+   * 
+   * @return The invocation it had, or null if it wasn't in-flight
+   */
+  public PassthroughInvocationCallback remove(long transactionID) {
+    PassthroughInvocationCallback invocation = null;
+    if (isInRange(transactionID)) {
+      invocation = this.slots[(int)(transactionID & this.mask)];
+      if (null != invocation) {
+        this.slots[(int)(transactionID & this.mask)] = null;
+        this.count -= 1;
+        if (0 == this.count) {
+          this.oldest = this.end;
+        } else {
+          // Each slot is only skipped once so this is amortized constant time.
+          skipToOldest();
+          while (null == this.slots[(int)((this.end - 1) & this.mask)]) {
+            this.end -= 1;
+          }
+        }
+      }
+    } else if (!this.outliers.isEmpty()) {
+      invocation = this.outliers.remove(transactionID);
+    }
+    return invocation;
+  }
+
+  /**
+   * @param defaultID The ID to return if nothing is in-flight
+   * @return The ID of the oldest in-flight transaction, or defaultID if nothing is in-flight
+   */
+  public long oldestTransactionID(long defaultID) {
+    long oldestID = defaultID;
+    if (!this.outliers.isEmpty()) {
+      oldestID = this.outliers.firstKey();
+    } else if (this.count > 0) {
+      oldestID = this.oldest;
+    }
+    return oldestID;
+  }
+
+  public int size() {
+    return this.count + this.outliers.size();
+  }
+
+  /**
+   * Passes each in-flight invocation to the given consumer, oldest first.  The consumer must not modify this.
+   */
+  public void forEach(Consumer<PassthroughInvocationCallback> consumer) {
+    this.outliers.values().forEach(consumer);
+    if (this.count > 0) {
+      for (long transactionID = this.oldest; transactionID < this.end; ++transactionID) {
+        PassthroughInvocationCallback invocation = this.slots[(int)(transactionID & this.mask)];
+        if (null != invocation) {
+          consumer.accept(invocation);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return A copy of the in-flight invocations, by transaction ID, which iterates oldest first
+   */
+  public Map<Long, PassthroughInvocationCallback> snapshot() {
+    Map<Long, PassthroughInvocationCallback> snapshot = new LinkedHashMap<>(this.outliers);
+    if (this.count > 0) {
+      for (long transactionID = this.oldest; transactionID < this.end; ++transactionID) {
+        PassthroughInvocationCallback invocation = this.slots[(int)(transactionID & this.mask)];
+        if (null != invocation) {
+          snapshot.put(transactionID, invocation);
+        }
+      }
+    }
+    return snapshot;
+  }
+
+  private boolean isInRange(long transactionID) {
+    return (this.count > 0) && (transactionID >= this.oldest) && (transactionID < this.end);
+  }
+
+  private boolean shouldCover(long span) {
+    return (span <= this.slots.length) || (((long) this.count + 1) * MINIMUM_DENSITY >= span);
+  }
+
+  private void moveOldestAside() {
+    int index = (int)(this.oldest & this.mask);
+    this.outliers.put(this.oldest, this.slots[index]);
+    this.slots[index] = null;
+    this.count -= 1;
+    if (0 == this.count) {
+      this.oldest = this.end;
+    } else {
+      skipToOldest();
+    }
+  }
+
+  private void skipToOldest() {
+    while (null == this.slots[(int)(this.oldest & this.mask)]) {
+      this.oldest += 1;
+    }
+  }
+
+  private void ensureCapacity(long span) {
+    if (span > this.slots.length) {
+      Assert.assertTrue(span <= MAXIMUM_CAPACITY);
+      int capacity = this.slots.length;
+      while (capacity < span) {
+        capacity <<= 1;
+      }
+      // Re-index the existing transactions since their low bits now select different slots.
+      PassthroughInvocationCallback[] newSlots = new PassthroughInvocationCallback[capacity];
+      int newMask = capacity - 1;
+      for (long transactionID = this.oldest; transactionID < this.end; ++transactionID) {
+        newSlots[(int)(transactionID & newMask)] = this.slots[(int)(transactionID & this.mask)];
+      }
+      this.slots = newSlots;
+      this.mask = newMask;
+    }
+  }
+}
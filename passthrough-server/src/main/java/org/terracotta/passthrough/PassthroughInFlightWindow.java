@@ -0,0 +1,263 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.terracotta.exception.ConnectionClosedException;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Limits the number of messages a connection can have in-flight (sent but not yet retired), much like the flow control of
+ * a real client, so that a runaway producer can't fill the heap with messages which are retained until they retire.
+ * Taking a place in the window is lock-free when there is room.  When the window is full, the FullPolicy decides whether
+ * the sender waits (with or without a timeout) or is refused.
+ * A message takes its place before it is sent and gives it back when it is retired (or refused by the server).  Messages
+ * sent while reconnecting, and re-sent messages, don't take a place since they were already counted, or are internal.
+ */
+public class PassthroughInFlightWindow {
+  /**
+   * What to do with a send when the window is full.
+   */
+  public enum FullPolicy {
+    /**
+     * Block the sender until a message retires.
+     */
+    BLOCK,
+    /**
+     * Block the sender until a message retires or the timeout passes, in which case it is refused as with FAIL.
+     */
+    TIMED,
+    /**
+     * Refuse the send by throwing RejectedExecutionException to the sender.
+     */
+    FAIL,
+  }
+
+  private final int maximumInFlight;
+  private final FullPolicy fullPolicy;
+  private final long timeoutNanos;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  // Senders waiting for room wait on this condition (not a monitor, so that virtual threads don't pin their carriers).
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = this.lock.newCondition();
+  private final AtomicInteger waitingSenderCount = new AtomicInteger();
+  private volatile boolean closed;
+
+  private final AtomicInteger peakInFlight = new AtomicInteger();
+  private final AtomicLong waitCount = new AtomicLong();
+  private final AtomicLong waitNanos = new AtomicLong();
+  private final AtomicLong maximumWaitNanos = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  /**
+   * Creates a window which blocks, or fails, when full.
+   * 
+   * @param maximumInFlight The number of messages which can be in-flight at once
+   * @param fullPolicy BLOCK or FAIL
+   */
+  public PassthroughInFlightWindow(int maximumInFlight, FullPolicy fullPolicy) {
+    this(maximumInFlight, fullPolicy, 0, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param maximumInFlight The number of messages which can be in-flight at once
+   * @param fullPolicy What to do with a send when the window is full
+   * @param timeout How long a TIMED send waits for room (ignored by the other policies)
+   * @param unit The unit of the timeout
+   */
+  public PassthroughInFlightWindow(int maximumInFlight, FullPolicy fullPolicy, long timeout, TimeUnit unit) {
+    Assert.assertTrue(maximumInFlight > 0);
+    Assert.assertTrue(null != fullPolicy);
+    Assert.assertTrue((FullPolicy.TIMED != fullPolicy) || (timeout > 0));
+    this.maximumInFlight = maximumInFlight;
+    this.fullPolicy = fullPolicy;
+    this.timeoutNanos = unit.toNanos(timeout);
+  }
+
+  /**
+   * Takes places in the window for messages about to be sent, applying the FullPolicy if there isn't room.
+   * A batch larger than the whole window is let in once nothing else is in-flight.
+   * A sender which can't wait (the connection's client thread, which must keep retiring messages to make room) is let in
+   * over the limit, unless the policy is FAIL.
+   * 
+   * @param count The number of messages
+   * @param canWait False if the sender must not wait for room
+   * @throws RejectedExecutionException The window is full and the policy is FAIL, or TIMED and the timeout passed
+   * @throws ConnectionClosedException The connection closed while waiting for room
+   */
+  public void acquire(int count, boolean canWait) {
+    if (!tryAcquire(count)) {
+      if (FullPolicy.FAIL == this.fullPolicy) {
+        this.rejectedCount.incrementAndGet();
+        throw new RejectedExecutionException("Too many messages in-flight (maximum " + this.maximumInFlight + ")");
+      } else if (canWait) {
+        waitToAcquire(count);
+      } else {
+        recordInFlight(this.inFlight.addAndGet(count));
+      }
+    }
+  }
+
+  /**
+   * Gives back the places of messages which have retired, or were never sent.
+   * 
+   * @param count The number of messages
+   */
+  public void release(int count) {
+    int remaining = this.inFlight.addAndGet(-count);
+    Assert.assertTrue(remaining >= 0);
+    if (this.waitingSenderCount.get() > 0) {
+      signalWaitingSenders();
+    }
+  }
+
+  /**
+   * Called when the connection closes to refuse any waiting senders.
+   */
+  public void close() {
+    this.closed = true;
+    signalWaitingSenders();
+  }
+
+  private void signalWaitingSenders() {
+    this.lock.lock();
+    try {
+      this.notFull.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  private boolean tryAcquire(int count) {
+    while (true) {
+      int current = this.inFlight.get();
+      // A batch bigger than the window can only go in alone.
+      if (((current + count) > this.maximumInFlight) && (current > 0)) {
+        return false;
+      }
+      if (this.inFlight.compareAndSet(current, current + count)) {
+        recordInFlight(current + count);
+        return true;
+      }
+    }
+  }
+
+  private void waitToAcquire(int count) {
+    long start = System.nanoTime();
+    boolean acquired = false;
+    this.waitingSenderCount.incrementAndGet();
+    try {
+      this.lock.lock();
+      try {
+        // Check again now that a release will see us waiting.
+        acquired = tryAcquire(count);
+        while (!acquired && !this.closed) {
+          if (FullPolicy.TIMED == this.fullPolicy) {
+            long remainingNanos = this.timeoutNanos - (System.nanoTime() - start);
+            if (remainingNanos <= 0) {
+              break;
+            }
+            this.notFull.awaitNanos(remainingNanos);
+          } else {
+            this.notFull.await();
+          }
+          acquired = tryAcquire(count);
+        }
+      } finally {
+        this.lock.unlock();
+      }
+    } catch (InterruptedException e) {
+      // The only reason we would interrupt is to kill the test.
+      throw new RuntimeException(e);
+    } finally {
+      this.waitingSenderCount.decrementAndGet();
+      long waited = System.nanoTime() - start;
+      this.waitCount.incrementAndGet();
+      this.waitNanos.addAndGet(waited);
+      this.maximumWaitNanos.accumulateAndGet(waited, Math::max);
+    }
+    if (!acquired) {
+      if (this.closed) {
+        throw new ConnectionClosedException("Connection closed while waiting for room in its in-flight window");
+      }
+      this.rejectedCount.incrementAndGet();
+      throw new RejectedExecutionException("Timed out waiting for room in the in-flight window (maximum " + this.maximumInFlight + ")");
+    }
+  }
+
+  private void recordInFlight(int current) {
+    if (current > this.peakInFlight.get()) {
+      this.peakInFlight.accumulateAndGet(current, Math::max);
+    }
+  }
+
+  public int getMaximumInFlight() {
+    return this.maximumInFlight;
+  }
+
+  public FullPolicy getFullPolicy() {
+    return this.fullPolicy;
+  }
+
+  /**
+   * @return The number of messages currently in-flight
+   */
+  public int getInFlight() {
+    return this.inFlight.get();
+  }
+
+  /**
+   * @return The most messages which have been in-flight at once
+   */
+  public int getPeakInFlight() {
+    return this.peakInFlight.get();
+  }
+
+  /**
+   * @return The number of sends which had to wait for room
+   */
+  public long getWaitCount() {
+    return this.waitCount.get();
+  }
+
+  /**
+   * @return The total time sends spent waiting for room
+   */
+  public long getWaitNanos() {
+    return this.waitNanos.get();
+  }
+
+  /**
+   * @return The longest time a send spent waiting for room
+   */
+  public long getMaximumWaitNanos() {
+    return this.maximumWaitNanos.get();
+  }
+
+  /**
+   * @return The number of sends refused since the window was full
+   */
+  public long getRejectedCount() {
+    return this.rejectedCount.get();
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The incoming message queue of a PassthroughConnection:  many server threads add to it but only the connection's client
+ * thread takes from it.
+ * Adding is lock-free:  an item is pushed onto a linked stack with a single CAS.  The consumer takes the whole stack at once,
+ * reversing it into the order it was added, and then works through that batch without touching any shared state.  When
+ * there is nothing to take, the consumer parks and the next add unparks it (an add only pays for the unpark if the
+ * consumer is parked).
+ */
+public class PassthroughInboundQueue<T> {
+  private final AtomicReference<Node<T>> added = new AtomicReference<>();
+  // The consumer, while it is parked (or about to park), so that an add knows to unpark it.
+  private volatile Thread parkedConsumer;
+  private volatile boolean closed;
+  // The batch the consumer is working through, in the order it was added.  Only accessed by the consumer.
+  private Node<T> batch;
+
+  /**
+   * Adds an item.  This never blocks.
+   * 
+   * @param item The item to add
+   */
+  public void add(T item) {
+    Node<T> node = new Node<>(item);
+    Node<T> head;
+    do {
+      head = this.added.get();
+      node.next = head;
+    } while (!this.added.compareAndSet(head, node));
+    wake();
+  }
+
+  /**
+   * Removes the next item, without waiting.  Only called by the consumer.
+   * 
+   * @return The next item, or null if the queue is empty
+   */
+  public T poll() {
+    if (null == this.batch) {
+      this.batch = reverse(this.added.getAndSet(null));
+    }
+    T item = null;
+    if (null != this.batch) {
+      item = this.batch.item;
+      this.batch = this.batch.next;
+    }
+    return item;
+  }
+
+  /**
+   * @return True if there is nothing to take.  Only called by the consumer.
+   */
+  public boolean isEmpty() {
+    return (null == this.batch) && (null == this.added.get());
+  }
+
+  /**
+   * Parks the consumer until an item is added or the queue is closed.  This can also return early, so the caller must poll
+   * again.  Only called by the consumer.
+   * 
+   * @throws InterruptedException The consumer was interrupted
+   */
+  public void park() throws InterruptedException {
+    this.parkedConsumer = Thread.currentThread();
+    // Check again, now that an add will see us, since an add which came just before won't have unparked us.
+    if (isEmpty() && !this.closed) {
+      LockSupport.park(this);
+    }
+    this.parkedConsumer = null;
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+
+  /**
+   * Closes the queue, waking the consumer so that it can see whatever state change led to closing it.  Any later park returns
+   * right away.
+   */
+  public void close() {
+    this.closed = true;
+    wake();
+  }
+
+  private void wake() {
+    Thread consumer = this.parkedConsumer;
+    if (null != consumer) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  private static <T> Node<T> reverse(Node<T> head) {
+    Node<T> reversed = null;
+    while (null != head) {
+      Node<T> next = head.next;
+      head.next = reversed;
+      reversed = head;
+      head = next;
+    }
+    return reversed;
+  }
+
+
+  private static class Node<T> {
+    public final T item;
+    public Node<T> next;
+
+    public Node(T item) {
+      this.item = item;
+    }
+  }
+}
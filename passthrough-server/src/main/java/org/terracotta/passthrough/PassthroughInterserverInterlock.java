@@ -16,12 +16,18 @@
  */
 package org.terracotta.passthrough;
 
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * In the case where we are an active sending a message to a downstream passive, we use this implementation to provide the
  * basic interlock across the 2 threads.
+ * The active waits on a j.u.c condition, not a monitor, so that a virtual server thread doesn't pin its carrier.
  */
 public class PassthroughInterserverInterlock implements IMessageSenderWrapper {
   private final IMessageSenderWrapper sender;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = this.lock.newCondition();
   private boolean isComplete = false;
   private boolean didSucceed = false;
   private boolean isRetired = false;
@@ -30,26 +36,36 @@ public class PassthroughInterserverInterlock implements IMessageSenderWrapper {
     this.sender = sender;
   }
 
-  public synchronized boolean waitForComplete() {
-    while (!this.isComplete) {
-      try {
-        wait();
-      } catch (InterruptedException e) {
-        Assert.unexpected(e);
+  public boolean waitForComplete() {
+    this.lock.lock();
+    try {
+      while (!this.isComplete) {
+        try {
+          this.changed.await();
+        } catch (InterruptedException e) {
+          Assert.unexpected(e);
+        }
       }
+      return this.didSucceed;
+    } finally {
+      this.lock.unlock();
     }
-    return this.didSucceed;
   }
 
-  public synchronized boolean waitForRetired() {
-    while (!this.isRetired) {
-      try {
-        wait();
-      } catch (InterruptedException e) {
-        Assert.unexpected(e);
+  public boolean waitForRetired() {
+    this.lock.lock();
+    try {
+      while (!this.isRetired) {
+        try {
+          this.changed.await();
+        } catch (InterruptedException e) {
+          Assert.unexpected(e);
+        }
       }
+      return this.didSucceed;
+    } finally {
+      this.lock.unlock();
     }
-    return this.didSucceed;
   }
 
   @Override
@@ -57,16 +73,26 @@ public class PassthroughInterserverInterlock implements IMessageSenderWrapper {
   }
 
   @Override
-  public synchronized void sendComplete(PassthroughMessage complete, boolean last) {
-    this.isComplete = last;
-    this.didSucceed = (complete.type != PassthroughMessage.Type.MONITOR_EXCEPTION);
-    notifyAll();
+  public void sendComplete(PassthroughMessage complete, boolean last) {
+    this.lock.lock();
+    try {
+      this.isComplete = last;
+      this.didSucceed = (complete.type != PassthroughMessage.Type.MONITOR_EXCEPTION);
+      this.changed.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
   }
 
   @Override
-  public synchronized void sendRetire(PassthroughMessage retire) {
-    this.isRetired = true;
-    notifyAll();
+  public void sendRetire(PassthroughMessage retire) {
+    this.lock.lock();
+    try {
+      this.isRetired = true;
+      this.changed.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
   }
 
   @Override
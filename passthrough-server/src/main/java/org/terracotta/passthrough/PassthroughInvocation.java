@@ -16,6 +16,9 @@
  */
 package org.terracotta.passthrough;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
 import java.util.Set;
 
 import org.terracotta.entity.Invocation;
@@ -36,65 +39,184 @@ public class PassthroughInvocation<M extends EntityMessage, R extends EntityResp
   private final String entityClassName;
   private final String entityName;
   private final long clientInstanceID;
+  private final long entityHandle;
   private final MessageCodec<M, R> messageCodec;
   private final M request;
 
   public PassthroughInvocation(PassthroughConnection connection, String entityClassName, String entityName, long clientInstanceID, MessageCodec<M, R> messageCodec, M request) {
+    this(connection, entityClassName, entityName, clientInstanceID, PassthroughMessageCodec.NO_ENTITY_HANDLE, messageCodec, request);
+  }
+
+  public PassthroughInvocation(PassthroughConnection connection, String entityClassName, String entityName, long clientInstanceID, long entityHandle, MessageCodec<M, R> messageCodec, M request) {
     this.connection = connection;
     this.entityClassName = entityClassName;
     this.entityName = entityName;
     this.clientInstanceID = clientInstanceID;
+    this.entityHandle = entityHandle;
     this.messageCodec = messageCodec;
     this.request = request;
   }
 
   @Override
   public Task invoke(InvocationCallback<R> callback, Set<InvocationCallback.Types> callbacks) {
-    final PassthroughMessage message;
+    // In object-passing mode, the payload is only a handle to the request, which we release once the invoke is retired.
+    final byte[] handle = this.connection.shouldPassObject() ? this.connection.getObjectHandoff().register(this.request) : null;
+    // Otherwise, in that mode, this is one of the sampled invokes which are still run through the codec, to verify it.
+    final boolean verify = (null == handle) && this.connection.isObjectPassing();
+    final PassthroughMessage message = encode(handle, verify, callback);
+    if (null == message) {
+      return () -> false;
+    }
+
     try {
-      message = PassthroughMessageCodec.createInvokeMessage(this.entityClassName, this.entityName, this.clientInstanceID, messageCodec.encodeMessage(this.request), true);
+      return connection.invoke(message, new ResponseCallback(callback, handle, verify), callbacks);
+    } catch (RuntimeException e) {
+      // The connection refused the invoke so nothing will read the request.
+      release(handle);
+      throw e;
+    }
+  }
+
+  /**
+   * Adds this invocation to a batch instead of invoking it on its own.
+   */
+  void addTo(PassthroughInvocationBatch batch, InvocationCallback<R> callback) {
+    Assert.assertTrue(batch.getConnection() == this.connection);
+    final byte[] handle = this.connection.shouldPassObject() ? this.connection.getObjectHandoff().register(this.request) : null;
+    final boolean verify = (null == handle) && this.connection.isObjectPassing();
+    final PassthroughMessage message = encode(handle, verify, callback);
+    if (null != message) {
+      batch.addMessage(message, new ResponseCallback(callback, handle, verify), () -> release(handle));
+    }
+  }
+
+  /**
+   * @return The message to send, or null if the request couldn't be encoded (in which case the callback has already been
+   * told and the handle, if any, released)
+   */
+  private PassthroughMessage encode(byte[] handle, boolean verify, InvocationCallback<R> callback) {
+    PassthroughMessage message = null;
+    try {
+      byte[] payload = (null != handle) ? handle : messageCodec.encodeMessage(this.request);
+      if (verify) {
+        verifyRequest(payload);
+      }
+      // Use the server's handle for the entity, when we have one, instead of sending its class and name.
+      message = (PassthroughMessageCodec.NO_ENTITY_HANDLE != this.entityHandle)
+          ? PassthroughMessageCodec.createInvokeMessage(this.entityHandle, this.clientInstanceID, payload, true)
+          : PassthroughMessageCodec.createInvokeMessage(this.entityClassName, this.entityName, this.clientInstanceID, payload, true);
     } catch (MessageCodecException e) {
+      release(handle);
       callback.failure(e);
       callback.complete();
       callback.retired();
-      return () -> false;
+    } catch (RuntimeException e) {
+      release(handle);
+      throw e;
     }
+    return message;
+  }
 
+  /**
+   * Checks that the request comes back out of the codec as it went in:  either equal to it or, for messages which don't
+   * implement equals, encoded the same way.
+   */
+  private void verifyRequest(byte[] payload) throws MessageCodecException {
+    M decoded = messageCodec.decodeMessage(payload);
+    if (!Objects.equals(this.request, decoded) && !Arrays.equals(payload, messageCodec.encodeMessage(decoded))) {
+      throw new MessageCodecException("Message does not survive a round trip through its codec: " + this.request, null);
+    }
+  }
 
-    return connection.invoke(message, new InvocationCallback<byte[]>() {
-      @Override
-      public void sent() {
-        callback.sent();
-      }
+  private void release(byte[] handle) {
+    if (null != handle) {
+      this.connection.getObjectHandoff().release(handle);
+    }
+  }
+
+  /**
+   * Decodes the response for the caller's callback.  The connection hands us the response as a view of the message it
+   * received so a codec which can read buffers avoids copying it.
+   */
+  private class ResponseCallback implements InvocationCallback<byte[]>, PassthroughInvocationCallback.ResultViewCallback {
+    private final InvocationCallback<R> callback;
+    private final byte[] handle;
+    private final boolean verify;
+
+    public ResponseCallback(InvocationCallback<R> callback, byte[] handle, boolean verify) {
+      this.callback = callback;
+      this.handle = handle;
+      this.verify = verify;
+    }
+
+    @Override
+    public void sent() {
+      callback.sent();
+    }
+
+    @Override
+    public void received() {
+      callback.received();
+    }
 
-      @Override
-      public void received() {
-        callback.received();
+    @Override
+    public void result(byte[] response) {
+      try {
+        // The server hands the response back as an object if we sent the request as one.
+        PassthroughObjectHandoff handoff = connection.getObjectHandoff();
+        @SuppressWarnings("unchecked")
+        R result = ((null != handoff) && handoff.isHandle(response)) ? (R) handoff.take(response) : decodeResponse(response);
+        callback.result(result);
+      } catch (MessageCodecException e) {
+        callback.failure(e);
       }
+    }
 
-      @Override
-      public void result(byte[] response) {
-        try {
-          callback.result(messageCodec.decodeResponse(response));
-        } catch (MessageCodecException e) {
-          callback.failure(e);
+    @Override
+    @SuppressWarnings("unchecked")
+    public void resultView(ByteBuffer response) {
+      try {
+        PassthroughObjectHandoff handoff = connection.getObjectHandoff();
+        R result = null;
+        if ((null != handoff) && handoff.isHandle(response)) {
+          result = (R) handoff.take(response);
+        } else if (verify) {
+          result = decodeResponse(PassthroughMessageCodec.toArray(response));
+        } else if (messageCodec instanceof PassthroughBufferMessageCodec) {
+          result = ((PassthroughBufferMessageCodec<M, R>) messageCodec).decodeResponse(response);
+        } else {
+          result = messageCodec.decodeResponse(PassthroughMessageCodec.toArray(response));
         }
+        callback.result(result);
+      } catch (MessageCodecException e) {
+        callback.failure(e);
       }
+    }
 
-      @Override
-      public void failure(Throwable failure) {
-        callback.failure(failure);
-      }
+    @Override
+    public void failure(Throwable failure) {
+      callback.failure(failure);
+    }
 
-      @Override
-      public void complete() {
-        callback.complete();
-      }
+    @Override
+    public void complete() {
+      callback.complete();
+    }
 
-      @Override
-      public void retired() {
-        callback.retired();
+    @Override
+    public void retired() {
+      // Until now, the request could have been re-sent.
+      release(handle);
+      callback.retired();
+    }
+
+    private R decodeResponse(byte[] response) throws MessageCodecException {
+      R result = messageCodec.decodeResponse(response);
+      // The server's encoding must be what the codec makes of the response it decodes.
+      if (verify && !Arrays.equals(response, messageCodec.encodeResponse(result))) {
+        throw new MessageCodecException("Response does not survive a round trip through its codec: " + result, null);
       }
-    }, callbacks);
+      return result;
+    }
   }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.terracotta.entity.EntityResponse;
+import org.terracotta.entity.Invocation;
+import org.terracotta.entity.InvocationCallback;
+
+
+/**
+ * A batch of invocations, possibly of several entities, which are sent to the server as a single unit:  the client takes
+ * its connection's send lock once and the batch is added to the server's queue in one step (although it still takes a place
+ * in that queue for each message).
+ * Each message is still its own transaction, so it is acked, completed and retired (and re-sent on reconnect) on its own,
+ * in the order it was added.
+ * Note that this is not thread-safe:  a batch is built and invoked by one thread.
+ */
+public class PassthroughInvocationBatch {
+  private final PassthroughConnection connection;
+  private final List<PassthroughMessage> messages = new ArrayList<>();
+  private final List<InvocationCallback<byte[]>> callbacks = new ArrayList<>();
+  // Run for each message if the connection refuses the batch.
+  private final List<Runnable> onRefused = new ArrayList<>();
+
+  public PassthroughInvocationBatch(PassthroughConnection connection) {
+    this.connection = connection;
+  }
+
+  public PassthroughConnection getConnection() {
+    return this.connection;
+  }
+
+  /**
+   * Adds an invocation, built by an entity end-point on the batch's connection.  If its message can't be encoded, the
+   * callback is told right away and nothing is added.
+   * 
+   * @param invocation The invocation
+   * @param callback The callback of the invocation
+   * @return This batch
+   */
+  public <R extends EntityResponse> PassthroughInvocationBatch add(Invocation<R> invocation, InvocationCallback<R> callback) {
+    Assert.assertTrue(invocation instanceof PassthroughInvocation);
+    ((PassthroughInvocation<?, R>) invocation).addTo(this, callback);
+    return this;
+  }
+
+  void addMessage(PassthroughMessage message, InvocationCallback<byte[]> callback, Runnable onRefused) {
+    this.messages.add(message);
+    this.callbacks.add(callback);
+    this.onRefused.add(onRefused);
+  }
+
+  /**
+   * @return The number of messages in the batch
+   */
+  public int size() {
+    return this.messages.size();
+  }
+
+  /**
+   * Sends all the messages added so far, emptying the batch so that it can be reused.
+   */
+  public void invoke() {
+    if (!this.messages.isEmpty()) {
+      try {
+        this.connection.invokeBatch(this.messages, this.callbacks);
+      } catch (RuntimeException e) {
+        for (Runnable refused : this.onRefused) {
+          refused.run();
+        }
+        throw e;
+      } finally {
+        this.messages.clear();
+        this.callbacks.clear();
+        this.onRefused.clear();
+      }
+    }
+  }
+}
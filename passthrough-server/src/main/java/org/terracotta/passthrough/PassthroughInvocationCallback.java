@@ -16,17 +16,30 @@
  */
 package org.terracotta.passthrough;
 
+import java.nio.ByteBuffer;
+
 import org.terracotta.entity.InvocationCallback;
 
 public class PassthroughInvocationCallback implements InvocationCallback<byte[]> {
 
   private final byte[] message;
+  // The pooled buffer holding the message, if it is pooled.  We own one reference to it until the message is retired.
+  private final PassthroughPooledBuffer buffer;
   private final InvocationCallback<byte[]> callback;
+  // The window this message has a place in, if any.
+  private PassthroughInFlightWindow window;
   
   @edu.umd.cs.findbugs.annotations.SuppressFBWarnings(
     value="EI_EXPOSE_REP2")
   public PassthroughInvocationCallback(byte[] message, InvocationCallback<byte[]> callback) {
     this.message = message;
+    this.buffer = null;
+    this.callback = callback;
+  }
+
+  public PassthroughInvocationCallback(PassthroughPooledBuffer buffer, InvocationCallback<byte[]> callback) {
+    this.message = buffer.array();
+    this.buffer = buffer;
     this.callback = callback;
   }
 
@@ -40,6 +53,33 @@ public class PassthroughInvocationCallback implements InvocationCallback<byte[]>
     return message;
   }
 
+  /**
+   * @return The pooled buffer holding the message, or null if it isn't pooled
+   */
+  public PassthroughPooledBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Called, before the message is sent, if it takes a place in the connection's in-flight window.
+   */
+  public void setInFlightWindow(PassthroughInFlightWindow window) {
+    this.window = window;
+  }
+
+  /**
+   * Called once the message can no longer be re-sent so its buffer can go back to the pool (once the servers are done with
+   * it, too) and its place in the in-flight window is free.
+   */
+  public void releaseMessage() {
+    if (null != buffer) {
+      buffer.release();
+    }
+    if (null != window) {
+      window.release(1);
+    }
+  }
+
   @Override
   public void sent() {
     callback.sent();
@@ -55,6 +95,18 @@ public class PassthroughInvocationCallback implements InvocationCallback<byte[]>
     callback.result(response);
   }
 
+  /**
+   * Passes on a result which is a read-only view of the response message.  It is only copied if the callback can't take
+   * the view.
+   */
+  public void resultView(ByteBuffer response) {
+    if (callback instanceof ResultViewCallback) {
+      ((ResultViewCallback) callback).resultView(response);
+    } else {
+      callback.result(PassthroughMessageCodec.toArray(response));
+    }
+  }
+
   @Override
   public void failure(Throwable failure) {
     callback.failure(failure);
@@ -69,4 +121,11 @@ public class PassthroughInvocationCallback implements InvocationCallback<byte[]>
   public void retired() {
     callback.retired();
   }
+
+  /**
+   * May be implemented by the callback this wraps, to receive results as read-only views of the response message.
+   */
+  public interface ResultViewCallback {
+    public void resultView(ByteBuffer response);
+  }
 }
@@ -16,10 +16,7 @@
  */
 package org.terracotta.passthrough;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -49,11 +46,8 @@ public abstract class PassthroughMessage {
     DROP_LOCK,
     MONITOR_MESSAGE,
     MONITOR_EXCEPTION,
-  }
-
-  public static Type getType(DataInputStream input) throws IOException {
-    int ordinal = input.readInt();
-    return Type.values()[ordinal];
+    COMPLETE_AND_RETIRE_FROM_SERVER,
+    DEFINE_SYMBOLS,
   }
 
   public final Type type;
@@ -71,22 +65,76 @@ public abstract class PassthroughMessage {
     this.oldestTransactionID = oldestTransactionID;
   }
 
+  /**
+   * The header, at the start of every serialized message, is the type ordinal (byte), flags (byte, with HEADER_VERSION in
+   *  its top bits), transactionID (zig-zag varint) and transactionID - oldestTransactionID (zig-zag varint).
+   * The IDs are small and the oldest is close to the transactionID (or both are -1) so a header is usually 4 bytes.
+   * HEADER_VERSION is the layout of the header, checked when it is read.
+   */
+  public static final int HEADER_VERSION = 1;
+  static final int HEADER_VERSION_SHIFT = 6;
+  /**
+   * The header flag set when the message should be replicated to passives.
+   */
+  public static final byte FLAG_REPLICATE = 0x1;
+  /**
+   * The header flag set when the payload was deflated by PassthroughCompression.
+   */
+  public static final byte FLAG_DEFLATED = 0x2;
+
+  /**
+   * Serializes the message into an array of exactly its size.
+   */
   public byte[] asSerializedBytes() {
-    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-    try {
-      DataOutputStream output = new DataOutputStream(bytes);
-      output.writeInt(this.type.ordinal());
-      output.writeBoolean(this.shouldReplicateToPassives);
-      output.writeLong(this.transactionID);
-      output.writeLong(this.oldestTransactionID);
-      this.populateStream(output);
-      output.close();
-    } catch (IOException e) { 
-      // Can't happen with a byte array.
-      Assert.unexpected(e);
-    }
-    return bytes.toByteArray();
+    byte[] bytes = new byte[serializedSize()];
+    ByteBuffer output = ByteBuffer.wrap(bytes);
+    writeTo(output);
+    // If this fails, the message's payloadSize doesn't match what it writes.
+    Assert.assertTrue(!output.hasRemaining());
+    return bytes;
   }
-  
-  protected abstract void populateStream(DataOutputStream output) throws IOException;
+
+  /**
+   * @return The number of bytes writeTo will write
+   */
+  public int serializedSize() {
+    return headerSize() + payloadSize();
+  }
+
+  /**
+   * @return The number of bytes of the header, which depends on the transaction tracking
+   */
+  public int headerSize() {
+    return 1 + 1
+        + PassthroughMessageCodec.sizeOfVarlong(PassthroughMessageCodec.zigZag(this.transactionID))
+        + PassthroughMessageCodec.sizeOfVarlong(PassthroughMessageCodec.zigZag(this.transactionID - this.oldestTransactionID));
+  }
+
+  /**
+   * Writes the serialized message at the buffer's position, which must have at least serializedSize() bytes remaining.
+   */
+  public void writeTo(ByteBuffer output) {
+    output.put((byte) this.type.ordinal());
+    output.put((byte) ((HEADER_VERSION << HEADER_VERSION_SHIFT) | headerFlags()));
+    PassthroughMessageCodec.putVarlong(output, PassthroughMessageCodec.zigZag(this.transactionID));
+    PassthroughMessageCodec.putVarlong(output, PassthroughMessageCodec.zigZag(this.transactionID - this.oldestTransactionID));
+    this.populateBuffer(output);
+  }
+
+  /**
+   * @return The flags byte of the header
+   */
+  protected byte headerFlags() {
+    return this.shouldReplicateToPassives ? FLAG_REPLICATE : 0;
+  }
+
+  /**
+   * @return The exact number of bytes populateBuffer will write
+   */
+  protected abstract int payloadSize();
+
+  /**
+   * Writes the message-specific payload, which follows the header.
+   */
+  protected abstract void populateBuffer(ByteBuffer output);
 }
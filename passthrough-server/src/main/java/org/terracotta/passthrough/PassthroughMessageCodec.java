@@ -18,13 +18,21 @@ package org.terracotta.passthrough;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
 
+import org.terracotta.exception.EntityAlreadyExistsException;
 import org.terracotta.exception.EntityException;
+import org.terracotta.exception.EntityNotFoundException;
+import org.terracotta.exception.EntityNotProvidedException;
+import org.terracotta.exception.EntityServerException;
 import org.terracotta.passthrough.PassthroughMessage.Type;
 
 
@@ -35,15 +43,65 @@ import org.terracotta.passthrough.PassthroughMessage.Type;
  * the same process).  Serializing them ensures that there are no invalid assumptions being made on either side, however.
  */
 public class PassthroughMessageCodec {
-  public static PassthroughMessage createFetchMessage(final String entityClassName, final String entityName, final long clientInstanceID, final long version) {
+  /**
+   * The entity handle written in an invoke which identifies its entity by class and name, instead.
+   */
+  public static final long NO_ENTITY_HANDLE = -1L;
+  /**
+   * The entity handle written in an invoke replicated to a passive, which identifies its entity by class and name encoded
+   * against the link's string dictionary.
+   */
+  public static final long SYMBOL_ENTITY_HANDLE = -2L;
+  /**
+   * Flag set in a COMPLETE_AND_RETIRE_FROM_SERVER message if it also acknowledges the message.
+   */
+  public static final byte COMBINED_INCLUDES_ACK = 0x1;
+  /**
+   * Flag set in a COMPLETE_AND_RETIRE_FROM_SERVER message if its payload is a serialized exception.
+   */
+  public static final byte COMBINED_IS_EXCEPTION = 0x2;
+
+  // The message header (see PassthroughMessage.HEADER_VERSION) starts with the type ordinal and flags bytes.  The varint
+  //  IDs follow so only the transactionID is at a fixed offset.
+  private static final int TYPE_OFFSET = 0;
+  private static final int FLAGS_OFFSET = 1;
+  private static final int TRANSACTION_ID_OFFSET = 2;
+  // Type.values() copies the array on every call so we keep our own.
+  private static final Type[] TYPES = Type.values();
+  // The decoders reuse a stream per thread.  Decoding can nest (a decoder can decode another message) so the stream is
+  //  taken out while it is in use and nested decodes create their own.
+  private static final ThreadLocal<ReusableInput> REUSABLE_INPUT = new ThreadLocal<ReusableInput>();
+  // The most bytes writeUTF can write for a string (its length is written as an unsigned short).
+  private static final int MAX_UTF_LENGTH = 0xFFFF;
+  // The first byte of a serialized exception says how it is written:  one of the common exceptions, written as its fields,
+  //  or anything else, written with Java serialization.
+  private static final byte EXCEPTION_JAVA_SERIALIZED = 0;
+  private static final byte EXCEPTION_NOT_FOUND = 1;
+  private static final byte EXCEPTION_ALREADY_EXISTS = 2;
+  private static final byte EXCEPTION_NOT_PROVIDED = 3;
+  private static final byte EXCEPTION_SERVER = 4;
+  // Written in place of the frame count when a compactly written exception omits its stack trace.
+  private static final int NO_STACK_TRACE = -1;
+
+  /**
+   * Creates a fetch, which identifies its entity by class and name encoded against the connection's string dictionary.
+   * Once the server has answered it, the caller must confirm the names with the dictionary.
+   */
+  public static PassthroughMessage createFetchMessage(final PassthroughConnectionDictionary symbols, final String entityClassName, final String entityName, final long clientInstanceID, final long version) {
     boolean shouldReplicateToPassives = false;
+    final int classSymbol = symbols.reference(entityClassName);
+    final int nameSymbol = symbols.reference(entityName);
     return new PassthroughMessage(Type.FETCH_ENTITY, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
-        output.writeLong(clientInstanceID);
-        output.writeLong(version);
+      protected int payloadSize() {
+        return sizeOfSymbol(classSymbol, entityClassName) + sizeOfSymbol(nameSymbol, entityName) + Long.BYTES + Long.BYTES;
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        putSymbol(output, classSymbol, entityClassName);
+        putSymbol(output, nameSymbol, entityName);
+        output.putLong(clientInstanceID);
+        output.putLong(version);
       }};
   }
 
@@ -51,10 +109,14 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = true;
     return new PassthroughMessage(Type.RELEASE_ENTITY, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
-        output.writeLong(clientInstanceID);
+      protected int payloadSize() {
+        return sizeOfUTF(entityClassName) + sizeOfUTF(entityName) + Long.BYTES;
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        putUTF(output, entityClassName);
+        putUTF(output, entityName);
+        output.putLong(clientInstanceID);
       }};
   }
 
@@ -62,10 +124,14 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = true;
     return new PassthroughMessage(Type.UNEXPECTED_RELEASE, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
-        output.writeLong(clientInstanceID);
+      protected int payloadSize() {
+        return sizeOfUTF(entityClassName) + sizeOfUTF(entityName) + Long.BYTES;
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        putUTF(output, entityClassName);
+        putUTF(output, entityName);
+        output.putLong(clientInstanceID);
       }};
   }
 
@@ -73,10 +139,14 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.DOES_ENTITY_EXIST, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
-        output.writeLong(version);
+      protected int payloadSize() {
+        return sizeOfUTF(entityClassName) + sizeOfUTF(entityName) + Long.BYTES;
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        putUTF(output, entityClassName);
+        putUTF(output, entityName);
+        output.putLong(version);
       }};
   }
 
@@ -84,9 +154,13 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = true;
     return new PassthroughMessage(Type.DESTROY_ENTITY, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
+      protected int payloadSize() {
+        return sizeOfUTF(entityClassName) + sizeOfUTF(entityName);
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        putUTF(output, entityClassName);
+        putUTF(output, entityName);
       }};
   }
 
@@ -94,12 +168,15 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = true;
     return new PassthroughMessage(Type.CREATE_ENTITY, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
-        output.writeLong(version);
-        output.writeInt(serializedConfiguration.length);
-        output.write(serializedConfiguration);
+      protected int payloadSize() {
+        return sizeOfUTF(entityClassName) + sizeOfUTF(entityName) + Long.BYTES + sizeOfBytes(serializedConfiguration);
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        putUTF(output, entityClassName);
+        putUTF(output, entityName);
+        output.putLong(version);
+        putBytes(output, serializedConfiguration);
       }};
   }
   
@@ -107,24 +184,73 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = true;
     return new PassthroughMessage(Type.RECONFIGURE_ENTITY, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
-        output.writeLong(version);
-        output.writeInt(serializedConfiguration.length);
-        output.write(serializedConfiguration);
+      protected int payloadSize() {
+        return sizeOfUTF(entityClassName) + sizeOfUTF(entityName) + Long.BYTES + sizeOfBytes(serializedConfiguration);
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        putUTF(output, entityClassName);
+        putUTF(output, entityName);
+        output.putLong(version);
+        putBytes(output, serializedConfiguration);
       }};
   }
   
   public static PassthroughMessage createInvokeMessage(final String entityClassName, final String entityName, final long clientInstanceID, final byte[] payload, final boolean shouldReplicateToPassives) {
     return new PassthroughMessage(Type.INVOKE_ON_SERVER, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
-        output.writeLong(clientInstanceID);
-        output.writeInt(payload.length);
-        output.write(payload);
+      protected int payloadSize() {
+        return Long.BYTES + sizeOfUTF(entityClassName) + sizeOfUTF(entityName) + Long.BYTES + sizeOfBytes(payload);
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        output.putLong(NO_ENTITY_HANDLE);
+        putUTF(output, entityClassName);
+        putUTF(output, entityName);
+        output.putLong(clientInstanceID);
+        putBytes(output, payload);
+      }};
+  }
+
+  /**
+   * Creates an invoke, for replication to a passive, which identifies its entity by class and name encoded against the
+   * link's string dictionary.  This defines any name not yet sent over the link so the message must be sent before any
+   * other message is created with the same dictionary.
+   */
+  public static PassthroughMessage createReplicatedInvokeMessage(final PassthroughStringDictionary symbols, final String entityClassName, final String entityName, final long clientInstanceID, final byte[] payload, final boolean shouldReplicateToPassives) {
+    final int classSymbol = symbols.reference(entityClassName);
+    final int nameSymbol = symbols.reference(entityName);
+    return new PassthroughMessage(Type.INVOKE_ON_SERVER, shouldReplicateToPassives) {
+      @Override
+      protected int payloadSize() {
+        return Long.BYTES + sizeOfSymbol(classSymbol, entityClassName) + sizeOfSymbol(nameSymbol, entityName) + Long.BYTES + sizeOfBytes(payload);
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        output.putLong(SYMBOL_ENTITY_HANDLE);
+        putSymbol(output, classSymbol, entityClassName);
+        putSymbol(output, nameSymbol, entityName);
+        output.putLong(clientInstanceID);
+        putBytes(output, payload);
+      }};
+  }
+
+  /**
+   * Creates an invoke which identifies its entity by the handle returned when the entity was fetched (or reconnected),
+   * instead of by class and name.
+   */
+  public static PassthroughMessage createInvokeMessage(final long entityHandle, final long clientInstanceID, final byte[] payload, final boolean shouldReplicateToPassives) {
+    Assert.assertTrue(NO_ENTITY_HANDLE != entityHandle);
+    return new PassthroughMessage(Type.INVOKE_ON_SERVER, shouldReplicateToPassives) {
+      @Override
+      protected int payloadSize() {
+        return Long.BYTES + Long.BYTES + sizeOfBytes(payload);
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        output.putLong(entityHandle);
+        output.putLong(clientInstanceID);
+        putBytes(output, payload);
       }};
   }
 
@@ -133,51 +259,89 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.ACK_FROM_SERVER, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeInt(Type.ACK_FROM_SERVER.ordinal());
+      protected int payloadSize() {
+        return Integer.BYTES;
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        output.putInt(Type.ACK_FROM_SERVER.ordinal());
       }};
   }
 
   public static PassthroughMessage createMonitorMessage(final byte[] response, final EntityException error) {
+    return createMonitorMessage(response, error, true);
+  }
+
+  public static PassthroughMessage createMonitorMessage(final byte[] response, final EntityException error, final boolean includeStackTrace) {
     // Replication ignored in this context.
     boolean shouldReplicateToPassives = false;
     boolean isSuccess = (null == error);
+    // We need the exception's size before we write it so it is serialized up-front.
+    final byte[] serializedException = isSuccess ? null : PassthroughMessageCodec.serializeExceptionToArray(error, includeStackTrace);
     return new PassthroughMessage(isSuccess ? Type.MONITOR_MESSAGE : Type.MONITOR_EXCEPTION, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected int payloadSize() {
+        return isSuccess ? sizeOfNullableBytes(response) : sizeOfBytes(serializedException);
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
         if (isSuccess) {
-          if (null != response) {
-            output.writeInt(response.length);
-            output.write(response);
-          } else {
-            output.writeInt(-1);
-          }
+          putNullableBytes(output, response);
         } else {
-          byte[] serializedException = PassthroughMessageCodec.serializeExceptionToArray(error);
-          output.writeInt(serializedException.length);
-          output.write(serializedException);
+          putBytes(output, serializedException);
         }
       }};
   }
 
   public static PassthroughMessage createCompleteMessage(final byte[] response, final EntityException error) {
+    return createCompleteMessage(response, error, true);
+  }
+
+  public static PassthroughMessage createCompleteMessage(final byte[] response, final EntityException error, final boolean includeStackTrace) {
     // Replication ignored in this context.
     boolean shouldReplicateToPassives = false;
     boolean isSuccess = (null == error);
+    // We need the exception's size before we write it so it is serialized up-front.
+    final byte[] serializedException = isSuccess ? null : PassthroughMessageCodec.serializeExceptionToArray(error, includeStackTrace);
     return new PassthroughMessage(isSuccess ? Type.COMPLETE_FROM_SERVER : Type.EXCEPTION_FROM_SERVER, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected int payloadSize() {
+        return isSuccess ? sizeOfNullableBytes(response) : sizeOfBytes(serializedException);
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
         if (isSuccess) {
-          if (null != response) {
-            output.writeInt(response.length);
-            output.write(response);
-          } else {
-            output.writeInt(-1);
-          }
+          putNullableBytes(output, response);
         } else {
-          byte[] serializedException = PassthroughMessageCodec.serializeExceptionToArray(error);
-          output.writeInt(serializedException.length);
-          output.write(serializedException);
+          putBytes(output, serializedException);
+        }
+      }};
+  }
+
+  /**
+   * Creates the single message sent in place of a complete and retire (and, optionally, the ack) when a message's
+   * retirement isn't held back.  The payload is a flags byte (see COMBINED_*) followed by the response or the serialized
+   * exception.
+   */
+  public static PassthroughMessage createCompleteAndRetireMessage(final boolean includesAck, final byte[] response, final EntityException error, final boolean includeStackTrace) {
+    // Replication ignored in this context.
+    boolean shouldReplicateToPassives = false;
+    boolean isSuccess = (null == error);
+    // We need the exception's size before we write it so it is serialized up-front.
+    final byte[] serializedException = isSuccess ? null : PassthroughMessageCodec.serializeExceptionToArray(error, includeStackTrace);
+    final byte flags = (byte) ((includesAck ? COMBINED_INCLUDES_ACK : 0) | (isSuccess ? 0 : COMBINED_IS_EXCEPTION));
+    return new PassthroughMessage(Type.COMPLETE_AND_RETIRE_FROM_SERVER, shouldReplicateToPassives) {
+      @Override
+      protected int payloadSize() {
+        return Byte.BYTES + (isSuccess ? sizeOfNullableBytes(response) : sizeOfBytes(serializedException));
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        output.put(flags);
+        if (isSuccess) {
+          putNullableBytes(output, response);
+        } else {
+          putBytes(output, serializedException);
         }
       }};
   }
@@ -187,8 +351,12 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.RETIRE_FROM_SERVER, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeInt(Type.RETIRE_FROM_SERVER.ordinal());
+      protected int payloadSize() {
+        return Integer.BYTES;
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        output.putInt(Type.RETIRE_FROM_SERVER.ordinal());
       }};
   }
 
@@ -197,129 +365,565 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.INVOKE_ON_CLIENT, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeLong(clientInstanceID);
-        output.writeInt(payload.length);
-        output.write(payload);
+      protected int payloadSize() {
+        return Long.BYTES + sizeOfBytes(payload);
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        output.putLong(clientInstanceID);
+        putBytes(output, payload);
       }};
   }
 
-  public static PassthroughMessage createReconnectMessage(final String entityClassName, final String entityName, final long clientInstanceID, final byte[] extendedData) {
+  public static PassthroughMessage createReconnectMessage(final PassthroughConnectionDictionary symbols, final String entityClassName, final String entityName, final long clientInstanceID, final byte[] extendedData) {
     Assert.assertTrue(null != extendedData);
     // This is equivalent to a FETCH so we don't care about replication.
     boolean shouldReplicateToPassives = false;
+    // These are sent after the dictionary was defined again, so its names are all confirmed, but the class name is the
+    //  canonical one, which can differ from the one the entity was fetched by, in which case this defines it.
+    final int classSymbol = symbols.reference(entityClassName);
+    final int nameSymbol = symbols.reference(entityName);
     return new PassthroughMessage(Type.RECONNECT, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
-        output.writeLong(clientInstanceID);
-        output.writeInt(extendedData.length);
-        output.write(extendedData);
+      protected int payloadSize() {
+        return sizeOfSymbol(classSymbol, entityClassName) + sizeOfSymbol(nameSymbol, entityName) + Long.BYTES + sizeOfBytes(extendedData);
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        putSymbol(output, classSymbol, entityClassName);
+        putSymbol(output, nameSymbol, entityName);
+        output.putLong(clientInstanceID);
+        putBytes(output, extendedData);
       }};
   }
 
-  public static PassthroughMessage createSyncEntityStartMessage(final String entityClassName, final String entityName, final long version, final byte[] serializedConfiguration) {
+  /**
+   * Creates the message a client sends first when it reconnects, defining every string of its dictionary on the new server.
+   *
+   * @param ids The ID of each string, from PassthroughConnectionDictionary.reset
+   */
+  public static PassthroughMessage createDefineSymbolsMessage(final Map<String, Integer> ids) {
+    // The passives get the names from their active, not from the clients.
+    boolean shouldReplicateToPassives = false;
+    return new PassthroughMessage(Type.DEFINE_SYMBOLS, shouldReplicateToPassives) {
+      @Override
+      protected int payloadSize() {
+        int size = Integer.BYTES;
+        for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+          size += sizeOfSymbol(~entry.getValue(), entry.getKey());
+        }
+        return size;
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        output.putInt(ids.size());
+        for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+          putSymbol(output, ~entry.getValue(), entry.getKey());
+        }
+      }};
+  }
+
+  // The sync messages are only sent from an active to a passive so they identify the entity by class and name encoded
+  //  against the link's string dictionary.  Creating one defines any name not yet sent over the link so each must be sent
+  //  before any other message is created with the same dictionary.
+  public static PassthroughMessage createSyncEntityStartMessage(final PassthroughStringDictionary symbols, final String entityClassName, final String entityName, final long version, final byte[] serializedConfiguration) {
     // Replication is meaningless for sync.
     boolean shouldReplicateToPassives = false;
+    final int classSymbol = symbols.reference(entityClassName);
+    final int nameSymbol = symbols.reference(entityName);
     return new PassthroughMessage(Type.SYNC_ENTITY_START, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
-        output.writeLong(version);
-        output.writeInt(serializedConfiguration.length);
-        output.write(serializedConfiguration);
+      protected int payloadSize() {
+        return sizeOfSymbol(classSymbol, entityClassName) + sizeOfSymbol(nameSymbol, entityName) + Long.BYTES + sizeOfBytes(serializedConfiguration);
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        putSymbol(output, classSymbol, entityClassName);
+        putSymbol(output, nameSymbol, entityName);
+        output.putLong(version);
+        putBytes(output, serializedConfiguration);
       }};
   }
 
-  public static PassthroughMessage createSyncEntityEndMessage(final String entityClassName, final String entityName) {
+  public static PassthroughMessage createSyncEntityEndMessage(final PassthroughStringDictionary symbols, final String entityClassName, final String entityName) {
     // Replication is meaningless for sync.
     boolean shouldReplicateToPassives = false;
+    final int classSymbol = symbols.reference(entityClassName);
+    final int nameSymbol = symbols.reference(entityName);
     return new PassthroughMessage(Type.SYNC_ENTITY_END, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
+      protected int payloadSize() {
+        return sizeOfSymbol(classSymbol, entityClassName) + sizeOfSymbol(nameSymbol, entityName);
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        putSymbol(output, classSymbol, entityClassName);
+        putSymbol(output, nameSymbol, entityName);
       }};
   }
 
-  public static PassthroughMessage createSyncEntityKeyStartMessage(final String entityClassName, final String entityName, final int concurrencyKey) {
+  public static PassthroughMessage createSyncEntityKeyStartMessage(final PassthroughStringDictionary symbols, final String entityClassName, final String entityName, final int concurrencyKey) {
     // Replication is meaningless for sync.
     boolean shouldReplicateToPassives = false;
+    final int classSymbol = symbols.reference(entityClassName);
+    final int nameSymbol = symbols.reference(entityName);
     return new PassthroughMessage(Type.SYNC_ENTITY_KEY_START, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
-        output.writeInt(concurrencyKey);
+      protected int payloadSize() {
+        return sizeOfSymbol(classSymbol, entityClassName) + sizeOfSymbol(nameSymbol, entityName) + Integer.BYTES;
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        putSymbol(output, classSymbol, entityClassName);
+        putSymbol(output, nameSymbol, entityName);
+        output.putInt(concurrencyKey);
       }};
   }
 
-  public static PassthroughMessage createSyncEntityKeyEndMessage(final String entityClassName, final String entityName, final int concurrencyKey) {
+  public static PassthroughMessage createSyncEntityKeyEndMessage(final PassthroughStringDictionary symbols, final String entityClassName, final String entityName, final int concurrencyKey) {
     // Replication is meaningless for sync.
     boolean shouldReplicateToPassives = false;
+    final int classSymbol = symbols.reference(entityClassName);
+    final int nameSymbol = symbols.reference(entityName);
     return new PassthroughMessage(Type.SYNC_ENTITY_KEY_END, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
-        output.writeInt(concurrencyKey);
+      protected int payloadSize() {
+        return sizeOfSymbol(classSymbol, entityClassName) + sizeOfSymbol(nameSymbol, entityName) + Integer.BYTES;
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        putSymbol(output, classSymbol, entityClassName);
+        putSymbol(output, nameSymbol, entityName);
+        output.putInt(concurrencyKey);
       }};
   }
 
-  public static PassthroughMessage createSyncPayloadMessage(final String entityClassName, final String entityName, final int concurrencyKey, final byte[] payload) {
+  public static PassthroughMessage createSyncPayloadMessage(final PassthroughStringDictionary symbols, final String entityClassName, final String entityName, final int concurrencyKey, final byte[] payload) {
     // Replication is meaningless for sync.
     boolean shouldReplicateToPassives = false;
+    final int classSymbol = symbols.reference(entityClassName);
+    final int nameSymbol = symbols.reference(entityName);
     return new PassthroughMessage(Type.SYNC_ENTITY_PAYLOAD, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
-        output.writeUTF(entityClassName);
-        output.writeUTF(entityName);
-        output.writeInt(concurrencyKey);
-        output.writeInt(payload.length);
-        output.write(payload);
+      protected int payloadSize() {
+        return sizeOfSymbol(classSymbol, entityClassName) + sizeOfSymbol(nameSymbol, entityName) + Integer.BYTES + sizeOfBytes(payload);
+      }
+      @Override
+      protected void populateBuffer(ByteBuffer output) {
+        putSymbol(output, classSymbol, entityClassName);
+        putSymbol(output, nameSymbol, entityName);
+        output.putInt(concurrencyKey);
+        putBytes(output, payload);
       }};
   }
 
+  /**
+   * The response to a fetch is the handle of the entity followed by its configuration (which may be null).
+   */
+  public static byte[] createFetchResponse(long entityHandle, byte[] config) {
+    byte[] response = new byte[Long.BYTES + 1 + ((null != config) ? config.length : 0)];
+    ByteBuffer output = ByteBuffer.wrap(response);
+    output.putLong(entityHandle);
+    output.put((byte) ((null != config) ? 1 : 0));
+    if (null != config) {
+      output.put(config);
+    }
+    return response;
+  }
+
+  public static long decodeEntityHandleFromFetchResponse(byte[] response) {
+    return decodeEntityHandle(response);
+  }
+
+  public static byte[] decodeConfigFromFetchResponse(byte[] response) {
+    byte[] config = null;
+    if (0 != response[Long.BYTES]) {
+      config = new byte[response.length - Long.BYTES - 1];
+      System.arraycopy(response, Long.BYTES + 1, config, 0, config.length);
+    }
+    return config;
+  }
+
+  /**
+   * The response to a reconnect is the handle of the entity, on the new server.
+   */
+  public static byte[] createReconnectResponse(long entityHandle) {
+    byte[] response = new byte[Long.BYTES];
+    for (int i = Long.BYTES - 1; i >= 0; --i) {
+      response[i] = (byte) entityHandle;
+      entityHandle >>>= 8;
+    }
+    return response;
+  }
+
+  public static long decodeEntityHandleFromReconnectResponse(byte[] response) {
+    return decodeEntityHandle(response);
+  }
+
+  private static long decodeEntityHandle(byte[] response) {
+    long handle = 0;
+    for (int i = 0; i < Long.BYTES; ++i) {
+      handle = (handle << 8) | (response[i] & 0xFF);
+    }
+    return handle;
+  }
+
+  /**
+   * Reads a length-prefixed byte array (as written by putBytes) as a read-only view of the message being decoded, instead
+   * of copying it out.  The view is only valid until the decoder returns since the message's buffer may then be reused.
+   * 
+   * @param input The input passed to a Decoder
+   * @return The view, positioned at the start of the array
+   */
+  public static ByteBuffer readByteBufferView(DataInputStream input) throws IOException {
+    int length = input.readInt();
+    ByteBuffer view = null;
+    if (input instanceof MessageInput) {
+      view = ((MessageInput) input).bytes.view(length);
+    } else {
+      // Not our stream so we can't see its array.
+      byte[] bytes = new byte[length];
+      input.readFully(bytes);
+      view = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+    return view;
+  }
+
+  /**
+   * The same as readByteBufferView but for an array written by putNullableBytes.
+   * 
+   * @param input The input passed to a Decoder
+   * @return The view, or null if the array was null
+   */
+  public static ByteBuffer readNullableByteBufferView(DataInputStream input) throws IOException {
+    ByteBuffer view = null;
+    if (input instanceof MessageInput) {
+      view = ((MessageInput) input).readNullableView();
+    } else {
+      int length = input.readInt();
+      if (-1 != length) {
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        view = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+      }
+    }
+    return view;
+  }
+
+  /**
+   * Copies the remaining bytes of a buffer, without moving its position.
+   */
+  public static byte[] toArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
   public static <R> R decodeRawMessage(Decoder<R> decoder, byte[] rawMessage) {
     return runRawDecoder(decoder, rawMessage);
   }
   
+  // The header accessors and runRawDecoder all read the header directly from the array, with the helpers below, instead of
+  //  decoding the message.
+
   public static long decodeTransactionIDFromRawMessage(byte[] rawMessage) {
-    Decoder<Long> decoder = new Decoder<Long>() {
+    return readHeaderTransactionID(rawMessage);
+  }
 
-      @Override
-      public Long decode(Type type, boolean shouldReplicate, long transactionID, long oldestTransactionID, DataInputStream input) throws IOException {
-        return transactionID;
-      }
-    };
-    return runRawDecoder(decoder, rawMessage);
+  public static long decodeOldestTransactionIDFromRawMessage(byte[] rawMessage) {
+    return readHeaderOldestTransactionID(rawMessage, readHeaderTransactionID(rawMessage));
   }
-  
+
   public static Type decodeTransactionTypeFromRawMessage(byte[] rawMessage) {
-    Decoder<Type> decoder = new Decoder<Type>() {
+    return readHeaderType(rawMessage);
+  }
 
-      @Override
-      public Type decode(Type type, boolean shouldReplicate, long transactionID, long oldestTransactionID, DataInputStream input) throws IOException {
-        // The type is an int ordinal after the transactionID.
-        input.readLong();
-        int ordinal = input.readInt();
-        return Type.values()[ordinal];
-      }
-    };
-    return runRawDecoder(decoder, rawMessage);
+  private static Type readHeaderType(byte[] rawMessage) {
+    return TYPES[rawMessage[TYPE_OFFSET] & 0xFF];
+  }
+
+  /**
+   * @return The header flags, once the header version is checked
+   */
+  private static int readHeaderFlags(byte[] rawMessage) {
+    int flags = rawMessage[FLAGS_OFFSET] & 0xFF;
+    Assert.assertTrue(PassthroughMessage.HEADER_VERSION == (flags >>> PassthroughMessage.HEADER_VERSION_SHIFT));
+    return flags & ((1 << PassthroughMessage.HEADER_VERSION_SHIFT) - 1);
+  }
+
+  private static long readHeaderTransactionID(byte[] rawMessage) {
+    return unZigZag(readVarlong(rawMessage, TRANSACTION_ID_OFFSET));
+  }
+
+  private static long readHeaderOldestTransactionID(byte[] rawMessage, long transactionID) {
+    return transactionID - unZigZag(readVarlong(rawMessage, skipVarlong(rawMessage, TRANSACTION_ID_OFFSET)));
+  }
+
+  private static int headerSize(byte[] rawMessage) {
+    return skipVarlong(rawMessage, skipVarlong(rawMessage, TRANSACTION_ID_OFFSET));
   }
   
+  /**
+   * @return The number of bytes putUTF will write for the given string
+   */
+  static int sizeOfUTF(String string) {
+    return Short.BYTES + utfLength(string);
+  }
+
+  /**
+   * Writes the string in the same (modified UTF-8) format as DataOutputStream.writeUTF, so that it can be read with
+   * DataInputStream.readUTF.
+   */
+  static void putUTF(ByteBuffer output, String string) {
+    int length = string.length();
+    int utfLength = utfLength(string);
+    Assert.assertTrue(utfLength <= MAX_UTF_LENGTH);
+    output.putShort((short) utfLength);
+    if (utfLength == length) {
+      // All ASCII so each char is one byte.
+      for (int i = 0; i < length; ++i) {
+        output.put((byte) string.charAt(i));
+      }
+    } else {
+      for (int i = 0; i < length; ++i) {
+        char c = string.charAt(i);
+        if ((c >= 0x0001) && (c <= 0x007F)) {
+          output.put((byte) c);
+        } else if (c <= 0x07FF) {
+          output.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+          output.put((byte) (0x80 | (c & 0x3F)));
+        } else {
+          output.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+          output.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+          output.put((byte) (0x80 | (c & 0x3F)));
+        }
+      }
+    }
+  }
+
+  private static int utfLength(String string) {
+    int length = string.length();
+    int utfLength = length;
+    for (int i = 0; i < length; ++i) {
+      char c = string.charAt(i);
+      if ((c < 0x0001) || (c > 0x007F)) {
+        utfLength += (c <= 0x07FF) ? 1 : 2;
+      }
+    }
+    return utfLength;
+  }
+
+  /**
+   * @return The number of bytes putVarint will write for the given value
+   */
+  static int sizeOfVarint(int value) {
+    int size = 1;
+    while (0 != (value >>>= 7)) {
+      size += 1;
+    }
+    return size;
+  }
+
+  /**
+   * Writes the value as an unsigned varint:  7 bits per byte, least significant first, with the high bit set on all but the
+   * last byte.
+   */
+  static void putVarint(ByteBuffer output, int value) {
+    while (0 != (value & ~0x7F)) {
+      output.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    output.put((byte) value);
+  }
+
+  /**
+   * Maps signed values to unsigned ones so that those close to 0 (like -1) have short varints.
+   */
+  static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * @return The number of bytes putVarlong will write for the given value
+   */
+  static int sizeOfVarlong(long value) {
+    int size = 1;
+    while (0 != (value >>>= 7)) {
+      size += 1;
+    }
+    return size;
+  }
+
+  /**
+   * The same as putVarint but for a long.
+   */
+  static void putVarlong(ByteBuffer output, long value) {
+    while (0 != (value & ~0x7FL)) {
+      output.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    output.put((byte) value);
+  }
+
+  /**
+   * Reads the varlong written by putVarlong at the given offset.
+   */
+  static long readVarlong(byte[] bytes, int offset) {
+    long value = 0;
+    int shift = 0;
+    byte oneByte;
+    do {
+      Assert.assertTrue(shift < Long.SIZE);
+      oneByte = bytes[offset++];
+      value |= (long) (oneByte & 0x7F) << shift;
+      shift += 7;
+    } while (0 != (oneByte & 0x80));
+    return value;
+  }
+
+  /**
+   * @return The offset just after the varlong at the given offset
+   */
+  static int skipVarlong(byte[] bytes, int offset) {
+    while (0 != (bytes[offset] & 0x80)) {
+      offset += 1;
+    }
+    return offset + 1;
+  }
+
+  public static int readVarint(DataInput input) throws IOException {
+    int value = 0;
+    int shift = 0;
+    byte oneByte;
+    do {
+      Assert.assertTrue(shift < Integer.SIZE);
+      oneByte = input.readByte();
+      value |= (oneByte & 0x7F) << shift;
+      shift += 7;
+    } while (0 != (oneByte & 0x80));
+    return value;
+  }
+
+  /**
+   * @param reference The reference returned by PassthroughStringDictionary.reference (or
+   * PassthroughConnectionDictionary.reference) for the string
+   * @return The number of bytes putSymbol will write for the given string
+   */
+  static int sizeOfSymbol(int reference, String string) {
+    return (reference < 0)
+        ? sizeOfVarint((~reference << 1) | 1) + sizeOfUTF(string)
+        : sizeOfVarint(reference << 1);
+  }
+
+  /**
+   * Writes a string encoded against a dictionary:  a varint of its ID shifted left by one, with the low bit set if the
+   * string follows (since this is its definition).
+   */
+  static void putSymbol(ByteBuffer output, int reference, String string) {
+    if (reference < 0) {
+      putVarint(output, (~reference << 1) | 1);
+      putUTF(output, string);
+    } else {
+      putVarint(output, reference << 1);
+    }
+  }
+
+  /**
+   * Reads a string written by putSymbol, recording it in the dictionary if this is its definition.
+   */
+  public static String readSymbol(DataInput input, PassthroughStringDictionary symbols) throws IOException {
+    int code = readVarint(input);
+    int id = code >>> 1;
+    String string;
+    if (0 != (code & 1)) {
+      string = input.readUTF();
+      symbols.define(id, string);
+    } else {
+      string = symbols.lookup(id);
+    }
+    return string;
+  }
+
+  static int sizeOfBytes(byte[] bytes) {
+    return Integer.BYTES + bytes.length;
+  }
+
+  /**
+   * Writes the array prefixed by its length.
+   */
+  static void putBytes(ByteBuffer output, byte[] bytes) {
+    output.putInt(bytes.length);
+    output.put(bytes);
+  }
+
+  static int sizeOfNullableBytes(byte[] bytes) {
+    return Integer.BYTES + ((null != bytes) ? bytes.length : 0);
+  }
+
+  /**
+   * Writes the array prefixed by its length, or a length of -1 if it is null.
+   */
+  static void putNullableBytes(ByteBuffer output, byte[] bytes) {
+    if (null != bytes) {
+      putBytes(output, bytes);
+    } else {
+      output.putInt(-1);
+    }
+  }
+
+  /**
+   * Serializes an exception to send to a client, omitting the stack trace of a compactly written one.
+   */
   public static byte[] serializeExceptionToArray(EntityException exception) {
-    // We need to manually serialize the exception using Java serialization.
+    return serializeExceptionToArray(exception, false);
+  }
+
+  /**
+   * Serializes an exception to send to a client.  The common exceptions (those of a known type, without a cause) are written
+   * as their type and fields while anything else uses Java serialization.
+   * 
+   * @param exception The exception to serialize
+   * @param includeStackTrace True if a compactly written exception should include its stack trace (exceptions written with
+   * Java serialization always include theirs)
+   * @return The serialized exception
+   */
+  public static byte[] serializeExceptionToArray(EntityException exception, boolean includeStackTrace) {
     ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
+    byte tag = compactExceptionTag(exception);
+    byteOutput.write(tag);
     try {
-      ObjectOutputStream objectOutput = new ObjectOutputStream(byteOutput);
-      try {
-        objectOutput.writeObject(exception);
-      } finally {
-        objectOutput.close();
+      if (EXCEPTION_JAVA_SERIALIZED == tag) {
+        // We need to manually serialize the exception using Java serialization.
+        ObjectOutputStream objectOutput = new ObjectOutputStream(byteOutput);
+        try {
+          objectOutput.writeObject(exception);
+        } finally {
+          objectOutput.close();
+        }
+      } else {
+        DataOutputStream output = new DataOutputStream(byteOutput);
+        writeNullableUTF(output, exception.getClassName());
+        writeNullableUTF(output, exception.getEntityName());
+        if (EXCEPTION_SERVER == tag) {
+          writeNullableUTF(output, exception.getDescription());
+        }
+        if (includeStackTrace) {
+          StackTraceElement[] stackTrace = exception.getStackTrace();
+          output.writeInt(stackTrace.length);
+          for (StackTraceElement frame : stackTrace) {
+            output.writeUTF(frame.getClassName());
+            output.writeUTF(frame.getMethodName());
+            writeNullableUTF(output, frame.getFileName());
+            output.writeInt(frame.getLineNumber());
+          }
+        } else {
+          output.writeInt(NO_STACK_TRACE);
+        }
+        output.flush();
       }
     } catch (IOException e) {
       // Can't happen with a byte array.
@@ -330,14 +934,50 @@ public class PassthroughMessageCodec {
   
   public static EntityException deserializeExceptionFromArray(byte[] bytes) {
     EntityException exception = null;
-    ByteArrayInputStream byteInput = new ByteArrayInputStream(bytes);
+    byte tag = bytes[0];
+    ByteArrayInputStream byteInput = new ByteArrayInputStream(bytes, 1, bytes.length - 1);
     try {
-      ObjectInputStream objectInput = new ObjectInputStream(byteInput);
-      try {
-        Object object = objectInput.readObject();
-        exception = (EntityException) object;
-      } finally {
-        objectInput.close();
+      if (EXCEPTION_JAVA_SERIALIZED == tag) {
+        ObjectInputStream objectInput = new ObjectInputStream(byteInput);
+        try {
+          Object object = objectInput.readObject();
+          exception = (EntityException) object;
+        } finally {
+          objectInput.close();
+        }
+      } else {
+        DataInputStream input = new DataInputStream(byteInput);
+        String className = readNullableUTF(input);
+        String entityName = readNullableUTF(input);
+        switch (tag) {
+          case EXCEPTION_NOT_FOUND:
+            exception = new EntityNotFoundException(className, entityName);
+            break;
+          case EXCEPTION_ALREADY_EXISTS:
+            exception = new EntityAlreadyExistsException(className, entityName);
+            break;
+          case EXCEPTION_NOT_PROVIDED:
+            exception = new EntityNotProvidedException(className, entityName);
+            break;
+          case EXCEPTION_SERVER:
+            exception = new EntityServerException(className, entityName, readNullableUTF(input), null);
+            break;
+          default:
+            Assert.unreachable();
+        }
+        int frameCount = input.readInt();
+        // If the stack trace was omitted, the exception keeps the one from where it was created, here.
+        if (NO_STACK_TRACE != frameCount) {
+          StackTraceElement[] stackTrace = new StackTraceElement[frameCount];
+          for (int i = 0; i < frameCount; ++i) {
+            String declaringClass = input.readUTF();
+            String methodName = input.readUTF();
+            String fileName = readNullableUTF(input);
+            int lineNumber = input.readInt();
+            stackTrace[i] = new StackTraceElement(declaringClass, methodName, fileName, lineNumber);
+          }
+          exception.setStackTrace(stackTrace);
+        }
       }
     } catch (ClassNotFoundException e) {
       // We control this entire system so we should never fail to find the class.
@@ -349,25 +989,127 @@ public class PassthroughMessageCodec {
     return exception;
   }
 
+  private static byte compactExceptionTag(EntityException exception) {
+    byte tag = EXCEPTION_JAVA_SERIALIZED;
+    // Only the exact types are known and anything with a cause (or suppressed exceptions) needs Java serialization to
+    //  carry it.
+    if ((null == exception.getCause()) && (0 == exception.getSuppressed().length)) {
+      Class<?> type = exception.getClass();
+      if (EntityNotFoundException.class == type) {
+        tag = EXCEPTION_NOT_FOUND;
+      } else if (EntityAlreadyExistsException.class == type) {
+        tag = EXCEPTION_ALREADY_EXISTS;
+      } else if (EntityNotProvidedException.class == type) {
+        tag = EXCEPTION_NOT_PROVIDED;
+      } else if ((EntityServerException.class == type) && fitsUTF(exception.getDescription())) {
+        tag = EXCEPTION_SERVER;
+      }
+    }
+    return tag;
+  }
+
+  private static boolean fitsUTF(String string) {
+    return (null == string) || (utfLength(string) <= MAX_UTF_LENGTH);
+  }
 
+  private static void writeNullableUTF(DataOutputStream output, String string) throws IOException {
+    output.writeBoolean(null != string);
+    if (null != string) {
+      output.writeUTF(string);
+    }
+  }
+
+  private static String readNullableUTF(DataInputStream input) throws IOException {
+    return input.readBoolean() ? input.readUTF() : null;
+  }
 
   private static <R> R runRawDecoder(Decoder<R> decoder, byte[] rawMessage) {
-    DataInputStream input = new DataInputStream(new ByteArrayInputStream(rawMessage));
+    Type type = readHeaderType(rawMessage);
+    int flags = readHeaderFlags(rawMessage);
+    boolean shouldReplicate = (0 != (flags & PassthroughMessage.FLAG_REPLICATE));
+    long transactionID = readHeaderTransactionID(rawMessage);
+    long oldestTransactionID = readHeaderOldestTransactionID(rawMessage, transactionID);
+    int payloadOffset = headerSize(rawMessage);
+
+    ReusableInput reusable = REUSABLE_INPUT.get();
+    if (null != reusable) {
+      REUSABLE_INPUT.set(null);
+    } else {
+      reusable = new ReusableInput();
+    }
+    reusable.bytes.reset(rawMessage, payloadOffset);
+    DataInputStream input = reusable.input;
     R result = null;
     try {
-      int ordinal = input.readInt();
-      Type type = Type.values()[ordinal];
-      boolean shouldReplicate = input.readBoolean();
-      long transactionID = input.readLong();
-      long oldestTransactionID = input.readLong();
+      if (0 != (flags & PassthroughMessage.FLAG_DEFLATED)) {
+        // The decoders only see the original payload:  the deflated one is its size followed by the deflated bytes.
+        int inflatedSize = input.readInt();
+        reusable.bytes.reset(PassthroughCompression.inflate(rawMessage, payloadOffset + Integer.BYTES, inflatedSize), 0);
+      }
       result = decoder.decode(type, shouldReplicate, transactionID, oldestTransactionID, input);
     } catch (IOException e) {
       // Can't happen with a byte array.
       Assert.unexpected(e);
+    } finally {
+      // Don't hold on to the message.
+      reusable.bytes.reset(null, 0);
+      REUSABLE_INPUT.set(reusable);
     }
     return result;
   }
 
+  /**
+   * A DataInputStream over a byte array which can be pointed at a new array, so that decoding doesn't allocate streams.
+   */
+  private static class ReusableInput {
+    public final ResettableByteArrayInputStream bytes = new ResettableByteArrayInputStream();
+    public final DataInputStream input = new MessageInput(this.bytes);
+  }
+
+  /**
+   * The stream passed to decoders, which lets readByteBufferView find the array under it.
+   */
+  private static class MessageInput extends DataInputStream {
+    public final ResettableByteArrayInputStream bytes;
+
+    public MessageInput(ResettableByteArrayInputStream bytes) {
+      super(bytes);
+      this.bytes = bytes;
+    }
+
+    public ByteBuffer readNullableView() throws IOException {
+      int length = readInt();
+      return (-1 != length) ? this.bytes.view(length) : null;
+    }
+  }
+
+  private static class ResettableByteArrayInputStream extends ByteArrayInputStream {
+    private static final byte[] EMPTY = new byte[0];
+
+    public ResettableByteArrayInputStream() {
+      super(EMPTY);
+    }
+
+    public void reset(byte[] bytes, int offset) {
+      this.buf = (null != bytes) ? bytes : EMPTY;
+      this.pos = offset;
+      this.mark = offset;
+      this.count = this.buf.length;
+    }
+
+    /**
+     * Returns a read-only view of the next length bytes and skips over them.
+     */
+    public ByteBuffer view(int length) throws EOFException {
+      if ((length < 0) || (length > (this.count - this.pos))) {
+        throw new EOFException();
+      }
+      ByteBuffer view = ByteBuffer.wrap(this.buf, this.pos, length).slice().asReadOnlyBuffer();
+      this.pos += length;
+      return view;
+    }
+  }
+
   public interface Decoder<R> {
     public R decode(Type type, boolean shouldReplicate, long transactionID, long oldestTransactionID, DataInputStream input) throws IOException;
   }
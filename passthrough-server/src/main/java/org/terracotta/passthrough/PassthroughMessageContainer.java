@@ -16,6 +16,8 @@
  */
 package org.terracotta.passthrough;
 
+import java.util.List;
+
 
 /**
  * A class which ties together information related to a message.
@@ -24,4 +26,10 @@ package org.terracotta.passthrough;
 public class PassthroughMessageContainer {
   public IMessageSenderWrapper sender;
   public byte[] message;
+  // If the message is in a pooled buffer, the container holds a reference to it until the message has been handled.
+  public PassthroughPooledBuffer buffer;
+  // If this is a batch of messages sent together by a client, the containers of its messages (and the fields above are
+  //  unused).  A batch passes through the server's queue as one item, taking a place for each of its messages, and is split
+  //  into its messages as it is taken.
+  public List<PassthroughMessageContainer> batch;
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.Collection;
+
+
+/**
+ * The queue of incoming messages of a PassthroughServerProcess.  Many threads add to it but only the server thread takes
+ * from it.
+ * The default implementation is PassthroughRingBufferQueue but a test can install its own via
+ * PassthroughServer.setServerQueueFactory.
+ */
+public interface PassthroughMessageQueue<T> {
+  /**
+   * Adds an item sent by a client.  If the queue is full, it applies its policy:  it may block, grow, or refuse the item by
+   * throwing RejectedExecutionException.
+   * 
+   * @param item The item to add
+   */
+  public void add(T item);
+
+  /**
+   * The same as add except that, if the queue is full and set to block the sender, this returns false instead of blocking.
+   * A sender which holds locks uses this so that it can release them before waiting, with awaitSpace, and trying again.
+   * The default just calls add, for queues which never block.
+   * 
+   * @param item The item to add
+   * @return True if the item was added, false if the sender would have blocked
+   */
+  public default boolean tryAdd(T item) {
+    add(item);
+    return true;
+  }
+
+  /**
+   * Waits until the queue may have space for an item which tryAdd refused.  The caller must try again since other senders
+   * may take that space first.  The default returns immediately, for queues which never block.
+   */
+  public default void awaitSpace() {
+  }
+
+  /**
+   * The same as tryAdd but for an item which stands for several messages (a client's batch), so that it takes a place in
+   * the queue for each of them.  An item bigger than the whole queue takes all of it.
+   * The default just calls tryAdd, for queues which don't count places.
+   * 
+   * @param item The item to add
+   * @param places The number of places the item takes
+   * @return True if the item was added, false if the sender would have blocked
+   */
+  public default boolean tryAdd(T item, int places) {
+    return tryAdd(item);
+  }
+
+  /**
+   * Waits until the queue may have space for an item of the given number of places which tryAdd refused.  The default
+   * just calls awaitSpace.
+   * 
+   * @param places The number of places the item takes
+   */
+  public default void awaitSpace(int places) {
+    awaitSpace();
+  }
+
+  /**
+   * Adds an item which originated inside the server (passive replication, re-sends, or messages an entity sends to
+   * itself).  This must never block or fail since the thread adding the item may be the one the server thread is waiting
+   * on.
+   * 
+   * @param item The item to add
+   */
+  public void addInternal(T item);
+
+  /**
+   * Removes the next item, waiting for one to be added if the queue is empty.  Only called by the server thread.
+   * 
+   * @return The next item
+   * @throws InterruptedException The server thread was interrupted while waiting (only happens on stop)
+   */
+  public T take() throws InterruptedException;
+
+  /**
+   * Removes up to maxItems items, without waiting, adding them to the given sink.  Only called by the server thread.
+   * 
+   * @param sink The collection to add the items to
+   * @param maxItems The maximum number of items to remove
+   * @return The number of items removed
+   */
+  public int drainTo(Collection<? super T> sink, int maxItems);
+
+  /**
+   * Drops everything in the queue.  Only called once the server thread has stopped.
+   */
+  public void clear();
+
+  /**
+   * @return The number of items the queue holds before its full policy applies, or Integer.MAX_VALUE if it never blocks or
+   * refuses an item.  The server bounds the backlog of its later stages by this same number, so that backpressure reaches
+   * the clients.
+   */
+  public int capacity();
+
+  /**
+   * Selects how take waits for an item when the queue is empty.  Called before the server thread starts.  The default
+   * ignores it, for queues which can only block.
+   * 
+   * @param waitStrategy The wait strategy
+   */
+  public default void setWaitStrategy(PassthroughWaitStrategy waitStrategy) {
+  }
+}
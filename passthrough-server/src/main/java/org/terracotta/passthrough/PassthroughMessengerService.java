@@ -17,10 +17,9 @@
 package org.terracotta.passthrough;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import org.terracotta.entity.EntityMessage;
 import org.terracotta.entity.ExplicitRetirementHandle;
 import org.terracotta.entity.IEntityMessenger;
@@ -129,12 +128,9 @@ public class PassthroughMessengerService implements IEntityMessenger<EntityMessa
     if (response != null) {
       return (msg)->{
         try {
-          ByteArrayOutputStream bos = new ByteArrayOutputStream();
-          DataOutputStream dos = new DataOutputStream(bos);
-          msg.populateStream(dos);
-          dos.close();
-          ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
-          DataInputStream dis = new DataInputStream(bis);
+          ByteBuffer payload = ByteBuffer.allocate(msg.payloadSize());
+          msg.populateBuffer(payload);
+          DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload.array()));
           switch (msg.type) {
           case MONITOR_MESSAGE: 
           case MONITOR_EXCEPTION:
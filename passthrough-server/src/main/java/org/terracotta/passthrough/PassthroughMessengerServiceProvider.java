@@ -32,10 +32,9 @@ public class PassthroughMessengerServiceProvider implements PassthroughImplement
   private final PassthroughServerProcess passthroughServerProcess;
   
   public PassthroughMessengerServiceProvider(PassthroughServerProcess passthroughServerProcess) {
-    this.timerThread = new PassthroughTimerThread();
+    this.timerThread = new PassthroughTimerThread("PassthroughTimerThread", passthroughServerProcess.getThreadMode());
     this.passthroughServerProcess = passthroughServerProcess;
     
-    this.timerThread.setName("PassthroughTimerThread");
     this.timerThread.start();
   }
 
@@ -0,0 +1,101 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * The control for a passthrough testing cluster made of several independent stripes, each with its own
+ * PassthroughClusterControl, so each stripe can be failed over on its own.
+ * Clients connect to the whole cluster with a PassthroughRoutingConnection, which spreads entities across the stripes by
+ * consistent hashing of the entity name.
+ */
+public class PassthroughMultiStripeClusterControl {
+  private final List<PassthroughClusterControl> stripes;
+  private final PassthroughStripeRouter router;
+
+  /**
+   * @param stripes The controls for each stripe (at least one), in stripe index order
+   */
+  public PassthroughMultiStripeClusterControl(List<PassthroughClusterControl> stripes) {
+    Assert.assertTrue(!stripes.isEmpty());
+    this.stripes = Collections.unmodifiableList(new ArrayList<PassthroughClusterControl>(stripes));
+    List<String> stripeNames = new ArrayList<String>();
+    for (PassthroughClusterControl stripe : this.stripes) {
+      stripeNames.add(stripe.getStripeName());
+    }
+    this.router = new PassthroughStripeRouter(stripeNames);
+  }
+
+  public int getStripeCount() {
+    return this.stripes.size();
+  }
+
+  /**
+   * @param stripeIndex The index of a stripe
+   * @return The control for that stripe
+   */
+  public PassthroughClusterControl getStripeControl(int stripeIndex) {
+    return this.stripes.get(stripeIndex);
+  }
+
+  /**
+   * @param entityName The name of an entity
+   * @return The control for the stripe which owns the entity
+   */
+  public PassthroughClusterControl getStripeControlForEntity(String entityName) {
+    return this.stripes.get(this.router.stripeIndexFor(entityName));
+  }
+
+  public PassthroughStripeRouter getRouter() {
+    return this.router;
+  }
+
+  public void waitForActive() throws Exception {
+    for (PassthroughClusterControl stripe : this.stripes) {
+      stripe.waitForActive();
+    }
+  }
+
+  /**
+   * Connects a new client to every stripe.
+   * Note that each stripe must have an active server.
+   * 
+   * @param connectionName The name of the connection to each stripe
+   * @return A connection which routes each entity to the stripe which owns it
+   */
+  public PassthroughRoutingConnection connectNewClient(String connectionName) {
+    List<PassthroughConnection> connections = new ArrayList<PassthroughConnection>();
+    for (PassthroughClusterControl stripe : this.stripes) {
+      PassthroughServer activeServer = PassthroughServerRegistry.getSharedInstance().getServerForName(stripe.getStripeName());
+      if (null == activeServer) {
+        throw new IllegalStateException("Stripe has no active: " + stripe.getStripeName());
+      }
+      connections.add(activeServer.connectNewClient(connectionName));
+    }
+    return new PassthroughRoutingConnection(this.router, connections);
+  }
+
+  public void tearDown() {
+    for (PassthroughClusterControl stripe : this.stripes) {
+      stripe.tearDown();
+    }
+  }
+}
@@ -34,7 +34,7 @@ import java.util.concurrent.TimeoutException;
  * NOTE: This is loosely a clone of the NullPlatformPersistentStorage class in terracotta-core with some unused
  *  functionality stripped out.
  */
-public class PassthroughNullPlatformPersistentStorage implements IPlatformPersistence {
+public class PassthroughNullPlatformPersistentStorage implements IPlatformPersistence, IBatchedSequencePersistence {
   final Map<String, Serializable> nameToDataMap = new HashMap<String, Serializable>();
   final Map<Long, List<SequenceTuple>> fastSequenceCache = new HashMap<Long, List<SequenceTuple>>();
 
@@ -98,6 +98,36 @@ public class PassthroughNullPlatformPersistentStorage implements IPlatformPersis
     };
   }
 
+  @Override
+  public synchronized void fastStoreSequenceBatch(long sequenceIndex, List<SequenceTuple> newEntries, long[] oldestValidSequenceIDs) {
+    // This must leave the same sequence as calling fastStoreSequence for each entry, but only copies the list once.
+    // An entry survives the filtering by each later call so it is kept if it is no older than the largest
+    //  oldestValidSequenceID passed after it.  Walk backward to find that for each entry.
+    int count = newEntries.size();
+    boolean[] keep = new boolean[count];
+    long laterOldest = Long.MIN_VALUE;
+    for (int i = count - 1; i >= 0; --i) {
+      keep[i] = (newEntries.get(i).localSequenceID >= laterOldest);
+      laterOldest = Math.max(laterOldest, oldestValidSequenceIDs[i]);
+    }
+    List<SequenceTuple> oldSequence = fastSequenceCache.get(sequenceIndex);
+    List<SequenceTuple> newSequence = new ArrayList<SequenceTuple>();
+    if (null != oldSequence) {
+      for (SequenceTuple tuple : oldSequence) {
+        if (tuple.localSequenceID >= laterOldest) {
+          newSequence.add(tuple);
+        }
+      }
+    }
+    // Like fastStoreSequence, the first entry for a new index isn't stored.
+    for (int i = (null != oldSequence) ? 0 : 1; i < count; ++i) {
+      if (keep[i]) {
+        newSequence.add(newEntries.get(i));
+      }
+    }
+    fastSequenceCache.put(sequenceIndex, newSequence);
+  }
+
   @Override
   public synchronized List<SequenceTuple> loadSequence(long sequenceIndex) {
     return fastSequenceCache.get(sequenceIndex);
@@ -0,0 +1,225 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Supports the object-passing mode of PassthroughConnection, where entity messages and responses are handed across the
+ * passthrough directly instead of being run through their MessageCodec.
+ * Each connection in this mode owns a handoff.  An object is registered in it and the payload which is sent in place of
+ * its encoded form is a "handle":  a marker, which is random for each JVM, followed by the ID of the handoff and the ID of
+ * the registration.  Since the handle is an ordinary payload, the rest of the passthrough (replication to passives, re-sends
+ * on reconnect, etc) doesn't need to know which mode is in use.  The servers find the handoff of a handle by its ID.
+ * The responses to a request are registered against it and are released with it, once the client retires the request,
+ * so a response which never reaches the client (the server died, the client already had one, etc) isn't kept.  Everything
+ * left is released when the connection closes.
+ * Note that, in this mode, the active and its passives are all handed the same message instance.
+ */
+public class PassthroughObjectHandoff {
+  private static final int HANDLE_SIZE = 3 * Long.BYTES;
+  private static final long MARKER = new SecureRandom().nextLong();
+  private static final AtomicLong nextHandoffID = new AtomicLong(1L);
+  // The open handoffs, by ID, so that the servers can resolve a handle without knowing which client sent it.
+  private static final Map<Long, PassthroughObjectHandoff> openHandoffs = new ConcurrentHashMap<>();
+
+  private final long handoffID;
+  private final AtomicLong nextID = new AtomicLong(1L);
+  private final Map<Long, Registration> registrations = new ConcurrentHashMap<>();
+
+  /**
+   * Opens a new handoff, for a connection entering object-passing mode.
+   */
+  public static PassthroughObjectHandoff open() {
+    PassthroughObjectHandoff handoff = new PassthroughObjectHandoff(nextHandoffID.getAndIncrement());
+    openHandoffs.put(handoff.handoffID, handoff);
+    return handoff;
+  }
+
+  private PassthroughObjectHandoff(long handoffID) {
+    this.handoffID = handoffID;
+  }
+
+  /**
+   * Releases everything still registered and stops the servers from resolving this handoff's handles.  Called when its
+   * connection closes.
+   */
+  public void close() {
+    openHandoffs.remove(this.handoffID);
+    this.registrations.clear();
+  }
+
+  /**
+   * Registers a request to hand across the passthrough.  It stays registered, since it may be read by passives and
+   * re-sent, until it is released.
+   * 
+   * @param object The object (may be null)
+   * @return The handle to send in place of the object's encoded form
+   */
+  public byte[] register(Object object) {
+    return handleFor(add(object).id);
+  }
+
+  /**
+   * @param payload A message payload received by the client
+   * @return True if the payload is a handle to an object registered here, as opposed to an encoded message
+   */
+  public boolean isHandle(byte[] payload) {
+    return isHandle(ByteBuffer.wrap(payload));
+  }
+
+  /**
+   * The same as isHandle(byte[]) for a payload which is a view of a message.  The buffer's position isn't moved.
+   */
+  public boolean isHandle(ByteBuffer payload) {
+    int start = payload.position();
+    return (HANDLE_SIZE == payload.remaining())
+        && (MARKER == payload.getLong(start))
+        && (this.handoffID == payload.getLong(start + Long.BYTES))
+        && this.registrations.containsKey(payload.getLong(start + 2 * Long.BYTES));
+  }
+
+  /**
+   * Looks up the object for a response handle and removes its registration.
+   * 
+   * @param payload A handle for which isHandle is true
+   * @return The registered object
+   */
+  public Object take(byte[] payload) {
+    return take(ByteBuffer.wrap(payload));
+  }
+
+  /**
+   * The same as take(byte[]) for a payload which is a view of a message.
+   */
+  public Object take(ByteBuffer payload) {
+    Registration registration = this.registrations.remove(payload.getLong(payload.position() + 2 * Long.BYTES));
+    Assert.assertTrue(null != registration);
+    return registration.object;
+  }
+
+  /**
+   * Removes the registration of a request handle, and of every response registered against it, once nothing can read them
+   * anymore.
+   * 
+   * @param payload A handle returned by register
+   */
+  public void release(byte[] payload) {
+    Registration registration = this.registrations.remove(ByteBuffer.wrap(payload).getLong(2 * Long.BYTES));
+    if (null != registration) {
+      for (long responseID : registration.release()) {
+        this.registrations.remove(responseID);
+      }
+    }
+  }
+
+  /**
+   * @return The number of objects currently registered
+   */
+  public int size() {
+    return this.registrations.size();
+  }
+
+  /**
+   * Called by a server to resolve the payload of a message it received.
+   * 
+   * @param payload A message payload, as a view of the message (its position isn't moved)
+   * @return The registration the payload is a handle to, or null if it is an encoded message
+   */
+  public static Registration lookup(ByteBuffer payload) {
+    Registration registration = null;
+    int start = payload.position();
+    if ((HANDLE_SIZE == payload.remaining()) && (MARKER == payload.getLong(start))) {
+      PassthroughObjectHandoff handoff = openHandoffs.get(payload.getLong(start + Long.BYTES));
+      if (null != handoff) {
+        registration = handoff.registrations.get(payload.getLong(start + 2 * Long.BYTES));
+      }
+    }
+    return registration;
+  }
+
+  private Registration add(Object object) {
+    Registration registration = new Registration(this, this.nextID.getAndIncrement(), object);
+    this.registrations.put(registration.id, registration);
+    return registration;
+  }
+
+  private byte[] handleFor(long id) {
+    return ByteBuffer.allocate(HANDLE_SIZE).putLong(MARKER).putLong(this.handoffID).putLong(id).array();
+  }
+
+
+  /**
+   * An object registered in a handoff.
+   */
+  public static class Registration {
+    private final PassthroughObjectHandoff handoff;
+    private final long id;
+    private final Object object;
+    // The responses registered against this request, released with it.
+    private List<Long> responseIDs;
+    private boolean released;
+
+    private Registration(PassthroughObjectHandoff handoff, long id, Object object) {
+      this.handoff = handoff;
+      this.id = id;
+      this.object = object;
+    }
+
+    public Object getObject() {
+      return this.object;
+    }
+
+    /**
+     * Registers a response to this request, for the client to take.  If the request has already been released, nothing
+     * can read the response so it isn't kept.
+     * 
+     * @param response The response (may be null)
+     * @return The handle to send in place of the response's encoded form
+     */
+    public byte[] registerResponse(Object response) {
+      long responseID;
+      synchronized (this) {
+        if (!this.released) {
+          Registration registration = this.handoff.add(response);
+          if (null == this.responseIDs) {
+            this.responseIDs = new ArrayList<>();
+          }
+          this.responseIDs.add(registration.id);
+          responseID = registration.id;
+        } else {
+          // Any unused ID is a handle to nothing.
+          responseID = this.handoff.nextID.getAndIncrement();
+        }
+      }
+      return this.handoff.handleFor(responseID);
+    }
+
+    private synchronized List<Long> release() {
+      this.released = true;
+      return (null != this.responseIDs) ? this.responseIDs : Collections.<Long>emptyList();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A serialized message held in a byte[] which can be returned to the PassthroughBufferPool it came from, once everything
+ * which holds it is done with it.
+ * A buffer is handed out with one reference, owned by whoever acquired it.  Anything else which holds on to the buffer (a
+ * server queue, a passive which is sent a replicated copy) must retain it, and release it when it is done.  The last release
+ * returns the buffer to its pool, after which its array may be reused for another message.
+ * Note that the array may be longer than the message:  the messages are self-describing so trailing bytes are never read.
+ */
+public class PassthroughPooledBuffer {
+  private final PassthroughBufferPool pool;
+  private final byte[] array;
+  private final ByteBuffer writeBuffer;
+  private final AtomicInteger referenceCount = new AtomicInteger();
+
+  PassthroughPooledBuffer(PassthroughBufferPool pool, int capacity) {
+    this.pool = pool;
+    this.array = new byte[capacity];
+    this.writeBuffer = ByteBuffer.wrap(this.array);
+  }
+
+  /**
+   * @return The array holding the message
+   */
+  @edu.umd.cs.findbugs.annotations.SuppressFBWarnings(
+    value="EI_EXPOSE_REP")
+  public byte[] array() {
+    return this.array;
+  }
+
+  public int capacity() {
+    return this.array.length;
+  }
+
+  /**
+   * Serializes the message at the start of the buffer.
+   * 
+   * @param message The message, which must fit in the buffer
+   */
+  public void write(PassthroughMessage message) {
+    this.writeBuffer.clear();
+    message.writeTo(this.writeBuffer);
+  }
+
+  /**
+   * Adds a reference to the buffer, which must not already have been returned to its pool.
+   * 
+   * @return The buffer
+   */
+  public PassthroughPooledBuffer retain() {
+    int previous = this.referenceCount.getAndIncrement();
+    Assert.assertTrue(previous > 0);
+    return this;
+  }
+
+  /**
+   * Drops a reference to the buffer, returning it to its pool if that was the last one.
+   */
+  public void release() {
+    int remaining = this.referenceCount.decrementAndGet();
+    Assert.assertTrue(remaining >= 0);
+    if ((0 == remaining) && (null != this.pool)) {
+      this.pool.recycle(this);
+    }
+  }
+
+  int referenceCount() {
+    return this.referenceCount.get();
+  }
+
+  void acquired() {
+    boolean wasFree = this.referenceCount.compareAndSet(0, 1);
+    Assert.assertTrue(wasFree);
+  }
+}
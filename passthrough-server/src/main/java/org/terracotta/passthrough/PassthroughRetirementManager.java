@@ -24,20 +24,21 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 
 import org.terracotta.entity.EntityMessage;
 
 
 /**
- * This is a heavily simplified retirement manager which would have to be replaced/extended if we were to switch to a
- * multi-threaded passthrough server.
+ * This is a heavily simplified retirement manager.  It tolerates invokes being run on the server's execution lanes, since
+ * the deferral of the "current message" is tracked per-thread, but the ordering it enforces is still global.
  * Additionally, it is currently very coarse:  on deferred message will block ALL retirement, not just the retirement on its
  * concurrency key.
  */
 public class PassthroughRetirementManager {
 
   // This implementation is VERY simple and makes a few corresponding assumptions about how it is being used:
-  // -only one message is being run at any time
+  // -only one message is being run at any time, on any given thread
   // -it is acceptable to treat the logical ordering constraints as global, instead of just within a key
 
   // The list of blocked tuples.  These represent the "global logical ordering" of retirement.
@@ -45,7 +46,9 @@ public class PassthroughRetirementManager {
   // The messages which are still blocking _some_ tuple in the blockedTuples list.
   private final Set<EntityMessage> blockingMessages;
 
-  private final List<EntityMessage> blockCurrentMessageOn = new LinkedList<>();
+  // The messages the currently executing message must block on, kept per-thread since execution lanes may each be running
+  //  a message.
+  private final ThreadLocal<List<EntityMessage>> blockCurrentMessageOn = ThreadLocal.withInitial(LinkedList::new);
 
   public PassthroughRetirementManager() {
     this.blockedTuples = new LinkedList<>();
@@ -59,21 +62,38 @@ public class PassthroughRetirementManager {
    * @param blockedOn The message on which the currently executing message must block its retirement
    */
   public synchronized void deferCurrentMessage(EntityMessage blockedOn) {
-    this.blockCurrentMessageOn.add(blockedOn);
+    this.blockCurrentMessageOn.get().add(blockedOn);
   }
   
   public synchronized boolean addRetirementTuple(RetirementTuple tuple) {
     boolean didBlockTuple = false;
-    if (!this.blockedTuples.isEmpty() || !this.blockCurrentMessageOn.isEmpty()) {
-      this.blockingMessages.addAll(this.blockCurrentMessageOn);
-      tuple.blockedOn.addAll(this.blockCurrentMessageOn);
+    List<EntityMessage> currentBlockedOn = this.blockCurrentMessageOn.get();
+    if (!this.blockedTuples.isEmpty() || !currentBlockedOn.isEmpty()) {
+      this.blockingMessages.addAll(currentBlockedOn);
+      tuple.blockedOn.addAll(currentBlockedOn);
       this.blockedTuples.add(tuple);
       didBlockTuple = true;
-      this.blockCurrentMessageOn.clear();
+      currentBlockedOn.clear();
     }
     return didBlockTuple;
   }
 
+  /**
+   * Called when a message completes, to find out if it can retire immediately.  If it can't, the given source is asked for
+   * its tuple (while still under the manager's lock, so anything the source sends goes out before the tuple could be
+   * unblocked) and the tuple is blocked exactly as in addRetirementTuple().
+   * 
+   * @param tupleSource Provides the tuple to block, only called if the retirement must be deferred
+   * @return True if the message can retire now, false if its tuple was blocked
+   */
+  public synchronized boolean retireNowOrBlock(Supplier<RetirementTuple> tupleSource) {
+    boolean canRetire = this.blockedTuples.isEmpty() && this.blockCurrentMessageOn.get().isEmpty();
+    if (!canRetire) {
+      addRetirementTuple(tupleSource.get());
+    }
+    return canRetire;
+  }
+
   /**
    * Called to state that a message has completed execution and would like to retire.  This usually just returns the tuple
    * given, but may return 0, if there is a blockage, or multiple, if this resulted in unblocking part of the list.
@@ -0,0 +1,415 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.Collection;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * The default PassthroughMessageQueue:  a preallocated, bounded, multi-producer/single-consumer ring.
+ * Adding and taking are lock-free and don't allocate, in the common case.  When the ring is full, a client add applies the
+ * FullPolicy while an internal add always grows the ring.
+ * Growing links a new ring, twice the size, after the full one:  producers move on to the new ring while the consumer
+ * finishes draining the old one, so FIFO order is preserved.
+ * An item can take several places (a client's batch takes one for each of its messages):  the places before its own are
+ * filled with a marker which the consumer skips.
+ */
+public class PassthroughRingBufferQueue<T> implements PassthroughMessageQueue<T> {
+  public static final int DEFAULT_CAPACITY = 1024;
+  private static final int MAXIMUM_SEGMENT_SIZE = 1 << 30;
+  // Fills the extra places taken by an item which takes more than one.
+  private static final Object FILLER = new Object();
+
+  /**
+   * What to do with a client add when the ring is full.
+   */
+  public enum FullPolicy {
+    /**
+     * Block the sender until the server thread has made space.
+     */
+    BLOCK,
+    /**
+     * Refuse the message by throwing RejectedExecutionException to the sender.
+     */
+    FAIL,
+    /**
+     * Grow the ring, much like the unbounded queue the server originally used.
+     */
+    GROW,
+  }
+
+  private final int capacity;
+  private final FullPolicy fullPolicy;
+  // Producers add to the newest segment while the consumer takes from the oldest.  These are only different after the
+  //  ring has grown.
+  private volatile Segment<T> producerSegment;
+  private Segment<T> consumerSegment;
+  // Growing is rare so it is serialized on this lock.
+  private final Object growLock = new Object();
+  // Producers blocked by the BLOCK policy wait on this condition (not a monitor, so that virtual threads don't pin their
+  //  carriers).
+  private final ReentrantLock notFullLock = new ReentrantLock();
+  private final Condition notFull = this.notFullLock.newCondition();
+  private final AtomicInteger blockedProducerCount = new AtomicInteger();
+  // The consumer thread, while it is parked waiting for an item.
+  private volatile Thread waitingConsumer;
+  // How the consumer waits before it parks.
+  private volatile PassthroughWaitStrategy waitStrategy = PassthroughWaitStrategy.BLOCKING;
+
+  public PassthroughRingBufferQueue(int capacity, FullPolicy fullPolicy) {
+    Assert.assertTrue((capacity > 0) && (capacity <= MAXIMUM_SEGMENT_SIZE));
+    Assert.assertTrue(null != fullPolicy);
+    // The ring size must be a power of 2 so round up (with a minimum of 2 since a slot's published and free sequence numbers
+    //  are only distinct when the ring has more than one slot).
+    int size = 2;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    this.capacity = size;
+    this.fullPolicy = fullPolicy;
+    Segment<T> initial = new Segment<>(size);
+    this.producerSegment = initial;
+    this.consumerSegment = initial;
+  }
+
+  @Override
+  public void add(T item) {
+    while (!tryAdd(item)) {
+      awaitSpace();
+    }
+  }
+
+  @Override
+  public boolean tryAdd(T item) {
+    return tryAdd(item, 1);
+  }
+
+  @Override
+  public boolean tryAdd(T item, int places) {
+    Assert.assertTrue(null != item);
+    Assert.assertTrue(places > 0);
+    if (!offer(item, places)) {
+      switch (this.fullPolicy) {
+        case BLOCK:
+          return false;
+        case FAIL:
+          throw new RejectedExecutionException("Server message queue is full (capacity " + this.capacity + ")");
+        case GROW:
+          addGrowing(item, places);
+          break;
+        default:
+          Assert.unreachable();
+          break;
+      }
+    }
+    wakeConsumer();
+    return true;
+  }
+
+  @Override
+  public void awaitSpace() {
+    awaitSpace(1);
+  }
+
+  @Override
+  public void awaitSpace(int places) {
+    if (FullPolicy.BLOCK == this.fullPolicy) {
+      this.blockedProducerCount.incrementAndGet();
+      try {
+        this.notFullLock.lock();
+        try {
+          // The consumer checks for blocked producers after it frees a slot so either we see the slot or it wakes us.
+          while (this.producerSegment.isFull(places)) {
+            try {
+              this.notFull.await();
+            } catch (InterruptedException e) {
+              // The only reason we would interrupt is to kill the test.
+              throw new RuntimeException(e);
+            }
+          }
+        } finally {
+          this.notFullLock.unlock();
+        }
+      } finally {
+        this.blockedProducerCount.decrementAndGet();
+      }
+    }
+  }
+
+  @Override
+  public void addInternal(T item) {
+    Assert.assertTrue(null != item);
+    if (!offer(item, 1)) {
+      addGrowing(item, 1);
+    }
+    wakeConsumer();
+  }
+
+  @Override
+  public T take() throws InterruptedException {
+    T item = poll();
+    // Poll for a while first, if the wait strategy allows, since parking costs both us and the producer which wakes us.
+    PassthroughWaitStrategy waitStrategy = this.waitStrategy;
+    int idleCount = 0;
+    while ((null == item) && waitStrategy.idle(idleCount)) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      idleCount += 1;
+      item = poll();
+    }
+    while (null == item) {
+      // Publish that we are about to park before checking again, so that a producer either sees us waiting or we see its
+      //  item.
+      this.waitingConsumer = Thread.currentThread();
+      item = poll();
+      if (null == item) {
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+          this.waitingConsumer = null;
+          throw new InterruptedException();
+        }
+        item = poll();
+      }
+      this.waitingConsumer = null;
+    }
+    return item;
+  }
+
+  @Override
+  public int drainTo(Collection<? super T> sink, int maxItems) {
+    int count = 0;
+    T item = (count < maxItems) ? poll() : null;
+    while (null != item) {
+      sink.add(item);
+      count += 1;
+      item = (count < maxItems) ? poll() : null;
+    }
+    return count;
+  }
+
+  @Override
+  public void clear() {
+    while (null != poll()) {
+      // Just drop the item.
+    }
+  }
+
+  @Override
+  public void setWaitStrategy(PassthroughWaitStrategy waitStrategy) {
+    Assert.assertTrue(null != waitStrategy);
+    this.waitStrategy = waitStrategy;
+  }
+
+  @Override
+  public int capacity() {
+    return (FullPolicy.GROW == this.fullPolicy) ? Integer.MAX_VALUE : this.capacity;
+  }
+
+  private boolean offer(T item, int places) {
+    Segment<T> segment = this.producerSegment;
+    while (true) {
+      int result = segment.offer(item, places);
+      if (Segment.ADDED == result) {
+        return true;
+      } else if (Segment.FULL == result) {
+        return false;
+      }
+      // The ring grew after we read the segment so follow it to the new one (which is always linked before the old one is
+      //  closed).
+      segment = segment.next;
+    }
+  }
+
+  private void addGrowing(T item, int places) {
+    synchronized (this.growLock) {
+      while (!offer(item, places)) {
+        Segment<T> full = this.producerSegment;
+        Segment<T> larger = new Segment<>(Math.min(full.size() * 2, MAXIMUM_SEGMENT_SIZE));
+        full.next = larger;
+        if (full.close(places)) {
+          this.producerSegment = larger;
+        } else {
+          // The consumer made space before we could close it so just try again.
+          full.next = null;
+        }
+      }
+    }
+  }
+
+  private void wakeConsumer() {
+    Thread consumer = this.waitingConsumer;
+    if (null != consumer) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  private T poll() {
+    T item = null;
+    boolean freed = false;
+    while (null == item) {
+      item = this.consumerSegment.poll();
+      if (null == item) {
+        if (this.consumerSegment.isClosedAndDrained()) {
+          this.consumerSegment = this.consumerSegment.next;
+        } else {
+          break;
+        }
+      } else {
+        freed = true;
+        if (FILLER == item) {
+          // One of the extra places of the item which follows.
+          item = null;
+        }
+      }
+    }
+    if (freed && (this.blockedProducerCount.get() > 0)) {
+      this.notFullLock.lock();
+      try {
+        this.notFull.signalAll();
+      } finally {
+        this.notFullLock.unlock();
+      }
+    }
+    return item;
+  }
+
+
+  /**
+   * A single fixed-size ring.  Each slot has a sequence number which tells producers and the consumer whether the slot is
+   * free for the position they want (the usual bounded MPMC queue design, simplified to one consumer).
+   */
+  private static class Segment<T> {
+    static final int ADDED = 0;
+    static final int FULL = 1;
+    static final int CLOSED = 2;
+    // Set in the tail position once the segment has been closed by growing the ring.
+    private static final long CLOSED_BIT = Long.MIN_VALUE;
+
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // Only accessed by the consumer.
+    private long head;
+    volatile Segment<T> next;
+
+    Segment(int size) {
+      this.slots = new AtomicReferenceArray<>(size);
+      this.sequences = new AtomicLongArray(size);
+      for (int i = 0; i < size; ++i) {
+        this.sequences.set(i, i);
+      }
+      this.mask = size - 1;
+    }
+
+    int size() {
+      return this.mask + 1;
+    }
+
+    /**
+     * Adds the item, taking the given number of places (or the whole segment, if it is smaller).
+     */
+    @SuppressWarnings("unchecked")
+    int offer(T item, int places) {
+      int count = Math.min(places, size());
+      while (true) {
+        long position = this.tail.get();
+        if (0 != (position & CLOSED_BIT)) {
+          return CLOSED;
+        }
+        // The consumer frees the slots in order so, if the last place we need is free, so are the ones before it.
+        long last = position + count - 1;
+        long sequence = this.sequences.get((int) (last & this.mask));
+        if (sequence == last) {
+          if (this.tail.compareAndSet(position, position + count)) {
+            // The item goes in the last place so that, once the consumer has it, all of its places are free.
+            for (long filler = position; filler < last; ++filler) {
+              int index = (int) (filler & this.mask);
+              this.slots.lazySet(index, (T) FILLER);
+              this.sequences.set(index, filler + 1);
+            }
+            int index = (int) (last & this.mask);
+            this.slots.lazySet(index, item);
+            // This volatile write publishes the item to the consumer.
+            this.sequences.set(index, last + 1);
+            return ADDED;
+          }
+        } else if (sequence < last) {
+          // The slot still holds the item from the previous lap.
+          return FULL;
+        }
+        // Otherwise, another producer claimed the position first so try the next one.
+      }
+    }
+
+    /**
+     * Closes the segment so that producers move on to the next one.  This only succeeds if the segment is still too full for
+     * an item of the given number of places.
+     */
+    boolean close(int places) {
+      int count = Math.min(places, size());
+      while (true) {
+        long position = this.tail.get();
+        Assert.assertTrue(0 == (position & CLOSED_BIT));
+        long last = position + count - 1;
+        long sequence = this.sequences.get((int) (last & this.mask));
+        if (sequence == last) {
+          return false;
+        } else if ((sequence < last) && this.tail.compareAndSet(position, position | CLOSED_BIT)) {
+          return true;
+        }
+      }
+    }
+
+    T poll() {
+      int index = (int) (this.head & this.mask);
+      T item = null;
+      if (this.sequences.get(index) == (this.head + 1)) {
+        item = this.slots.get(index);
+        this.slots.lazySet(index, null);
+        // Hand the slot back to producers for the next lap.
+        this.sequences.set(index, this.head + size());
+        this.head += 1;
+      }
+      return item;
+    }
+
+    /**
+     * @return True if the last of the next positions an item of the given number of places needs is still held by the
+     * previous lap (a closed segment is never full since producers move on to the next one)
+     */
+    boolean isFull(int places) {
+      long position = this.tail.get();
+      long last = position + Math.min(places, size()) - 1;
+      return (0 == (position & CLOSED_BIT)) && (this.sequences.get((int) (last & this.mask)) < last);
+    }
+
+    boolean isClosedAndDrained() {
+      long position = this.tail.get();
+      return (0 != (position & CLOSED_BIT)) && ((position & ~CLOSED_BIT) == this.head);
+    }
+  }
+}
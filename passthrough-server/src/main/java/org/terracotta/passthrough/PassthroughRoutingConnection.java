@@ -0,0 +1,103 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.terracotta.connection.Connection;
+import org.terracotta.connection.entity.Entity;
+import org.terracotta.connection.entity.EntityRef;
+
+
+/**
+ * A client connection to a multi-stripe cluster (see PassthroughMultiStripeClusterControl).
+ * It holds one PassthroughConnection to each stripe and sends each entity to the stripe which owns its name, according to
+ * the PassthroughStripeRouter.  Each of those connections follows its own stripe through fail-over, independently.
+ */
+public class PassthroughRoutingConnection implements Connection {
+  private final PassthroughStripeRouter router;
+  private final List<PassthroughConnection> stripeConnections;
+
+  public PassthroughRoutingConnection(PassthroughStripeRouter router, List<PassthroughConnection> stripeConnections) {
+    Assert.assertTrue(router.getStripeCount() == stripeConnections.size());
+    this.router = router;
+    this.stripeConnections = Collections.unmodifiableList(new ArrayList<PassthroughConnection>(stripeConnections));
+  }
+
+  @Override
+  public <T extends Entity, C, U> EntityRef<T, C, U> getEntityRef(Class<T> cls, long version, String name) {
+    return getConnectionForEntity(name).getEntityRef(cls, version, name);
+  }
+
+  public EntityRef<?,?,?> getEntityRef(String type, long version, String name) {
+    return getConnectionForEntity(name).getEntityRef(type, version, name);
+  }
+
+  /**
+   * @param entityName The name of an entity
+   * @return The index of the stripe which owns the entity
+   */
+  public int getStripeIndexForEntity(String entityName) {
+    return this.router.stripeIndexFor(entityName);
+  }
+
+  /**
+   * @param entityName The name of an entity
+   * @return The connection to the stripe which owns the entity
+   */
+  public PassthroughConnection getConnectionForEntity(String entityName) {
+    return this.stripeConnections.get(this.router.stripeIndexFor(entityName));
+  }
+
+  /**
+   * @return The connections to each stripe, in stripe index order
+   */
+  public List<PassthroughConnection> getStripeConnections() {
+    return this.stripeConnections;
+  }
+
+  @Override
+  public boolean isValid() {
+    boolean isValid = true;
+    for (PassthroughConnection connection : this.stripeConnections) {
+      isValid &= connection.isValid();
+    }
+    return isValid;
+  }
+
+  @Override
+  public void close() {
+    // Close every stripe connection, even if one of them fails.
+    RuntimeException firstFailure = null;
+    for (PassthroughConnection connection : this.stripeConnections) {
+      try {
+        connection.close();
+      } catch (RuntimeException e) {
+        if (null == firstFailure) {
+          firstFailure = e;
+        } else {
+          firstFailure.addSuppressed(e);
+        }
+      }
+    }
+    if (null != firstFailure) {
+      throw firstFailure;
+    }
+  }
+}
@@ -30,7 +30,9 @@ import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import org.junit.Assert;
 import org.terracotta.entity.EntityClientService;
@@ -65,6 +67,15 @@ public class PassthroughServer implements PassthroughDumper {
   private PassthroughMonitoringProducer monitoringProducer;
   
   private IAsynchronousServerCrasher crasher;
+  private int executionLaneCount;
+  private int serverBatchSize = PassthroughServerProcess.DEFAULT_SERVER_BATCH_SIZE;
+  private boolean includeRemoteStackTraces = false;
+  private PassthroughCompression compression;
+  private PassthroughThreadMode threadMode = PassthroughThreadMode.PLATFORM;
+  private PassthroughWaitStrategy waitStrategy = PassthroughWaitStrategy.BLOCKING;
+  private Supplier<PassthroughMessageQueue<PassthroughMessageContainer>> serverQueueFactory;
+  private Supplier<PassthroughInFlightWindow> clientInFlightWindowFactory;
+  private PassthroughClientDispatcherGroup clientDispatcherGroup;
   
   // We also track various information for the restart case.
   private final List<EntityServerService<?, ?>> savedServerEntityServices;
@@ -100,6 +111,139 @@ public class PassthroughServer implements PassthroughDumper {
   public void setGroupPort(int groupPort) {
     this.groupPort = groupPort;
   }
+
+  /**
+   * Opts the server into running invokes on the given number of execution lanes, selected by concurrency key, instead of
+   * directly on the server thread.  MANAGEMENT_KEY and UNIVERSAL_KEY invokes, as well as all other messages, still act as
+   * barriers across the lanes.
+   * The default of 0 keeps the original single-threaded behavior.
+   * 
+   * @param executionLaneCount The number of execution lanes (0 to disable)
+   */
+  public void setExecutionLaneCount(int executionLaneCount) {
+    Assert.assertFalse(this.hasStarted);
+    Assert.assertTrue(executionLaneCount >= 0);
+    this.executionLaneCount = executionLaneCount;
+  }
+
+  /**
+   * Selects the kind of thread used for this server's threads, its timer thread, and the client threads of the connections
+   * made to it.  A PassthroughClusterControl built around this server also uses it for its crasher thread.
+   * 
+   * @param threadMode The thread mode (VIRTUAL requires JDK 21+)
+   */
+  public void setThreadMode(PassthroughThreadMode threadMode) {
+    Assert.assertFalse(this.hasStarted);
+    if (!threadMode.isSupported()) {
+      throw new UnsupportedOperationException("Thread mode " + threadMode + " isn't supported by this JVM");
+    }
+    this.threadMode = threadMode;
+  }
+
+  public PassthroughThreadMode getThreadMode() {
+    return this.threadMode;
+  }
+
+  /**
+   * Selects how this server's threads, and the client threads of the connections made to it, wait for their next message.
+   * The default, PassthroughWaitStrategy.BLOCKING, parks right away.
+   * 
+   * @param waitStrategy The wait strategy
+   */
+  public void setWaitStrategy(PassthroughWaitStrategy waitStrategy) {
+    Assert.assertFalse(this.hasStarted);
+    Assert.assertNotNull(waitStrategy);
+    this.waitStrategy = waitStrategy;
+  }
+
+  public PassthroughWaitStrategy getWaitStrategy() {
+    return this.waitStrategy;
+  }
+
+  /**
+   * Sets the maximum number of queued messages the server thread handles each time it wakes.  The transaction order of the
+   * whole batch is persisted together and its acks are delivered together.
+   * 
+   * @param serverBatchSize The maximum batch size (1 handles each message on its own)
+   */
+  public void setServerBatchSize(int serverBatchSize) {
+    Assert.assertFalse(this.hasStarted);
+    Assert.assertTrue(serverBatchSize > 0);
+    this.serverBatchSize = serverBatchSize;
+  }
+
+  /**
+   * Sets whether the common exceptions sent to clients (entity not found, already exists, not provided, and server
+   * exceptions without a cause) include the server's stack trace.  Without it, the client sees the stack trace of where the
+   * exception was decoded.  Any other exception is always sent with its stack trace.
+   * The stack traces are omitted by default, since the common exceptions are expected failures and their frames are most
+   * of their size, so this is only worth turning on when debugging where the server raised them.
+   * 
+   * @param includeRemoteStackTraces True to include the stack traces (they are omitted by default)
+   */
+  public void setIncludeRemoteStackTraces(boolean includeRemoteStackTraces) {
+    this.includeRemoteStackTraces = includeRemoteStackTraces;
+    if (null != this.serverProcess) {
+      this.serverProcess.setIncludeRemoteStackTraces(includeRemoteStackTraces);
+    }
+  }
+
+  /**
+   * Sets how the large messages sent to this server, by its clients, and by this server, to its passives, are compressed.
+   * This only applies to connections made after it is set.
+   * 
+   * @param compression The compression, or null to send them uncompressed (the default)
+   */
+  public void setCompression(PassthroughCompression compression) {
+    this.compression = compression;
+    if (null != this.serverProcess) {
+      this.serverProcess.setCompression(compression);
+    }
+  }
+
+  public PassthroughCompression getCompression() {
+    return this.compression;
+  }
+
+  /**
+   * Gives each client connection its own window, limiting how many messages it can have in-flight at once.
+   * This only applies to connections made after it is set.
+   * 
+   * @param maximumInFlight The number of messages a connection can have in-flight at once
+   * @param fullPolicy What to do with a send when the window is full
+   * @param timeout How long a TIMED send waits for room (ignored by the other policies)
+   * @param unit The unit of the timeout
+   */
+  public void setClientInFlightWindow(int maximumInFlight, PassthroughInFlightWindow.FullPolicy fullPolicy, long timeout, TimeUnit unit) {
+    Assert.assertTrue(maximumInFlight > 0);
+    Assert.assertNotNull(fullPolicy);
+    this.clientInFlightWindowFactory = () -> new PassthroughInFlightWindow(maximumInFlight, fullPolicy, timeout, unit);
+  }
+
+  /**
+   * Bounds the server's incoming message queue, which is otherwise a ring which grows as needed.
+   * 
+   * @param capacity The number of messages the queue holds before the full policy applies (rounded up to a power of 2, at least 2)
+   * @param fullPolicy What to do with a client message when the queue is full
+   */
+  public void setServerQueueCapacity(int capacity, PassthroughRingBufferQueue.FullPolicy fullPolicy) {
+    Assert.assertFalse(this.hasStarted);
+    Assert.assertTrue(capacity > 0);
+    Assert.assertNotNull(fullPolicy);
+    this.serverQueueFactory = () -> new PassthroughRingBufferQueue<>(capacity, fullPolicy);
+  }
+
+  /**
+   * Installs a custom implementation of the server's incoming message queue.  The factory is called each time the server
+   * process is (re)started.
+   * 
+   * @param serverQueueFactory Creates the queue for a new server process
+   */
+  public void setServerQueueFactory(Supplier<PassthroughMessageQueue<PassthroughMessageContainer>> serverQueueFactory) {
+    Assert.assertFalse(this.hasStarted);
+    Assert.assertNotNull(serverQueueFactory);
+    this.serverQueueFactory = serverQueueFactory;
+  }
    
   public void registerServerEntityService(EntityServerService<?, ?> service) {
     Assert.assertFalse(this.hasStarted);
@@ -111,11 +255,40 @@ public class PassthroughServer implements PassthroughDumper {
     this.entityClientServices.add(service);
   }
 
+  /**
+   * Sets the dispatcher group which handles the server's messages for the new connections which aren't given one, instead
+   * of each connection having its own client thread.
+   * 
+   * @param clientDispatcherGroup The group, or null for a client thread per connection (the default)
+   */
+  public void setClientDispatcherGroup(PassthroughClientDispatcherGroup clientDispatcherGroup) {
+    this.clientDispatcherGroup = clientDispatcherGroup;
+  }
+
+  public PassthroughClientDispatcherGroup getClientDispatcherGroup() {
+    return this.clientDispatcherGroup;
+  }
+
   public PassthroughConnection connectNewClient(String connectionName) {
     return connectNewClient(connectionName, new PassthroughEndpointConnectorImpl());
   }
 
-  public synchronized PassthroughConnection connectNewClient(String connectionName, PassthroughEndpointConnector endpointConnector) {
+  /**
+   * Connects a new client whose messages from the server are handled by the given dispatcher group.
+   * 
+   * @param connectionName The name of the connection
+   * @param dispatcherGroup The group, or null for the connection to have its own client thread
+   * @return The new connection
+   */
+  public PassthroughConnection connectNewClient(String connectionName, PassthroughClientDispatcherGroup dispatcherGroup) {
+    return connectNewClient(connectionName, new PassthroughEndpointConnectorImpl(), dispatcherGroup);
+  }
+
+  public PassthroughConnection connectNewClient(String connectionName, PassthroughEndpointConnector endpointConnector) {
+    return connectNewClient(connectionName, endpointConnector, this.clientDispatcherGroup);
+  }
+
+  public synchronized PassthroughConnection connectNewClient(String connectionName, PassthroughEndpointConnector endpointConnector, PassthroughClientDispatcherGroup dispatcherGroup) {
     Assert.assertTrue(this.hasStarted);
     final long thisConnectionID = nextConnectionID.incrementAndGet();
     // Note that we need to track the connections for reconnect so pass in this cleanup routine to remove it from our tracking.
@@ -133,7 +306,16 @@ public class PassthroughServer implements PassthroughDumper {
     };
     String readerThreadName = "Client connection " + thisConnectionID;
     PassthroughConnection connection = new PassthroughConnection(connectionName, readerThreadName, this.serverProcess, this.entityClientServices, onClose, thisConnectionID, endpointConnector);
-    connection.startProcessingRequests();
+    connection.setWaitStrategy(this.waitStrategy);
+    connection.setCompression(this.compression);
+    if (null != this.clientInFlightWindowFactory) {
+      connection.setInFlightWindow(this.clientInFlightWindowFactory.get());
+    }
+    if (null != dispatcherGroup) {
+      connection.startProcessingRequests(dispatcherGroup);
+    } else {
+      connection.startProcessingRequests(this.threadMode);
+    }
     this.serverProcess.connectConnection(connection, thisConnectionID);
     this.savedClientConnections.put(thisConnectionID, connection);
     return connection;
@@ -178,6 +360,15 @@ public class PassthroughServer implements PassthroughDumper {
 
   private void bootstrapProcess(boolean active) {
     this.serverProcess = new PassthroughServerProcess(serverName, bindPort, groupPort, this.extendedConfigurationObjects, active, this.crasher);
+    this.serverProcess.setExecutionLaneCount(this.executionLaneCount);
+    this.serverProcess.setServerBatchSize(this.serverBatchSize);
+    this.serverProcess.setIncludeRemoteStackTraces(this.includeRemoteStackTraces);
+    this.serverProcess.setCompression(this.compression);
+    this.serverProcess.setThreadMode(this.threadMode);
+    this.serverProcess.setWaitStrategy(this.waitStrategy);
+    if (null != this.serverQueueFactory) {
+      this.serverProcess.setMessageQueue(this.serverQueueFactory.get());
+    }
 
     // Populate the server with its services.
     for (EntityServerService<?, ?> serverEntityService : this.savedServerEntityServices) {
@@ -18,64 +18,93 @@ package org.terracotta.passthrough;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
+/**
+ * Restarts servers, on request, from a background thread.  The thread waits on a j.u.c condition, not a monitor, so that a
+ * virtual crasher thread doesn't pin its carrier for as long as the cluster runs.
+ */
 public class PassthroughServerCrasher implements IAsynchronousServerCrasher {
   private final PassthroughClusterControl control;
+  // Guards isRunning and victimQueue.
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = this.lock.newCondition();
   private boolean isRunning = false;
   private final List<PassthroughServerProcess> victimQueue;
-  private final Thread background = new Thread() {
-    @Override
-    public void run() {
-      PassthroughServerProcess victim = waitNextRequest();
-      while (null != victim) {
-        PassthroughServerCrasher.this.control.restartOneServerFromInside(victim);
-        victim = waitNextRequest();
-      }
-    }
-  };
+  private final Thread background;
   
   public PassthroughServerCrasher(PassthroughClusterControl control) {
+    this(control, PassthroughThreadMode.PLATFORM);
+  }
+
+  public PassthroughServerCrasher(PassthroughClusterControl control, PassthroughThreadMode threadMode) {
     this.control = control;
     this.victimQueue = new ArrayList<PassthroughServerProcess>();
+    this.background = threadMode.newThread("PassthroughServerCrasher", this::runBackground);
   }
 
-  @Override
-  public synchronized void terminateServerProcess(PassthroughServerProcess victim) {
-    boolean shouldNotify = this.victimQueue.isEmpty();
-    this.victimQueue.add(victim);
-    if (shouldNotify) {
-      this.notifyAll();
+  private void runBackground() {
+    PassthroughServerProcess victim = waitNextRequest();
+    while (null != victim) {
+      this.control.restartOneServerFromInside(victim);
+      victim = waitNextRequest();
     }
   }
 
-  public synchronized PassthroughServerProcess waitNextRequest() {
-    while (this.isRunning && this.victimQueue.isEmpty()) {
-      try {
-        this.wait();
-      } catch (InterruptedException e) {
-        // Not expected.
-        Assert.unexpected(e);
+  @Override
+  public void terminateServerProcess(PassthroughServerProcess victim) {
+    this.lock.lock();
+    try {
+      boolean shouldNotify = this.victimQueue.isEmpty();
+      this.victimQueue.add(victim);
+      if (shouldNotify) {
+        this.changed.signalAll();
       }
+    } finally {
+      this.lock.unlock();
     }
-    PassthroughServerProcess process = null;
-    if (this.isRunning) {
-      process = this.victimQueue.remove(0);
+  }
+
+  public PassthroughServerProcess waitNextRequest() {
+    this.lock.lock();
+    try {
+      while (this.isRunning && this.victimQueue.isEmpty()) {
+        try {
+          this.changed.await();
+        } catch (InterruptedException e) {
+          // Not expected.
+          Assert.unexpected(e);
+        }
+      }
+      PassthroughServerProcess process = null;
+      if (this.isRunning) {
+        process = this.victimQueue.remove(0);
+      }
+      return process;
+    } finally {
+      this.lock.unlock();
     }
-    return process;
   }
 
   public void start() {
-    this.isRunning = true;
+    this.lock.lock();
+    try {
+      this.isRunning = true;
+    } finally {
+      this.lock.unlock();
+    }
     this.background.start();
   }
   
-  @edu.umd.cs.findbugs.annotations.SuppressFBWarnings(
-    value="IS2_INCONSISTENT_SYNC")
   public void waitForStop() {
-    synchronized (this) {
+    this.lock.lock();
+    try {
       this.isRunning = false;
-      this.notifyAll();
+      this.changed.signalAll();
+    } finally {
+      this.lock.unlock();
     }
     try {
       this.background.join();
@@ -22,66 +22,124 @@ import org.terracotta.passthrough.PassthroughMessage.Type;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.function.Function;
 
 
 /**
  * A helper class which decodes a message, on the server, deciding if it needs to be replicated to a passive and translating
  * it into high-level operations on the server.
- * One instance of this is created for every message processed by a server.
- * It is used entirely on the server thread.
+ * The server reuses one instance for every message it processes, calling prepare before each one, so anything which
+ * outlives the call to decode (such as the completion of invokes run on one of the server's execution lanes) must only
+ * capture the per-message state as locals.
+ * It is used entirely on the server's execution thread, except for the completion of invokes run on one of the server's
+ * execution lanes.  Note that the order tracking and ack for the message have already been handled by the server thread
+ * (see trackMessage) before the message reaches this point.
  */
 public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.Decoder<Void> {
   private final PassthroughServerProcess thisServer;
   private final MessageHandler messageHandler;
-  private final PassthroughTransactionOrderManager transactionOrderManager;
   private final LifeCycleMessageHandler lifeCycleMessageHandler;
-  private final Set<PassthroughServerProcess> downstreamPassives = new HashSet<PassthroughServerProcess>();
-  private final IMessageSenderWrapper sender;
   private final IAsynchronousServerCrasher crasher;
-  private final byte[] message;
+  // The per-message state, set by prepare.
+  private Set<PassthroughServerProcess> downstreamPassives;
+  private IMessageSenderWrapper sender;
+  private byte[] message;
+  private PassthroughPooledBuffer buffer;
+  // The completion of the last invoke, which is reused for the next one if that invoke has already completed.
+  private InvokeResult invokeResult;
 
  @edu.umd.cs.findbugs.annotations.SuppressFBWarnings(
     value="EI_EXPOSE_REP2")
-  public PassthroughServerMessageDecoder(PassthroughServerProcess thisServer, MessageHandler messageHandler, PassthroughTransactionOrderManager transactionOrderManager, LifeCycleMessageHandler lifeCycleMessageHandler, Set<PassthroughServerProcess> downstreamPassives, IMessageSenderWrapper sender, IAsynchronousServerCrasher crasher, byte[] message) {
+  public PassthroughServerMessageDecoder(PassthroughServerProcess thisServer, MessageHandler messageHandler, LifeCycleMessageHandler lifeCycleMessageHandler, Set<PassthroughServerProcess> downstreamPassives, IMessageSenderWrapper sender, IAsynchronousServerCrasher crasher, byte[] message) {
+    this(thisServer, messageHandler, lifeCycleMessageHandler, crasher);
+    prepare(new HashSet<PassthroughServerProcess>(downstreamPassives), sender, message);
+  }
+
+  public PassthroughServerMessageDecoder(PassthroughServerProcess thisServer, MessageHandler messageHandler, LifeCycleMessageHandler lifeCycleMessageHandler, IAsynchronousServerCrasher crasher) {
     this.thisServer = thisServer;
     this.messageHandler = messageHandler;
-    this.transactionOrderManager = transactionOrderManager;
     this.lifeCycleMessageHandler = lifeCycleMessageHandler;
-    this.downstreamPassives.addAll(downstreamPassives);
-    this.sender = sender;
     this.crasher = crasher;
+  }
+
+  /**
+   * Sets up the decoder to handle the next message.
+   * 
+   * @param downstreamPassives The passives to replicate to, which must not change while the message is handled
+   * @param sender The sender of the message
+   * @param message The raw message
+   */
+  @edu.umd.cs.findbugs.annotations.SuppressFBWarnings(
+    value="EI_EXPOSE_REP2")
+  public void prepare(Set<PassthroughServerProcess> downstreamPassives, IMessageSenderWrapper sender, byte[] message) {
+    prepare(downstreamPassives, sender, message, null);
+  }
+
+  /**
+   * Sets up the decoder to handle the next message, which is in a pooled buffer (or null, if it isn't) so that replicated
+   * copies can retain it instead of copying it.
+   */
+  @edu.umd.cs.findbugs.annotations.SuppressFBWarnings(
+    value="EI_EXPOSE_REP2")
+  public void prepare(Set<PassthroughServerProcess> downstreamPassives, IMessageSenderWrapper sender, byte[] message, PassthroughPooledBuffer buffer) {
+    this.downstreamPassives = downstreamPassives;
+    this.sender = sender;
     this.message = message;
+    this.buffer = buffer;
   }
-  @Override
-  public Void decode(Type type, boolean shouldReplicate, final long transactionID, final long oldestTransactionID, DataInputStream input) throws IOException {
-    // First step, update our persistence.
-    long originID = this.sender.getClientOriginID();
+
+  /**
+   * The first stage of handling any message, run on the server thread before the message is handed to the execution thread:
+   * we record the transaction order and, once the server thread has committed the order of its whole batch, send the ack
+   * (see sendAck).
+   * This means that the ack doesn't need to wait for any earlier messages to finish executing.
+   */
+  public static void trackMessage(PassthroughTransactionOrderManager transactionOrderManager, IMessageSenderWrapper sender, long transactionID, long oldestTransactionID) {
+    long originID = sender.getClientOriginID();
     // Negative origin IDs are for internal messages - we don't want to track them.
-    if ((null != this.transactionOrderManager) && (originID >= 0)) {
-      this.transactionOrderManager.updateTracking(originID, transactionID, oldestTransactionID);
+    if ((null != transactionOrderManager) && (originID >= 0)) {
+      transactionOrderManager.updateTracking(originID, transactionID, oldestTransactionID);
     }
-    
-    // Next, send the ack.
+  }
+
+  public static void sendAck(IMessageSenderWrapper sender, long transactionID) {
     PassthroughMessage ack = PassthroughMessageCodec.createAckMessage();
     // The oldestTransactionID isn't relevant when sent back.
     long oldestTransactionIDToReturn = -1;
     ack.setTransactionTracking(transactionID, oldestTransactionIDToReturn);
     sender.sendAck(ack);
-    
-    // Now, before we can actually RUN the message, we need to make sure that we wait for its replicated copy to complete
+  }
+
+  @Override
+  public Void decode(Type type, boolean shouldReplicate, final long transactionID, final long oldestTransactionID, DataInputStream input) throws IOException {
+    // Before we can actually RUN the message, we need to make sure that we wait for its replicated copy to complete
     // on the passive.
     // In order to implement the consensus model, we also need to see if the passives experienced success or failure when running the replicated message.
     // Either all the servers need to succeed, all them need to fail, or any failing servers must be crashed.
     // (note that we only use this in the create/reconfigure cases, for now).
-    Set<PassthroughServerProcess> failingServers = new HashSet<PassthroughServerProcess>();
+    // Callbacks may run after we have moved on to the next message so they must capture the sender, not read our field.
+    final IMessageSenderWrapper sender = this.sender;
+    Set<PassthroughServerProcess> failingServers = Collections.emptySet();
     if (shouldReplicate && this.downstreamPassives.size() > 0) {
+      // The passives don't know our entity handles so invokes are replicated by entity class and name.
+      Function<PassthroughStringDictionary, PassthroughMessage> namedInvoke = (Type.INVOKE_ON_SERVER == type) ? this.thisServer.invokeForReplication(this.sender, this.message) : null;
       for (PassthroughServerProcess passive : downstreamPassives) {
         PassthroughInterserverInterlock wrapper = new PassthroughInterserverInterlock(this.sender);
-        passive.sendMessageToServerFromActive(wrapper, message);
+        if (null != namedInvoke) {
+          // The names are encoded against each link's dictionary so this is created for each passive.
+          this.thisServer.sendToPassive(passive, wrapper, namedInvoke);
+        } else {
+          passive.sendMessageToServerFromActive(wrapper, this.message, this.buffer);
+        }
         boolean didSucceed = wrapper.waitForComplete();
         if (!didSucceed) {
+          if (failingServers.isEmpty()) {
+            failingServers = new HashSet<PassthroughServerProcess>();
+          }
           failingServers.add(passive);
         }
       }
@@ -225,16 +283,16 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
         Assert.unimplemented();
         break;
       case FETCH_ENTITY: {
-        String entityClassName = input.readUTF();
-        String entityName = input.readUTF();
+        String entityClassName = readClientSymbol(input);
+        String entityName = readClientSymbol(input);
         long clientInstanceID = input.readLong();
         long version = input.readLong();
         
         // Note that the fetch is asynchronous since it may be blocked acquiring the read-lock (which is asynchronous).
         IFetchResult onFetch = new IFetchResult() {
           @Override
-          public void onFetchComplete(byte[] config, EntityException error) {
-            sendCompleteResponse(sender, transactionID, config, error);
+          public void onFetchComplete(byte[] response, EntityException error) {
+            sendCompleteResponse(sender, transactionID, response, error);
           }
         };
         try {
@@ -284,30 +342,56 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
         break;
       }
       case INVOKE_ON_SERVER: {
-        String entityClassName = input.readUTF();
-        String entityName = input.readUTF();
+        // The entity is identified either by the handle returned from fetch or by class and name.
+        long entityHandle = input.readLong();
+        String entityClassName = null;
+        String entityName = null;
+        if (PassthroughMessageCodec.NO_ENTITY_HANDLE == entityHandle) {
+          entityClassName = input.readUTF();
+          entityName = input.readUTF();
+        } else if (PassthroughMessageCodec.SYMBOL_ENTITY_HANDLE == entityHandle) {
+          // This was replicated from our active.
+          entityClassName = readSymbol(input);
+          entityName = readSymbol(input);
+          entityHandle = PassthroughMessageCodec.NO_ENTITY_HANDLE;
+        }
         long clientInstanceID = input.readLong();
-        byte[] payload = new byte[input.readInt()];
-        input.readFully(payload);
-        byte[] response = null;
-        EntityException error = null;
+        // The payload is only a view of the message (not a copy) so it must be decoded before the invoke returns.
+        ByteBuffer payload = PassthroughMessageCodec.readByteBufferView(input);
+        // Note that the invoke is asynchronous since it may be run on one of the server's execution lanes.
+        InvokeResult onInvoke = this.invokeResult;
+        if ((null == onInvoke) || !onInvoke.isComplete()) {
+          onInvoke = new InvokeResult();
+          this.invokeResult = onInvoke;
+        }
+        onInvoke.prepare(sender, transactionID);
         try {
-          // We respond with the config, if found.
-          response = this.messageHandler.invoke(sender,
-                                                clientInstanceID,
-                                                transactionID,
-                                                oldestTransactionID,
-                                                entityClassName,
-                                                entityName,
-                                                payload);
-        } catch (EntityException e) {
-          error = e;
+          if (PassthroughMessageCodec.NO_ENTITY_HANDLE == entityHandle) {
+            this.messageHandler.invoke(sender,
+                                       clientInstanceID,
+                                       transactionID,
+                                       oldestTransactionID,
+                                       entityClassName,
+                                       entityName,
+                                       payload,
+                                       onInvoke);
+          } else {
+            this.messageHandler.invoke(sender,
+                                       clientInstanceID,
+                                       transactionID,
+                                       oldestTransactionID,
+                                       entityHandle,
+                                       payload,
+                                       onInvoke);
+          }
         } catch (RuntimeException e) {
           e.printStackTrace();
           // Just wrap this as a user exception since it was unexpected.
-          error = new EntityServerException(entityClassName, entityName, e.getLocalizedMessage(), e);
+          EntityException error = new EntityServerException(entityClassName, entityName, e.getLocalizedMessage(), e);
+          // An unexpected exception is the only case where we send the response at this level.
+          byte[] response = null;
+          sendCompleteResponse(sender, transactionID, response, error);
         }
-        sendCompleteResponse(sender, transactionID, response, error);
         break;
       }
       case ACK_FROM_SERVER:
@@ -316,13 +400,14 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
       case MONITOR_MESSAGE:
       case MONITOR_EXCEPTION:
       case RETIRE_FROM_SERVER:
+      case COMPLETE_AND_RETIRE_FROM_SERVER:
       case INVOKE_ON_CLIENT:
         // Not invoked on server.
         Assert.unreachable();
         break;
       case RECONNECT: {
-        String entityClassName = input.readUTF();
-        String entityName = input.readUTF();
+        String entityClassName = readClientSymbol(input);
+        String entityName = readClientSymbol(input);
         long clientInstanceID = input.readLong();
         int extendedDataLength = input.readInt();
         byte[] extendedData = new byte[extendedDataLength];
@@ -332,9 +417,9 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
         byte[] response = null;
         EntityException error = null;
         try {
-          this.messageHandler.reconnect(sender, clientInstanceID, entityClassName, entityName, extendedData);
-          // No response;
-          response = new byte[0];
+          // The response is the entity's handle on this server.
+          long entityHandle = this.messageHandler.reconnect(sender, clientInstanceID, entityClassName, entityName, extendedData);
+          response = PassthroughMessageCodec.createReconnectResponse(entityHandle);
         } catch (RuntimeException e) {
           // Just wrap this as a user exception since it was unexpected.
           error = new EntityServerException(entityClassName, entityName, e.getLocalizedMessage(), e);
@@ -342,10 +427,20 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
         sendCompleteResponse(sender, transactionID, response, error);
         break;
       }
+      case DEFINE_SYMBOLS: {
+        // The client sends this first when it reconnects to us.  Since each definition carries its ID, this is the same
+        //  whether or not we already had a dictionary for the connection.
+        int count = input.readInt();
+        for (int i = 0; i < count; ++i) {
+          readClientSymbol(input);
+        }
+        sendCompleteResponse(sender, transactionID, null, null);
+        break;
+      }
       case SYNC_ENTITY_START: {
         // We just want to do the same thing that CREATE does.
-        String entityClassName = input.readUTF();
-        String entityName = input.readUTF();
+        String entityClassName = readSymbol(input);
+        String entityName = readSymbol(input);
         long version = input.readLong();
         byte[] serializedConfiguration = new byte[input.readInt()];
         input.readFully(serializedConfiguration);
@@ -365,8 +460,8 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
         break;
       }
       case SYNC_ENTITY_END: {
-        String entityClassName = input.readUTF();
-        String entityName = input.readUTF();
+        String entityClassName = readSymbol(input);
+        String entityName = readSymbol(input);
         EntityException error = null;
         try {
           this.messageHandler.syncEntityEnd(sender, entityClassName, entityName);
@@ -382,8 +477,8 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
         break;
       }
       case SYNC_ENTITY_KEY_START: {
-        String entityClassName = input.readUTF();
-        String entityName = input.readUTF();
+        String entityClassName = readSymbol(input);
+        String entityName = readSymbol(input);
         int concurrencyKey = input.readInt();
         EntityException error = null;
         try {
@@ -400,8 +495,8 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
         break;
       }
       case SYNC_ENTITY_KEY_END: {
-        String entityClassName = input.readUTF();
-        String entityName = input.readUTF();
+        String entityClassName = readSymbol(input);
+        String entityName = readSymbol(input);
         int concurrencyKey = input.readInt();
         EntityException error = null;
         try {
@@ -418,11 +513,10 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
         break;
       }
       case SYNC_ENTITY_PAYLOAD: {
-        String entityClassName = input.readUTF();
-        String entityName = input.readUTF();
+        String entityClassName = readSymbol(input);
+        String entityName = readSymbol(input);
         int concurrencyKey = input.readInt();
-        byte[] payload = new byte[input.readInt()];
-        input.readFully(payload);
+        ByteBuffer payload = PassthroughMessageCodec.readByteBufferView(input);
         EntityException error = null;
         try {
           this.messageHandler.syncPayload(sender, entityClassName, entityName, concurrencyKey, payload);
@@ -470,27 +564,54 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
     return shouldSendResponse;
   }
 
+  private String readSymbol(DataInputStream input) throws IOException {
+    // The sync messages, and the invokes replicated by name, are from our active.
+    return PassthroughMessageCodec.readSymbol(input, this.thisServer.getSymbolsFromActive());
+  }
+
+  private String readClientSymbol(DataInputStream input) throws IOException {
+    // The fetch and reconnect messages are from a client, and never replicated, so they use that connection's dictionary.
+    return PassthroughMessageCodec.readSymbol(input, this.sender.getClientSymbols());
+  }
+
   private void sendCompleteResponse(IMessageSenderWrapper sender, long transactionID, byte[] response, EntityException error) {
     if(error != null) {
 //      System.err.println("ERROR: An error occured while processing message " + transactionID + " from " + sender.getClientOriginID());
 //      error.printStackTrace();
     }
-    PassthroughMessage complete = PassthroughMessageCodec.createCompleteMessage(response, error);
-    // The oldestTransactionID isn't relevant when sent back.
-    long oldestTransactionID = -1;
-    complete.setTransactionTracking(transactionID, oldestTransactionID);
-    sender.sendComplete(complete, true);
-    
-    // Note that we will create the retire message, as well, at this point.  At this level, we don't distinguish between
-    // "complete" and "retire" since the operation is logically "done".
-    // We just need to create both message instances and pass them back to the sender where it will determine if the retire
-    // should be sent immediately, or held until later.
-    PassthroughMessage retire = PassthroughMessageCodec.createRetireMessage();
-    retire.setTransactionTracking(transactionID, oldestTransactionID);
-    sender.sendRetire(retire);
+    sender.sendCompleteAndRetire(transactionID, response, error);
   }
 
 
+  /**
+   * The completion of an invoke, which sends its response.  Most invokes complete before the next message is decoded so
+   * the decoder reuses this until it finds one which hasn't (it is still waiting on an execution lane).
+   */
+  private final class InvokeResult implements IInvokeResult {
+    private IMessageSenderWrapper sender;
+    private long transactionID;
+    // Set once the response is sent, after which we no longer read our other fields.
+    private volatile boolean complete;
+
+    public void prepare(IMessageSenderWrapper sender, long transactionID) {
+      this.sender = sender;
+      this.transactionID = transactionID;
+      this.complete = false;
+    }
+
+    public boolean isComplete() {
+      return this.complete;
+    }
+
+    @Override
+    public void onInvokeComplete(byte[] response, EntityException error) {
+      IMessageSenderWrapper sender = this.sender;
+      this.sender = null;
+      sendCompleteResponse(sender, this.transactionID, response, error);
+      this.complete = true;
+    }
+  }
+
   /**
    * This interface handles the result of the message processing, exposing high-level methods to be called to satisfy the
    * meaning of a message.
@@ -501,19 +622,27 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
     boolean destroy(String entityClassName, String entityName) throws EntityException;
     void fetch(IMessageSenderWrapper sender, long clientInstanceID, String entityClassName, String entityName, long version, IFetchResult onFetch);
     void release(IMessageSenderWrapper sender, long clientInstanceID, String entityClassName, String entityName) throws EntityException;
-    byte[] invoke(IMessageSenderWrapper sender,
-                  long clientInstanceID,
-                  long transactionId,
-                  long eldestTransactionId,
-                  String entityClassName,
-                  String entityName,
-                  byte[] payload) throws EntityException;
-    void reconnect(IMessageSenderWrapper sender, long clientInstanceID, String entityClassName, String entityName, byte[] extendedData);
+    void invoke(IMessageSenderWrapper sender,
+                long clientInstanceID,
+                long transactionId,
+                long eldestTransactionId,
+                String entityClassName,
+                String entityName,
+                ByteBuffer payload,
+                IInvokeResult onInvoke);
+    void invoke(IMessageSenderWrapper sender,
+                long clientInstanceID,
+                long transactionId,
+                long eldestTransactionId,
+                long entityHandle,
+                ByteBuffer payload,
+                IInvokeResult onInvoke);
+    long reconnect(IMessageSenderWrapper sender, long clientInstanceID, String entityClassName, String entityName, byte[] extendedData);
     void syncEntityStart(IMessageSenderWrapper sender, String entityClassName, String entityName) throws EntityException;
     void syncEntityEnd(IMessageSenderWrapper sender, String entityClassName, String entityName) throws EntityException;
     void syncEntityKeyStart(IMessageSenderWrapper sender, String entityClassName, String entityName, int concurrencyKey) throws EntityException;
     void syncEntityKeyEnd(IMessageSenderWrapper sender, String entityClassName, String entityName, int concurrencyKey) throws EntityException;
-    void syncPayload(IMessageSenderWrapper sender, String entityClassName, String entityName, int concurrencyKey, byte[] payload) throws EntityException;
+    void syncPayload(IMessageSenderWrapper sender, String entityClassName, String entityName, int concurrencyKey, ByteBuffer payload) throws EntityException;
   }
 
 
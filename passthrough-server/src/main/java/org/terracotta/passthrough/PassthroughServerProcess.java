@@ -16,6 +16,7 @@
  */
 package org.terracotta.passthrough;
 
+import org.terracotta.entity.ActiveInvokeContext;
 import org.terracotta.entity.ActiveServerEntity;
 import org.terracotta.entity.BasicServiceConfiguration;
 import org.terracotta.entity.ClientDescriptor;
@@ -60,7 +61,10 @@ import java.io.Serializable;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -71,10 +75,11 @@ import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import org.terracotta.entity.ActiveServerEntity.ReconnectHandler;
 import org.terracotta.server.Server;
 import org.terracotta.server.ServerEnv;
@@ -83,15 +88,19 @@ import org.terracotta.server.StopAction;
 
 
 /**
- * The wrapper around the thread running as the "server process", within the PassthroughServer.
- * Note that this currently handles not only message processing, but also message execution.
- * In the future, message execution will likely be split out into other threads to better support entity read-write locking
- * and also test concurrency strategy.
+ * The wrapper around the threads running as the "server process", within the PassthroughServer.
+ * Message handling is split into stages, each on its own thread and connected by queues (see PassthroughServerStage):
+ * -the server thread decodes each message, updates the transaction order tracking, and sends the ack
+ * -the execution thread replicates the message to any passives and then runs it
+ * -the response thread encodes the complete and retire messages and delivers them to the client
+ * If execution lanes have been configured, invokes on the active are further handed from the execution thread to the lane
+ * selected by their concurrency key (see PassthroughExecutionLanes).
  */
 public class PassthroughServerProcess implements MessageHandler, PassthroughDumper {
   private static final String ENTITIES_FILE_NAME = "entities.map";
   
   private static final Random BUILDID = new Random();
+  public static final int DEFAULT_SERVER_BATCH_SIZE = 64;
   
   private final String serverName;
   private final int bindPort;
@@ -104,8 +113,26 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   private final Flag running = new Flag();
   private final List<EntityServerService<?, ?>> entityServices;
   private Thread serverThread;
+  private volatile PassthroughServerStage<PassthroughMessageContainer> executionStage;
+  private volatile PassthroughServerStage<Runnable> responseStage;
   private Thread.UncaughtExceptionHandler crashHandler;
-  private final BlockingQueue<PassthroughMessageContainer> messageQueue;
+  private PassthroughThreadMode threadMode = PassthroughThreadMode.PLATFORM;
+  private PassthroughWaitStrategy waitStrategy = PassthroughWaitStrategy.BLOCKING;
+  // When non-zero, invokes on the active are run on this many execution lanes, selected by concurrency key, instead of on
+  //  the server thread.
+  private int executionLaneCount;
+  // The server thread drains up to this many messages each time it wakes, committing their order and sending their acks
+  //  together.
+  private int serverBatchSize = DEFAULT_SERVER_BATCH_SIZE;
+  // True if the common exceptions are sent to clients with their stack traces (only worth it when debugging).
+  private volatile boolean includeRemoteStackTraces;
+  // The large messages sent to our passives are deflated by this (null if they aren't compressed).
+  private volatile PassthroughCompression compression;
+  // While the server thread is acking a batch, the acks are collected here and handed to the response thread together.
+  //  Only accessed by the server thread.
+  private List<Runnable> batchedAcks;
+  private PassthroughExecutionLanes executionLanes;
+  private PassthroughMessageQueue<PassthroughMessageContainer> messageQueue;
   // Currently, for simplicity, we will resolve entities by name.
   // Technically, these should be resolved by class+name.
   // Note that only ONE of the active or passive entities will be non-null.
@@ -114,6 +141,17 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   //  is why create/destroy/attachPassive are synchronized since they all directly interact with this entry set.
   private Map<PassthroughEntityTuple, CreationData<?, ?>> activeEntities;
   private Map<PassthroughEntityTuple, CreationData<?, ?>> passiveEntities;
+  // The entity handles returned to clients by fetch and reconnect index into this table so that invokes can find their
+  //  entity without looking it up by name.  The high 32 bits of a handle are the processID so that handles given out by
+  //  another server process (in messages re-sent after a restart or fail-over) can be recognized.
+  // Like the entity maps, this is only accessed on the execution thread.
+  private final List<CreationData<?, ?>> entityHandleTable = new ArrayList<>();
+  // The class and name of the entity each handle was given to, kept after the entity is destroyed so that an invoke with a
+  //  stale handle can still be failed with them.
+  private final List<PassthroughEntityTuple> entityHandleNames = new ArrayList<>();
+  // Invokes with another process's handle are resolved by the client instance which sent them, as recorded on reconnect.
+  //  This maps the client origin ID to its client instance IDs.
+  private final Map<Long, Map<Long, CreationData<?, ?>>> reconnectedEntities = new HashMap<>();
   private final Map<Long, DeferredEntityContainer> consumerToLiveContainerMap;
   // The service providers offered by the user.
   private final List<ServiceProvider> serviceProviders;
@@ -121,7 +159,16 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   private final List<PassthroughImplementationProvidedServiceProvider> implementationProvidedServiceProviders;
   // Note that we will set the service provider collections into a read-only mode as we try to create a registry over them, to catch bugs.
   private boolean serviceProvidersReadOnly;
-  private final Set<PassthroughServerProcess> downstreamPassives = new HashSet<>();
+  // This is replaced, never modified, when passives attach or detach so that each message can use it without a copy.
+  private volatile Set<PassthroughServerProcess> downstreamPassives = Collections.emptySet();
+  // The sending side of the string dictionary of the link to each of our passives.
+  private final Map<PassthroughServerProcess, PassthroughStringDictionary> symbolsToPassives = new ConcurrentHashMap<>();
+  // The receiving side of the string dictionary of the link from our active.  Only used on the execution thread.
+  private final PassthroughStringDictionary symbolsFromActive = new PassthroughStringDictionary();
+  // The receiving side of the string dictionary of each connected client.  Each is only used on the execution thread.
+  private final Map<PassthroughConnection, PassthroughStringDictionary> symbolsFromClients = new ConcurrentHashMap<>();
+  // Only used on the execution thread.
+  private PassthroughServerMessageDecoder executionDecoder;
   private long nextConsumerID;
   private IPlatformPersistence platformPersistence;
   private HashMap<Long, EntityData> persistedEntitiesByConsumerIDMap;
@@ -146,7 +193,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     this.groupPort = groupPort;
     this.platformConfiguration = new PassthroughPlatformConfiguration(serverName, bindPort, extendedConfigurationObjects);
     this.entityServices = new Vector<>();
-    this.messageQueue = new LinkedBlockingQueue<>();
+    this.messageQueue = new PassthroughRingBufferQueue<>(PassthroughRingBufferQueue.DEFAULT_CAPACITY, PassthroughRingBufferQueue.FullPolicy.GROW);
     this.activeEntities = (isActiveMode ? new LinkedHashMap<>() : null);
     this.passiveEntities = (isActiveMode ? null : new LinkedHashMap<>());
     this.consumerToLiveContainerMap = new HashMap<>();
@@ -163,9 +210,53 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   void setCrashHandler(Thread.UncaughtExceptionHandler handler) {
     this.crashHandler = handler;
   }
+
+  void setMessageQueue(PassthroughMessageQueue<PassthroughMessageContainer> messageQueue) {
+    Assert.assertTrue(null == this.serverThread);
+    Assert.assertTrue(null != messageQueue);
+    this.messageQueue = messageQueue;
+  }
+
+  void setThreadMode(PassthroughThreadMode threadMode) {
+    Assert.assertTrue(null == this.serverThread);
+    this.threadMode = threadMode;
+  }
+
+  PassthroughThreadMode getThreadMode() {
+    return this.threadMode;
+  }
+
+  void setWaitStrategy(PassthroughWaitStrategy waitStrategy) {
+    Assert.assertTrue(null == this.serverThread);
+    this.waitStrategy = waitStrategy;
+  }
+
+  void setServerBatchSize(int batchSize) {
+    Assert.assertTrue(batchSize > 0);
+    this.serverBatchSize = batchSize;
+  }
+
+  void setIncludeRemoteStackTraces(boolean includeRemoteStackTraces) {
+    this.includeRemoteStackTraces = includeRemoteStackTraces;
+  }
+
+  void setCompression(PassthroughCompression compression) {
+    this.compression = compression;
+  }
+
+  void setExecutionLaneCount(int laneCount) {
+    Assert.assertTrue(laneCount >= 0);
+    this.executionLaneCount = laneCount;
+  }
   
   public boolean isServerThread() {
-    return serverThread == Thread.currentThread();
+    PassthroughServerStage<PassthroughMessageContainer> execution = this.executionStage;
+    PassthroughServerStage<Runnable> response = this.responseStage;
+    PassthroughExecutionLanes lanes = this.executionLanes;
+    return (serverThread == Thread.currentThread())
+        || ((null != execution) && execution.isStageThread())
+        || ((null != response) && response.isStageThread())
+        || ((null != lanes) && lanes.isLaneThread());
   }
 
   public PassthroughRetirementManager getRetirementManager() {
@@ -260,6 +351,8 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     
     // We want to create the tracking for life-cycle transactions, so that we correctly handle duplicated re-sends.
     this.lifeCycleMessageHandler = new PassthroughLifeCycleHandler(platformPersistence, shouldLoadStorage);
+    // The execution thread's decoder refers to the life-cycle handler so it must be rebuilt with it.
+    this.executionDecoder = null;
     
     // Look up the service interface the platform will use to publish events.
     Collection<IMonitoringProducer> producers = platformServiceRegistry.getServices(new BasicServiceConfiguration<>(IMonitoringProducer.class));
@@ -300,12 +393,23 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
 
   private void startServerThreadRunning() {
     Assert.assertTrue(null == this.serverThread);
-    this.serverThread = new Thread(this::runServerThread);
+    String serverType = (null != this.activeEntities) ? "active" : "passive";
+    this.serverThread = this.threadMode.newThread("Server thread isActive: " + serverType, this::runServerThread);
     if (this.crashHandler != null) {
       this.serverThread.setUncaughtExceptionHandler(this.crashHandler);
     } else {
       this.serverThread.setUncaughtExceptionHandler(PassthroughUncaughtExceptionHandler.sharedInstance);
     }
+    // The execution stage's backlog is bounded like the message queue so that a slow entity pushes back on the clients
+    //  instead of moving the backlog to the next stage.
+    this.messageQueue.setWaitStrategy(this.waitStrategy);
+    this.executionStage = new PassthroughServerStage<>("Server execution thread isActive: " + serverType, this.threadMode, this.waitStrategy, this::executionThreadHandleMessage, this.crashHandler, this.messageQueue.capacity());
+    this.responseStage = new PassthroughServerStage<>("Server response thread isActive: " + serverType, this.threadMode, this.waitStrategy, Runnable::run, this.crashHandler, Integer.MAX_VALUE);
+    // Only the active runs invokes on the execution lanes:  passives run their replicated invokes in the order they were
+    //  received.  The lanes are bounded like the execution stage, for the same reason.
+    if ((this.executionLaneCount > 0) && (null != this.activeEntities)) {
+      this.executionLanes = new PassthroughExecutionLanes("Server execution lane ", this.threadMode, this.executionLaneCount, this.messageQueue.capacity(), this.crashHandler);
+    }
 
     this.running.raise();
     // We want to now set the server info for this instance.
@@ -327,6 +431,11 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       long timestamp = System.currentTimeMillis();
       this.serviceInterface.addNode(PlatformMonitoringConstants.PLATFORM_PATH, PlatformMonitoringConstants.STATE_NODE_NAME, new ServerState(stateValue, timestamp, (this.activeEntities != null) ? timestamp : -1));
     }
+    this.responseStage.start();
+    if (null != this.executionLanes) {
+      this.executionLanes.start();
+    }
+    this.executionStage.start();
     this.serverThread.start();
   }
 
@@ -369,6 +478,14 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     } catch (InterruptedException e) {
       Assert.unexpected(e);
     }
+    // Any messages still waiting in the later stages, or on the execution lanes, are dropped, much like the messages in
+    //  our queue.
+    this.executionStage.stop();
+    if (null != this.executionLanes) {
+      this.executionLanes.shutdown();
+      this.executionLanes = null;
+    }
+    this.responseStage.stop();
     // We also want to clear the message queue, in case anything else is still sitting there.
     this.messageQueue.clear();
     this.serverThread = null;
@@ -427,26 +544,165 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   }
 
   public void sendMessageToServer(final PassthroughConnection sender, byte[] message) {
+    while (!trySendMessageToServer(sender, message, null)) {
+      awaitQueueSpace();
+    }
+  }
+
+  /**
+   * Sends a message held in a pooled buffer.  The server retains the buffer until it has handled the message.
+   */
+  public void sendMessageToServer(final PassthroughConnection sender, PassthroughPooledBuffer buffer) {
+    while (!trySendMessageToServer(sender, buffer.array(), buffer)) {
+      awaitQueueSpace();
+    }
+  }
+
+  /**
+   * The same as sendMessageToServer except that, if the server's queue is full and set to block the sender, this returns
+   * false instead of blocking.  This allows a sender holding locks to release them before it waits, with awaitQueueSpace,
+   * and tries again.
+   * 
+   * @return True if the message was sent, false if the sender would have blocked
+   */
+  public boolean trySendMessageToServer(final PassthroughConnection sender, byte[] message) {
+    return trySendMessageToServer(sender, message, null);
+  }
+
+  /**
+   * The pooled buffer variant of trySendMessageToServer.  The server only retains the buffer if the message was sent.
+   */
+  public boolean trySendMessageToServer(final PassthroughConnection sender, PassthroughPooledBuffer buffer) {
+    return trySendMessageToServer(sender, buffer.array(), buffer);
+  }
+
+  /**
+   * Waits until the server's queue has space for a message which trySendMessageToServer refused because the sender would
+   * have blocked.
+   */
+  public void awaitQueueSpace() {
+    this.messageQueue.awaitSpace();
+  }
+
+  /**
+   * Waits until the server's queue has space for a batch of the given size which trySendBatchToServer refused because the
+   * sender would have blocked.
+   */
+  public void awaitQueueSpace(int batchSize) {
+    this.messageQueue.awaitSpace(batchSize);
+  }
+
+  private boolean trySendMessageToServer(final PassthroughConnection sender, byte[] message, PassthroughPooledBuffer buffer) {
     // If the server shut down, throw IllegalStateException
     if (!running.isRaised()) {
       throw new IllegalStateException("Connection already closed");
     }
 
+    PassthroughMessageContainer container = createClientContainer(sender, message, buffer);
+    boolean sent = false;
+    try {
+      sent = resending.executeIfRaised(()->{
+        long connectionID = sender.getNewInstanceID();
+        long transactionID = PassthroughMessageCodec.decodeTransactionIDFromRawMessage(message);
+        this.transactionOrderManager.handleResend(connectionID, transactionID, container);
+      }) || this.messageQueue.tryAdd(container);
+    } finally {
+      if (!sent && (null != container.buffer)) {
+        // The sender will re-encode the message if it tries again (or the queue refused it) so we are done with this buffer.
+        container.buffer.release();
+      }
+    }
+    return sent;
+  }
+
+  /**
+   * Sends several messages as a single unit:  they are added to the server's queue together, taking a place for each
+   * message, but each is still tracked, acked and retired on its own.
+   * If the server's queue is full and set to block the sender, this returns false instead of blocking, like
+   * trySendMessageToServer.
+   * 
+   * @param sender The connection sending the messages
+   * @param invocations The invocations of the messages, in transaction order
+   * @return True if the messages were sent, false if the sender would have blocked
+   */
+  public boolean trySendBatchToServer(final PassthroughConnection sender, List<PassthroughInvocationCallback> invocations) {
+    if (!running.isRaised()) {
+      throw new IllegalStateException("Connection already closed");
+    }
+
+    List<PassthroughMessageContainer> members = new ArrayList<>(invocations.size());
+    boolean sent = false;
+    try {
+      for (PassthroughInvocationCallback invocation : invocations) {
+        members.add(createClientContainer(sender, invocation.getMessage(), invocation.getBuffer()));
+      }
+      if (resending.executeIfRaised(()->{
+        // Re-sends are ordered by transaction so the messages are handled one at a time.
+        long connectionID = sender.getNewInstanceID();
+        for (PassthroughMessageContainer member : members) {
+          long transactionID = PassthroughMessageCodec.decodeTransactionIDFromRawMessage(member.message);
+          this.transactionOrderManager.handleResend(connectionID, transactionID, member);
+        }
+      })) {
+        sent = true;
+      } else {
+        PassthroughMessageContainer container = new PassthroughMessageContainer();
+        container.batch = members;
+        sent = this.messageQueue.tryAdd(container, members.size());
+      }
+    } finally {
+      if (!sent) {
+        // The sender forgets these messages (or re-encodes them to try again) so we are done with their buffers.
+        for (PassthroughMessageContainer member : members) {
+          if (null != member.buffer) {
+            member.buffer.release();
+          }
+        }
+      }
+    }
+    return sent;
+  }
+
+  private PassthroughMessageContainer createClientContainer(final PassthroughConnection sender, byte[] message, PassthroughPooledBuffer buffer) {
     PassthroughMessageContainer container = new PassthroughMessageContainer();
     container.sender = new IMessageSenderWrapper() {
       int openCount = 0;
       PassthroughMessage retire;
+      // The ack, from when the server thread queues it for the response thread until one of them sends it.
+      PassthroughMessage unsentAck;
       @Override
       public synchronized void open() {
         openCount += 1;
       }
       @Override
-      public void sendAck(PassthroughMessage ack) {
-        sender.sendMessageToClient(PassthroughServerProcess.this, ack.asSerializedBytes());
+      public synchronized void sendAck(PassthroughMessage ack) {
+        // The ack is queued with the rest of its batch's acks but, if the message completes before the response thread
+        //  gets to it, it is sent along with the completion instead.
+        unsentAck = ack;
+        deliverAckToClient(sender, this::takeUnsentAck);
+      }
+      synchronized PassthroughMessage takeUnsentAck() {
+        PassthroughMessage ack = unsentAck;
+        unsentAck = null;
+        return ack;
+      }
+      @Override
+      public synchronized void sendCompleteAndRetire(long transactionID, byte[] response, EntityException error) {
+        // If the response thread hasn't sent the ack yet, it is ours to send (and it will then skip it).
+        PassthroughMessage ack = takeUnsentAck();
+        if (openCount == 0) {
+          deliverCompleteAndRetire(sender, transactionID, ack, response, error);
+        } else {
+          // The retire must wait for close so send everything separately.
+          if (null != ack) {
+            deliverToClient(sender, ack);
+          }
+          IMessageSenderWrapper.super.sendCompleteAndRetire(transactionID, response, error);
+        }
       }
       @Override
       public void sendComplete(PassthroughMessage complete, boolean last) {
-        sender.sendMessageToClient(PassthroughServerProcess.this, complete.asSerializedBytes());
+        deliverToClient(sender, complete);
       }
       @Override
       public synchronized void sendRetire(PassthroughMessage retired) {
@@ -457,8 +713,16 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
         }
       }
       @Override
+      public boolean includeStackTraces() {
+        return includeRemoteStackTraces;
+      }
+      @Override
+      public PassthroughStringDictionary getClientSymbols() {
+        return symbolsFromClients.computeIfAbsent(sender, (connection) -> new PassthroughStringDictionary());
+      }
+      @Override
       public PassthroughClientDescriptor clientDescriptorForID(long clientInstanceID) {
-        return new PassthroughClientDescriptor(PassthroughServerProcess.this, sender, clientInstanceID);
+        return sender.clientDescriptorFor(PassthroughServerProcess.this, clientInstanceID);
       }
       @Override
       public long getClientOriginID() {
@@ -473,13 +737,8 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       }
     };
     container.message = message;
-    if (!resending.executeIfRaised(()->{
-      long connectionID = sender.getNewInstanceID();
-      long transactionID = PassthroughMessageCodec.decodeTransactionIDFromRawMessage(message);
-      this.transactionOrderManager.handleResend(connectionID, transactionID, container);
-    })) {
-      this.messageQueue.add(container);
-    }
+    container.buffer = (null != buffer) ? buffer.retain() : null;
+    return container;
   }
 
   public void sendMessageToActiveFromInsideActive(final EntityMessage newMessage, PassthroughMessage passthroughMessage, Consumer<PassthroughMessage> result) {
@@ -526,7 +785,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
         }
       };
       container.message = passthroughMessage.asSerializedBytes();
-      this.messageQueue.add(container);
+      this.messageQueue.addInternal(container);
   }
   
   private void retireReadyItems(EntityMessage messageRun) {
@@ -534,12 +793,55 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       List<PassthroughRetirementManager.RetirementTuple> messagesToRetire = retirementManager.retireableListAfterMessageDone(messageRun);
       for (PassthroughRetirementManager.RetirementTuple oneTuple : messagesToRetire) {
         if (null != oneTuple.sender) {
-          oneTuple.sender.sendMessageToClient(this, oneTuple.response);
+          deliverToClient(oneTuple.sender, oneTuple.response);
         }
       }
     }
   }
 
+  /**
+   * Sends a message to a client-side entity instance.  This is delivered by the response thread so that it stays ordered with
+   * the responses to any messages which completed before it was sent.
+   * 
+   * @param connection The connection of the client
+   * @param message The message to send
+   */
+  public void sendMessageToClient(PassthroughConnection connection, PassthroughMessage message) {
+    deliverToClient(connection, message);
+  }
+
+  private void deliverToClient(PassthroughConnection connection, PassthroughMessage message) {
+    // Encoding and delivering responses is the last stage of message handling so it is done on the response thread.
+    submitDelivery(() -> connection.sendMessageToClient(this, message.asSerializedBytes()));
+  }
+
+  /**
+   * Delivers an ack which its message's completion may have already taken, to send along with it.
+   * 
+   * @param connection The connection of the client
+   * @param unsentAck Takes the ack if it hasn't been sent yet, and returns null otherwise
+   */
+  private void deliverAckToClient(PassthroughConnection connection, Supplier<PassthroughMessage> unsentAck) {
+    submitDelivery(() -> {
+      PassthroughMessage ack = unsentAck.get();
+      if (null != ack) {
+        connection.sendMessageToClient(this, ack.asSerializedBytes());
+      }
+    });
+  }
+
+  private void submitDelivery(Runnable delivery) {
+    if ((Thread.currentThread() == this.serverThread) && (null != this.batchedAcks)) {
+      this.batchedAcks.add(delivery);
+    } else {
+      this.responseStage.submit(delivery);
+    }
+  }
+
+  private void deliverToClient(PassthroughConnection connection, byte[] serializedMessage) {
+    this.responseStage.submit(() -> connection.sendMessageToClient(this, serializedMessage));
+  }
+
   private void handleMessageRetirement(PassthroughConnection sender, PassthroughMessage retired) {
     // We only send retirement messages if we are the active.
     if (null != this.activeEntities) {
@@ -547,20 +849,60 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       PassthroughRetirementManager.RetirementTuple tuple = new PassthroughRetirementManager.RetirementTuple(sender, retired.asSerializedBytes());
       if (!retirementManager.addRetirementTuple(tuple)) {
         if (null != sender) {
-          sender.sendMessageToClient(this, tuple.response);
+          deliverToClient(sender, tuple.response);
         }
       }
     }
   }
 
+  private void deliverCompleteAndRetire(PassthroughConnection sender, long transactionID, PassthroughMessage ackOrNull, byte[] response, EntityException error) {
+    // The complete and retire (and the ack, if it hadn't been sent yet) go to the client as one message unless the retire
+    //  is held back by the retirement manager, in which case the ack and complete are sent on their own, before it could be
+    //  unblocked.
+    // We only send retirement messages if we are the active.
+    boolean shouldRetire = (null != this.activeEntities);
+    if (shouldRetire && retirementManager.retireNowOrBlock(() -> {
+          deliverAckAndComplete(sender, transactionID, ackOrNull, response, error);
+          PassthroughMessage retire = PassthroughMessageCodec.createRetireMessage();
+          retire.setTransactionTracking(transactionID, -1);
+          return new PassthroughRetirementManager.RetirementTuple(sender, retire.asSerializedBytes());
+        })) {
+      PassthroughMessage combined = PassthroughMessageCodec.createCompleteAndRetireMessage(null != ackOrNull, response, error, this.includeRemoteStackTraces);
+      // The oldestTransactionID isn't relevant when sent back.
+      combined.setTransactionTracking(transactionID, -1);
+      deliverToClient(sender, combined);
+    } else if (!shouldRetire) {
+      deliverAckAndComplete(sender, transactionID, ackOrNull, response, error);
+    }
+  }
+
+  private void deliverAckAndComplete(PassthroughConnection sender, long transactionID, PassthroughMessage ackOrNull, byte[] response, EntityException error) {
+    if (null != ackOrNull) {
+      deliverToClient(sender, ackOrNull);
+    }
+    PassthroughMessage complete = PassthroughMessageCodec.createCompleteMessage(response, error, this.includeRemoteStackTraces);
+    // The oldestTransactionID isn't relevant when sent back.
+    complete.setTransactionTracking(transactionID, -1);
+    deliverToClient(sender, complete);
+  }
+
   public void sendMessageToServerFromActive(IMessageSenderWrapper senderCallback, byte[] message) {
+    sendMessageToServerFromActive(senderCallback, message, null);
+  }
+
+  /**
+   * Sends a message to this passive from its active.  If the message is in a pooled buffer (null if it isn't), the passive
+   * retains the buffer until it has handled the message.
+   */
+  public void sendMessageToServerFromActive(IMessageSenderWrapper senderCallback, byte[] message, PassthroughPooledBuffer buffer) {
     // Passives don't care whether a message is a re-send, or not.
     Assert.assertTrue(!resending.isRaised());
     
     PassthroughMessageContainer container = new PassthroughMessageContainer();
     container.sender = senderCallback;
     container.message = message;
-    this.messageQueue.add(container);
+    container.buffer = (null != buffer) ? buffer.retain() : null;
+    this.messageQueue.addInternal(container);
   }
 
   private void setServerEnv() {
@@ -721,12 +1063,20 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   private void runServerThread() {
     Thread.currentThread().setName("Server thread isActive: " + ((null != this.activeEntities) ? "active" : "passive"));
     setServerEnv();
-    PassthroughMessageContainer toRun = getNextMessage();
-    while (null != toRun) {
+    List<PassthroughMessageContainer> taken = new ArrayList<>(this.serverBatchSize);
+    List<PassthroughMessageContainer> batch = new ArrayList<>(this.serverBatchSize);
+    long[] transactionIDs = new long[this.serverBatchSize];
+    while (getNextBatch(taken, batch)) {
+      // Client batches can make the batch bigger than the number of items we took.
+      if (transactionIDs.length < batch.size()) {
+        transactionIDs = new long[batch.size()];
+      }
       try {
-        IMessageSenderWrapper sender = toRun.sender;
-        byte[] message = toRun.message;
-        serverThreadHandleMessage(sender, message);
+        // The server thread only handles the first stage of the messages before passing them on to the execution thread.
+        acknowledgeBatch(batch, transactionIDs);
+        for (PassthroughMessageContainer container : batch) {
+          this.executionStage.submit(container);
+        }
       } catch (Throwable t) {
         // thread interrupt signals a shutdown of the server, some entity code
         // may not like this, catch everything here and make sure the server is running,
@@ -735,53 +1085,132 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
           throw t;
         }
       }
-      toRun = getNextMessage();
+      batch.clear();
     }
   }
   
-  private PassthroughMessageContainer getNextMessage() {
+  private boolean getNextBatch(List<PassthroughMessageContainer> taken, List<PassthroughMessageContainer> batch) {
     try {
       if (running.isRaised()) {
-        return messageQueue.take();
+        // Wait for the first message and then take whatever else is already waiting, up to the batch size.
+        taken.add(messageQueue.take());
+        messageQueue.drainTo(taken, this.serverBatchSize - 1);
+        for (PassthroughMessageContainer container : taken) {
+          if (null != container.batch) {
+            batch.addAll(container.batch);
+          } else {
+            batch.add(container);
+          }
+        }
+        taken.clear();
+        return true;
       }
     } catch (InterruptedException ie) {
       if (running.isRaised()) {
         Assert.unexpected(ie);
       }
     }
-    return null;
+    return false;
   }
   
-  private void serverThreadHandleMessage(IMessageSenderWrapper sender, byte[] message) {
-    // Called on the server thread to handle a message.
-    PassthroughMessageCodec.Decoder<Void> decoder = new PassthroughServerMessageDecoder(this, this, this.transactionOrderManager, this.lifeCycleMessageHandler, this.downstreamPassives, sender, this.crasher, message);
-    PassthroughMessageCodec.decodeRawMessage(decoder, message);
+  private void acknowledgeBatch(List<PassthroughMessageContainer> batch, long[] transactionIDs) {
+    // Called on the server thread to track and ack a batch of messages.
+    int index = 0;
+    for (PassthroughMessageContainer container : batch) {
+      long transactionID = PassthroughMessageCodec.decodeTransactionIDFromRawMessage(container.message);
+      long oldestTransactionID = PassthroughMessageCodec.decodeOldestTransactionIDFromRawMessage(container.message);
+      PassthroughServerMessageDecoder.trackMessage(this.transactionOrderManager, container.sender, transactionID, oldestTransactionID);
+      transactionIDs[index] = transactionID;
+      index += 1;
+    }
+    // The acks can only be sent once the order of the whole batch is persisted.
+    if (null != this.transactionOrderManager) {
+      this.transactionOrderManager.commitTracking();
+    }
+    List<Runnable> acks = new ArrayList<>(batch.size());
+    this.batchedAcks = acks;
+    try {
+      index = 0;
+      for (PassthroughMessageContainer container : batch) {
+        PassthroughServerMessageDecoder.sendAck(container.sender, transactionIDs[index]);
+        index += 1;
+      }
+    } finally {
+      this.batchedAcks = null;
+    }
+    if (!acks.isEmpty()) {
+      this.responseStage.submit(() -> {
+        for (Runnable ack : acks) {
+          ack.run();
+        }
+      });
+    }
+  }
+
+  private void executionThreadHandleMessage(PassthroughMessageContainer container) {
+    try {
+      executionThreadDecodeMessage(container);
+    } finally {
+      // The decoder copies out everything which outlives it so we are done with the message's buffer.
+      if (null != container.buffer) {
+        container.buffer.release();
+        container.buffer = null;
+      }
+    }
+  }
+
+  private void executionThreadDecodeMessage(PassthroughMessageContainer container) {
+    // Called on the execution thread to run a message which the server thread has already acked.
+    IMessageSenderWrapper sender = container.sender;
+    byte[] message = container.message;
+    if ((null != this.executionLanes) && (PassthroughMessage.Type.INVOKE_ON_SERVER != PassthroughMessageCodec.decodeTransactionTypeFromRawMessage(message))) {
+      // Anything other than an invoke must observe the effects of all the invokes before it so it is a barrier across all
+      //  the execution lanes.
+      try {
+        this.executionLanes.awaitIdle();
+      } catch (InterruptedException e) {
+        // We are only interrupted if we are shutting down.
+        if (running.isRaised()) {
+          Assert.unexpected(e);
+        }
+        return;
+      }
+    }
+    // The decoder is reused for every message since they are all handled on this thread.
+    if (null == this.executionDecoder) {
+      this.executionDecoder = new PassthroughServerMessageDecoder(this, this, this.lifeCycleMessageHandler, this.crasher);
+    }
+    this.executionDecoder.prepare(this.downstreamPassives, sender, message, container.buffer);
+    PassthroughMessageCodec.decodeRawMessage(this.executionDecoder, message);
+    // Don't hold on to the message.
+    this.executionDecoder.prepare(null, null, null, null);
   }
 
   @Override
-  public byte[] invoke(IMessageSenderWrapper sender,
-                       long clientInstanceID,
-                       long transactionId,
-                       long eldestTransactionId,
-                       String entityClassName,
-                       String entityName,
-                       byte[] payload) throws EntityException {
+  public void invoke(IMessageSenderWrapper sender,
+                     long clientInstanceID,
+                     long transactionId,
+                     long eldestTransactionId,
+                     String entityClassName,
+                     String entityName,
+                     ByteBuffer payload,
+                     IInvokeResult onInvoke) {
     final PassthroughEntityTuple entityTuple = new PassthroughEntityTuple(entityClassName, entityName);
-    byte[] response = null;
     if (null != this.activeEntities) {
       // Invoke on active.
       CreationData<?, ?> data = this.activeEntities.get(entityTuple);
       if (null != data) {
         PassthroughClientDescriptor clientDescriptor = sender.clientDescriptorForID(clientInstanceID);
-        response = sendActiveInvocation(sender, entityClassName,
-                                        entityName,
-                                        clientDescriptor,
-                                        transactionId,
-                                        eldestTransactionId,
-                                        data,
-                                        payload);
+        sendActiveInvocation(sender, entityClassName,
+                             entityName,
+                             clientDescriptor,
+                             transactionId,
+                             eldestTransactionId,
+                             data,
+                             payload,
+                             onInvoke);
       } else {
-        throw new EntityNotFoundException(entityClassName, entityName);
+        onInvoke.onInvokeComplete(null, new EntityNotFoundException(entityClassName, entityName));
       }
     } else {
       // Invoke on passive.
@@ -792,45 +1221,227 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
         PassthroughClientDescriptor clientDescriptor = sender.clientDescriptorForID(clientInstanceID);
 
         // There is no return type in the passive case.
-        sendPassiveInvocation(entityClassName,
-                              entityName,
-                              clientDescriptor,
-                              transactionId,
-                              eldestTransactionId,
-                              data,
-                              payload);
+        EntityException error = null;
+        try {
+          sendPassiveInvocation(entityClassName,
+                                entityName,
+                                clientDescriptor,
+                                transactionId,
+                                eldestTransactionId,
+                                data,
+                                payload);
+        } catch (EntityException e) {
+          error = e;
+        }
+        onInvoke.onInvokeComplete(null, error);
       } else {
-        throw new EntityNotFoundException(entityClassName, entityName);
+        onInvoke.onInvokeComplete(null, new EntityNotFoundException(entityClassName, entityName));
+      }
+    }
+  }
+
+  @Override
+  public void invoke(IMessageSenderWrapper sender,
+                     long clientInstanceID,
+                     long transactionId,
+                     long eldestTransactionId,
+                     long entityHandle,
+                     ByteBuffer payload,
+                     IInvokeResult onInvoke) {
+    // Clients only get handles from the active and the active replicates invokes by name, unless it couldn't name the
+    //  entity, in which case the passives fail it, too.
+    CreationData<?, ?> data = (null != this.activeEntities) ? entityForHandle(sender, clientInstanceID, entityHandle) : null;
+    if (null != data) {
+      PassthroughClientDescriptor clientDescriptor = sender.clientDescriptorForID(clientInstanceID);
+      sendActiveInvocation(sender, data.entityClassName,
+                           data.entityName,
+                           clientDescriptor,
+                           transactionId,
+                           eldestTransactionId,
+                           data,
+                           payload,
+                           onInvoke);
+    } else {
+      onInvoke.onInvokeComplete(null, entityNotFoundForHandle(sender, clientInstanceID, entityHandle));
+    }
+  }
+
+  /**
+   * Rewrites an invoke which identifies its entity by handle into one which identifies it by class and name, since the
+   * passives don't know our handles.  Other invokes are replicated unchanged.
+   * 
+   * @param sender The sender of the invoke
+   * @param message The raw invoke message
+   * @return The factory of the rewritten invoke for the link to a passive (see sendToPassive), or null if the message is to
+   * be replicated unchanged
+   */
+  public Function<PassthroughStringDictionary, PassthroughMessage> invokeForReplication(IMessageSenderWrapper sender, byte[] message) {
+    return PassthroughMessageCodec.<Function<PassthroughStringDictionary, PassthroughMessage>>decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      Function<PassthroughStringDictionary, PassthroughMessage> replicated = null;
+      long entityHandle = input.readLong();
+      if (PassthroughMessageCodec.NO_ENTITY_HANDLE != entityHandle) {
+        long clientInstanceID = input.readLong();
+        byte[] payload = new byte[input.readInt()];
+        input.readFully(payload);
+        // A stale handle is still replicated by name so that the passives fail the invoke the same way we do.
+        PassthroughEntityTuple entity = entityNamesForHandle(sender, clientInstanceID, entityHandle);
+        if (null != entity) {
+          replicated = (symbols) -> {
+            PassthroughMessage named = PassthroughMessageCodec.createReplicatedInvokeMessage(symbols, entity.entityClassName, entity.entityName, clientInstanceID, payload, shouldReplicate);
+            named.setTransactionTracking(transactionID, oldestTransactionID);
+            return named;
+          };
+        }
+      }
+      return replicated;
+    }, message);
+  }
+
+  /**
+   * Sends a message, created against the string dictionary of the link to the given passive, to that passive.
+   * 
+   * @param passive One of our passives
+   * @param wrapper The sender wrapper for the message on the passive
+   * @param factory Creates the message for the link's dictionary
+   */
+  public void sendToPassive(PassthroughServerProcess passive, IMessageSenderWrapper wrapper, Function<PassthroughStringDictionary, PassthroughMessage> factory) {
+    // If the passive was just detached, it gets a new dictionary (so every string is defined) since it doesn't matter.
+    PassthroughStringDictionary symbols = this.symbolsToPassives.getOrDefault(passive, new PassthroughStringDictionary());
+    // Creating the message can define strings so it must reach the passive before anything created after it.
+    PassthroughCompression compression = this.compression;
+    synchronized (symbols) {
+      PassthroughMessage message = factory.apply(symbols);
+      if (null != compression) {
+        message = compression.compress(message);
       }
+      passive.sendMessageToServerFromActive(wrapper, message.asSerializedBytes());
+    }
+  }
+
+  PassthroughStringDictionary getSymbolsFromActive() {
+    return this.symbolsFromActive;
+  }
+
+  private long entityHandleFor(CreationData<?, ?> data) {
+    if (PassthroughMessageCodec.NO_ENTITY_HANDLE == data.entityHandle) {
+      data.entityHandle = ((long) this.processID << 32) | this.entityHandleTable.size();
+      this.entityHandleTable.add(data);
+      this.entityHandleNames.add(new PassthroughEntityTuple(data.entityClassName, data.entityName));
     }
-    return response;
+    return data.entityHandle;
   }
 
-  private <M extends EntityMessage, R extends EntityResponse> byte[] sendActiveInvocation(IMessageSenderWrapper sender, String className,
-                                                                                          String entityName,
-                                                                                          ClientDescriptor clientDescriptor,
-                                                                                          long transactionId,
-                                                                                          long eldestTransactionId,
-                                                                                          CreationData<M, R> data,
-                                                                                          byte[] payload) throws EntityException {
+  private CreationData<?, ?> entityForHandle(IMessageSenderWrapper sender, long clientInstanceID, long entityHandle) {
+    CreationData<?, ?> data = null;
+    if ((entityHandle >>> 32) == this.processID) {
+      if (isIssuedHandle(entityHandle)) {
+        data = this.entityHandleTable.get((int) entityHandle);
+      }
+    } else {
+      Map<Long, CreationData<?, ?>> clientEntities = this.reconnectedEntities.get(sender.getClientOriginID());
+      if (null != clientEntities) {
+        data = clientEntities.get(clientInstanceID);
+      }
+    }
+    return data;
+  }
+  /**
+   * @return The class and name of the entity the handle was given to, even if it has since been destroyed, or null if the
+   * handle isn't known
+   */
+  private PassthroughEntityTuple entityNamesForHandle(IMessageSenderWrapper sender, long clientInstanceID, long entityHandle) {
+    PassthroughEntityTuple names = null;
+    if ((entityHandle >>> 32) == this.processID) {
+      if (isIssuedHandle(entityHandle)) {
+        names = this.entityHandleNames.get((int) entityHandle);
+      }
+    } else {
+      CreationData<?, ?> data = entityForHandle(sender, clientInstanceID, entityHandle);
+      if (null != data) {
+        names = new PassthroughEntityTuple(data.entityClassName, data.entityName);
+      }
+    }
+    return names;
+  }
+
+  private EntityException entityNotFoundForHandle(IMessageSenderWrapper sender, long clientInstanceID, long entityHandle) {
+    // The handle usually outlived its entity but it may not be one we know at all.
+    PassthroughEntityTuple names = entityNamesForHandle(sender, clientInstanceID, entityHandle);
+    return (null != names)
+        ? new EntityNotFoundException(names.entityClassName, names.entityName)
+        : new EntityServerException(null, null, "Unknown entity handle: 0x" + Long.toHexString(entityHandle), null);
+  }
+
+  private boolean isIssuedHandle(long entityHandle) {
+    int index = (int) entityHandle;
+    return (index >= 0) && (index < this.entityHandleTable.size());
+  }
+
+
+  private <M extends EntityMessage, R extends EntityResponse> void sendActiveInvocation(IMessageSenderWrapper sender, String className,
+                                                                                        String entityName,
+                                                                                        ClientDescriptor clientDescriptor,
+                                                                                        long transactionId,
+                                                                                        long eldestTransactionId,
+                                                                                        CreationData<M, R> data,
+                                                                                        ByteBuffer payload,
+                                                                                        IInvokeResult onInvoke) {
     ActiveServerEntity<M, R> entity = data.getActive();
     MessageCodec<M, R> codec = data.messageCodec;
-    M msg = deserialize(className, entityName, codec, payload);
+    // A client in object-passing mode expects its responses to be passed back the same way, registered against its request.
+    PassthroughObjectHandoff.Registration request = PassthroughObjectHandoff.lookup(payload);
+    M msg;
+    try {
+      msg = deserialize(className, entityName, codec, request, payload);
+    } catch (EntityException e) {
+      onInvoke.onInvokeComplete(null, e);
+      return;
+    }
     if (data.executionStrategy.getExecutionLocation(msg).runOnActive()) {
-      try {
-        int cKey = data.concurrency.concurrencyKey(msg);
-        R response = entity.invokeActive(new PassThroughServerActiveInvokeContext<>(msg, clientDescriptor,
-                                                                                  cKey,
-                                                                                  transactionId,
-                                                                                  eldestTransactionId, sender, retirementManager, codec),
-                                         msg);
-        return serializeResponse(className, entityName, codec, response);
-      } catch (EntityUserException eu) {
-        throw new EntityServerException(className, entityName, eu.getLocalizedMessage(), eu);
+      int cKey = data.concurrency.concurrencyKey(msg);
+      PassThroughServerActiveInvokeContext<M, R> context = new PassThroughServerActiveInvokeContext<>(msg, clientDescriptor,
+                                                                                                      cKey,
+                                                                                                      transactionId,
+                                                                                                      eldestTransactionId, sender, retirementManager, codec, request);
+      if (null != this.executionLanes) {
+        try {
+          this.executionLanes.execute(cKey, () -> runActiveInvocation(className, entityName, entity, context, codec, msg, request, onInvoke));
+        } catch (InterruptedException e) {
+          // We are only interrupted while waiting on a barrier, or for space in a lane, if we are shutting down.
+          if (running.isRaised()) {
+            Assert.unexpected(e);
+          }
+        }
+      } else {
+        runActiveInvocation(className, entityName, entity, context, codec, msg, request, onInvoke);
       }
     } else {
-      return new byte[0];
+      onInvoke.onInvokeComplete(new byte[0], null);
+    }
+  }
+
+  private <M extends EntityMessage, R extends EntityResponse> void runActiveInvocation(String className,
+                                                                                       String entityName,
+                                                                                       ActiveServerEntity<M, R> entity,
+                                                                                       ActiveInvokeContext<R> context,
+                                                                                       MessageCodec<M, R> codec,
+                                                                                       M msg,
+                                                                                       PassthroughObjectHandoff.Registration request,
+                                                                                       IInvokeResult onInvoke) {
+    byte[] response = null;
+    EntityException error = null;
+    try {
+      response = serializeResponse(className, entityName, codec, entity.invokeActive(context, msg), request);
+    } catch (EntityUserException eu) {
+      error = new EntityServerException(className, entityName, eu.getLocalizedMessage(), eu);
+    } catch (EntityException e) {
+      error = e;
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      // Just wrap this as a user exception since it was unexpected.
+      error = new EntityServerException(className, entityName, e.getLocalizedMessage(), e);
     }
+    onInvoke.onInvokeComplete(response, error);
   }
 
   private <M extends EntityMessage, R extends EntityResponse> void sendPassiveInvocation(String className,
@@ -839,10 +1450,10 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
                                                                                          long transactionId,
                                                                                          long eldestTransactionId,
                                                                                          CreationData<M, R> data,
-                                                                                         byte[] payload) throws EntityException {
+                                                                                         ByteBuffer payload) throws EntityException {
     PassiveServerEntity<M, R> entity = data.getPassive();
     MessageCodec<M, R> codec = data.messageCodec;
-    M msg = deserialize(className, entityName, codec, payload);
+    M msg = deserialize(className, entityName, codec, PassthroughObjectHandoff.lookup(payload), payload);
     int cKey = data.concurrency.concurrencyKey(msg);
     if (data.executionStrategy.getExecutionLocation(msg).runOnPassive()) {
       try {
@@ -857,7 +1468,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   }
 
   private <M extends EntityMessage, R extends EntityResponse> void sendPassiveSyncPayload(String className, String
-    entityName, ClientDescriptor clientDescriptor, CreationData<M, R> data, int concurrencyKey, byte[] payload) throws
+    entityName, ClientDescriptor clientDescriptor, CreationData<M, R> data, int concurrencyKey, ByteBuffer payload) throws
     EntityException {
     PassiveServerEntity<M, R> entity = data.getPassive();
     SyncMessageCodec<M> codec = data.syncMessageCodec;
@@ -869,16 +1480,28 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     }
   }
 
-  private <M extends EntityMessage, R extends EntityResponse> M deserialize(String className, String entityName, final MessageCodec<M, R> codec, final byte[] payload) throws EntityException {
-    return runWithHelper(className, entityName, () -> codec.decodeMessage(payload));
+  @SuppressWarnings("unchecked")
+  private <M extends EntityMessage, R extends EntityResponse> M deserialize(String className, String entityName, final MessageCodec<M, R> codec, PassthroughObjectHandoff.Registration request, final ByteBuffer payload) throws EntityException {
+    // The payload may be a handle to the message object, from a client in object-passing mode.
+    // Otherwise, it is a view of the message so it is only copied if the codec can't read it directly.
+    return (null != request)
+        ? (M) request.getObject()
+        : runWithHelper(className, entityName, () -> (codec instanceof PassthroughBufferMessageCodec)
+            ? ((PassthroughBufferMessageCodec<M, R>) codec).decodeMessage(payload)
+            : codec.decodeMessage(PassthroughMessageCodec.toArray(payload)));
   }
   
-  private <M extends EntityMessage, R extends EntityResponse> M deserializeForSync(String className, String entityName, final SyncMessageCodec<M> codec, final int concurrencyKey, final byte[] payload) throws EntityException {
-    return runWithHelper(className, entityName, () -> codec.decode(concurrencyKey, payload));
+  @SuppressWarnings("unchecked")
+  private <M extends EntityMessage, R extends EntityResponse> M deserializeForSync(String className, String entityName, final SyncMessageCodec<M> codec, final int concurrencyKey, final ByteBuffer payload) throws EntityException {
+    return runWithHelper(className, entityName, () -> (codec instanceof PassthroughBufferSyncMessageCodec)
+        ? ((PassthroughBufferSyncMessageCodec<M>) codec).decode(concurrencyKey, payload)
+        : codec.decode(concurrencyKey, PassthroughMessageCodec.toArray(payload)));
   }
   
-  private <M extends EntityMessage, R extends EntityResponse> byte[] serializeResponse(String className, String entityName, final MessageCodec<M, R> codec, final R response) throws EntityException {
-    return runWithHelper(className, entityName, () -> codec.encodeResponse(response));
+  private <M extends EntityMessage, R extends EntityResponse> byte[] serializeResponse(String className, String entityName, final MessageCodec<M, R> codec, final R response, PassthroughObjectHandoff.Registration request) throws EntityException {
+    return (null != request)
+        ? request.registerResponse(response)
+        : runWithHelper(className, entityName, () -> codec.encodeResponse(response));
   }
 
   @Override
@@ -912,7 +1535,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   public void fetch(final IMessageSenderWrapper sender, final long clientInstanceID, final String entityClassName, final String entityName, final long version, final IFetchResult onFetch) {
     final PassthroughEntityTuple entityTuple = new PassthroughEntityTuple(entityClassName, entityName);
     // Fetch the entity now that we have the read lock on the name.
-    byte[] config = null;
+    byte[] response = null;
     EntityException error = null;
     // Fetch should never be replicated and only handled on the active.
     Assert.assertTrue(null != PassthroughServerProcess.this.activeEntities);
@@ -923,7 +1546,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       EntityServerService<?, ?> service = getEntityServiceForClassName(entityClassName);
       long expectedVersion = service.getVersion();
       if (expectedVersion == version) {
-        config = entityData.configuration;
+        response = PassthroughMessageCodec.createFetchResponse(entityHandleFor(entityData), entityData.configuration);
 
         if (null != PassthroughServerProcess.this.serviceInterface) {
           // Record that this entity has been fetched by this client.
@@ -946,7 +1569,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       entityData.release(clientDescriptor);
     }
     
-    onFetch.onFetchComplete(config, error);
+    onFetch.onFetchComplete(response, error);
   }
 
   @Override
@@ -959,6 +1582,10 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
         PassthroughClientDescriptor clientDescriptor = sender.clientDescriptorForID(clientInstanceID);
         entity.disconnected(clientDescriptor);
         data.release(clientDescriptor);
+        Map<Long, CreationData<?, ?>> clientEntities = this.reconnectedEntities.get(sender.getClientOriginID());
+        if (null != clientEntities) {
+          clientEntities.remove(clientInstanceID);
+        }
 
         if (null != PassthroughServerProcess.this.serviceInterface) {
           // Record that this entity has been released by this client.
@@ -1043,6 +1670,9 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   public byte[] reconfigure(String entityClassName, String entityName, long version, byte[] serializedConfiguration) throws EntityException {
     PassthroughEntityTuple entityTuple = new PassthroughEntityTuple(entityClassName, entityName);
     CreationData<?, ?> entityData = (this.activeEntities != null) ? this.activeEntities.get(entityTuple) : this.passiveEntities.get(entityTuple);
+    if ((null == entityData) || entityData.isDestroyed) {
+      throw new EntityNotFoundException(entityClassName, entityName);
+    }
     
     // Make sure that we update the node in monitoring.
     if (null != this.serviceInterface) {
@@ -1102,6 +1732,9 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
           this.activeEntities.remove(entityTuple);
           didRemove = true;
         }
+        if (PassthroughMessageCodec.NO_ENTITY_HANDLE != entityData.entityHandle) {
+          this.entityHandleTable.set((int) entityData.entityHandle, null);
+        }
         Assert.assertTrue(didRemove);
       }
     } else {
@@ -1117,7 +1750,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   }
 
   @Override
-  public void reconnect(final IMessageSenderWrapper sender, final long clientInstanceID, final String entityClassName, final String entityName, final byte[] extendedData) {
+  public long reconnect(final IMessageSenderWrapper sender, final long clientInstanceID, final String entityClassName, final String entityName, final byte[] extendedData) {
     final PassthroughEntityTuple entityTuple = new PassthroughEntityTuple(entityClassName, entityName);
     // Fetch the entity now that we have the read lock on the name.
     // Fetch should never be replicated and only handled on the active.
@@ -1130,8 +1763,18 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       } catch (ReconnectRejectedException e) {
         throw new RuntimeException(e);
       }
+      // The client's in-flight invokes may still carry the handle from its previous server so remember which entity this
+      //  client instance refers to.
+      Map<Long, CreationData<?, ?>> clientEntities = this.reconnectedEntities.get(sender.getClientOriginID());
+      if (null == clientEntities) {
+        clientEntities = new HashMap<>();
+        this.reconnectedEntities.put(sender.getClientOriginID(), clientEntities);
+      }
+      clientEntities.put(clientInstanceID, entityData);
+      return entityHandleFor(entityData);
     } else {
       Assert.unexpected(new Exception("Entity not found in reconnect"));
+      return PassthroughMessageCodec.NO_ENTITY_HANDLE;
     }
   }
 
@@ -1196,7 +1839,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   }
 
   @Override
-  public void syncPayload(IMessageSenderWrapper sender, String entityClassName, String entityName, int concurrencyKey, byte[] payload) throws EntityException {
+  public void syncPayload(IMessageSenderWrapper sender, String entityClassName, String entityName, int concurrencyKey, ByteBuffer payload) throws EntityException {
     // Sync only makes sense on passive.
     Assert.assertTrue(null != this.passiveEntities);
     
@@ -1253,7 +1896,11 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     // Make sure that we are active and they are passive.
     Assert.assertTrue(null != this.activeEntities);
     Assert.assertTrue(null != serverProcess.passiveEntities);
-    this.downstreamPassives.add(serverProcess);
+    // The link to the passive starts with an empty dictionary.
+    this.symbolsToPassives.put(serverProcess, new PassthroughStringDictionary());
+    Set<PassthroughServerProcess> passives = new HashSet<>(this.downstreamPassives);
+    passives.add(serverProcess);
+    this.downstreamPassives = Collections.unmodifiableSet(passives);
     // Set our state synchronizing.
     serverProcess.setStateSynchronizing(serverProcess.serviceInterface);
     // Synchronize any entities we have.
@@ -1265,29 +1912,25 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       final String entityClassName = value.entityClassName;
       final String entityName = value.entityName;
       // State that we will start to synchronize the entity.
-      PassthroughMessage entityStart = PassthroughMessageCodec.createSyncEntityStartMessage(entityClassName, entityName, value.version, value.configuration);
       PassthroughInterserverInterlock wrapper = new PassthroughInterserverInterlock(null);
-      serverProcess.sendMessageToServerFromActive(wrapper, entityStart.asSerializedBytes());
+      sendToPassive(serverProcess, wrapper, (symbols) -> PassthroughMessageCodec.createSyncEntityStartMessage(symbols, entityClassName, entityName, value.version, value.configuration));
       wrapper.waitForComplete();
       // Walk all the concurrency keys for this entity.
       for (final Integer oneKey : value.getConcurrency().getKeysForSynchronization()) {
         // State that we will start to synchronize the key.
-        PassthroughMessage keyStart = PassthroughMessageCodec.createSyncEntityKeyStartMessage(entityClassName, entityName, oneKey);
         wrapper = new PassthroughInterserverInterlock(null);
-        serverProcess.sendMessageToServerFromActive(wrapper, keyStart.asSerializedBytes());
+        sendToPassive(serverProcess, wrapper, (symbols) -> PassthroughMessageCodec.createSyncEntityKeyStartMessage(symbols, entityClassName, entityName, oneKey));
         wrapper.waitForComplete();
         // Send all the data.
-        value.synchronizeToPassive(serverProcess, oneKey);
+        value.synchronizeToPassive(this, serverProcess, oneKey);
         // State that we are done synchronizing the key.
-        PassthroughMessage keyEnd = PassthroughMessageCodec.createSyncEntityKeyEndMessage(entityClassName, entityName, oneKey);
         wrapper = new PassthroughInterserverInterlock(null);
-        serverProcess.sendMessageToServerFromActive(wrapper, keyEnd.asSerializedBytes());
+        sendToPassive(serverProcess, wrapper, (symbols) -> PassthroughMessageCodec.createSyncEntityKeyEndMessage(symbols, entityClassName, entityName, oneKey));
         wrapper.waitForComplete();
       }
       // State that we are done synchronizing the entity.
-      PassthroughMessage entityEnd = PassthroughMessageCodec.createSyncEntityEndMessage(entityClassName, entityName);
       wrapper = new PassthroughInterserverInterlock(null);
-      serverProcess.sendMessageToServerFromActive(wrapper, entityEnd.asSerializedBytes());
+      sendToPassive(serverProcess, wrapper, (symbols) -> PassthroughMessageCodec.createSyncEntityEndMessage(symbols, entityClassName, entityName));
       wrapper.waitForComplete();
     }
     // Restore our state to active.
@@ -1298,7 +1941,10 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   }
 
   public synchronized void removeDownstreamPassiveServerProcess(PassthroughServerProcess serverProcess) {
-    boolean didRemove = this.downstreamPassives.remove(serverProcess);
+    Set<PassthroughServerProcess> passives = new HashSet<>(this.downstreamPassives);
+    boolean didRemove = passives.remove(serverProcess);
+    this.downstreamPassives = Collections.unmodifiableSet(passives);
+    this.symbolsToPassives.remove(serverProcess);
     // We expect the passive to have been attached, if we are removing it.
     Assert.assertTrue(didRemove);
   }
@@ -1307,7 +1953,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     // Make sure that we are currently passive.
     Assert.assertTrue(null != this.passiveEntities);
     // Make us active and promote all passive entities.
-    this.downstreamPassives.clear();
+    this.downstreamPassives = Collections.emptySet();
     this.activeEntities = new HashMap<>();
     
     // We need to create the entities as active but note that we would already have persisted this data so only create the
@@ -1372,6 +2018,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
    * @param connectionID A unique ID for the connection.
    */
   public void disconnectConnection(PassthroughConnection connection, long connectionID) {
+    this.symbolsFromClients.remove(connection);
     if (null != this.serviceInterface) {
       String nodeName = clientIdentifierForService(connectionID);
       this.serviceInterface.removeNode(PlatformMonitoringConstants.CLIENTS_PATH, nodeName);
@@ -1392,7 +2039,9 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     if (null != this.transactionOrderManager) {
       resending.executeIfRaised(()->{
         List<PassthroughMessageContainer> list = this.transactionOrderManager.stopHandlingResends();
-        this.messageQueue.addAll(list);
+        for (PassthroughMessageContainer container : list) {
+          this.messageQueue.addInternal(container);
+        }
         resending.lower();
       });
     }
@@ -1472,6 +2121,8 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     public final boolean isActive;
     public final long consumerID;
     public boolean isDestroyed = false;
+    // Assigned the first time the entity is fetched or reconnected.
+    public long entityHandle = PassthroughMessageCodec.NO_ENTITY_HANDLE;
     public Map<ClientDescriptor, Integer> references = new HashMap<>();
     
     public CreationData(String entityClassName, String entityName, long version, byte[] configuration, PassthroughServiceRegistry registry, EntityServerService<M, R> service, boolean isActive, long consumerID) throws ConfigurationException {
@@ -1560,17 +2211,17 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       return concurrency;
     }
     
-    public void synchronizeToPassive(final PassthroughServerProcess passive, final int key) {
+    public void synchronizeToPassive(final PassthroughServerProcess active, final PassthroughServerProcess passive, final int key) {
       getActive().prepareKeyForSynchronizeOnPassive(payload -> {
-        PassthroughMessage payloadMessage = PassthroughMessageCodec.createSyncPayloadMessage(entityClassName, entityName, key, serialize(key, payload));
+        byte[] serializedPayload = serialize(key, payload);
         PassthroughInterserverInterlock wrapper = new PassthroughInterserverInterlock(null);
-        passive.sendMessageToServerFromActive(wrapper, payloadMessage.asSerializedBytes());
+        active.sendToPassive(passive, wrapper, (symbols) -> PassthroughMessageCodec.createSyncPayloadMessage(symbols, entityClassName, entityName, key, serializedPayload));
         wrapper.waitForComplete();
       }, key);
       getActive().synchronizeKeyToPassive(payload -> {
-        PassthroughMessage payloadMessage = PassthroughMessageCodec.createSyncPayloadMessage(entityClassName, entityName, key, serialize(key, payload));
+        byte[] serializedPayload = serialize(key, payload);
         PassthroughInterserverInterlock wrapper = new PassthroughInterserverInterlock(null);
-        passive.sendMessageToServerFromActive(wrapper, payloadMessage.asSerializedBytes());
+        active.sendToPassive(passive, wrapper, (symbols) -> PassthroughMessageCodec.createSyncPayloadMessage(symbols, entityClassName, entityName, key, serializedPayload));
         wrapper.waitForComplete();
       }, key);
     }
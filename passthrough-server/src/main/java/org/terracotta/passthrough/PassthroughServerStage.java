@@ -0,0 +1,136 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+
+/**
+ * One of the stages of message handling within a PassthroughServerProcess:  a single thread which hands each item, in the
+ * order it was submitted, to the stage's handler.
+ * The server thread decodes, tracks and acks each message before submitting it to the execution stage, which runs it and
+ * submits the resulting responses to the response stage, for encoding and delivery to the client.
+ */
+public class PassthroughServerStage<T> {
+  private final Thread thread;
+  private final BlockingQueue<T> queue;
+  private final Consumer<T> handler;
+  private final PassthroughWaitStrategy waitStrategy;
+  private volatile boolean running;
+
+  public PassthroughServerStage(String threadName, PassthroughThreadMode threadMode, Consumer<T> handler, Thread.UncaughtExceptionHandler crashHandler) {
+    this(threadName, threadMode, handler, crashHandler, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates a stage whose backlog is bounded:  submit blocks while the stage already has capacity items waiting.
+   */
+  public PassthroughServerStage(String threadName, PassthroughThreadMode threadMode, Consumer<T> handler, Thread.UncaughtExceptionHandler crashHandler, int capacity) {
+    this(threadName, threadMode, PassthroughWaitStrategy.BLOCKING, handler, crashHandler, capacity);
+  }
+
+  /**
+   * Creates a stage whose thread waits for items according to the given wait strategy.
+   */
+  public PassthroughServerStage(String threadName, PassthroughThreadMode threadMode, PassthroughWaitStrategy waitStrategy, Consumer<T> handler, Thread.UncaughtExceptionHandler crashHandler, int capacity) {
+    this.thread = threadMode.newThread(threadName, this::runStage);
+    this.thread.setUncaughtExceptionHandler((null != crashHandler) ? crashHandler : PassthroughUncaughtExceptionHandler.sharedInstance);
+    this.queue = new LinkedBlockingQueue<>(capacity);
+    this.handler = handler;
+    this.waitStrategy = waitStrategy;
+  }
+
+  public void start() {
+    Assert.assertTrue(!this.running);
+    this.running = true;
+    this.thread.start();
+  }
+
+  /**
+   * Submits an item to be handled on the stage's thread, waiting for space if the stage is bounded and full.  Items
+   * submitted after the stage was stopped, or while the submitting thread is interrupted waiting for space, are dropped.
+   * 
+   * @param item The item to handle
+   */
+  public void submit(T item) {
+    if (this.running) {
+      try {
+        this.queue.put(item);
+      } catch (InterruptedException e) {
+        // We are only interrupted when shutting down so preserve the interrupt for the caller's loop to see.
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public boolean isStageThread() {
+    return this.thread == Thread.currentThread();
+  }
+
+  /**
+   * Stops the stage, dropping any items which haven't yet been handled (much like the server drops its queued messages on
+   * stop).
+   */
+  public void stop() {
+    this.running = false;
+    this.thread.interrupt();
+    try {
+      this.thread.join();
+    } catch (InterruptedException e) {
+      Assert.unexpected(e);
+    }
+    this.queue.clear();
+  }
+
+  private void runStage() {
+    while (this.running) {
+      T item;
+      try {
+        item = nextItem();
+      } catch (InterruptedException e) {
+        // We are only interrupted when shutting down.
+        Assert.assertTrue(!this.running);
+        break;
+      }
+      try {
+        this.handler.accept(item);
+      } catch (Throwable t) {
+        // Much like the server thread, an interrupt may cause entity code to fail during shutdown so only rethrow if we are
+        // still running.
+        if (this.running) {
+          throw t;
+        }
+      }
+    }
+  }
+
+  private T nextItem() throws InterruptedException {
+    T item = this.queue.poll();
+    int idleCount = 0;
+    while ((null == item) && this.waitStrategy.idle(idleCount)) {
+      // We are only interrupted when shutting down.
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      idleCount += 1;
+      item = this.queue.poll();
+    }
+    return (null != item) ? item : this.queue.take();
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The table of strings (entity class names and entity names) sent over the link from an active to one of its passives.
+ * The first message which uses a string defines it, giving its ID along with the string, and later messages only send the
+ * ID.
+ * The sending side only uses reference() and the receiving side only uses define() and lookup() so each end of the link
+ * has its own instance.  Since a definition carries its ID, a receiving side can be reused for a new link:  any stale
+ * entry is redefined before it can be referenced.
+ * Note that this is not thread-safe:  the sender must hold the dictionary's monitor while encoding a message AND handing it
+ * to the receiver, so that the receiver sees the messages in the order their strings were defined.
+ */
+public class PassthroughStringDictionary {
+  private final Map<String, Integer> sentIDs = new HashMap<>();
+  private final List<String> receivedStrings = new ArrayList<>();
+
+  /**
+   * Called by the sending side to encode a string, assigning it an ID if this is its first use.
+   *
+   * @param string The string to send
+   * @return The string's ID, if it was already sent, or the bitwise complement of its new ID, if this use must define it
+   */
+  public int reference(String string) {
+    Integer id = this.sentIDs.get(string);
+    int reference;
+    if (null != id) {
+      reference = id;
+    } else {
+      reference = this.sentIDs.size();
+      this.sentIDs.put(string, reference);
+      reference = ~reference;
+    }
+    return reference;
+  }
+
+  /**
+   * Called by the receiving side when it decodes the definition of a string.
+   */
+  public void define(int id, String string) {
+    while (this.receivedStrings.size() <= id) {
+      this.receivedStrings.add(null);
+    }
+    this.receivedStrings.set(id, string);
+  }
+
+  /**
+   * Called by the receiving side when it decodes a reference to a string which must already have been defined.
+   */
+  public String lookup(int id) {
+    String string = (id < this.receivedStrings.size()) ? this.receivedStrings.get(id) : null;
+    Assert.assertTrue(null != string);
+    return string;
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Maps entity names to stripes using consistent hashing so that each stripe owns a roughly equal share of the names and
+ * adding or removing a stripe only moves the names owned by that stripe.
+ * Each stripe is placed on the hash ring at several points ("virtual nodes"), derived from its name, and an entity belongs
+ * to the first stripe point at or after the hash of its name (wrapping around).
+ * The instance is immutable so it can be shared by any number of connections.
+ */
+public class PassthroughStripeRouter {
+  public static final int DEFAULT_VIRTUAL_NODES_PER_STRIPE = 128;
+
+  private final int stripeCount;
+  private final TreeMap<Integer, Integer> ring;
+
+  public PassthroughStripeRouter(List<String> stripeNames) {
+    this(stripeNames, DEFAULT_VIRTUAL_NODES_PER_STRIPE);
+  }
+
+  /**
+   * @param stripeNames The names of the stripes, in stripe index order
+   * @param virtualNodesPerStripe The number of points each stripe has on the hash ring (more points give a more even spread)
+   */
+  public PassthroughStripeRouter(List<String> stripeNames, int virtualNodesPerStripe) {
+    Assert.assertTrue(!stripeNames.isEmpty());
+    Assert.assertTrue(virtualNodesPerStripe > 0);
+    this.stripeCount = stripeNames.size();
+    this.ring = new TreeMap<Integer, Integer>();
+    for (int stripeIndex = 0; stripeIndex < this.stripeCount; ++stripeIndex) {
+      String stripeName = stripeNames.get(stripeIndex);
+      for (int node = 0; node < virtualNodesPerStripe; ++node) {
+        // In the unlikely case of a collision, the first stripe to claim the point keeps it.
+        this.ring.putIfAbsent(hash(stripeName + "#" + node), stripeIndex);
+      }
+    }
+  }
+
+  public int getStripeCount() {
+    return this.stripeCount;
+  }
+
+  /**
+   * @param entityName The name of an entity
+   * @return The index of the stripe which owns the entity
+   */
+  public int stripeIndexFor(String entityName) {
+    Map.Entry<Integer, Integer> owner = this.ring.ceilingEntry(hash(entityName));
+    if (null == owner) {
+      owner = this.ring.firstEntry();
+    }
+    return owner.getValue();
+  }
+
+  // FNV-1a over the characters, followed by the murmur3 finalizer since names often only differ in their last characters.
+  private static int hash(String value) {
+    int hash = 0x811c9dc5;
+    for (int i = 0; i < value.length(); ++i) {
+      hash ^= value.charAt(i);
+      hash *= 0x01000193;
+    }
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+}
@@ -16,11 +16,14 @@
  */
 package org.terracotta.passthrough;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Used for setting up PassthroughClusterControl instances to wrap test cluster configurations, based on the passthrough classes.
- * It describes a single stripe, consisting of a single active and an optional passive.  Services for providing server-side
+ * It describes a single stripe, consisting of a single active and an optional passive, or a cluster of several such stripes
+ * (see createMultiStripeCluster).  Services for providing server-side
  * functionality, server-side entities, or client-side entities, are registered via the given ServerInitializer callback,
  * allowing common initialization code to be invoked on each server in the stripe.
  * It can be used by arbitrary testing systems as it acts as a library, not a framework.
@@ -60,10 +63,26 @@ public class PassthroughTestHelpers {
    * @return A control object to use for interacting with the cluster.
    */
   public static PassthroughClusterControl createMultiServerStripe(String stripeName, int numOfServers, ServerInitializer initializer) {
+    return createMultiServerStripe(stripeName, numOfServers, PassthroughThreadMode.PLATFORM, initializer);
+  }
+
+  /**
+   * Creates a cluster consisting of any number of server, configured as a single stripe, whose servers and clients all run
+   * on threads of the given mode.
+   * 
+   * @param stripeName The unique name for this stripe.
+   * @param numOfServers The number of server to create in the stripe.
+   * @param threadMode The kind of thread to use for the servers, their clients, and the cluster control (VIRTUAL requires
+   * JDK 21+).
+   * @param initializer The callback to handle initialization of both servers, called on each.
+   * @return A control object to use for interacting with the cluster.
+   */
+  public static PassthroughClusterControl createMultiServerStripe(String stripeName, int numOfServers, PassthroughThreadMode threadMode, ServerInitializer initializer) {
     PassthroughServer[] servers = new PassthroughServer[numOfServers];
     for(int i = 0; i < numOfServers; i++) {
       servers[i] = intializeServer(initializer);
       servers[i].setServerName(stripeName + "_" + i);
+      servers[i].setThreadMode(threadMode);
     }
     if(numOfServers == 1) {
       return new PassthroughClusterControl(stripeName, servers[0]);
@@ -72,6 +91,40 @@ public class PassthroughTestHelpers {
     }
   }
 
+  /**
+   * Creates a cluster of several stripes, each with the same number of servers.  The stripes are named
+   * "clusterName_stripeN" and each can be controlled, and fail over, on its own.
+   * 
+   * @param clusterName The unique name for this cluster.
+   * @param numOfStripes The number of stripes to create.
+   * @param numOfServersPerStripe The number of servers to create in each stripe.
+   * @param initializer The callback to handle initialization of all servers, called on each.
+   * @return A control object to use for interacting with the cluster and connecting clients to it.
+   */
+  public static PassthroughMultiStripeClusterControl createMultiStripeCluster(String clusterName, int numOfStripes, int numOfServersPerStripe, ServerInitializer initializer) {
+    return createMultiStripeCluster(clusterName, numOfStripes, numOfServersPerStripe, PassthroughThreadMode.PLATFORM, initializer);
+  }
+
+  /**
+   * Creates a cluster of several stripes, each with the same number of servers, whose servers and clients all run on
+   * threads of the given mode.
+   * 
+   * @param clusterName The unique name for this cluster.
+   * @param numOfStripes The number of stripes to create.
+   * @param numOfServersPerStripe The number of servers to create in each stripe.
+   * @param threadMode The kind of thread to use for the servers, their clients, and the cluster control (VIRTUAL requires
+   * JDK 21+).
+   * @param initializer The callback to handle initialization of all servers, called on each.
+   * @return A control object to use for interacting with the cluster and connecting clients to it.
+   */
+  public static PassthroughMultiStripeClusterControl createMultiStripeCluster(String clusterName, int numOfStripes, int numOfServersPerStripe, PassthroughThreadMode threadMode, ServerInitializer initializer) {
+    List<PassthroughClusterControl> stripes = new ArrayList<PassthroughClusterControl>();
+    for (int i = 0; i < numOfStripes; i++) {
+      stripes.add(createMultiServerStripe(clusterName + "_stripe" + i, numOfServersPerStripe, threadMode, initializer));
+    }
+    return new PassthroughMultiStripeClusterControl(stripes);
+  }
+
   private static PassthroughServer intializeServer(ServerInitializer initializer) {
     PassthroughServer activeServer = new PassthroughServer();
     initializer.registerServicesForServer(activeServer);
@@ -0,0 +1,84 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+
+/**
+ * Selects the kind of thread used for the background threads of the passthrough system:  server threads, client connection
+ * threads, the timer thread and the server crasher thread.
+ * VIRTUAL uses the virtual threads of JDK 21+ so that suites creating thousands of connections or servers aren't bounded by
+ * the platform thread count and stack memory.  The passthrough is built for Java 8 so virtual threads are created
+ * reflectively and VIRTUAL is only supported when running on a JDK which has them (see isSupported()).
+ */
+public enum PassthroughThreadMode {
+  PLATFORM,
+  VIRTUAL;
+
+  // Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), if this JDK has them.
+  private static final Method OF_VIRTUAL;
+  private static final Method UNSTARTED;
+  static {
+    Method ofVirtual = null;
+    Method unstarted = null;
+    try {
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+    } catch (ReflectiveOperationException e) {
+      // This JDK doesn't have virtual threads.
+      ofVirtual = null;
+      unstarted = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    UNSTARTED = unstarted;
+  }
+
+  /**
+   * @return True if threads of this mode can be created on the running JDK
+   */
+  public boolean isSupported() {
+    return (PLATFORM == this) || (null != OF_VIRTUAL);
+  }
+
+  /**
+   * Creates an unstarted thread of this mode.  Note that virtual threads are always daemon threads.
+   * 
+   * @param name The name of the thread
+   * @param task The body of the thread
+   * @return The new thread
+   */
+  public Thread newThread(String name, Runnable task) {
+    Thread thread;
+    if (PLATFORM == this) {
+      thread = new Thread(task);
+    } else {
+      if (!isSupported()) {
+        throw new UnsupportedOperationException("Virtual threads require JDK 21 or later");
+      }
+      try {
+        thread = (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        // These are public JDK methods so this can't reasonably happen.
+        throw new RuntimeException(e);
+      }
+    }
+    thread.setName(name);
+    return thread;
+  }
+}
@@ -18,101 +18,140 @@ package org.terracotta.passthrough;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
-public class PassthroughTimerThread extends Thread {
-  private boolean shouldRun = true;
+/**
+ * The timer used by the IEntityMessenger service.  The thread it runs on is created with the server's thread mode.
+ * The timer waits on a j.u.c lock, not a monitor, so that a virtual timer thread doesn't pin its carrier while it sleeps.
+ */
+public class PassthroughTimerThread {
+  private final Thread thread;
   private final AtomicLong nextNumber = new AtomicLong(1L);
+  // Guards shouldRun and the queue.  The timer thread waits on queueChanged for the next element to be due.
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition queueChanged = this.lock.newCondition();
+  private boolean shouldRun = true;
   private final List<ListElement> queue = new ArrayList<ListElement>();
 
-  @Override
-  public void run() {
-    boolean keepRunning = true;
-    while (keepRunning) {
-      NextIntent intent = getNextIntent();
-      keepRunning = intent.keepRunning;
-      if (keepRunning) {
-        Runnable toRun = intent.toRun;
-        if (null != toRun) {
-          try {
-            toRun.run();
-          } catch (Throwable t) {
-            System.err.println("Unexpected exception in timer thread (timed events may be dropped)");
-            t.printStackTrace();
-          }
-        } else {
-          synchronized (this) {
-            try {
-              this.wait(intent.millisToSleep);
-            } catch (InterruptedException e) {
-              // We never interrupt this, internally.
-              Assert.unexpected(e);
-            }
-          }
-        }
+  public PassthroughTimerThread(String threadName, PassthroughThreadMode threadMode) {
+    this.thread = threadMode.newThread(threadName, this::runTimer);
+  }
+
+  public void start() {
+    this.thread.start();
+  }
+
+  public void join() throws InterruptedException {
+    this.thread.join();
+  }
+
+  private void runTimer() {
+    Runnable toRun = waitForNextTask();
+    while (null != toRun) {
+      try {
+        toRun.run();
+      } catch (Throwable t) {
+        System.err.println("Unexpected exception in timer thread (timed events may be dropped)");
+        t.printStackTrace();
       }
+      toRun = waitForNextTask();
     }
   }
 
-  public synchronized void shutdown() {
-    this.shouldRun = false;
-    this.notifyAll();
+  public void shutdown() {
+    this.lock.lock();
+    try {
+      this.shouldRun = false;
+      this.queueChanged.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized long scheduleAfterDelay(Runnable runnable, long millisBeforeSend) {
-    long currentTime = System.currentTimeMillis();
-    long nextId = this.nextNumber.getAndIncrement();
-    ListElement element = new ListElement(nextId, runnable, currentTime + millisBeforeSend, 0);
-    enqueueInList(element);
-    return nextId;
+  public long scheduleAfterDelay(Runnable runnable, long millisBeforeSend) {
+    this.lock.lock();
+    try {
+      long currentTime = System.currentTimeMillis();
+      long nextId = this.nextNumber.getAndIncrement();
+      ListElement element = new ListElement(nextId, runnable, currentTime + millisBeforeSend, 0);
+      enqueueInList(element);
+      return nextId;
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized long schedulePeriodically(Runnable runnable, long millisBetweenSends) {
-    long currentTime = System.currentTimeMillis();
-    long nextId = this.nextNumber.getAndIncrement();
-    ListElement element = new ListElement(nextId, runnable, currentTime + millisBetweenSends, millisBetweenSends);
-    enqueueInList(element);
-    return nextId;
+  public long schedulePeriodically(Runnable runnable, long millisBetweenSends) {
+    this.lock.lock();
+    try {
+      long currentTime = System.currentTimeMillis();
+      long nextId = this.nextNumber.getAndIncrement();
+      ListElement element = new ListElement(nextId, runnable, currentTime + millisBetweenSends, millisBetweenSends);
+      enqueueInList(element);
+      return nextId;
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized void cancelMessage(long token) {
-    // Walk the queue and remove this element, if we find it (it might already be gone).
-    int indexToDrop = -1;
-    for (int i = 0; ((-1 == indexToDrop) && (i < this.queue.size())); ++i) {
-      if (this.queue.get(i).id == token) {
-        indexToDrop = i;
+  public void cancelMessage(long token) {
+    this.lock.lock();
+    try {
+      // Walk the queue and remove this element, if we find it (it might already be gone).
+      int indexToDrop = -1;
+      for (int i = 0; ((-1 == indexToDrop) && (i < this.queue.size())); ++i) {
+        if (this.queue.get(i).id == token) {
+          indexToDrop = i;
+        }
       }
-    }
-    if (-1 != indexToDrop) {
-      this.queue.remove(indexToDrop);
+      if (-1 != indexToDrop) {
+        this.queue.remove(indexToDrop);
+      }
+    } finally {
+      this.lock.unlock();
     }
   }
 
 
-  private synchronized NextIntent getNextIntent() {
-    long currentTime = System.currentTimeMillis();
-    boolean shouldContinue = this.shouldRun;
-    Runnable toRun = null;
-    long millisToSleep = 0;
-    if (shouldContinue) {
-      if (!this.queue.isEmpty()) {
-        ListElement firstInList = this.queue.get(0);
-        if (firstInList.timeToRun <= currentTime) {
-          this.queue.remove(0);
-          toRun = firstInList.toRun;
-          long reschedulePeriod = firstInList.reschedulePeriod;
-          if (reschedulePeriod > 0) {
-            enqueueInList(new ListElement(firstInList.id, toRun, currentTime + reschedulePeriod, reschedulePeriod));
-          }
+  /**
+   * Waits for the first element in the queue to be due, rescheduling it if it is periodic.
+   * 
+   * @return The task to run, or null if the timer has been shut down
+   */
+  private Runnable waitForNextTask() {
+    this.lock.lock();
+    try {
+      while (this.shouldRun) {
+        long currentTime = System.currentTimeMillis();
+        if (this.queue.isEmpty()) {
+          this.queueChanged.await();
         } else {
-          millisToSleep = (firstInList.timeToRun - currentTime);
+          ListElement firstInList = this.queue.get(0);
+          if (firstInList.timeToRun <= currentTime) {
+            this.queue.remove(0);
+            long reschedulePeriod = firstInList.reschedulePeriod;
+            if (reschedulePeriod > 0) {
+              enqueueInList(new ListElement(firstInList.id, firstInList.toRun, currentTime + reschedulePeriod, reschedulePeriod));
+            }
+            return firstInList.toRun;
+          }
+          this.queueChanged.await(firstInList.timeToRun - currentTime, TimeUnit.MILLISECONDS);
         }
       }
+    } catch (InterruptedException e) {
+      // We never interrupt this, internally.
+      Assert.unexpected(e);
+    } finally {
+      this.lock.unlock();
     }
-    return new NextIntent(shouldContinue, toRun, millisToSleep);
+    return null;
   }
 
+  // Must be called under lock.
   private void enqueueInList(ListElement element) {
     int listSize = this.queue.size();
     int indexToInsert = listSize;
@@ -123,7 +162,7 @@ public class PassthroughTimerThread extends Thread {
       }
     }
     this.queue.add(indexToInsert, element);
-    this.notifyAll();
+    this.queueChanged.signalAll();
   }
 
 
@@ -140,17 +179,4 @@ public class PassthroughTimerThread extends Thread {
       this.reschedulePeriod = reschedulePeriod;
     }
   }
-
-
-  private static class NextIntent {
-    public final boolean keepRunning;
-    public final Runnable toRun;
-    public final long millisToSleep;
-    
-    public NextIntent(boolean keepRunning, Runnable toRun, long millisToSleep) {
-      this.keepRunning = keepRunning;
-      this.toRun = toRun;
-      this.millisToSleep = millisToSleep;
-    }
-  }
-}
\ No newline at end of file
+}
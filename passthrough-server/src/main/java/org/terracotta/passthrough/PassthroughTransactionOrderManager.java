@@ -19,8 +19,10 @@ package org.terracotta.passthrough;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -35,6 +37,9 @@ public class PassthroughTransactionOrderManager {
 
   private List<ClientTransaction> clientTransactionList;
   private long receivedTransactionCount;
+  // Tracking updates are buffered here, by connection, until commitTracking() so that a batch of messages is persisted
+  //  together.
+  private final Map<Long, PendingSequence> pendingSequences = new LinkedHashMap<Long, PendingSequence>();
   
   // This map is only available while handling re-sends.
   private Map<ClientTransaction, PassthroughMessageContainer> collectedResends;
@@ -44,6 +49,9 @@ public class PassthroughTransactionOrderManager {
     buildClientTransactionList(savedClientConnections, shouldLoadStorage);
   }
 
+  /**
+   * Records the order of a received transaction.  This isn't persisted until the next call to commitTracking().
+   */
   public void updateTracking(long connectionID, long transactionID, long oldestIDOnConnection) {
     receivedTransactionCount++;
 
@@ -51,7 +59,31 @@ public class PassthroughTransactionOrderManager {
     sequenceTuple.globalSequenceID = receivedTransactionCount;
     sequenceTuple.localSequenceID = transactionID;
 
-    this.platformPersistence.fastStoreSequence(connectionID, sequenceTuple, oldestIDOnConnection);
+    PendingSequence pending = this.pendingSequences.get(connectionID);
+    if (null == pending) {
+      pending = new PendingSequence();
+      this.pendingSequences.put(connectionID, pending);
+    }
+    pending.add(sequenceTuple, oldestIDOnConnection);
+  }
+
+  /**
+   * Persists all the tracking updates since the last commit:  one batched store per connection, if the persistence
+   * supports it.
+   */
+  public void commitTracking() {
+    for (Map.Entry<Long, PendingSequence> entry : this.pendingSequences.entrySet()) {
+      long connectionID = entry.getKey();
+      PendingSequence pending = entry.getValue();
+      if (this.platformPersistence instanceof IBatchedSequencePersistence) {
+        ((IBatchedSequencePersistence) this.platformPersistence).fastStoreSequenceBatch(connectionID, pending.newEntries, pending.oldestValidSequenceIDs);
+      } else {
+        for (int i = 0; i < pending.newEntries.size(); ++i) {
+          this.platformPersistence.fastStoreSequence(connectionID, pending.newEntries.get(i), pending.oldestValidSequenceIDs[i]);
+        }
+      }
+    }
+    this.pendingSequences.clear();
   }
 
   public void startHandlingResends() {
@@ -117,6 +149,21 @@ public class PassthroughTransactionOrderManager {
     }
   }
 
+  private static class PendingSequence {
+    public final List<IPlatformPersistence.SequenceTuple> newEntries = new ArrayList<IPlatformPersistence.SequenceTuple>();
+    // The oldest ID on the connection when each entry was received, at the same index as the entry.
+    public long[] oldestValidSequenceIDs = new long[8];
+
+    public void add(IPlatformPersistence.SequenceTuple sequenceTuple, long oldestValidSequenceID) {
+      int index = this.newEntries.size();
+      if (index == this.oldestValidSequenceIDs.length) {
+        this.oldestValidSequenceIDs = Arrays.copyOf(this.oldestValidSequenceIDs, index * 2);
+      }
+      this.newEntries.add(sequenceTuple);
+      this.oldestValidSequenceIDs[index] = oldestValidSequenceID;
+    }
+  }
+
   private static class ClientTransaction implements Serializable {
     private static final long serialVersionUID = 1L;
     
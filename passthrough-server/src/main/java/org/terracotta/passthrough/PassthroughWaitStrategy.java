@@ -0,0 +1,132 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+
+/**
+ * How a thread waiting for the next item of one of the passthrough queues (the server's incoming message queue, its stages,
+ * and each client connection's incoming queue) waits for it.
+ * BLOCKING parks right away, which costs a park/unpark on every handoff.  SPIN_YIELD_PARK first polls the queue, spinning
+ * and then yielding, before it parks, which is much faster when items arrive in quick succession.  BUSY_SPIN never parks
+ * so it gives the lowest latency but keeps a core busy for every waiting thread, so it is only useful for benchmarks on
+ * machines with enough cores.
+ * Instances are immutable.
+ */
+public final class PassthroughWaitStrategy {
+  public enum Kind {
+    BLOCKING,
+    SPIN_YIELD_PARK,
+    BUSY_SPIN,
+  }
+
+  public static final int DEFAULT_SPINS = 10000;
+  public static final int DEFAULT_YIELDS = 100;
+
+  public static final PassthroughWaitStrategy BLOCKING = new PassthroughWaitStrategy(Kind.BLOCKING, 0, 0);
+  public static final PassthroughWaitStrategy BUSY_SPIN = new PassthroughWaitStrategy(Kind.BUSY_SPIN, 0, 0);
+
+  // Thread.onSpinWait(), if this JDK has it (the passthrough is built for Java 8).
+  private static final MethodHandle ON_SPIN_WAIT;
+  static {
+    MethodHandle onSpinWait = null;
+    try {
+      onSpinWait = MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+    } catch (ReflectiveOperationException e) {
+      // This JDK doesn't have the hint so we just spin.
+      onSpinWait = null;
+    }
+    ON_SPIN_WAIT = onSpinWait;
+  }
+
+  /**
+   * @return A strategy which spins and yields the default number of times before it parks
+   */
+  public static PassthroughWaitStrategy spinYieldPark() {
+    return spinYieldPark(DEFAULT_SPINS, DEFAULT_YIELDS);
+  }
+
+  /**
+   * @param spins The number of times to poll the queue, with a spin-wait hint, before yielding
+   * @param yields The number of times to poll the queue, yielding the CPU, before parking
+   * @return A strategy which spins and then yields before it parks
+   */
+  public static PassthroughWaitStrategy spinYieldPark(int spins, int yields) {
+    Assert.assertTrue((spins >= 0) && (yields >= 0));
+    return new PassthroughWaitStrategy(Kind.SPIN_YIELD_PARK, spins, yields);
+  }
+
+  private final Kind kind;
+  private final int spins;
+  private final int yields;
+
+  private PassthroughWaitStrategy(Kind kind, int spins, int yields) {
+    this.kind = kind;
+    this.spins = spins;
+    this.yields = yields;
+  }
+
+  public Kind getKind() {
+    return this.kind;
+  }
+
+  public int getSpins() {
+    return this.spins;
+  }
+
+  public int getYields() {
+    return this.yields;
+  }
+
+  /**
+   * Called by a waiting thread each time it polls its queue and finds nothing.  This spins or yields, according to the
+   * strategy, or tells the caller that it is time to park.
+   * 
+   * @param idleCount The number of consecutive polls which have found nothing, before this one (0 on the first)
+   * @return True if the caller should poll again, false if it should park until it is woken
+   */
+  public boolean idle(int idleCount) {
+    boolean shouldPollAgain = true;
+    if ((Kind.BUSY_SPIN == this.kind) || (idleCount < this.spins)) {
+      onSpinWait();
+    } else if (idleCount < ((long) this.spins + this.yields)) {
+      Thread.yield();
+    } else {
+      shouldPollAgain = false;
+    }
+    return shouldPollAgain;
+  }
+
+  @Override
+  public String toString() {
+    return (Kind.SPIN_YIELD_PARK == this.kind) ? (this.kind + "(spins=" + this.spins + ", yields=" + this.yields + ")") : this.kind.toString();
+  }
+
+  private static void onSpinWait() {
+    if (null != ON_SPIN_WAIT) {
+      try {
+        ON_SPIN_WAIT.invokeExact();
+      } catch (Throwable t) {
+        // This is a hint with no failure modes so this can't reasonably happen.
+        throw new RuntimeException(t);
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+import org.terracotta.passthrough.PassthroughMessage.Type;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class PassthroughBufferPoolTest {
+
+  @Test
+  public void testReleasedBufferIsReused() throws Exception {
+    PassthroughBufferPool pool = new PassthroughBufferPool();
+    PassthroughPooledBuffer buffer = pool.acquire(100);
+    assertThat(buffer.capacity(), equalTo(128));
+    buffer.release();
+    // Anything in the same size class gets the same buffer back.
+    assertThat(pool.acquire(65), sameInstance(buffer));
+    assertThat(pool.getAllocatedCount(), equalTo(1L));
+    assertThat(pool.getReusedCount(), equalTo(1L));
+  }
+
+  @Test
+  public void testRetainedBufferIsNotReused() throws Exception {
+    PassthroughBufferPool pool = new PassthroughBufferPool();
+    PassthroughPooledBuffer buffer = pool.acquire(10);
+    buffer.retain();
+    buffer.release();
+    PassthroughPooledBuffer other = pool.acquire(10);
+    assertThat(other, not(sameInstance(buffer)));
+    buffer.release();
+    assertThat(pool.acquire(10), sameInstance(buffer));
+  }
+
+  @Test
+  public void testLargeBuffersAreNotPooled() throws Exception {
+    PassthroughBufferPool pool = new PassthroughBufferPool();
+    int size = 1 << 20;
+    PassthroughPooledBuffer buffer = pool.acquire(size);
+    assertThat(buffer.capacity(), equalTo(size));
+    buffer.release();
+    assertThat(pool.acquire(size), not(sameInstance(buffer)));
+    assertThat(pool.getReusedCount(), equalTo(0L));
+  }
+
+  @Test
+  public void testMessageInPooledBuffer() throws Exception {
+    PassthroughBufferPool pool = new PassthroughBufferPool();
+    PassthroughMessage invoke = PassthroughMessageCodec.createInvokeMessage(7L, 3L, new byte[] { 1, 2, 3 }, true);
+    invoke.setTransactionTracking(12L, 10L);
+    // Fill a buffer with another message first so we know the second one is written over it.
+    pool.acquire(PassthroughMessageCodec.createDestroyMessage("class", "name")).release();
+    PassthroughPooledBuffer buffer = pool.acquire(invoke);
+    assertThat(pool.getReusedCount(), equalTo(1L));
+    byte[] raw = buffer.array();
+    assertThat(raw.length > invoke.serializedSize(), is(true));
+    assertThat(PassthroughMessageCodec.decodeTransactionTypeFromRawMessage(raw), equalTo(Type.INVOKE_ON_SERVER));
+    assertThat(PassthroughMessageCodec.decodeTransactionIDFromRawMessage(raw), equalTo(12L));
+    long payloadSum = PassthroughMessageCodec.decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      assertThat(input.readLong(), equalTo(7L));
+      assertThat(input.readLong(), equalTo(3L));
+      long sum = 0;
+      for (int i = input.readInt(); i > 0; --i) {
+        sum += input.readByte();
+      }
+      return sum;
+    }, raw);
+    assertThat(payloadSum, equalTo(6L));
+  }
+}
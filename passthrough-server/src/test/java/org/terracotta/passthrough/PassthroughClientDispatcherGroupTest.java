@@ -0,0 +1,321 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+import org.terracotta.connection.entity.EntityRef;
+import org.terracotta.entity.InvocationCallback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks the dispatcher group on its own and with several connections sharing it.
+ */
+public class PassthroughClientDispatcherGroupTest {
+  private static final String STRIPE_NAME = "dispatchers";
+  private static final Set<InvocationCallback.Types> CALLBACKS = EnumSet.of(InvocationCallback.Types.RESULT, InvocationCallback.Types.FAILURE, InvocationCallback.Types.RETIRED);
+
+  @Test
+  public void testScheduledDispatchesRunOnTheGroup() throws Exception {
+    PassthroughClientDispatcherGroup group = new PassthroughClientDispatcherGroup(2);
+    int dispatchCount = 100;
+    CountDownLatch done = new CountDownLatch(dispatchCount);
+    AtomicInteger onGroup = new AtomicInteger();
+    for (int i = 0; i < dispatchCount; ++i) {
+      group.schedule(() -> {
+        if (group.isDispatcherThread()) {
+          onGroup.incrementAndGet();
+        }
+        done.countDown();
+      });
+    }
+    assertThat(done.await(10, TimeUnit.SECONDS), equalTo(true));
+    assertThat(onGroup.get(), equalTo(dispatchCount));
+    assertThat(group.isDispatcherThread(), equalTo(false));
+    group.shutdown();
+  }
+
+  @Test
+  public void testFailedDispatchDoesNotStopTheThread() throws Exception {
+    PassthroughClientDispatcherGroup group = new PassthroughClientDispatcherGroup(1);
+    CountDownLatch done = new CountDownLatch(1);
+    group.schedule(() -> {
+      throw new IllegalStateException("Expected by the test");
+    });
+    group.schedule(() -> done.countDown());
+    assertThat(done.await(10, TimeUnit.SECONDS), equalTo(true));
+    group.shutdown();
+  }
+
+  @Test
+  public void testConnectionsKeepTheirOrder() throws Exception {
+    PassthroughClientDispatcherGroup group = new PassthroughClientDispatcherGroup(2);
+    PassthroughClusterControl cluster = createCluster(false, null);
+    try {
+      List<EchoClient> clients = connectClients(group, 4);
+      int echoCount = 200;
+      CountDownLatch retired = new CountDownLatch(clients.size() * echoCount);
+      for (long i = 0; i < echoCount; ++i) {
+        for (EchoClient client : clients) {
+          client.echo(i, retired, null);
+        }
+      }
+      assertThat(retired.await(30, TimeUnit.SECONDS), equalTo(true));
+      for (EchoClient client : clients) {
+        assertThat(client.getResults(), equalTo(range(0, echoCount)));
+        // Each result was handled as the client thread of its own connection, and of no other.
+        assertThat(client.wrongThreadCount.get(), equalTo(0));
+      }
+      closeClients(clients);
+    } finally {
+      cluster.tearDown();
+      group.shutdown();
+    }
+  }
+
+  @Test
+  public void testDispatchLimitIsFair() throws Exception {
+    int dispatchLimit = 2;
+    PassthroughClientDispatcherGroup group = new PassthroughClientDispatcherGroup("Fair dispatcher", 1, PassthroughThreadMode.PLATFORM, dispatchLimit);
+    List<PassthroughEchoEntity.ServerService> services = Collections.synchronizedList(new ArrayList<>());
+    PassthroughClusterControl cluster = createCluster(false, services);
+    try {
+      List<EchoClient> clients = connectClients(group, 2);
+      // Hold the only thread until both connections have a backlog of messages.
+      CountDownLatch release = new CountDownLatch(1);
+      group.schedule(() -> await(release));
+      int echoCount = 50;
+      CountDownLatch retired = new CountDownLatch(clients.size() * echoCount);
+      List<Integer> handledBy = Collections.synchronizedList(new ArrayList<>());
+      for (long i = 0; i < echoCount; ++i) {
+        for (int c = 0; c < clients.size(); ++c) {
+          clients.get(c).echo(i, retired, handledBy);
+        }
+      }
+      long deadline = System.currentTimeMillis() + 10_000;
+      while ((services.get(0).getActiveValues().size() < (clients.size() * echoCount)) && (System.currentTimeMillis() < deadline)) {
+        Thread.sleep(10);
+      }
+      release.countDown();
+      assertThat(retired.await(30, TimeUnit.SECONDS), equalTo(true));
+      // Each connection only gets a couple of messages at a time so, rather than one connection's results all coming before
+      //  the other's, they take turns.
+      int turns = 0;
+      synchronized (handledBy) {
+        for (int i = 1; i < handledBy.size(); ++i) {
+          if (!handledBy.get(i).equals(handledBy.get(i - 1))) {
+            turns += 1;
+          }
+        }
+      }
+      assertThat(turns, greaterThan(echoCount / 2));
+      for (EchoClient client : clients) {
+        assertThat(client.getResults(), equalTo(range(0, echoCount)));
+      }
+      closeClients(clients);
+    } finally {
+      cluster.tearDown();
+      group.shutdown();
+    }
+  }
+
+  @Test
+  public void testCloseWaitsForRunningDispatch() throws Exception {
+    PassthroughClientDispatcherGroup group = new PassthroughClientDispatcherGroup(1);
+    PassthroughClusterControl cluster = createCluster(false, null);
+    try {
+      List<EchoClient> clients = connectClients(group, 2);
+      EchoClient closing = clients.get(0);
+      EchoClient other = clients.get(1);
+      CountDownLatch inCallback = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      closing.entity.getEndpoint().message(new PassthroughEchoEntity.EchoMessage(1)).invoke(new InvocationCallback<PassthroughEchoEntity.EchoResponse>() {
+        @Override
+        public void result(PassthroughEchoEntity.EchoResponse response) {
+          inCallback.countDown();
+          await(release);
+        }
+      }, CALLBACKS);
+      assertThat(inCallback.await(10, TimeUnit.SECONDS), equalTo(true));
+
+      CountDownLatch closed = new CountDownLatch(1);
+      Thread closer = new Thread(() -> {
+        closing.connection.close();
+        closed.countDown();
+      });
+      closer.start();
+      // The connection can't finish closing while a dispatcher is still handling its message.
+      assertThat(closed.await(200, TimeUnit.MILLISECONDS), equalTo(false));
+      release.countDown();
+      assertThat(closed.await(10, TimeUnit.SECONDS), equalTo(true));
+      closer.join();
+      assertThat(closing.connection.isValid(), equalTo(false));
+      // The group carries on with the other connection.
+      assertThat(other.entity.echo(2), equalTo(2L));
+      closeClients(Collections.singletonList(other));
+    } finally {
+      cluster.tearDown();
+      group.shutdown();
+    }
+  }
+
+  @Test
+  public void testConnectionsSurviveFailover() throws Exception {
+    PassthroughClientDispatcherGroup group = new PassthroughClientDispatcherGroup(2);
+    PassthroughClusterControl cluster = createCluster(true, null);
+    try {
+      List<EchoClient> clients = connectClients(group, 3);
+      int echoCount = 20;
+      CountDownLatch beforeFailover = new CountDownLatch(clients.size() * echoCount);
+      for (long i = 0; i < echoCount; ++i) {
+        for (EchoClient client : clients) {
+          client.echo(i, beforeFailover, null);
+        }
+      }
+      assertThat(beforeFailover.await(30, TimeUnit.SECONDS), equalTo(true));
+
+      cluster.terminateActive();
+      cluster.waitForActive();
+      CountDownLatch afterFailover = new CountDownLatch(clients.size() * echoCount);
+      for (long i = echoCount; i < (2 * echoCount); ++i) {
+        for (EchoClient client : clients) {
+          client.echo(i, afterFailover, null);
+        }
+      }
+      assertThat(afterFailover.await(30, TimeUnit.SECONDS), equalTo(true));
+      for (EchoClient client : clients) {
+        assertThat(client.getResults(), equalTo(range(0, 2 * echoCount)));
+        assertThat(client.wrongThreadCount.get(), equalTo(0));
+      }
+      closeClients(clients);
+    } finally {
+      cluster.tearDown();
+      group.shutdown();
+    }
+  }
+
+  private static PassthroughClusterControl createCluster(boolean withPassive, List<PassthroughEchoEntity.ServerService> services) throws Exception {
+    PassthroughTestHelpers.ServerInitializer initializer = server -> {
+      PassthroughEchoEntity.ServerService service = new PassthroughEchoEntity.ServerService();
+      if (null != services) {
+        services.add(service);
+      }
+      server.registerServerEntityService(service);
+      server.registerClientEntityService(new PassthroughEchoEntity.ClientService());
+    };
+    PassthroughClusterControl cluster = withPassive
+        ? PassthroughTestHelpers.createActivePassive(STRIPE_NAME, initializer)
+        : PassthroughTestHelpers.createActiveOnly(STRIPE_NAME, initializer);
+    cluster.waitForActive();
+    return cluster;
+  }
+
+  private static List<EchoClient> connectClients(PassthroughClientDispatcherGroup group, int count) throws Exception {
+    List<EchoClient> clients = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      PassthroughConnection connection = PassthroughServerRegistry.getSharedInstance().getServerForName(STRIPE_NAME).connectNewClient("client " + i, group);
+      EntityRef<PassthroughEchoEntity, Void, Void> ref = connection.getEntityRef(PassthroughEchoEntity.class, 1, "echo " + i);
+      ref.create(null);
+      clients.add(new EchoClient(i, connection, ref.fetchEntity(null)));
+    }
+    for (EchoClient client : clients) {
+      client.others = clients;
+    }
+    return clients;
+  }
+
+  private static void closeClients(List<EchoClient> clients) {
+    for (EchoClient client : clients) {
+      client.entity.close();
+      client.connection.close();
+    }
+  }
+
+  private static List<Long> range(long start, long end) {
+    List<Long> values = new ArrayList<>();
+    for (long i = start; i < end; ++i) {
+      values.add(i);
+    }
+    return values;
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * A connection on the group, with an echo entity which records the results it gets, in order.
+   */
+  private static class EchoClient {
+    public final int index;
+    public final PassthroughConnection connection;
+    public final PassthroughEchoEntity entity;
+    // Results which weren't handled as the client thread of this connection, or were also the client thread of another.
+    public final AtomicInteger wrongThreadCount = new AtomicInteger();
+    private final List<Long> results = Collections.synchronizedList(new ArrayList<>());
+    public volatile List<EchoClient> others;
+
+    public EchoClient(int index, PassthroughConnection connection, PassthroughEchoEntity entity) {
+      this.index = index;
+      this.connection = connection;
+      this.entity = entity;
+    }
+
+    public List<Long> getResults() {
+      synchronized (this.results) {
+        return new ArrayList<>(this.results);
+      }
+    }
+
+    public void echo(long value, CountDownLatch retired, List<Integer> handledBy) {
+      this.entity.getEndpoint().message(new PassthroughEchoEntity.EchoMessage(value)).invoke(new InvocationCallback<PassthroughEchoEntity.EchoResponse>() {
+        @Override
+        public void result(PassthroughEchoEntity.EchoResponse response) {
+          EchoClient client = EchoClient.this;
+          for (EchoClient other : client.others) {
+            if (other.connection.isClientThread() != (other == client)) {
+              client.wrongThreadCount.incrementAndGet();
+            }
+          }
+          client.results.add(response.value);
+          if (null != handledBy) {
+            handledBy.add(client.index);
+          }
+        }
+        @Override
+        public void retired() {
+          retired.countDown();
+        }
+      }, CALLBACKS);
+    }
+  }
+}
@@ -20,11 +20,22 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.terracotta.entity.InvocationCallback;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
-import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class PassthroughConnectionStateTest {
   @Test
@@ -32,7 +43,7 @@ public class PassthroughConnectionStateTest {
     PassthroughServerProcess passthroughServer = mock(PassthroughServerProcess.class);
     PassthroughConnectionState passthroughConnectionState = new PassthroughConnectionState(passthroughServer);
     ArgumentCaptor<byte[]> byteArgumentCaptor = ArgumentCaptor.forClass(byte[].class);
-    doNothing().when(passthroughServer).sendMessageToServer(ArgumentCaptor.forClass(PassthroughConnection.class).capture(), byteArgumentCaptor.capture());
+    when(passthroughServer.trySendMessageToServer(ArgumentCaptor.forClass(PassthroughConnection.class).capture(), byteArgumentCaptor.capture())).thenReturn(true);
 
     //send some messages and verify
     for(int i = 1; i <= 20; i++) {
@@ -52,6 +63,123 @@ public class PassthroughConnectionStateTest {
     sendOneMessageAndVerify(passthroughConnectionState, byteArgumentCaptor, 22, 22);
   }
 
+  @Test
+  public void testConcurrentSendersWhileRetiring() throws Exception {
+    // The server just hands each message to a thread which acks and retires it, as the client thread would.
+    LinkedBlockingQueue<byte[]> sentMessages = new LinkedBlockingQueue<>();
+    PassthroughServerProcess passthroughServer = new PassthroughServerProcess("server", 0, 0, Collections.emptyList(), true, victim -> {}) {
+      @Override
+      public boolean trySendMessageToServer(PassthroughConnection sender, byte[] message) {
+        sentMessages.add(message);
+        return true;
+      }
+    };
+    PassthroughConnectionState passthroughConnectionState = new PassthroughConnectionState(passthroughServer);
+    PassthroughConnection connection = new PassthroughConnection("connection", "reader", null, Collections.emptyList(), () -> {}, 1L);
+    connection.setBufferPool(null);
+    int senderCount = 4;
+    int messagesPerSender = 2000;
+    int messageCount = senderCount * messagesPerSender;
+
+    List<TestTxnInfo> retired = new ArrayList<>();
+    // An assertion failing on the retirer must fail the test, not just end that thread.
+    AtomicReference<Throwable> retirerFailure = new AtomicReference<>();
+    Thread retirer = new Thread(() -> {
+      try {
+        for (int i = 0; i < messageCount; ++i) {
+          byte[] message = sentMessages.poll(30, TimeUnit.SECONDS);
+          if (null == message) {
+            throw new AssertionError("Timed out waiting for message " + i + " of " + messageCount);
+          }
+          TestTxnInfo info = PassthroughMessageCodec.decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> new TestTxnInfo(oldestTransactionID, transactionID), message);
+          // The callback must hear that its message was sent before it hears anything else.
+          passthroughConnectionState.getInvocationForTransaction(passthroughServer, info.currentTransactionID).received();
+          passthroughConnectionState.removeInvocationForTransaction(passthroughServer, info.currentTransactionID);
+          retired.add(info);
+        }
+      } catch (Throwable t) {
+        retirerFailure.set(t);
+      }
+    });
+    retirer.start();
+    List<Thread> senders = new ArrayList<>();
+    for (int i = 0; i < senderCount; ++i) {
+      senders.add(new Thread(() -> {
+        for (int j = 0; j < messagesPerSender; ++j) {
+          passthroughConnectionState.sendNormal(connection, PassthroughMessageCodec.createAckMessage(), new OrderCheckingCallback());
+        }
+      }));
+    }
+    for (Thread sender : senders) {
+      sender.start();
+    }
+    for (Thread sender : senders) {
+      sender.join();
+    }
+    retirer.join();
+    Throwable failure = retirerFailure.get();
+    if (null != failure) {
+      throw new AssertionError("Retirer failed", failure);
+    }
+
+    // Every message got its own transaction, which it never claimed was retired.
+    Set<Long> transactionIDs = new HashSet<>();
+    for (TestTxnInfo info : retired) {
+      assertThat(transactionIDs.add(info.currentTransactionID), is(true));
+      assertThat(info.oldestTransactionID <= info.currentTransactionID, is(true));
+    }
+    assertThat(transactionIDs.size(), is(equalTo(messageCount)));
+    // Everything was retired so the next message is the oldest.
+    passthroughConnectionState.sendNormal(connection, PassthroughMessageCodec.createAckMessage(), new OrderCheckingCallback());
+    TestTxnInfo last = PassthroughMessageCodec.decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> new TestTxnInfo(oldestTransactionID, transactionID), sentMessages.take());
+    assertThat(last.oldestTransactionID, is(equalTo(last.currentTransactionID)));
+  }
+
+  @Test
+  public void testBlockedSenderWaitsOutsideLocks() throws Exception {
+    // The server's queue is full, and set to block, until the sender has waited for space.
+    CountDownLatch waiting = new CountDownLatch(1);
+    CountDownLatch space = new CountDownLatch(1);
+    AtomicBoolean full = new AtomicBoolean(true);
+    LinkedBlockingQueue<byte[]> sentMessages = new LinkedBlockingQueue<>();
+    PassthroughServerProcess passthroughServer = new PassthroughServerProcess("server", 0, 0, Collections.emptyList(), true, victim -> {}) {
+      @Override
+      public boolean trySendMessageToServer(PassthroughConnection sender, byte[] message) {
+        if (full.get()) {
+          return false;
+        }
+        sentMessages.add(message);
+        return true;
+      }
+      @Override
+      public void awaitQueueSpace() {
+        waiting.countDown();
+        try {
+          space.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        full.set(false);
+      }
+    };
+    PassthroughConnectionState passthroughConnectionState = new PassthroughConnectionState(passthroughServer);
+    PassthroughConnection connection = new PassthroughConnection("connection", "reader", null, Collections.emptyList(), () -> {}, 1L);
+    connection.setBufferPool(null);
+    Thread sender = new Thread(() -> passthroughConnectionState.sendNormal(connection, PassthroughMessageCodec.createAckMessage(), new OrderCheckingCallback()));
+    sender.start();
+    assertThat(waiting.await(10, TimeUnit.SECONDS), is(true));
+    // The waiting sender holds no lock so a reconnect can go through.
+    passthroughConnectionState.enterDisconnectedState();
+    assertThat(passthroughConnectionState.enterReconnectState(passthroughServer).isEmpty(), is(true));
+    passthroughConnectionState.finishReconnectState();
+    space.countDown();
+    sender.join();
+    // The refused attempt gave its transaction back.
+    TestTxnInfo info = PassthroughMessageCodec.decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> new TestTxnInfo(oldestTransactionID, transactionID), sentMessages.take());
+    assertThat(info.currentTransactionID, is(equalTo(1L)));
+    assertThat(sentMessages.isEmpty(), is(true));
+  }
+
   @SuppressWarnings({ "unchecked" })
   private static void sendOneMessageAndVerify(PassthroughConnectionState passthroughConnectionState, ArgumentCaptor<byte[]> byteArgumentCaptor, long expectedOldTxnID, long expectedCurTxnID) {
     passthroughConnectionState.sendNormal(mock(PassthroughConnection.class), PassthroughMessageCodec.createAckMessage(), mock(InvocationCallback.class));
@@ -62,6 +190,20 @@ public class PassthroughConnectionStateTest {
     assertThat(testTxnInfo.currentTransactionID, is(equalTo(expectedCurTxnID)));
   }
 
+  private static class OrderCheckingCallback implements InvocationCallback<byte[]> {
+    private volatile boolean sent;
+
+    @Override
+    public void sent() {
+      this.sent = true;
+    }
+
+    @Override
+    public void received() {
+      assertThat(this.sent, is(true));
+    }
+  }
+
   private static class TestTxnInfo {
     public final long oldestTransactionID;
     public final long currentTransactionID;
@@ -0,0 +1,400 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.terracotta.connection.entity.Entity;
+import org.terracotta.entity.ActiveInvokeChannel;
+import org.terracotta.entity.ActiveInvokeContext;
+import org.terracotta.entity.ActiveServerEntity;
+import org.terracotta.entity.ClientDescriptor;
+import org.terracotta.entity.CommonServerEntity;
+import org.terracotta.entity.ConcurrencyStrategy;
+import org.terracotta.entity.ConfigurationException;
+import org.terracotta.entity.EntityClientEndpoint;
+import org.terracotta.entity.EntityClientService;
+import org.terracotta.entity.EntityMessage;
+import org.terracotta.entity.EntityResponse;
+import org.terracotta.entity.EntityServerService;
+import org.terracotta.entity.ExecutionStrategy;
+import org.terracotta.entity.InvocationCallback;
+import org.terracotta.entity.InvokeContext;
+import org.terracotta.entity.MessageCodec;
+import org.terracotta.entity.MessageCodecException;
+import org.terracotta.entity.PassiveServerEntity;
+import org.terracotta.entity.PassiveSynchronizationChannel;
+import org.terracotta.entity.ServiceRegistry;
+import org.terracotta.entity.SyncMessageCodec;
+
+
+/**
+ * A minimal entity for the tests which need to drive messages through a real server:  each message carries a value which
+ * the server-side entity records, in the order it runs them, and sends back as the response.  The values recorded by the
+ * active and passive entities of a server are kept by that server's ServerService.
+ * A message with a negative value opens its invoke channel on the active, and holds it open until the next message runs, so
+ * its retirement is held back until then.
+ * A ServerService can also hold its active entities' messages before they run, stalling that server's execution.
+ */
+public class PassthroughEchoEntity implements Entity {
+  private static final Set<InvocationCallback.Types> CALLBACKS = EnumSet.of(InvocationCallback.Types.RESULT, InvocationCallback.Types.FAILURE);
+
+  private final EntityClientEndpoint<EchoMessage, EchoResponse> endpoint;
+
+  public PassthroughEchoEntity(EntityClientEndpoint<EchoMessage, EchoResponse> endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  public EntityClientEndpoint<EchoMessage, EchoResponse> getEndpoint() {
+    return this.endpoint;
+  }
+
+  public long echo(long value) throws InterruptedException, ExecutionException {
+    return echoAsync(value).get();
+  }
+
+  public CompletableFuture<Long> echoAsync(long value) {
+    CompletableFuture<Long> future = new CompletableFuture<>();
+    this.endpoint.message(new EchoMessage(value)).invoke(new InvocationCallback<EchoResponse>() {
+      @Override
+      public void sent() {
+      }
+      @Override
+      public void received() {
+      }
+      @Override
+      public void result(EchoResponse response) {
+        future.complete(response.value);
+      }
+      @Override
+      public void failure(Throwable failure) {
+        future.completeExceptionally(failure);
+      }
+      @Override
+      public void complete() {
+      }
+      @Override
+      public void retired() {
+      }
+    }, CALLBACKS);
+    return future;
+  }
+
+  @Override
+  public void close() {
+    this.endpoint.close();
+  }
+
+
+  public static class EchoMessage implements EntityMessage {
+    public final long value;
+
+    public EchoMessage(long value) {
+      this.value = value;
+    }
+  }
+
+
+  public static class EchoResponse implements EntityResponse {
+    public final long value;
+
+    public EchoResponse(long value) {
+      this.value = value;
+    }
+  }
+
+
+  public static class EchoCodec implements MessageCodec<EchoMessage, EchoResponse>, SyncMessageCodec<EchoMessage> {
+    @Override
+    public byte[] encodeMessage(EchoMessage message) {
+      return ByteBuffer.allocate(Long.BYTES).putLong(message.value).array();
+    }
+
+    @Override
+    public EchoMessage decodeMessage(byte[] payload) {
+      return new EchoMessage(ByteBuffer.wrap(payload).getLong());
+    }
+
+    @Override
+    public byte[] encodeResponse(EchoResponse response) {
+      return ByteBuffer.allocate(Long.BYTES).putLong(response.value).array();
+    }
+
+    @Override
+    public EchoResponse decodeResponse(byte[] payload) {
+      return new EchoResponse(ByteBuffer.wrap(payload).getLong());
+    }
+
+    @Override
+    public byte[] encode(int concurrencyKey, EchoMessage message) throws MessageCodecException {
+      return encodeMessage(message);
+    }
+
+    @Override
+    public EchoMessage decode(int concurrencyKey, byte[] payload) throws MessageCodecException {
+      return decodeMessage(payload);
+    }
+  }
+
+
+  public static class ClientService implements EntityClientService<PassthroughEchoEntity, Void, EchoMessage, EchoResponse, Void> {
+    @Override
+    public boolean handlesEntityType(Class<PassthroughEchoEntity> cls) {
+      return PassthroughEchoEntity.class == cls;
+    }
+
+    @Override
+    public byte[] serializeConfiguration(Void configuration) {
+      return new byte[0];
+    }
+
+    @Override
+    public Void deserializeConfiguration(byte[] configuration) {
+      return null;
+    }
+
+    @Override
+    public PassthroughEchoEntity create(EntityClientEndpoint<EchoMessage, EchoResponse> endpoint, Void userData) {
+      return new PassthroughEchoEntity(endpoint);
+    }
+
+    @Override
+    public MessageCodec<EchoMessage, EchoResponse> getMessageCodec() {
+      return new EchoCodec();
+    }
+  }
+
+
+  public static class ServerService implements EntityServerService<EchoMessage, EchoResponse> {
+    // The values run by this server's active and passive entities, in the order they ran.
+    private final List<Long> activeValues = Collections.synchronizedList(new ArrayList<Long>());
+    private final List<Long> passiveValues = Collections.synchronizedList(new ArrayList<Long>());
+    // While set, the active entities wait for it before running each message.
+    private volatile CountDownLatch activeGate;
+    private final AtomicInteger heldCount = new AtomicInteger();
+
+    /**
+     * Makes the active entities hold each message, before running it, until released or until their server is stopped.
+     */
+    public void holdActive() {
+      this.activeGate = new CountDownLatch(1);
+    }
+
+    public void releaseActive() {
+      CountDownLatch gate = this.activeGate;
+      this.activeGate = null;
+      if (null != gate) {
+        gate.countDown();
+      }
+    }
+
+    /**
+     * @return The number of messages currently held
+     */
+    public int getHeldCount() {
+      return this.heldCount.get();
+    }
+
+    private void awaitActiveGate() {
+      CountDownLatch gate = this.activeGate;
+      if (null != gate) {
+        this.heldCount.incrementAndGet();
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          // The server is being stopped so the message will be dropped anyway.
+          Thread.currentThread().interrupt();
+        } finally {
+          this.heldCount.decrementAndGet();
+        }
+      }
+    }
+
+    public List<Long> getActiveValues() {
+      synchronized (this.activeValues) {
+        return new ArrayList<>(this.activeValues);
+      }
+    }
+
+    public List<Long> getPassiveValues() {
+      synchronized (this.passiveValues) {
+        return new ArrayList<>(this.passiveValues);
+      }
+    }
+
+    @Override
+    public long getVersion() {
+      return 1;
+    }
+
+    @Override
+    public boolean handlesEntityType(String typeName) {
+      return PassthroughEchoEntity.class.getName().equals(typeName);
+    }
+
+    @Override
+    public ActiveServerEntity<EchoMessage, EchoResponse> createActiveEntity(ServiceRegistry registry, byte[] configuration) {
+      return new ActiveEntity(this);
+    }
+
+    @Override
+    public PassiveServerEntity<EchoMessage, EchoResponse> createPassiveEntity(ServiceRegistry registry, byte[] configuration) {
+      return new PassiveEntity(this.passiveValues);
+    }
+
+    @Override
+    public ConcurrencyStrategy<EchoMessage> getConcurrencyStrategy(byte[] configuration) {
+      return new ConcurrencyStrategy<EchoMessage>() {
+        @Override
+        public int concurrencyKey(EchoMessage message) {
+          return 1;
+        }
+        @Override
+        public Set<Integer> getKeysForSynchronization() {
+          return Collections.singleton(1);
+        }
+      };
+    }
+
+    @Override
+    public ExecutionStrategy<EchoMessage> getExecutionStrategy(byte[] configuration) {
+      return new ExecutionStrategy<EchoMessage>() {
+        @Override
+        public Location getExecutionLocation(EchoMessage message) {
+          return Location.BOTH;
+        }
+      };
+    }
+
+    @Override
+    public <AP extends CommonServerEntity<EchoMessage, EchoResponse>> AP reconfigureEntity(ServiceRegistry registry, AP oldEntity, byte[] configuration) {
+      // The entity has no configuration so there is nothing to change.
+      return oldEntity;
+    }
+
+    @Override
+    public MessageCodec<EchoMessage, EchoResponse> getMessageCodec() {
+      return new EchoCodec();
+    }
+
+    @Override
+    public SyncMessageCodec<EchoMessage> getSyncMessageCodec() {
+      return new EchoCodec();
+    }
+  }
+
+
+  private static class ActiveEntity implements ActiveServerEntity<EchoMessage, EchoResponse> {
+    private final ServerService service;
+    // The channel of the last message, if it had a negative value.
+    private ActiveInvokeChannel<EchoResponse> heldChannel;
+
+    public ActiveEntity(ServerService service) {
+      this.service = service;
+    }
+
+    @Override
+    public EchoResponse invokeActive(ActiveInvokeContext<EchoResponse> context, EchoMessage message) {
+      this.service.awaitActiveGate();
+      if (null != this.heldChannel) {
+        this.heldChannel.close();
+        this.heldChannel = null;
+      }
+      if (message.value < 0) {
+        this.heldChannel = context.openInvokeChannel();
+      }
+      this.service.activeValues.add(message.value);
+      return new EchoResponse(message.value);
+    }
+
+    @Override
+    public void connected(ClientDescriptor clientDescriptor) {
+    }
+
+    @Override
+    public void disconnected(ClientDescriptor clientDescriptor) {
+    }
+
+    @Override
+    public void loadExisting() {
+    }
+
+    @Override
+    public void synchronizeKeyToPassive(PassiveSynchronizationChannel<EchoMessage> syncChannel, int concurrencyKey) {
+    }
+
+    @Override
+    public ReconnectHandler startReconnect() {
+      return (clientDescriptor, extendedReconnectData) -> {};
+    }
+
+    @Override
+    public void createNew() throws ConfigurationException {
+    }
+
+    @Override
+    public void destroy() {
+    }
+  }
+
+
+  private static class PassiveEntity implements PassiveServerEntity<EchoMessage, EchoResponse> {
+    private final List<Long> values;
+
+    public PassiveEntity(List<Long> values) {
+      this.values = values;
+    }
+
+    @Override
+    public void invokePassive(InvokeContext context, EchoMessage message) {
+      this.values.add(message.value);
+    }
+
+    @Override
+    public void startSyncEntity() {
+    }
+
+    @Override
+    public void endSyncEntity() {
+    }
+
+    @Override
+    public void startSyncConcurrencyKey(int concurrencyKey) {
+    }
+
+    @Override
+    public void endSyncConcurrencyKey(int concurrencyKey) {
+    }
+
+    @Override
+    public void createNew() throws ConfigurationException {
+    }
+
+    @Override
+    public void destroy() {
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.terracotta.connection.entity.EntityRef;
+import org.terracotta.exception.EntityException;
+import org.terracotta.exception.EntityNotFoundException;
+import org.terracotta.exception.EntityServerException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the handles which the active gives clients for their entities, so that invokes don't carry the entity's class and
+ * name.
+ */
+public class PassthroughEntityHandleTest {
+  private static final String STRIPE_NAME = "handles";
+
+  private final List<PassthroughEchoEntity.ServerService> serverServices = Collections.synchronizedList(new ArrayList<>());
+  private PassthroughClusterControl cluster;
+  private PassthroughConnection connection;
+
+  @Before
+  public void setUp() throws Exception {
+    this.cluster = PassthroughTestHelpers.createActivePassive(STRIPE_NAME, server -> {
+      PassthroughEchoEntity.ServerService service = new PassthroughEchoEntity.ServerService();
+      this.serverServices.add(service);
+      server.registerServerEntityService(service);
+      server.registerClientEntityService(new PassthroughEchoEntity.ClientService());
+    });
+    this.cluster.waitForActive();
+    this.connection = PassthroughServerRegistry.getSharedInstance().getServerForName(STRIPE_NAME).connectNewClient("handle client");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    this.connection.close();
+    this.cluster.tearDown();
+  }
+
+  @Test
+  public void testInvokeByHandle() throws Exception {
+    PassthroughEchoEntity entity = createAndFetch("echo");
+    long handle = handleOf(entity);
+    assertThat(handle, not(equalTo(PassthroughMessageCodec.NO_ENTITY_HANDLE)));
+    for (long i = 0; i < 10; ++i) {
+      assertThat(entity.echo(i), equalTo(i));
+    }
+    // The invokes reached both servers, so the active replicated them by name.
+    for (PassthroughEchoEntity.ServerService service : this.serverServices) {
+      List<Long> values = service.getActiveValues();
+      values.addAll(service.getPassiveValues());
+      assertThat(values.size(), equalTo(10));
+    }
+  }
+
+  @Test
+  public void testStaleHandleAfterDestroy() throws Exception {
+    EntityRef<PassthroughEchoEntity, Void, Void> ref = this.connection.getEntityRef(PassthroughEchoEntity.class, 1, "stale");
+    ref.create(null);
+    PassthroughEchoEntity entity = ref.fetchEntity(null);
+    long handle = handleOf(entity);
+    entity.close();
+    assertThat(ref.destroy(), equalTo(true));
+
+    // The server still knows which entity the handle was for.
+    EntityException error = invokeByHandle(handle);
+    assertThat(error, instanceOf(EntityNotFoundException.class));
+    assertThat(error.getClassName(), equalTo(PassthroughEchoEntity.class.getCanonicalName()));
+    assertThat(error.getEntityName(), equalTo("stale"));
+  }
+
+  @Test
+  public void testUnknownHandle() throws Exception {
+    PassthroughEchoEntity entity = createAndFetch("echo");
+    // The same server process, but an index it never handed out.
+    EntityException error = invokeByHandle(handleOf(entity) + 1000);
+    assertThat(error, instanceOf(EntityServerException.class));
+    // The entity is unaffected.
+    assertThat(entity.echo(1), equalTo(1L));
+  }
+
+  @Test
+  public void testHandleAfterFailover() throws Exception {
+    PassthroughEchoEntity entity = createAndFetch("echo");
+    long handle = handleOf(entity);
+    assertThat(entity.echo(1), equalTo(1L));
+
+    this.cluster.terminateActive();
+    this.cluster.waitForActive();
+    // The client reconnected so it now uses the new active's handle.
+    assertThat(handleOf(entity), not(equalTo(handle)));
+    assertThat(entity.echo(2), equalTo(2L));
+    assertThat(entity.echo(3), equalTo(3L));
+  }
+
+  @Test
+  public void testReSentFetchAfterFailover() throws Exception {
+    PassthroughEchoEntity entity = createAndFetch("echo");
+    assertThat(entity.echo(0), equalTo(0L));
+    PassthroughEchoEntity.ServerService activeService = null;
+    for (PassthroughEchoEntity.ServerService service : this.serverServices) {
+      if (service.getActiveValues().contains(0L)) {
+        activeService = service;
+      }
+    }
+    // The server answered the fetch so the next one only refers to the entity's names.  Since this entity is closed, its
+    //  name isn't in any reconnect message, either.
+    PassthroughEchoEntity closed = createAndFetch("closed");
+    closed.close();
+    EntityRef<PassthroughEchoEntity, Void, Void> ref = this.connection.getEntityRef(PassthroughEchoEntity.class, 1, "closed");
+    assertThat(this.connection.getSymbols().reference("closed"), not(lessThan(0)));
+
+    // Stall the active's execution so that the fetch is still in-flight, and so re-sent, when it fails over.
+    activeService.holdActive();
+    CompletableFuture<Long> held = entity.echoAsync(1);
+    while (0 == activeService.getHeldCount()) {
+      Thread.sleep(10);
+    }
+    CompletableFuture<PassthroughEchoEntity> fetch = ((PassthroughEntityRef<PassthroughEchoEntity, Void, Void>) ref).fetchEntityAsync(null, Runnable::run);
+    this.cluster.terminateActive();
+    this.cluster.waitForActive();
+    activeService.releaseActive();
+
+    // The new active was sent the whole dictionary when the client reconnected, so it resolved the re-sent references.
+    assertThat(held.get(10, TimeUnit.SECONDS), equalTo(1L));
+    PassthroughEchoEntity again = fetch.get(10, TimeUnit.SECONDS);
+    assertThat(again.echo(2), equalTo(2L));
+    // A new name is still defined by its first fetch.
+    try {
+      this.connection.getEntityRef(PassthroughEchoEntity.class, 1, "missing").fetchEntity(null);
+      fail();
+    } catch (EntityNotFoundException e) {
+      assertThat(e.getEntityName(), equalTo("missing"));
+    }
+    again.close();
+  }
+
+  private PassthroughEchoEntity createAndFetch(String name) throws Exception {
+    EntityRef<PassthroughEchoEntity, Void, Void> ref = this.connection.getEntityRef(PassthroughEchoEntity.class, 1, name);
+    ref.create(null);
+    return ref.fetchEntity(null);
+  }
+
+  private static long handleOf(PassthroughEchoEntity entity) {
+    return ((PassthroughEntityClientEndpoint<?, ?>) entity.getEndpoint()).getEntityHandle();
+  }
+
+  private EntityException invokeByHandle(long handle) throws InterruptedException {
+    byte[] payload = ByteBuffer.allocate(Long.BYTES).putLong(1).array();
+    try {
+      this.connection.invokeAndRetire(PassthroughMessageCodec.createInvokeMessage(handle, 1, payload, true));
+      fail();
+      return null;
+    } catch (ExecutionException e) {
+      return (EntityException) e.getCause();
+    }
+  }
+}
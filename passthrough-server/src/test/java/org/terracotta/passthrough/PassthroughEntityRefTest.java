@@ -0,0 +1,172 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.terracotta.connection.entity.EntityRef;
+import org.terracotta.exception.EntityAlreadyExistsException;
+import org.terracotta.exception.EntityNotFoundException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the CompletableFuture variants of the entity lifecycle calls on PassthroughEntityRef.
+ */
+public class PassthroughEntityRefTest {
+  private static final String STRIPE_NAME = "refs";
+
+  private PassthroughClusterControl cluster;
+  private PassthroughConnection connection;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    this.cluster = PassthroughTestHelpers.createActiveOnly(STRIPE_NAME, server -> {
+      server.registerServerEntityService(new PassthroughEchoEntity.ServerService());
+      server.registerClientEntityService(new PassthroughEchoEntity.ClientService());
+    });
+    this.cluster.waitForActive();
+    this.connection = PassthroughServerRegistry.getSharedInstance().getServerForName(STRIPE_NAME).connectNewClient("ref client");
+    this.executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    this.executor.shutdown();
+    this.connection.close();
+    this.cluster.tearDown();
+  }
+
+  @Test
+  public void testLifecycle() throws Exception {
+    PassthroughEntityRef<PassthroughEchoEntity, Void, Void> ref = refFor("echo");
+    ref.createAsync(null).get();
+    assertThat(causeOf(ref.createAsync(null)), instanceOf(EntityAlreadyExistsException.class));
+
+    PassthroughEchoEntity entity = ref.fetchEntityAsync(null, this.executor).get();
+    assertThat(entity.echo(5), equalTo(5L));
+    assertThat(ref.reconfigureAsync(null).get(), nullValue());
+    entity.close();
+
+    assertThat(ref.destroyAsync().get(), equalTo(true));
+    assertThat(causeOf(ref.fetchEntityAsync(null, this.executor)), instanceOf(EntityNotFoundException.class));
+    assertThat(causeOf(ref.reconfigureAsync(null)), instanceOf(EntityNotFoundException.class));
+    assertThat(causeOf(ref.destroyAsync()), instanceOf(EntityNotFoundException.class));
+  }
+
+  @Test
+  public void testCommonFailuresArriveWithoutServerFrames() throws Exception {
+    // By default, the server sends the common exceptions without its stack trace.
+    Throwable notFound = causeOf(refFor("missing").fetchEntityAsync(null, this.executor));
+    assertThat(notFound, instanceOf(EntityNotFoundException.class));
+    assertThat(((EntityNotFoundException) notFound).getEntityName(), equalTo("missing"));
+    assertThat(framesFrom(notFound, PassthroughServerMessageDecoder.class), equalTo(0L));
+
+    PassthroughServerRegistry.getSharedInstance().getServerForName(STRIPE_NAME).setIncludeRemoteStackTraces(true);
+    notFound = causeOf(refFor("missing").fetchEntityAsync(null, this.executor));
+    assertThat(framesFrom(notFound, PassthroughServerMessageDecoder.class), not(equalTo(0L)));
+  }
+
+  @Test
+  public void testFetchCreatesInstanceOnGivenExecutor() throws Exception {
+    PassthroughEntityRef<PassthroughEchoEntity, Void, Void> ref = refFor("echo");
+    ref.create(null);
+    AtomicInteger runs = new AtomicInteger();
+    Thread[] creator = new Thread[1];
+    CompletableFuture<PassthroughEchoEntity> future = ref.fetchEntityAsync(null, task -> {
+      runs.incrementAndGet();
+      Thread thread = new Thread(task, "creator");
+      creator[0] = thread;
+      thread.start();
+    });
+    PassthroughEchoEntity entity = future.get();
+    assertThat(runs.get(), equalTo(1));
+    creator[0].join();
+    // The client thread was free to deliver the other responses while the instance was created.
+    assertThat(entity.echo(1), equalTo(1L));
+  }
+
+  @Test
+  public void testManyInFlightFromOneThread() throws Exception {
+    int count = 2000;
+    List<PassthroughEntityRef<PassthroughEchoEntity, Void, Void>> refs = new ArrayList<>();
+    List<CompletableFuture<Void>> creates = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      PassthroughEntityRef<PassthroughEchoEntity, Void, Void> ref = refFor("echo" + i);
+      refs.add(ref);
+      creates.add(ref.createAsync(null));
+    }
+    CompletableFuture.allOf(creates.toArray(new CompletableFuture<?>[0])).get();
+
+    List<CompletableFuture<PassthroughEchoEntity>> fetches = new ArrayList<>();
+    for (PassthroughEntityRef<PassthroughEchoEntity, Void, Void> ref : refs) {
+      fetches.add(ref.fetchEntityAsync(null, this.executor));
+    }
+    List<CompletableFuture<Long>> echoes = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      echoes.add(fetches.get(i).get().echoAsync(i));
+    }
+    for (int i = 0; i < count; ++i) {
+      assertThat(echoes.get(i).get(), equalTo((long) i));
+      fetches.get(i).get().close();
+    }
+
+    List<CompletableFuture<Boolean>> destroys = new ArrayList<>();
+    for (PassthroughEntityRef<PassthroughEchoEntity, Void, Void> ref : refs) {
+      destroys.add(ref.destroyAsync());
+    }
+    for (CompletableFuture<Boolean> destroy : destroys) {
+      assertThat(destroy.get(), equalTo(true));
+    }
+  }
+
+  private PassthroughEntityRef<PassthroughEchoEntity, Void, Void> refFor(String name) throws Exception {
+    EntityRef<PassthroughEchoEntity, Void, Void> ref = this.connection.getEntityRef(PassthroughEchoEntity.class, 1, name);
+    return (PassthroughEntityRef<PassthroughEchoEntity, Void, Void>) ref;
+  }
+
+  private static long framesFrom(Throwable error, Class<?> type) {
+    return Arrays.stream(error.getStackTrace()).filter(frame -> frame.getClassName().equals(type.getName())).count();
+  }
+
+  private static Throwable causeOf(CompletableFuture<?> future) throws InterruptedException {
+    try {
+      future.get();
+      fail();
+      return null;
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), not(nullValue()));
+      return e.getCause();
+    }
+  }
+}
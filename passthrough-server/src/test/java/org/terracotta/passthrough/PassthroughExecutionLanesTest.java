@@ -0,0 +1,141 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+import org.terracotta.entity.ConcurrencyStrategy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PassthroughExecutionLanesTest {
+
+  @Test
+  public void testSameKeyRunsInOrder() throws Exception {
+    PassthroughExecutionLanes lanes = new PassthroughExecutionLanes("test lane ", 4, null);
+    lanes.start();
+    List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 0; i < 100; ++i) {
+      final int value = i;
+      expected.add(value);
+      lanes.execute(7, () -> order.add(value));
+    }
+    lanes.awaitIdle();
+    assertThat(order, equalTo(expected));
+    lanes.shutdown();
+  }
+
+  @Test
+  public void testDifferentKeysRunConcurrently() throws Exception {
+    PassthroughExecutionLanes lanes = new PassthroughExecutionLanes("test lane ", 2, null);
+    lanes.start();
+    // Each task waits for the other so this can only complete if the two keys are on different lanes, running together.
+    CountDownLatch latch = new CountDownLatch(2);
+    AtomicInteger completed = new AtomicInteger();
+    for (int key = 1; key <= 2; ++key) {
+      lanes.execute(key, () -> {
+        latch.countDown();
+        try {
+          if (latch.await(10, TimeUnit.SECONDS)) {
+            completed.incrementAndGet();
+          }
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      });
+    }
+    lanes.awaitIdle();
+    assertThat(completed.get(), is(2));
+    lanes.shutdown();
+  }
+
+  @Test
+  public void testBarrierKeysWaitForAllLanes() throws Exception {
+    PassthroughExecutionLanes lanes = new PassthroughExecutionLanes("test lane ", 4, null);
+    lanes.start();
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger completed = new AtomicInteger();
+    for (int key = 1; key <= 8; ++key) {
+      lanes.execute(key, () -> {
+        running.incrementAndGet();
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        completed.incrementAndGet();
+        running.decrementAndGet();
+      });
+    }
+    List<Integer> observed = new ArrayList<>();
+    lanes.execute(ConcurrencyStrategy.MANAGEMENT_KEY, () -> {
+      observed.add(running.get());
+      observed.add(completed.get());
+    });
+    lanes.execute(ConcurrencyStrategy.UNIVERSAL_KEY, () -> observed.add(lanes.isLaneThread() ? 1 : 0));
+    assertThat(observed.get(0), is(0));
+    assertThat(observed.get(1), is(8));
+    // Barriers run on the submitting thread.
+    assertThat(observed.get(2), is(0));
+    lanes.shutdown();
+  }
+
+  @Test
+  public void testBoundedLaneMakesSubmitterWait() throws Exception {
+    PassthroughExecutionLanes lanes = new PassthroughExecutionLanes("test lane ", PassthroughThreadMode.PLATFORM, 1, 1, null);
+    lanes.start();
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    lanes.execute(1, () -> {
+      running.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    });
+    assertThat(running.await(10, TimeUnit.SECONDS), is(true));
+    // The running task has left the lane so one more fits but the one after that must wait for it.
+    lanes.execute(1, () -> {});
+    AtomicInteger submitted = new AtomicInteger();
+    Thread submitter = new Thread(() -> {
+      try {
+        lanes.execute(1, () -> {});
+        submitted.incrementAndGet();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    });
+    submitter.start();
+    Thread.sleep(100);
+    assertThat(submitted.get(), is(0));
+    release.countDown();
+    submitter.join();
+    assertThat(submitted.get(), is(1));
+    lanes.awaitIdle();
+    lanes.shutdown();
+  }
+}
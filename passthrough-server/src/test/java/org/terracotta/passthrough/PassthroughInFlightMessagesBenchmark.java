@@ -0,0 +1,55 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+
+/**
+ * Times sending and retiring transactions with a given number already in-flight, for a range of depths, reporting the
+ * time per transaction, which shouldn't grow with the depth.  This is a benchmark, not a test, so it is only run when
+ * asked for (mvn test -Dtest=PassthroughInFlightMessagesBenchmark).
+ */
+public class PassthroughInFlightMessagesBenchmark {
+  private static final int ITERATIONS = 200_000;
+
+  @Test
+  public void benchmarkInFlightDepths() throws Exception {
+    PassthroughInvocationCallback invocation = new PassthroughInvocationCallback(new byte[0], null);
+    for (int depth : new int[] { 10, 1000, 100000 }) {
+      PassthroughInFlightMessages inFlight = new PassthroughInFlightMessages();
+      long next = 1;
+      for (int i = 0; i < depth; ++i) {
+        inFlight.put(next++, invocation);
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; ++i) {
+        // Each send looks up the oldest transaction and the oldest is then retired.
+        long oldest = inFlight.oldestTransactionID(next);
+        inFlight.put(next++, invocation);
+        inFlight.remove(oldest);
+      }
+      long nanos = System.nanoTime() - start;
+      assertThat(inFlight.size(), equalTo(depth));
+      assertThat(inFlight.oldestTransactionID(next), equalTo(next - depth));
+      System.out.println("In-flight depth " + depth + ": " + (nanos / ITERATIONS) + " ns per transaction");
+    }
+  }
+}
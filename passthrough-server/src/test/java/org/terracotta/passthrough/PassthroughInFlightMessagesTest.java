@@ -0,0 +1,151 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class PassthroughInFlightMessagesTest {
+
+  @Test
+  public void testOldestFollowsOutOfOrderRemoval() throws Exception {
+    PassthroughInFlightMessages inFlight = new PassthroughInFlightMessages();
+    assertThat(inFlight.oldestTransactionID(1L), equalTo(1L));
+    List<PassthroughInvocationCallback> invocations = new ArrayList<>();
+    for (long i = 1; i <= 5; ++i) {
+      PassthroughInvocationCallback invocation = invocation();
+      invocations.add(invocation);
+      inFlight.put(i, invocation);
+    }
+    assertThat(inFlight.oldestTransactionID(6L), equalTo(1L));
+    assertThat(inFlight.remove(3L), sameInstance(invocations.get(2)));
+    assertThat(inFlight.remove(3L), nullValue());
+    assertThat(inFlight.oldestTransactionID(6L), equalTo(1L));
+    inFlight.remove(1L);
+    assertThat(inFlight.oldestTransactionID(6L), equalTo(2L));
+    // Removing 2 skips the hole left by 3.
+    inFlight.remove(2L);
+    assertThat(inFlight.oldestTransactionID(6L), equalTo(4L));
+    assertThat(inFlight.get(5L), sameInstance(invocations.get(4)));
+    assertThat(inFlight.snapshot().keySet(), contains(4L, 5L));
+    inFlight.remove(5L);
+    inFlight.remove(4L);
+    assertThat(inFlight.size(), equalTo(0));
+    assertThat(inFlight.oldestTransactionID(6L), equalTo(6L));
+    assertThat(inFlight.get(4L), nullValue());
+  }
+
+  @Test
+  public void testGrowthKeepsEveryTransaction() throws Exception {
+    PassthroughInFlightMessages inFlight = new PassthroughInFlightMessages();
+    // Keep the first transaction in-flight so that the ring must grow to cover everything sent after it.
+    PassthroughInvocationCallback first = invocation();
+    inFlight.put(1L, first);
+    for (long i = 2; i <= 1000; ++i) {
+      inFlight.put(i, invocation());
+      if (0 == (i % 2)) {
+        inFlight.remove(i);
+      }
+    }
+    assertThat(inFlight.size(), equalTo(500));
+    assertThat(inFlight.get(1L), sameInstance(first));
+    assertThat(inFlight.oldestTransactionID(1001L), equalTo(1L));
+    inFlight.remove(1L);
+    assertThat(inFlight.oldestTransactionID(1001L), equalTo(3L));
+    List<Long> order = new ArrayList<>(inFlight.snapshot().keySet());
+    for (int i = 0; i < order.size(); ++i) {
+      assertThat(order.get(i), equalTo(3L + (2 * i)));
+    }
+  }
+
+  @Test
+  public void testPutReplacesAndRefills() throws Exception {
+    PassthroughInFlightMessages inFlight = new PassthroughInFlightMessages();
+    inFlight.put(10L, invocation());
+    inFlight.put(11L, invocation());
+    // A re-sent transaction replaces its invocation.
+    PassthroughInvocationCallback resent = invocation();
+    inFlight.put(10L, resent);
+    assertThat(inFlight.size(), equalTo(2));
+    assertThat(inFlight.get(10L), sameInstance(resent));
+    // A refused send gives its ID back so the same ID is used again.
+    inFlight.put(12L, invocation());
+    inFlight.remove(12L);
+    PassthroughInvocationCallback reused = invocation();
+    inFlight.put(12L, reused);
+    // An older transaction can still be added.
+    inFlight.put(9L, invocation());
+    Map<Long, PassthroughInvocationCallback> snapshot = inFlight.snapshot();
+    assertThat(snapshot.keySet(), contains(9L, 10L, 11L, 12L));
+    assertThat(snapshot.get(12L), sameInstance(reused));
+    assertThat(inFlight.oldestTransactionID(13L), equalTo(9L));
+  }
+
+  @Test
+  public void testFarBehindTransactionIsMovedAside() throws Exception {
+    PassthroughInFlightMessages inFlight = new PassthroughInFlightMessages();
+    // A transaction which is never retired shouldn't make the ring cover everything sent after it.
+    PassthroughInvocationCallback stuck = invocation();
+    inFlight.put(1L, stuck);
+    PassthroughInvocationCallback live = invocation();
+    for (long i = 2; i <= 100000; ++i) {
+      inFlight.put(i, live);
+      if (i > 2) {
+        inFlight.remove(i - 1);
+      }
+    }
+    // Even a span far past the ring's maximum capacity is fine.
+    PassthroughInvocationCallback far = invocation();
+    inFlight.put(1L << 40, far);
+    assertThat(inFlight.size(), equalTo(3));
+    assertThat(inFlight.get(1L), sameInstance(stuck));
+    assertThat(inFlight.get(100000L), sameInstance(live));
+    assertThat(inFlight.get(1L << 40), sameInstance(far));
+    assertThat(inFlight.oldestTransactionID(0L), equalTo(1L));
+    assertThat(inFlight.snapshot().keySet(), contains(1L, 100000L, 1L << 40));
+    List<PassthroughInvocationCallback> order = new ArrayList<>();
+    inFlight.forEach(order::add);
+    assertThat(order, contains(stuck, live, far));
+    // Re-sending an outlier, or adding one older still, keeps them in order.
+    PassthroughInvocationCallback resent = invocation();
+    inFlight.put(1L, resent);
+    inFlight.put(0L, invocation());
+    assertThat(inFlight.snapshot().keySet(), contains(0L, 1L, 100000L, 1L << 40));
+    assertThat(inFlight.get(1L), sameInstance(resent));
+    inFlight.remove(0L);
+    assertThat(inFlight.remove(1L), sameInstance(resent));
+    assertThat(inFlight.oldestTransactionID(0L), equalTo(100000L));
+    inFlight.remove(100000L);
+    assertThat(inFlight.oldestTransactionID(0L), equalTo(1L << 40));
+    inFlight.remove(1L << 40);
+    assertThat(inFlight.size(), equalTo(0));
+    assertThat(inFlight.oldestTransactionID(0L), equalTo(0L));
+  }
+
+  private static PassthroughInvocationCallback invocation() {
+    return new PassthroughInvocationCallback(new byte[0], null);
+  }
+}
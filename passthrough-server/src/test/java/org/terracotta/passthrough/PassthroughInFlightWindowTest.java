@@ -0,0 +1,121 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+import org.terracotta.exception.ConnectionClosedException;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class PassthroughInFlightWindowTest {
+
+  @Test
+  public void testFailPolicyRefusesWhenFull() throws Exception {
+    PassthroughInFlightWindow window = new PassthroughInFlightWindow(2, PassthroughInFlightWindow.FullPolicy.FAIL);
+    window.acquire(1, true);
+    window.acquire(1, true);
+    try {
+      window.acquire(1, true);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // Expected.
+    }
+    assertThat(window.getRejectedCount(), equalTo(1L));
+    window.release(1);
+    window.acquire(1, true);
+    assertThat(window.getInFlight(), equalTo(2));
+    assertThat(window.getPeakInFlight(), equalTo(2));
+    assertThat(window.getWaitCount(), equalTo(0L));
+  }
+
+  @Test
+  public void testBlockPolicyWaitsForRelease() throws Exception {
+    PassthroughInFlightWindow window = new PassthroughInFlightWindow(1, PassthroughInFlightWindow.FullPolicy.BLOCK);
+    window.acquire(1, true);
+    Thread sender = new Thread(() -> window.acquire(1, true));
+    sender.start();
+    awaitWaiting(sender);
+    window.release(1);
+    sender.join();
+    assertThat(window.getInFlight(), equalTo(1));
+    assertThat(window.getWaitCount(), equalTo(1L));
+    assertThat(window.getWaitNanos(), greaterThanOrEqualTo(window.getMaximumWaitNanos()));
+    assertThat(window.getRejectedCount(), equalTo(0L));
+  }
+
+  @Test
+  public void testTimedPolicyRefusesAfterTimeout() throws Exception {
+    PassthroughInFlightWindow window = new PassthroughInFlightWindow(1, PassthroughInFlightWindow.FullPolicy.TIMED, 10, TimeUnit.MILLISECONDS);
+    window.acquire(1, true);
+    try {
+      window.acquire(1, true);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // Expected.
+    }
+    assertThat(window.getRejectedCount(), equalTo(1L));
+    assertThat(window.getMaximumWaitNanos(), greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(10)));
+    assertThat(window.getInFlight(), equalTo(1));
+  }
+
+  @Test
+  public void testOversizedAndNonWaitingSends() throws Exception {
+    PassthroughInFlightWindow window = new PassthroughInFlightWindow(2, PassthroughInFlightWindow.FullPolicy.BLOCK);
+    // A batch bigger than the window goes in alone.
+    window.acquire(5, true);
+    // A sender which can't wait is let in over the limit.
+    window.acquire(1, false);
+    assertThat(window.getInFlight(), equalTo(6));
+    assertThat(window.getPeakInFlight(), equalTo(6));
+    window.release(6);
+    assertThat(window.getInFlight(), equalTo(0));
+    assertThat(window.getWaitCount(), equalTo(0L));
+  }
+
+  @Test
+  public void testCloseRefusesWaitingSenders() throws Exception {
+    PassthroughInFlightWindow window = new PassthroughInFlightWindow(1, PassthroughInFlightWindow.FullPolicy.BLOCK);
+    window.acquire(1, true);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread sender = new Thread(() -> {
+      try {
+        window.acquire(1, true);
+      } catch (Throwable t) {
+        failure.set(t);
+      }
+    });
+    sender.start();
+    awaitWaiting(sender);
+    window.close();
+    sender.join();
+    assertThat(failure.get(), instanceOf(ConnectionClosedException.class));
+  }
+
+  private static void awaitWaiting(Thread thread) {
+    while (Thread.State.WAITING != thread.getState()) {
+      Thread.yield();
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PassthroughInboundQueueTest {
+
+  @Test
+  public void testBatchesKeepOrder() throws Exception {
+    PassthroughInboundQueue<Integer> queue = new PassthroughInboundQueue<>();
+    for (int i = 0; i < 100; ++i) {
+      queue.add(i);
+      // Take some along the way so that later adds arrive while the consumer is still working through an earlier batch.
+      if (0 == (i % 3)) {
+        assertThat(queue.poll(), equalTo(i / 3));
+      }
+    }
+    for (int i = 34; i < 100; ++i) {
+      assertThat(queue.poll(), equalTo(i));
+    }
+    assertThat(queue.poll(), nullValue());
+    assertThat(queue.isEmpty(), equalTo(true));
+  }
+
+  @Test
+  public void testProducersAreSeenInOrder() throws Exception {
+    PassthroughInboundQueue<int[]> queue = new PassthroughInboundQueue<>();
+    int producerCount = 4;
+    int itemsPerProducer = 10000;
+    List<Thread> producers = new ArrayList<>();
+    for (int p = 0; p < producerCount; ++p) {
+      int producer = p;
+      producers.add(new Thread(() -> {
+        for (int i = 0; i < itemsPerProducer; ++i) {
+          queue.add(new int[] { producer, i });
+        }
+      }));
+    }
+    for (Thread producer : producers) {
+      producer.start();
+    }
+    // Each producer's items must arrive in the order it added them, whether we find them polling or parked.
+    int[] next = new int[producerCount];
+    for (int taken = 0; taken < producerCount * itemsPerProducer; ++taken) {
+      int[] item = queue.poll();
+      while (null == item) {
+        queue.park();
+        item = queue.poll();
+      }
+      assertThat(item[1], equalTo(next[item[0]]));
+      next[item[0]] += 1;
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    assertThat(queue.isEmpty(), equalTo(true));
+  }
+
+  @Test
+  public void testCloseWakesConsumer() throws Exception {
+    PassthroughInboundQueue<Integer> queue = new PassthroughInboundQueue<>();
+    Thread consumer = new Thread(() -> {
+      try {
+        queue.park();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    });
+    consumer.start();
+    queue.close();
+    consumer.join();
+    // Once closed, parking doesn't wait.
+    queue.park();
+  }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.terracotta.connection.entity.EntityRef;
+import org.terracotta.entity.InvocationCallback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends batches of invocations through a real active and passive, checking that each message of a batch is still acked,
+ * completed, retired and re-sent on its own.
+ */
+public class PassthroughInvocationBatchTest {
+  private static final String STRIPE_NAME = "batches";
+
+  private final List<PassthroughEchoEntity.ServerService> serverServices = Collections.synchronizedList(new ArrayList<>());
+  private final List<RefusingQueue> serverQueues = Collections.synchronizedList(new ArrayList<>());
+  private PassthroughClusterControl cluster;
+  private PassthroughConnection connection;
+  private PassthroughEchoEntity entity;
+
+  @Before
+  public void setUp() throws Exception {
+    this.cluster = PassthroughTestHelpers.createActivePassive(STRIPE_NAME, server -> {
+      PassthroughEchoEntity.ServerService service = new PassthroughEchoEntity.ServerService();
+      this.serverServices.add(service);
+      server.registerServerEntityService(service);
+      server.registerClientEntityService(new PassthroughEchoEntity.ClientService());
+      server.setServerQueueFactory(() -> {
+        RefusingQueue queue = new RefusingQueue();
+        this.serverQueues.add(queue);
+        return queue;
+      });
+    });
+    this.cluster.waitForActive();
+    this.connection = PassthroughServerRegistry.getSharedInstance().getServerForName(STRIPE_NAME).connectNewClient("batch client");
+    EntityRef<PassthroughEchoEntity, Void, Void> ref = this.connection.getEntityRef(PassthroughEchoEntity.class, 1, "echo");
+    ref.create(null);
+    this.entity = ref.fetchEntity(null);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    this.connection.close();
+    this.cluster.tearDown();
+  }
+
+  @Test
+  public void testEachMessageIsAckedCompletedAndRetiredInOrder() throws Exception {
+    int count = 50;
+    List<Long> values = values(0, count);
+    List<RecordingCallback> callbacks = invokeBatch(values);
+    for (RecordingCallback callback : callbacks) {
+      callback.awaitRetired();
+    }
+    for (int i = 0; i < count; ++i) {
+      assertThat(callbacks.get(i).getEvents(), equalTo(Arrays.asList("sent", "received", "result " + i, "complete", "retired")));
+    }
+    // The messages ran, and retired, in the order they were added to the batch.
+    for (int i = 1; i < count; ++i) {
+      assertTrue(callbacks.get(i - 1).resultNanos <= callbacks.get(i).resultNanos);
+      assertTrue(callbacks.get(i - 1).retiredNanos <= callbacks.get(i).retiredNanos);
+    }
+    assertThat(activeValues(), equalTo(values));
+  }
+
+  @Test
+  public void testRefusedBatchIsRolledBack() throws Exception {
+    PassthroughBufferPool bufferPool = new PassthroughBufferPool();
+    this.connection.setBufferPool(bufferPool);
+    activeQueue().failNextAdd = true;
+    List<RecordingCallback> refused = new ArrayList<>();
+    PassthroughInvocationBatch batch = this.connection.createInvocationBatch();
+    for (long value = 100; value < 103; ++value) {
+      RecordingCallback callback = new RecordingCallback();
+      batch.add(this.entity.getEndpoint().message(new PassthroughEchoEntity.EchoMessage(value)), callback);
+      refused.add(callback);
+    }
+    try {
+      batch.invoke();
+      fail();
+    } catch (RejectedExecutionException e) {
+      // Expected.
+    }
+    assertThat(batch.size(), equalTo(0));
+    for (RecordingCallback callback : refused) {
+      assertThat(callback.getEvents(), empty());
+    }
+
+    // The transactions were given back so the next batch runs as though the refused one was never sent.
+    List<RecordingCallback> callbacks = invokeBatch(values(0, 3));
+    for (RecordingCallback callback : callbacks) {
+      callback.awaitRetired();
+    }
+    assertThat(activeValues(), equalTo(values(0, 3)));
+    // The server released the buffers of the refused messages, so the pool got them back for the next batch.
+    assertThat(bufferPool.getReusedCount(), greaterThanOrEqualTo(3L));
+  }
+
+  @Test
+  public void testRefusedSingleMessageReleasesBuffer() throws Exception {
+    PassthroughBufferPool bufferPool = new PassthroughBufferPool();
+    this.connection.setBufferPool(bufferPool);
+    activeQueue().failNextAdd = true;
+    try {
+      this.entity.echo(100);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // Expected.
+    }
+    assertThat(this.entity.echo(1), equalTo(1L));
+    assertThat(bufferPool.getReusedCount(), greaterThanOrEqualTo(1L));
+  }
+
+  @Test
+  public void testBlockedBatchWaitsForAPlaceForEachMessage() throws Exception {
+    RefusingQueue queue = activeQueue();
+    queue.blockNextAdd = true;
+    List<RecordingCallback> callbacks = invokeBatch(values(0, 5));
+    for (RecordingCallback callback : callbacks) {
+      callback.awaitRetired();
+    }
+    // The sender waited for room for the whole batch and then sent it again, with new transactions.
+    assertThat(queue.awaitedPlaces, equalTo(Collections.singletonList(5)));
+    assertThat(queue.addedPlaces, equalTo(Collections.singletonList(5)));
+    for (int i = 0; i < callbacks.size(); ++i) {
+      assertThat(callbacks.get(i).getEvents(), equalTo(Arrays.asList("sent", "received", "result " + i, "complete", "retired")));
+    }
+    assertThat(activeValues(), equalTo(values(0, 5)));
+  }
+
+  @Test
+  public void testBatchResentAfterFailover() throws Exception {
+    int count = 200;
+    List<Long> values = values(0, count);
+    List<RecordingCallback> callbacks = invokeBatch(values);
+    this.cluster.terminateActive();
+    this.cluster.waitForActive();
+    for (RecordingCallback callback : callbacks) {
+      callback.awaitRetired();
+    }
+    for (int i = 0; i < count; ++i) {
+      List<String> events = callbacks.get(i).getEvents();
+      // A message re-sent to the new active can be acked again but its result, completion and retirement are only heard once.
+      assertThat(events.get(0), equalTo("sent"));
+      assertThat(events.subList(events.size() - 3, events.size()), equalTo(Arrays.asList("result " + i, "complete", "retired")));
+    }
+    // Every message reached the new active, either replicated while it was passive or re-sent to it.  The re-sends it has no
+    //  order for are run in no particular order, and may repeat one it already had, so only check they are all there.
+    assertThat(this.entity.echo(-1L), equalTo(-1L));
+    PassthroughEchoEntity.ServerService newActive = null;
+    for (PassthroughEchoEntity.ServerService service : this.serverServices) {
+      if (service.getActiveValues().contains(-1L)) {
+        newActive = service;
+      }
+    }
+    Set<Long> ran = new HashSet<>(newActive.getPassiveValues());
+    ran.addAll(newActive.getActiveValues());
+    ran.remove(-1L);
+    assertThat(ran, equalTo(new HashSet<>(values)));
+  }
+
+  private List<RecordingCallback> invokeBatch(List<Long> values) {
+    PassthroughInvocationBatch batch = this.connection.createInvocationBatch();
+    List<RecordingCallback> callbacks = new ArrayList<>();
+    for (long value : values) {
+      RecordingCallback callback = new RecordingCallback();
+      batch.add(this.entity.getEndpoint().message(new PassthroughEchoEntity.EchoMessage(value)), callback);
+      callbacks.add(callback);
+    }
+    assertThat(batch.size(), equalTo(values.size()));
+    batch.invoke();
+    return callbacks;
+  }
+
+  private static List<Long> values(long first, int count) {
+    List<Long> values = new ArrayList<>();
+    for (long value = first; value < first + count; ++value) {
+      values.add(value);
+    }
+    return values;
+  }
+
+  private List<Long> activeValues() {
+    List<Long> values = new ArrayList<>();
+    for (PassthroughEchoEntity.ServerService service : this.serverServices) {
+      values.addAll(service.getActiveValues());
+    }
+    return values;
+  }
+
+  private RefusingQueue activeQueue() {
+    // The active's queue is the only one which clients add to.
+    return this.serverQueues.get(0);
+  }
+
+
+  private static class RecordingCallback implements InvocationCallback<PassthroughEchoEntity.EchoResponse> {
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch retired = new CountDownLatch(1);
+    private volatile long resultNanos;
+    private volatile long retiredNanos;
+
+    @Override
+    public void sent() {
+      this.events.add("sent");
+    }
+
+    @Override
+    public void received() {
+      this.events.add("received");
+    }
+
+    @Override
+    public void result(PassthroughEchoEntity.EchoResponse response) {
+      this.resultNanos = System.nanoTime();
+      this.events.add("result " + response.value);
+    }
+
+    @Override
+    public void failure(Throwable failure) {
+      this.events.add("failure " + failure);
+    }
+
+    @Override
+    public void complete() {
+      this.events.add("complete");
+    }
+
+    @Override
+    public void retired() {
+      this.retiredNanos = System.nanoTime();
+      this.events.add("retired");
+      this.retired.countDown();
+    }
+
+    public List<String> getEvents() {
+      synchronized (this.events) {
+        return new ArrayList<>(this.events);
+      }
+    }
+
+    public void awaitRetired() throws InterruptedException {
+      assertTrue(this.retired.await(30, TimeUnit.SECONDS));
+    }
+  }
+
+
+  /**
+   * The server's usual queue, except that it can be told to refuse the next client add (as a queue set to fail fast does
+   * when it is full) or to report it full (as one set to block the sender does).
+   */
+  private static class RefusingQueue implements PassthroughMessageQueue<PassthroughMessageContainer> {
+    private final PassthroughRingBufferQueue<PassthroughMessageContainer> delegate = new PassthroughRingBufferQueue<>(PassthroughRingBufferQueue.DEFAULT_CAPACITY, PassthroughRingBufferQueue.FullPolicy.GROW);
+    volatile boolean failNextAdd;
+    volatile boolean blockNextAdd;
+    final List<Integer> addedPlaces = Collections.synchronizedList(new ArrayList<>());
+    final List<Integer> awaitedPlaces = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void add(PassthroughMessageContainer item) {
+      while (!tryAdd(item)) {
+        awaitSpace();
+      }
+    }
+
+    @Override
+    public boolean tryAdd(PassthroughMessageContainer item) {
+      return tryAdd(item, 1);
+    }
+
+    @Override
+    public boolean tryAdd(PassthroughMessageContainer item, int places) {
+      if (this.failNextAdd) {
+        this.failNextAdd = false;
+        throw new RejectedExecutionException("refused by the test");
+      }
+      if (this.blockNextAdd) {
+        this.blockNextAdd = false;
+        return false;
+      }
+      if (places > 1) {
+        this.addedPlaces.add(places);
+      }
+      return this.delegate.tryAdd(item, places);
+    }
+
+    @Override
+    public void awaitSpace() {
+      awaitSpace(1);
+    }
+
+    @Override
+    public void awaitSpace(int places) {
+      this.awaitedPlaces.add(places);
+    }
+
+    @Override
+    public void addInternal(PassthroughMessageContainer item) {
+      this.delegate.addInternal(item);
+    }
+
+    @Override
+    public PassthroughMessageContainer take() throws InterruptedException {
+      return this.delegate.take();
+    }
+
+    @Override
+    public int drainTo(Collection<? super PassthroughMessageContainer> sink, int maxItems) {
+      return this.delegate.drainTo(sink, maxItems);
+    }
+
+    @Override
+    public void clear() {
+      this.delegate.clear();
+    }
+
+    @Override
+    public int capacity() {
+      return this.delegate.capacity();
+    }
+
+    @Override
+    public void setWaitStrategy(PassthroughWaitStrategy waitStrategy) {
+      this.delegate.setWaitStrategy(waitStrategy);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+import org.terracotta.passthrough.PassthroughMessage.Type;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+
+/**
+ * Times encoding and decoding an invoke through the PassthroughMessageCodec, reporting the time and the bytes allocated
+ * per round trip.  This is a benchmark, not a test, so it is only run when asked for (mvn test
+ * -Dtest=PassthroughMessageCodecBenchmark).
+ */
+public class PassthroughMessageCodecBenchmark {
+  private static final int ROUNDS = 8;
+  private static final int ITERATIONS = 1_000_000;
+
+  @Test
+  public void benchmarkSmallInvoke() throws Exception {
+    runInvokeRoundTrip(64);
+  }
+
+  @Test
+  public void benchmarkLargeInvoke() throws Exception {
+    runInvokeRoundTrip(4096);
+  }
+
+  private static void runInvokeRoundTrip(int payloadSize) {
+    byte[] payload = new byte[payloadSize];
+    PassthroughMessageCodec.Decoder<Integer> decoder = (type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      assertThat(type, equalTo(Type.INVOKE_ON_SERVER));
+      input.readLong();
+      input.readUTF();
+      input.readUTF();
+      input.readLong();
+      int size = input.readInt();
+      input.skipBytes(size);
+      return size;
+    };
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    com.sun.management.ThreadMXBean allocations = (threads instanceof com.sun.management.ThreadMXBean)
+        ? (com.sun.management.ThreadMXBean) threads
+        : null;
+    long threadID = Thread.currentThread().getId();
+    // Report the best of the rounds since the first ones include warm-up.
+    long bestNanos = Long.MAX_VALUE;
+    long bestBytes = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; ++round) {
+      long allocatedBefore = (null != allocations) ? allocations.getThreadAllocatedBytes(threadID) : 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; ++i) {
+        PassthroughMessage message = PassthroughMessageCodec.createInvokeMessage("org.example.SomeEntity", "entity-name", i, payload, true);
+        message.setTransactionTracking(i, i - 1);
+        int decodedSize = PassthroughMessageCodec.decodeRawMessage(decoder, message.asSerializedBytes());
+        if (decodedSize != payloadSize) {
+          throw new AssertionError(decodedSize);
+        }
+      }
+      bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+      long allocatedAfter = (null != allocations) ? allocations.getThreadAllocatedBytes(threadID) : 0;
+      bestBytes = Math.min(bestBytes, allocatedAfter - allocatedBefore);
+    }
+    System.out.println("Invoke round trip, " + payloadSize + " byte payload: " + (bestNanos / ITERATIONS) + " ns, " + (bestBytes / ITERATIONS) + " bytes allocated");
+  }
+}
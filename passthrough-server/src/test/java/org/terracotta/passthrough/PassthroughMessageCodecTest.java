@@ -0,0 +1,372 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+import org.terracotta.exception.EntityException;
+import org.terracotta.exception.EntityNotFoundException;
+import org.terracotta.exception.EntityServerException;
+import org.terracotta.exception.EntityVersionMismatchException;
+import org.terracotta.passthrough.PassthroughMessage.Type;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class PassthroughMessageCodecTest {
+
+  @Test
+  public void testHeaderReads() throws Exception {
+    PassthroughMessage invoke = PassthroughMessageCodec.createInvokeMessage(7L, 3L, new byte[] { 1, 2, 3 }, true);
+    invoke.setTransactionTracking(0x0102030405060708L, 42L);
+    byte[] raw = invoke.asSerializedBytes();
+    assertThat(PassthroughMessageCodec.decodeTransactionTypeFromRawMessage(raw), equalTo(Type.INVOKE_ON_SERVER));
+    assertThat(PassthroughMessageCodec.decodeTransactionIDFromRawMessage(raw), equalTo(0x0102030405060708L));
+    assertThat(PassthroughMessageCodec.decodeOldestTransactionIDFromRawMessage(raw), equalTo(42L));
+  }
+
+  @Test
+  public void testCompactHeaderRoundTrip() throws Exception {
+    long[][] ids = { { 0L, -1L }, { -1L, -1L }, { 5L, 5L }, { 300L, 2L }, { 2L, 300L }, { Long.MAX_VALUE, Long.MIN_VALUE }, { Long.MIN_VALUE, Long.MAX_VALUE } };
+    for (long[] pair : ids) {
+      PassthroughMessage ack = PassthroughMessageCodec.createAckMessage();
+      ack.setTransactionTracking(pair[0], pair[1]);
+      byte[] raw = ack.asSerializedBytes();
+      assertThat(raw.length, equalTo(ack.serializedSize()));
+      assertThat(PassthroughMessageCodec.decodeTransactionTypeFromRawMessage(raw), equalTo(Type.ACK_FROM_SERVER));
+      assertThat(PassthroughMessageCodec.decodeTransactionIDFromRawMessage(raw), equalTo(pair[0]));
+      assertThat(PassthroughMessageCodec.decodeOldestTransactionIDFromRawMessage(raw), equalTo(pair[1]));
+      long[] decoded = PassthroughMessageCodec.decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+        assertThat(input.readInt(), equalTo(Type.ACK_FROM_SERVER.ordinal()));
+        return new long[] { transactionID, oldestTransactionID };
+      }, raw);
+      assertThat(decoded, equalTo(pair));
+    }
+    // With the usual tracking, the header is the type, the flags and a byte for each ID.
+    PassthroughMessage ack = PassthroughMessageCodec.createAckMessage();
+    ack.setTransactionTracking(0L, -1L);
+    assertThat(ack.headerSize(), equalTo(4));
+  }
+
+  @Test
+  public void testCompressedInvokeDecodesToOriginal() throws Exception {
+    PassthroughCompression compression = new PassthroughCompression(256, Deflater.BEST_SPEED);
+    byte[] payload = new byte[4096];
+    for (int i = 0; i < payload.length; ++i) {
+      payload[i] = (byte) (i % 7);
+    }
+    PassthroughMessage invoke = PassthroughMessageCodec.createInvokeMessage(7L, 3L, payload, true);
+    PassthroughMessage compressed = compression.compress(invoke);
+    compressed.setTransactionTracking(9L, 8L);
+    byte[] raw = compressed.asSerializedBytes();
+    assertThat(raw.length, lessThan(invoke.serializedSize()));
+    assertThat(PassthroughMessageCodec.decodeTransactionTypeFromRawMessage(raw), equalTo(Type.INVOKE_ON_SERVER));
+    assertThat(PassthroughMessageCodec.decodeTransactionIDFromRawMessage(raw), equalTo(9L));
+    byte[] decoded = PassthroughMessageCodec.decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      assertThat(shouldReplicate, equalTo(true));
+      assertThat(oldestTransactionID, equalTo(8L));
+      assertThat(input.readLong(), equalTo(7L));
+      assertThat(input.readLong(), equalTo(3L));
+      byte[] bytes = PassthroughMessageCodec.toArray(PassthroughMessageCodec.readByteBufferView(input));
+      assertThat(input.available(), equalTo(0));
+      return bytes;
+    }, raw);
+    assertThat(decoded, equalTo(payload));
+
+    // Small messages, and those which don't shrink, are sent as they are.
+    PassthroughMessage small = PassthroughMessageCodec.createInvokeMessage(7L, 3L, new byte[10], true);
+    assertThat(compression.compress(small), sameInstance(small));
+    byte[] random = new byte[1024];
+    new Random(1).nextBytes(random);
+    PassthroughMessage incompressible = PassthroughMessageCodec.createInvokeMessage(7L, 3L, random, false);
+    assertThat(compression.compress(incompressible), sameInstance(incompressible));
+
+    PassthroughCompression.Statistics statistics = compression.getStatistics(Type.INVOKE_ON_SERVER);
+    assertThat(statistics.getCompressedCount(), equalTo(1L));
+    assertThat(statistics.getSkippedCount(), equalTo(1L));
+    assertThat(statistics.getUncompressedBytes(), equalTo((long) (invoke.serializedSize() - invoke.headerSize())));
+    assertThat(statistics.getCompressedBytes(), equalTo((long) (raw.length - compressed.headerSize())));
+    assertThat(statistics.getCompressionRatio(), lessThan(0.5));
+  }
+
+  @Test
+  public void testCompressionSharedBetweenThreads() throws Exception {
+    // More threads than the compression keeps deflaters for, so some of them get deflaters which aren't kept.
+    PassthroughCompression compression = new PassthroughCompression(256, Deflater.BEST_SPEED);
+    ExecutorService executor = Executors.newFixedThreadPool(16);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int thread = 0; thread < 16; ++thread) {
+        byte value = (byte) thread;
+        results.add(executor.submit(() -> {
+          byte[] payload = new byte[2048];
+          Arrays.fill(payload, value);
+          for (int i = 0; i < 100; ++i) {
+            PassthroughMessage compressed = compression.compress(PassthroughMessageCodec.createInvokeMessage(7L, 3L, payload, true));
+            compressed.setTransactionTracking(i, i - 1);
+            byte[] decoded = PassthroughMessageCodec.decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+              input.readLong();
+              input.readLong();
+              return PassthroughMessageCodec.toArray(PassthroughMessageCodec.readByteBufferView(input));
+            }, compressed.asSerializedBytes());
+            assertThat(decoded, equalTo(payload));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(compression.getStatistics(Type.INVOKE_ON_SERVER).getCompressedCount(), equalTo(1600L));
+  }
+
+  @Test
+  public void testPutUTFMatchesWriteUTF() throws Exception {
+    String[] strings = { "", "entity", "caf\u00e9", "nul\u0000", "\u65e5\u672c", "emoji \ud83d\ude00" };
+    for (String string : strings) {
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      DataOutputStream output = new DataOutputStream(expected);
+      output.writeUTF(string);
+      output.close();
+
+      ByteBuffer buffer = ByteBuffer.allocate(PassthroughMessageCodec.sizeOfUTF(string));
+      PassthroughMessageCodec.putUTF(buffer, string);
+      assertThat(buffer.hasRemaining(), equalTo(false));
+      assertThat(buffer.array(), equalTo(expected.toByteArray()));
+    }
+  }
+
+  @Test
+  public void testSerializedSizeIsExact() throws Exception {
+    PassthroughStringDictionary receiving = new PassthroughStringDictionary();
+    PassthroughMessage fetch = PassthroughMessageCodec.createFetchMessage(new PassthroughConnectionDictionary(), "com.example.Entity", "caf\u00e9", 5L, 6L);
+    fetch.setTransactionTracking(3L, 2L);
+    byte[] raw = fetch.asSerializedBytes();
+    assertThat(raw.length, equalTo(fetch.serializedSize()));
+    String[] decoded = PassthroughMessageCodec.decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      assertThat(type, equalTo(Type.FETCH_ENTITY));
+      assertThat(transactionID, equalTo(3L));
+      String[] names = new String[] { PassthroughMessageCodec.readSymbol(input, receiving), PassthroughMessageCodec.readSymbol(input, receiving) };
+      assertThat(input.readLong(), equalTo(5L));
+      assertThat(input.readLong(), equalTo(6L));
+      assertThat(input.available(), equalTo(0));
+      return names;
+    }, raw);
+    assertThat(decoded, equalTo(new String[] { "com.example.Entity", "caf\u00e9" }));
+
+    // asSerializedBytes checks that each message writes exactly the size it claims.
+    PassthroughMessageCodec.createCompleteMessage(null, null).asSerializedBytes();
+    PassthroughMessageCodec.createCompleteMessage(new byte[] { 1 }, null).asSerializedBytes();
+    PassthroughMessageCodec.createCompleteMessage(null, new EntityNotFoundException("class", "name")).asSerializedBytes();
+    PassthroughMessageCodec.createInvokeMessage("class", "name", 1L, new byte[10], true).asSerializedBytes();
+    PassthroughMessageCodec.createAckMessage().asSerializedBytes();
+    PassthroughMessageCodec.createCompleteAndRetireMessage(true, new byte[] { 1 }, null, true).asSerializedBytes();
+    PassthroughMessageCodec.createCompleteAndRetireMessage(false, null, new EntityNotFoundException("class", "name"), false).asSerializedBytes();
+    PassthroughMessageCodec.createSyncPayloadMessage(new PassthroughStringDictionary(), "class", "name", 4, new byte[3]).asSerializedBytes();
+  }
+
+  @Test
+  public void testCommonExceptionsAreCompact() throws Exception {
+    EntityNotFoundException notFound = new EntityNotFoundException("com.example.Entity", "name");
+    byte[] compact = PassthroughMessageCodec.serializeExceptionToArray(notFound, true);
+    EntityException decoded = PassthroughMessageCodec.deserializeExceptionFromArray(compact);
+    assertThat(decoded.getClass(), equalTo((Object) EntityNotFoundException.class));
+    assertThat(decoded.getClassName(), equalTo("com.example.Entity"));
+    assertThat(decoded.getEntityName(), equalTo("name"));
+    assertSameFrames(decoded.getStackTrace(), notFound.getStackTrace());
+
+    ByteArrayOutputStream javaSerialized = new ByteArrayOutputStream();
+    try (ObjectOutputStream output = new ObjectOutputStream(javaSerialized)) {
+      output.writeObject(notFound);
+    }
+    assertThat(compact.length, lessThan(javaSerialized.size()));
+    assertThat(PassthroughMessageCodec.serializeExceptionToArray(notFound).length, lessThan(compact.length));
+
+    EntityServerException server = new EntityServerException(null, "name", "description", null);
+    decoded = PassthroughMessageCodec.deserializeExceptionFromArray(PassthroughMessageCodec.serializeExceptionToArray(server, false));
+    assertThat(decoded.getClass(), equalTo((Object) EntityServerException.class));
+    assertThat(decoded.getClassName(), equalTo(null));
+    assertThat(decoded.getDescription(), equalTo("description"));
+  }
+
+  @Test
+  public void testCommonExceptionsOmitFramesByDefault() throws Exception {
+    EntityNotFoundException notFound = new EntityNotFoundException("com.example.Entity", "name");
+    byte[] bytes = PassthroughMessageCodec.serializeExceptionToArray(notFound);
+    // The tag, each name as a present flag, length and 18 and 4 bytes, then the marker for the omitted frames.
+    assertThat(bytes.length, equalTo(1 + (1 + 2 + 18) + (1 + 2 + 4) + 4));
+    EntityException decoded = PassthroughMessageCodec.deserializeExceptionFromArray(bytes);
+    assertThat(decoded.getClass(), equalTo((Object) EntityNotFoundException.class));
+    assertThat(decoded.getClassName(), equalTo("com.example.Entity"));
+    assertThat(decoded.getEntityName(), equalTo("name"));
+    // The frames are those of where it was decoded.
+    assertThat(decoded.getStackTrace()[0].getMethodName(), equalTo("deserializeExceptionFromArray"));
+  }
+
+  private static void assertSameFrames(StackTraceElement[] actual, StackTraceElement[] expected) {
+    // Only the Java 8 parts of each frame are sent.
+    assertThat(actual.length, equalTo(expected.length));
+    for (int i = 0; i < expected.length; ++i) {
+      assertThat(actual[i].getClassName(), equalTo(expected[i].getClassName()));
+      assertThat(actual[i].getMethodName(), equalTo(expected[i].getMethodName()));
+      assertThat(actual[i].getFileName(), equalTo(expected[i].getFileName()));
+      assertThat(actual[i].getLineNumber(), equalTo(expected[i].getLineNumber()));
+    }
+  }
+
+  @Test
+  public void testOtherExceptionsUseJavaSerialization() throws Exception {
+    // An exception with a cause can't be written compactly.
+    EntityNotFoundException withCause = new EntityNotFoundException("class", "name", new IllegalStateException("cause"));
+    EntityException decoded = PassthroughMessageCodec.deserializeExceptionFromArray(PassthroughMessageCodec.serializeExceptionToArray(withCause, false));
+    assertThat(decoded.getCause().getMessage(), equalTo("cause"));
+    assertThat(decoded.getStackTrace(), equalTo(withCause.getStackTrace()));
+
+    EntityVersionMismatchException mismatch = new EntityVersionMismatchException("class", "name", 1L, 2L);
+    decoded = PassthroughMessageCodec.deserializeExceptionFromArray(PassthroughMessageCodec.serializeExceptionToArray(mismatch));
+    assertThat(decoded.getClass(), equalTo((Object) EntityVersionMismatchException.class));
+  }
+
+  @Test
+  public void testSymbolsAreDefinedOnce() throws Exception {
+    PassthroughStringDictionary sending = new PassthroughStringDictionary();
+    PassthroughStringDictionary receiving = new PassthroughStringDictionary();
+    // The first message defines both names, even though they are the same string.
+    byte[] first = PassthroughMessageCodec.createSyncEntityEndMessage(sending, "com.example.Entity", "com.example.Entity").asSerializedBytes();
+    byte[] second = PassthroughMessageCodec.createSyncEntityEndMessage(sending, "com.example.Entity", "caf\u00e9").asSerializedBytes();
+    PassthroughMessage thirdMessage = PassthroughMessageCodec.createSyncEntityEndMessage(sending, "com.example.Entity", "caf\u00e9");
+    byte[] third = thirdMessage.asSerializedBytes();
+    // Once both names are defined, each is a one-byte reference.
+    assertThat(third.length, equalTo(thirdMessage.headerSize() + 2));
+    assertThat(second.length, lessThan(first.length));
+
+    PassthroughMessageCodec.Decoder<String[]> decoder = (type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      assertThat(type, equalTo(Type.SYNC_ENTITY_END));
+      String[] names = new String[] { PassthroughMessageCodec.readSymbol(input, receiving), PassthroughMessageCodec.readSymbol(input, receiving) };
+      assertThat(input.available(), equalTo(0));
+      return names;
+    };
+    assertThat(PassthroughMessageCodec.decodeRawMessage(decoder, first), equalTo(new String[] { "com.example.Entity", "com.example.Entity" }));
+    assertThat(PassthroughMessageCodec.decodeRawMessage(decoder, second), equalTo(new String[] { "com.example.Entity", "caf\u00e9" }));
+    assertThat(PassthroughMessageCodec.decodeRawMessage(decoder, third), equalTo(new String[] { "com.example.Entity", "caf\u00e9" }));
+  }
+
+  @Test
+  public void testConnectionSymbolsAreReferencedOnceConfirmed() throws Exception {
+    PassthroughConnectionDictionary sending = new PassthroughConnectionDictionary();
+    PassthroughStringDictionary receiving = new PassthroughStringDictionary();
+    PassthroughMessageCodec.Decoder<String[]> decoder = (type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      String[] names = new String[] { PassthroughMessageCodec.readSymbol(input, receiving), PassthroughMessageCodec.readSymbol(input, receiving) };
+      input.readLong();
+      input.readLong();
+      return names;
+    };
+    // Until the server has answered a message defining the names, each message defines them again.
+    byte[] first = PassthroughMessageCodec.createFetchMessage(sending, "com.example.Entity", "name", 1L, 1L).asSerializedBytes();
+    byte[] second = PassthroughMessageCodec.createFetchMessage(sending, "com.example.Entity", "name", 2L, 1L).asSerializedBytes();
+    assertThat(second.length, equalTo(first.length));
+    sending.confirm("com.example.Entity", "name");
+    byte[] third = PassthroughMessageCodec.createFetchMessage(sending, "com.example.Entity", "name", 3L, 1L).asSerializedBytes();
+    assertThat(third.length, lessThan(first.length));
+    // The server may decode the second definition after the first, which is harmless.
+    assertThat(PassthroughMessageCodec.decodeRawMessage(decoder, first), equalTo(new String[] { "com.example.Entity", "name" }));
+    assertThat(PassthroughMessageCodec.decodeRawMessage(decoder, third), equalTo(new String[] { "com.example.Entity", "name" }));
+    assertThat(PassthroughMessageCodec.decodeRawMessage(decoder, second), equalTo(new String[] { "com.example.Entity", "name" }));
+
+    // A reset unconfirms everything and gives the definitions for a new server.
+    Map<String, Integer> ids = sending.reset();
+    assertThat(ids.size(), equalTo(2));
+    assertThat(sending.reference("name"), lessThan(0));
+    PassthroughStringDictionary newServer = new PassthroughStringDictionary();
+    PassthroughMessageCodec.decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      assertThat(type, equalTo(Type.DEFINE_SYMBOLS));
+      int count = input.readInt();
+      for (int i = 0; i < count; ++i) {
+        PassthroughMessageCodec.readSymbol(input, newServer);
+      }
+      return null;
+    }, PassthroughMessageCodec.createDefineSymbolsMessage(ids).asSerializedBytes());
+    assertThat(newServer.lookup(ids.get("com.example.Entity")), equalTo("com.example.Entity"));
+    // So the messages defined before the reset can be re-sent to it.
+    assertThat(PassthroughMessageCodec.decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      return new String[] { PassthroughMessageCodec.readSymbol(input, newServer), PassthroughMessageCodec.readSymbol(input, newServer) };
+    }, third), equalTo(new String[] { "com.example.Entity", "name" }));
+  }
+
+  @Test
+  public void testVarintRoundTrip() throws Exception {
+    int[] values = new int[] { 0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, Integer.MAX_VALUE, -1 };
+    for (int value : values) {
+      ByteBuffer buffer = ByteBuffer.allocate(PassthroughMessageCodec.sizeOfVarint(value));
+      PassthroughMessageCodec.putVarint(buffer, value);
+      assertThat(buffer.hasRemaining(), equalTo(false));
+      DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+      assertThat(PassthroughMessageCodec.readVarint(input), equalTo(value));
+    }
+  }
+
+  @Test
+  public void testPayloadViewSharesMessage() throws Exception {
+    PassthroughMessage invoke = PassthroughMessageCodec.createInvokeMessage(7L, 3L, new byte[] { 1, 2, 3 }, true);
+    byte[] raw = invoke.asSerializedBytes();
+    Byte seen = PassthroughMessageCodec.decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      input.readLong();
+      input.readLong();
+      ByteBuffer view = PassthroughMessageCodec.readByteBufferView(input);
+      assertThat(view.isReadOnly(), equalTo(true));
+      assertThat(view.remaining(), equalTo(3));
+      assertThat(PassthroughMessageCodec.toArray(view), equalTo(new byte[] { 1, 2, 3 }));
+      // The view isn't a copy so it sees changes to the message.
+      raw[raw.length - 1] = 9;
+      return view.get(2);
+    }, raw);
+    assertThat(seen, equalTo((byte) 9));
+
+    // Any other stream just gets a copy.
+    DataInputStream other = new DataInputStream(new java.io.ByteArrayInputStream(new byte[] { 0, 0, 0, 2, 4, 5 }));
+    assertThat(PassthroughMessageCodec.toArray(PassthroughMessageCodec.readByteBufferView(other)), equalTo(new byte[] { 4, 5 }));
+  }
+
+  @Test
+  public void testClientDescriptorsAreInterned() throws Exception {
+    // The server asks for the descriptor, and its source ID, on every invoke.
+    PassthroughConnection connection = new PassthroughConnection("connection", "reader", null, Collections.emptyList(), () -> {}, 1L);
+    assertThat(connection.clientDescriptorFor(null, 3L), sameInstance(connection.clientDescriptorFor(null, 3L)));
+    assertThat(connection.clientDescriptorFor(null, 3L).getSourceId(), sameInstance(connection.clientDescriptorFor(null, 3L).getSourceId()));
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.terracotta.connection.entity.EntityRef;
+import org.terracotta.entity.InvocationCallback;
+import org.terracotta.entity.MessageCodecException;
+import org.terracotta.exception.ConnectionClosedException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+/**
+ * Checks that the objects handed across in object-passing mode are released, whatever becomes of their invokes.
+ */
+public class PassthroughObjectHandoffTest {
+  private static final String STRIPE_NAME = "handoff";
+
+  private PassthroughClusterControl cluster;
+  private PassthroughConnection connection;
+
+  @After
+  public void tearDown() throws Exception {
+    if (null != this.connection) {
+      this.connection.close();
+    }
+    if (null != this.cluster) {
+      this.cluster.tearDown();
+    }
+  }
+
+  @Test
+  public void testResponsesAreReleasedWithTheirRequest() {
+    PassthroughObjectHandoff handoff = PassthroughObjectHandoff.open();
+    Object request = new Object();
+    byte[] handle = handoff.register(request);
+    PassthroughObjectHandoff.Registration registration = PassthroughObjectHandoff.lookup(ByteBuffer.wrap(handle));
+    assertThat(registration.getObject(), sameInstance(request));
+
+    // One response is taken by the client but the other never reaches it (its server died, say).
+    Object response = new Object();
+    byte[] taken = registration.registerResponse(response);
+    registration.registerResponse(new Object());
+    assertThat(handoff.size(), equalTo(3));
+    assertThat(handoff.isHandle(taken), equalTo(true));
+    assertThat(handoff.take(taken), sameInstance(response));
+
+    handoff.release(handle);
+    assertThat(handoff.size(), equalTo(0));
+    // A response to a released request is a handle to nothing.
+    assertThat(handoff.isHandle(registration.registerResponse(new Object())), equalTo(false));
+    assertThat(handoff.size(), equalTo(0));
+    handoff.close();
+  }
+
+  @Test
+  public void testHandlesAreScopedToTheirHandoff() {
+    PassthroughObjectHandoff first = PassthroughObjectHandoff.open();
+    PassthroughObjectHandoff second = PassthroughObjectHandoff.open();
+    byte[] handle = first.register("first");
+    assertThat(first.isHandle(handle), equalTo(true));
+    assertThat(second.isHandle(handle), equalTo(false));
+
+    // Once closed, nothing is kept and the servers can't resolve the handle.
+    first.close();
+    assertThat(first.size(), equalTo(0));
+    assertThat(PassthroughObjectHandoff.lookup(ByteBuffer.wrap(handle)), nullValue());
+    second.close();
+  }
+
+  @Test
+  public void testNothingIsKeptOnceInvokesRetire() throws Exception {
+    PassthroughEchoEntity entity = startStripe(false);
+    PassthroughObjectHandoff handoff = this.connection.getObjectHandoff();
+    List<CompletableFuture<Long>> futures = new ArrayList<>();
+    for (long i = 0; i < 500; ++i) {
+      futures.add(entity.echoAsync(i));
+    }
+    for (int i = 0; i < futures.size(); ++i) {
+      assertThat(futures.get(i).get(30, TimeUnit.SECONDS), equalTo((long) i));
+    }
+    awaitEmpty(handoff);
+  }
+
+  @Test
+  public void testNothingIsKeptAfterFailover() throws Exception {
+    PassthroughEchoEntity entity = startStripe(true);
+    PassthroughObjectHandoff handoff = this.connection.getObjectHandoff();
+    List<CompletableFuture<Long>> futures = new ArrayList<>();
+    for (long i = 0; i < 500; ++i) {
+      futures.add(entity.echoAsync(i));
+    }
+    // Some of these are re-sent to the new active, which answers them again.
+    this.cluster.terminateActive();
+    this.cluster.waitForActive();
+    for (int i = 0; i < futures.size(); ++i) {
+      assertThat(futures.get(i).get(30, TimeUnit.SECONDS), equalTo((long) i));
+    }
+    assertThat(entity.echo(500), equalTo(500L));
+    awaitEmpty(handoff);
+  }
+
+  @Test
+  public void testCloseReleasesEverything() throws Exception {
+    PassthroughEchoEntity entity = startStripe(false);
+    PassthroughObjectHandoff handoff = this.connection.getObjectHandoff();
+    assertThat(entity.echo(1), equalTo(1L));
+    handoff.register("never sent");
+    this.connection.close();
+    this.connection = null;
+    assertThat(handoff.size(), equalTo(0));
+  }
+
+  @Test
+  public void testRefusedInvokeReleasesItsRequest() {
+    PassthroughObjectHandoff handoff = PassthroughObjectHandoff.open();
+    PassthroughConnection connection = mockConnection(handoff, true);
+    when(connection.invoke(any(PassthroughMessage.class), any(), any())).thenThrow(new ConnectionClosedException("closed"));
+    PassthroughInvocation<PassthroughEchoEntity.EchoMessage, PassthroughEchoEntity.EchoResponse> invocation = new PassthroughInvocation<>(connection, "class", "name", 1, new PassthroughEchoEntity.EchoCodec(), new PassthroughEchoEntity.EchoMessage(1));
+    try {
+      invocation.invoke(mockCallback(), EnumSet.allOf(InvocationCallback.Types.class));
+      fail();
+    } catch (ConnectionClosedException e) {
+      // Expected.
+    }
+    assertThat(handoff.size(), equalTo(0));
+    handoff.close();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testVerifierRejectsRequestWhichDoesNotRoundTrip() throws Exception {
+    PassthroughObjectHandoff handoff = PassthroughObjectHandoff.open();
+    PassthroughConnection connection = mockConnection(handoff, false);
+    PassthroughInvocation<PassthroughEchoEntity.EchoMessage, PassthroughEchoEntity.EchoResponse> invocation = new PassthroughInvocation<>(connection, "class", "name", 1, new SkewedCodec(1, 0), new PassthroughEchoEntity.EchoMessage(1));
+    InvocationCallback<PassthroughEchoEntity.EchoResponse> callback = mockCallback();
+    invocation.invoke(callback, EnumSet.allOf(InvocationCallback.Types.class));
+
+    ArgumentCaptor<Throwable> failure = ArgumentCaptor.forClass(Throwable.class);
+    verify(callback).failure(failure.capture());
+    assertThat(failure.getValue(), instanceOf(MessageCodecException.class));
+    verify(connection, never()).invoke(any(PassthroughMessage.class), any(), any());
+    handoff.close();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testVerifierRejectsResponseWhichDoesNotRoundTrip() throws Exception {
+    PassthroughObjectHandoff handoff = PassthroughObjectHandoff.open();
+    PassthroughConnection connection = mockConnection(handoff, false);
+    PassthroughEchoEntity.EchoCodec codec = new SkewedCodec(0, 1);
+    PassthroughInvocation<PassthroughEchoEntity.EchoMessage, PassthroughEchoEntity.EchoResponse> invocation = new PassthroughInvocation<>(connection, "class", "name", 1, codec, new PassthroughEchoEntity.EchoMessage(1));
+    InvocationCallback<PassthroughEchoEntity.EchoResponse> callback = mockCallback();
+    invocation.invoke(callback, EnumSet.allOf(InvocationCallback.Types.class));
+
+    // The request round-trips so it is sent.  The response, once decoded, doesn't encode back to what was received.
+    ArgumentCaptor<InvocationCallback<byte[]>> sent = (ArgumentCaptor<InvocationCallback<byte[]>>) (Object) ArgumentCaptor.forClass(InvocationCallback.class);
+    verify(connection).invoke(any(PassthroughMessage.class), sent.capture(), any());
+    sent.getValue().result(codec.encodeResponse(new PassthroughEchoEntity.EchoResponse(1)));
+    ArgumentCaptor<Throwable> failure = ArgumentCaptor.forClass(Throwable.class);
+    verify(callback).failure(failure.capture());
+    assertThat(failure.getValue(), instanceOf(MessageCodecException.class));
+    verify(callback, never()).result(any());
+    handoff.close();
+  }
+
+  private PassthroughEchoEntity startStripe(boolean withPassive) throws Exception {
+    this.cluster = withPassive
+        ? PassthroughTestHelpers.createActivePassive(STRIPE_NAME, server -> registerServices(server))
+        : PassthroughTestHelpers.createActiveOnly(STRIPE_NAME, server -> registerServices(server));
+    this.cluster.waitForActive();
+    this.connection = PassthroughServerRegistry.getSharedInstance().getServerForName(STRIPE_NAME).connectNewClient("handoff client");
+    this.connection.setObjectPassing(true, 0);
+    EntityRef<PassthroughEchoEntity, Void, Void> ref = this.connection.getEntityRef(PassthroughEchoEntity.class, 1, "echo");
+    ref.create(null);
+    return ref.fetchEntity(null);
+  }
+
+  private static void registerServices(PassthroughServer server) {
+    server.registerServerEntityService(new PassthroughEchoEntity.ServerService());
+    server.registerClientEntityService(new PassthroughEchoEntity.ClientService());
+  }
+
+  private static void awaitEmpty(PassthroughObjectHandoff handoff) throws InterruptedException {
+    // The last retires may still be on their way to the client.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while ((handoff.size() > 0) && (System.nanoTime() < deadline)) {
+      Thread.sleep(10);
+    }
+    assertThat(handoff.size(), equalTo(0));
+  }
+
+  private static PassthroughConnection mockConnection(PassthroughObjectHandoff handoff, boolean passObject) {
+    PassthroughConnection connection = mock(PassthroughConnection.class);
+    when(connection.getObjectHandoff()).thenReturn(handoff);
+    when(connection.isObjectPassing()).thenReturn(true);
+    when(connection.shouldPassObject()).thenReturn(passObject);
+    return connection;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static InvocationCallback<PassthroughEchoEntity.EchoResponse> mockCallback() {
+    return mock(InvocationCallback.class);
+  }
+
+  /**
+   * A broken codec, which adds to the values it decodes.
+   */
+  private static class SkewedCodec extends PassthroughEchoEntity.EchoCodec {
+    private final long messageSkew;
+    private final long responseSkew;
+
+    public SkewedCodec(long messageSkew, long responseSkew) {
+      this.messageSkew = messageSkew;
+      this.responseSkew = responseSkew;
+    }
+
+    @Override
+    public PassthroughEchoEntity.EchoMessage decodeMessage(byte[] payload) {
+      return new PassthroughEchoEntity.EchoMessage(super.decodeMessage(payload).value + this.messageSkew);
+    }
+
+    @Override
+    public PassthroughEchoEntity.EchoResponse decodeResponse(byte[] payload) {
+      return new PassthroughEchoEntity.EchoResponse(super.decodeResponse(payload).value + this.responseSkew);
+    }
+  }
+}
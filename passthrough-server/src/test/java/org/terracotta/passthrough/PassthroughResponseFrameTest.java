@@ -0,0 +1,275 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.terracotta.connection.entity.EntityRef;
+import org.terracotta.entity.InvocationCallback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks the frames a real server sends a client for each invoke:  the ack is sent from the server thread, with the rest of
+ * its batch, and the complete and retire follow as one frame, which only carries the ack if it was still unsent when the
+ * invoke completed.
+ * The client's connection is on a dispatcher group which handles one frame per dispatch, so the callbacks which ran in the
+ * same dispatch came from the same frame.
+ */
+public class PassthroughResponseFrameTest {
+  private static final String STRIPE_NAME = "frames";
+
+  private final List<PassthroughEchoEntity.ServerService> serverServices = Collections.synchronizedList(new ArrayList<>());
+  private PassthroughClusterControl cluster;
+  private FrameCountingGroup group;
+  private GatingGroup gatingGroup;
+  private PassthroughConnection connection;
+  private PassthroughConnection gatingConnection;
+
+  @Before
+  public void setUp() throws Exception {
+    this.cluster = PassthroughTestHelpers.createActiveOnly(STRIPE_NAME, server -> {
+      PassthroughEchoEntity.ServerService service = new PassthroughEchoEntity.ServerService();
+      this.serverServices.add(service);
+      server.registerServerEntityService(service);
+      server.registerClientEntityService(new PassthroughEchoEntity.ClientService());
+    });
+    this.cluster.waitForActive();
+    this.group = new FrameCountingGroup();
+    this.gatingGroup = new GatingGroup();
+    PassthroughServer server = PassthroughServerRegistry.getSharedInstance().getServerForName(STRIPE_NAME);
+    this.connection = server.connectNewClient("frame client", this.group);
+    this.gatingConnection = server.connectNewClient("gating client", this.gatingGroup);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    this.gatingGroup.open();
+    this.connection.close();
+    this.gatingConnection.close();
+    this.cluster.tearDown();
+    this.group.shutdown();
+    this.gatingGroup.shutdown();
+  }
+
+  @Test
+  public void testCompleteAndRetireShareAFrame() throws Exception {
+    PassthroughEchoEntity entity = createAndFetch(this.connection, "echo");
+    List<FrameRecorder> recorders = new ArrayList<>();
+    for (long i = 0; i < 100; ++i) {
+      recorders.add(echo(entity, i));
+    }
+    for (FrameRecorder recorder : recorders) {
+      recorder.done.get(10, TimeUnit.SECONDS);
+      // Whether or not the ack was still unsent, there are at most 2 frames and the complete and retire share the last.
+      assertThat(recorder.getEvents(), contains("received", "result", "complete", "retired"));
+      List<Integer> frames = recorder.getFrames();
+      assertThat(frames.get(0) <= frames.get(1), equalTo(true));
+      assertThat(frames.get(2), equalTo(frames.get(1)));
+      assertThat(frames.get(3), equalTo(frames.get(1)));
+    }
+    entity.close();
+  }
+
+  @Test
+  public void testUnsentAckIsFoldedIntoTheCompletion() throws Exception {
+    PassthroughEchoEntity entity = createAndFetch(this.connection, "echo");
+    PassthroughEchoEntity gatingEntity = createAndFetch(this.gatingConnection, "gate");
+    // Stall the server's response thread on a delivery to the other connection.
+    this.gatingGroup.close();
+    CompletableFuture<Long> stalled = gatingEntity.echoAsync(100);
+    assertThat(this.gatingGroup.blocked.await(10, TimeUnit.SECONDS), equalTo(true));
+    assertThat(this.gatingGroup.blockedThread.getName(), startsWith("Server response thread"));
+
+    // The server thread queues the ack for the response thread but, by the time the next invoke runs, the first has
+    //  completed and taken its unsent ack to send with it.
+    FrameRecorder folded = echo(entity, 1);
+    FrameRecorder next = echo(entity, 2);
+    PassthroughEchoEntity.ServerService service = this.serverServices.get(0);
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (!service.getActiveValues().contains(2L) && (System.currentTimeMillis() < deadline)) {
+      Thread.sleep(10);
+    }
+    this.gatingGroup.open();
+    assertThat(stalled.get(10, TimeUnit.SECONDS), equalTo(100L));
+    folded.done.get(10, TimeUnit.SECONDS);
+    next.done.get(10, TimeUnit.SECONDS);
+
+    // A single frame carried the ack, complete and retire, and the ack wasn't also sent on its own.
+    assertThat(folded.getEvents(), contains("received", "result", "complete", "retired"));
+    assertThat(Collections.frequency(folded.getFrames(), folded.getFrames().get(0)), equalTo(4));
+    entity.close();
+    gatingEntity.close();
+  }
+
+  @Test
+  public void testHeldRetireIsSentSeparately() throws Exception {
+    PassthroughEchoEntity entity = createAndFetch(this.connection, "echo");
+    // The entity holds the invoke channel open so the retire can't be sent with the completion.
+    FrameRecorder held = echo(entity, -1);
+    held.completed.await(10, TimeUnit.SECONDS);
+    assertThat(held.getEvents(), contains("received", "result", "complete"));
+    // The next message closes the channel, which releases the retire, ahead of the next message's own completion.
+    FrameRecorder releasing = echo(entity, 1);
+    held.done.get(10, TimeUnit.SECONDS);
+    releasing.done.get(10, TimeUnit.SECONDS);
+
+    assertThat(held.getEvents(), contains("received", "result", "complete", "retired"));
+    List<Integer> frames = held.getFrames();
+    // The ack, then the complete (with its result), then the retire, each in its own frame.
+    assertThat(frames.get(0), lessThan(frames.get(1)));
+    assertThat(frames.get(2), equalTo(frames.get(1)));
+    assertThat(frames.get(2), lessThan(frames.get(3)));
+    assertThat(frames.get(3), lessThan(releasing.getFrames().get(1)));
+    entity.close();
+  }
+
+  private static PassthroughEchoEntity createAndFetch(PassthroughConnection connection, String name) throws Exception {
+    EntityRef<PassthroughEchoEntity, Void, Void> ref = connection.getEntityRef(PassthroughEchoEntity.class, 1, name);
+    ref.create(null);
+    return ref.fetchEntity(null);
+  }
+
+  private FrameRecorder echo(PassthroughEchoEntity entity, long value) {
+    FrameRecorder recorder = new FrameRecorder(this.group.frames);
+    entity.getEndpoint().message(new PassthroughEchoEntity.EchoMessage(value)).invoke(recorder, EnumSet.allOf(InvocationCallback.Types.class));
+    return recorder;
+  }
+
+  /**
+   * Records each callback along with the frame it came from.
+   */
+  private static class FrameRecorder implements InvocationCallback<PassthroughEchoEntity.EchoResponse> {
+    private final AtomicInteger currentFrame;
+    private final List<String> events = new ArrayList<>();
+    private final List<Integer> frames = new ArrayList<>();
+    public final CountDownLatch completed = new CountDownLatch(1);
+    public final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    public FrameRecorder(AtomicInteger currentFrame) {
+      this.currentFrame = currentFrame;
+    }
+
+    public synchronized List<String> getEvents() {
+      return new ArrayList<>(this.events);
+    }
+
+    public synchronized List<Integer> getFrames() {
+      return new ArrayList<>(this.frames);
+    }
+
+    private synchronized void record(String event) {
+      this.events.add(event);
+      this.frames.add(this.currentFrame.get());
+    }
+
+    @Override
+    public void received() {
+      record("received");
+    }
+
+    @Override
+    public void result(PassthroughEchoEntity.EchoResponse response) {
+      record("result");
+    }
+
+    @Override
+    public void complete() {
+      record("complete");
+      this.completed.countDown();
+    }
+
+    @Override
+    public void retired() {
+      record("retired");
+      this.done.complete(null);
+    }
+  }
+
+  /**
+   * A single thread which handles one frame per dispatch, numbering the dispatches.
+   */
+  private static class FrameCountingGroup extends PassthroughClientDispatcherGroup {
+    public final AtomicInteger frames = new AtomicInteger();
+
+    public FrameCountingGroup() {
+      super("Frame counter", 1, PassthroughThreadMode.PLATFORM, 1);
+    }
+
+    @Override
+    public void schedule(Runnable dispatch) {
+      super.schedule(() -> {
+        this.frames.incrementAndGet();
+        dispatch.run();
+      });
+    }
+  }
+
+  /**
+   * A group which, once closed, blocks whichever thread schedules a dispatch on it until it is opened again.  Since the
+   * server's response thread delivers each frame, and schedules the dispatch, this can stall it.
+   */
+  private static class GatingGroup extends PassthroughClientDispatcherGroup {
+    public final CountDownLatch blocked = new CountDownLatch(1);
+    public volatile Thread blockedThread;
+    private volatile CountDownLatch gate;
+
+    public GatingGroup() {
+      super(1);
+    }
+
+    public void close() {
+      this.gate = new CountDownLatch(1);
+    }
+
+    public void open() {
+      CountDownLatch gate = this.gate;
+      if (null != gate) {
+        gate.countDown();
+      }
+    }
+
+    @Override
+    public void schedule(Runnable dispatch) {
+      CountDownLatch gate = this.gate;
+      if ((null != gate) && (gate.getCount() > 0)) {
+        this.blockedThread = Thread.currentThread();
+        this.blocked.countDown();
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+      super.schedule(dispatch);
+    }
+  }
+}
@@ -19,6 +19,7 @@ package org.terracotta.passthrough;
 import org.junit.Test;
 import org.terracotta.entity.EntityMessage;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.hamcrest.Matchers.is;
@@ -77,4 +78,33 @@ public class PassthroughRetirementManagerTest {
         manager.retireableListAfterMessageDone(blockingMessage2);
     assertThat(retirementTuples.size(), is(3));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testRetireNowOrBlock() throws Exception {
+    EntityMessage blockingMessage = new EntityMessage() {};
+    List<PassthroughRetirementManager.RetirementTuple> supplied = new ArrayList<>();
+
+    //nothing is blocked so the current message retires without asking for its tuple
+    boolean retiredNow = manager.retireNowOrBlock(() -> {
+      PassthroughRetirementManager.RetirementTuple tuple = new PassthroughRetirementManager.RetirementTuple(null, new byte[0]);
+      supplied.add(tuple);
+      return tuple;
+    });
+    assertThat(retiredNow, is(true));
+    assertThat(supplied, is(empty()));
+
+    //a deferred message is blocked so its tuple is requested and held until the blocking message is done
+    manager.deferCurrentMessage(blockingMessage);
+    retiredNow = manager.retireNowOrBlock(() -> {
+      PassthroughRetirementManager.RetirementTuple tuple = new PassthroughRetirementManager.RetirementTuple(null, new byte[0]);
+      supplied.add(tuple);
+      return tuple;
+    });
+    assertThat(retiredNow, is(false));
+    assertThat(supplied.size(), is(1));
+    assertThat(manager.retireableListAfterMessageDone(null), is(empty()));
+    List<PassthroughRetirementManager.RetirementTuple> retirementTuples = manager.retireableListAfterMessageDone(blockingMessage);
+    assertThat(retirementTuples.size(), is(1));
+    assertThat(retirementTuples.get(0) == supplied.get(0), is(true));
+  }
+}
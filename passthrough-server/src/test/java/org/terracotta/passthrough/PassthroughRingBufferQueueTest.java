@@ -0,0 +1,263 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class PassthroughRingBufferQueueTest {
+
+  @Test
+  public void testGrowKeepsOrder() throws Exception {
+    PassthroughRingBufferQueue<Integer> queue = new PassthroughRingBufferQueue<>(4, PassthroughRingBufferQueue.FullPolicy.GROW);
+    for (int i = 0; i < 100; ++i) {
+      queue.add(i);
+      // Take some along the way so the consumer is still draining an old segment when the ring grows.
+      if (0 == (i % 3)) {
+        assertThat(queue.take(), equalTo(i / 3));
+      }
+    }
+    for (int i = 34; i < 100; ++i) {
+      assertThat(queue.take(), equalTo(i));
+    }
+    assertThat(queue.capacity(), equalTo(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testFailRefusesOnlyClientAdds() throws Exception {
+    PassthroughRingBufferQueue<Integer> queue = new PassthroughRingBufferQueue<>(2, PassthroughRingBufferQueue.FullPolicy.FAIL);
+    queue.add(1);
+    queue.add(2);
+    try {
+      queue.add(3);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // Expected.
+    }
+    // Internal adds can't be refused.
+    queue.addInternal(4);
+    assertThat(queue.take(), equalTo(1));
+    assertThat(queue.take(), equalTo(2));
+    assertThat(queue.take(), equalTo(4));
+    assertThat(queue.capacity(), equalTo(2));
+  }
+
+  @Test
+  public void testBlockWaitsForSpace() throws Exception {
+    PassthroughRingBufferQueue<Integer> queue = new PassthroughRingBufferQueue<>(2, PassthroughRingBufferQueue.FullPolicy.BLOCK);
+    queue.add(0);
+    queue.add(1);
+    AtomicBoolean added = new AtomicBoolean();
+    Thread producer = new Thread(() -> {
+      queue.add(2);
+      added.set(true);
+    });
+    producer.start();
+    Thread.sleep(100);
+    assertThat(added.get(), is(false));
+    assertThat(queue.take(), equalTo(0));
+    producer.join();
+    assertThat(queue.take(), equalTo(1));
+    assertThat(added.get(), is(true));
+    assertThat(queue.take(), equalTo(2));
+  }
+
+  @Test
+  public void testTryAddRefusesInsteadOfBlocking() throws Exception {
+    PassthroughRingBufferQueue<Integer> queue = new PassthroughRingBufferQueue<>(2, PassthroughRingBufferQueue.FullPolicy.BLOCK);
+    assertThat(queue.tryAdd(0), is(true));
+    assertThat(queue.tryAdd(1), is(true));
+    assertThat(queue.tryAdd(2), is(false));
+    AtomicBoolean space = new AtomicBoolean();
+    Thread producer = new Thread(() -> {
+      queue.awaitSpace();
+      space.set(true);
+    });
+    producer.start();
+    Thread.sleep(100);
+    assertThat(space.get(), is(false));
+    assertThat(queue.take(), equalTo(0));
+    producer.join();
+    assertThat(space.get(), is(true));
+    assertThat(queue.tryAdd(2), is(true));
+    assertThat(queue.take(), equalTo(1));
+    assertThat(queue.take(), equalTo(2));
+  }
+
+  @Test
+  public void testItemTakesAPlaceForEachOfItsMessages() throws Exception {
+    PassthroughRingBufferQueue<Integer> queue = new PassthroughRingBufferQueue<>(4, PassthroughRingBufferQueue.FullPolicy.BLOCK);
+    assertThat(queue.tryAdd(0), is(true));
+    // Three more places fit but four don't.
+    assertThat(queue.tryAdd(1, 4), is(false));
+    assertThat(queue.tryAdd(1, 3), is(true));
+    assertThat(queue.tryAdd(2), is(false));
+    AtomicBoolean space = new AtomicBoolean();
+    Thread producer = new Thread(() -> {
+      queue.awaitSpace(2);
+      space.set(true);
+    });
+    producer.start();
+    // Taking the first item only frees one place.
+    assertThat(queue.take(), equalTo(0));
+    Thread.sleep(100);
+    assertThat(space.get(), is(false));
+    // Taking the second frees all of its places.
+    assertThat(queue.take(), equalTo(1));
+    producer.join();
+    assertThat(queue.tryAdd(2, 2), is(true));
+    assertThat(queue.tryAdd(3, 2), is(true));
+    assertThat(queue.tryAdd(4), is(false));
+    List<Integer> drained = new ArrayList<>();
+    assertThat(queue.drainTo(drained, 10), equalTo(2));
+    assertThat(drained, equalTo(Arrays.asList(2, 3)));
+  }
+
+  @Test
+  public void testItemLargerThanQueueTakesAllOfIt() throws Exception {
+    PassthroughRingBufferQueue<Integer> queue = new PassthroughRingBufferQueue<>(4, PassthroughRingBufferQueue.FullPolicy.FAIL);
+    queue.add(0);
+    try {
+      queue.tryAdd(1, 10);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // Expected.
+    }
+    assertThat(queue.take(), equalTo(0));
+    assertThat(queue.tryAdd(1, 10), is(true));
+    try {
+      queue.add(2);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // Expected.
+    }
+    assertThat(queue.take(), equalTo(1));
+    queue.add(2);
+    assertThat(queue.take(), equalTo(2));
+  }
+
+  @Test
+  public void testGrowFitsLargerItems() throws Exception {
+    PassthroughRingBufferQueue<Integer> queue = new PassthroughRingBufferQueue<>(4, PassthroughRingBufferQueue.FullPolicy.GROW);
+    queue.add(0);
+    assertThat(queue.tryAdd(1, 3), is(true));
+    assertThat(queue.tryAdd(2, 6), is(true));
+    queue.add(3);
+    for (int i = 0; i < 4; ++i) {
+      assertThat(queue.take(), equalTo(i));
+    }
+  }
+
+  @Test
+  public void testDrainToStopsAtMax() throws Exception {
+    PassthroughRingBufferQueue<Integer> queue = new PassthroughRingBufferQueue<>(4, PassthroughRingBufferQueue.FullPolicy.GROW);
+    for (int i = 0; i < 10; ++i) {
+      queue.add(i);
+    }
+    List<Integer> batch = new ArrayList<>();
+    assertThat(queue.drainTo(batch, 6), equalTo(6));
+    assertThat(batch, equalTo(Arrays.asList(0, 1, 2, 3, 4, 5)));
+    batch.clear();
+    assertThat(queue.drainTo(batch, 6), equalTo(4));
+    assertThat(batch, equalTo(Arrays.asList(6, 7, 8, 9)));
+    assertThat(queue.drainTo(batch, 6), equalTo(0));
+  }
+
+  @Test
+  public void testManyProducers() throws Exception {
+    PassthroughRingBufferQueue<Integer> queue = new PassthroughRingBufferQueue<>(8, PassthroughRingBufferQueue.FullPolicy.BLOCK);
+    int producerCount = 4;
+    int perProducer = 10000;
+    List<Thread> producers = new ArrayList<>();
+    for (int p = 0; p < producerCount; ++p) {
+      final int base = p * perProducer;
+      Thread producer = new Thread(() -> {
+        for (int i = 0; i < perProducer; ++i) {
+          queue.add(base + i);
+        }
+      });
+      producers.add(producer);
+      producer.start();
+    }
+    // Each producer's items must arrive in the order it added them.
+    int[] lastSeen = new int[producerCount];
+    for (int p = 0; p < producerCount; ++p) {
+      lastSeen[p] = -1;
+    }
+    List<Integer> outOfOrder = Collections.synchronizedList(new ArrayList<>());
+    for (int i = 0; i < producerCount * perProducer; ++i) {
+      int value = queue.take();
+      int producer = value / perProducer;
+      if (value <= lastSeen[producer]) {
+        outOfOrder.add(value);
+      }
+      lastSeen[producer] = value;
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    assertThat(outOfOrder.isEmpty(), is(true));
+  }
+
+  @Test
+  public void testSpinningTakeSeesLateAdd() throws Exception {
+    PassthroughRingBufferQueue<Integer> queue = new PassthroughRingBufferQueue<>(4, PassthroughRingBufferQueue.FullPolicy.GROW);
+    // Few enough spins that the consumer is parked by the time the item arrives.
+    queue.setWaitStrategy(PassthroughWaitStrategy.spinYieldPark(10, 1));
+    Thread producer = new Thread(() -> {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      queue.add(1);
+    });
+    producer.start();
+    assertThat(queue.take(), equalTo(1));
+    producer.join();
+  }
+
+  @Test
+  public void testBusySpinTakeIsInterruptible() throws Exception {
+    PassthroughRingBufferQueue<Integer> queue = new PassthroughRingBufferQueue<>(4, PassthroughRingBufferQueue.FullPolicy.GROW);
+    queue.setWaitStrategy(PassthroughWaitStrategy.BUSY_SPIN);
+    AtomicBoolean interrupted = new AtomicBoolean();
+    Thread consumer = new Thread(() -> {
+      try {
+        queue.take();
+      } catch (InterruptedException e) {
+        interrupted.set(true);
+      }
+    });
+    consumer.start();
+    Thread.sleep(100);
+    consumer.interrupt();
+    consumer.join();
+    assertThat(interrupted.get(), is(true));
+  }
+}
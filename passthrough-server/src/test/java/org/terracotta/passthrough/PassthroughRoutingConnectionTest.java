@@ -0,0 +1,141 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.terracotta.connection.entity.EntityRef;
+import org.terracotta.exception.EntityNotFoundException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a PassthroughRoutingConnection sends each entity to the stripe which owns its name and that each stripe
+ * fails over on its own.
+ */
+public class PassthroughRoutingConnectionTest {
+  private static final String CLUSTER_NAME = "routing";
+
+  // The echo service of each server, so we can see which server ran a message.
+  private final Map<PassthroughServer, PassthroughEchoEntity.ServerService> services = new ConcurrentHashMap<>();
+  private PassthroughMultiStripeClusterControl cluster;
+  private PassthroughRoutingConnection connection;
+
+  @Before
+  public void setUp() throws Exception {
+    this.cluster = PassthroughTestHelpers.createMultiStripeCluster(CLUSTER_NAME, 2, 2, server -> {
+      PassthroughEchoEntity.ServerService service = new PassthroughEchoEntity.ServerService();
+      this.services.put(server, service);
+      server.registerServerEntityService(service);
+      server.registerClientEntityService(new PassthroughEchoEntity.ClientService());
+    });
+    this.cluster.waitForActive();
+    this.connection = this.cluster.connectNewClient("routing client");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    this.connection.close();
+    this.cluster.tearDown();
+  }
+
+  @Test
+  public void testEntitiesRouteToTheirStripe() throws Exception {
+    String[] names = namesForEachStripe();
+    for (int stripe = 0; stripe < names.length; ++stripe) {
+      PassthroughEchoEntity entity = createAndFetch(names[stripe]);
+      assertThat(entity.echo(stripe), equalTo((long) stripe));
+      // Only the owning stripe's active ran it and the entity doesn't exist on the other stripe.
+      assertThat(activeServiceOf(stripe).getActiveValues(), contains((long) stripe));
+      int other = 1 - stripe;
+      assertThat(activeServiceOf(other).getActiveValues(), not(contains((long) stripe)));
+      EntityRef<PassthroughEchoEntity, Void, Void> otherRef = this.connection.getStripeConnections().get(other).getEntityRef(PassthroughEchoEntity.class, 1, names[stripe]);
+      try {
+        otherRef.fetchEntity(null);
+        fail();
+      } catch (EntityNotFoundException e) {
+        // Expected.
+      }
+      entity.close();
+    }
+  }
+
+  @Test
+  public void testStripesFailOverIndependently() throws Exception {
+    String[] names = namesForEachStripe();
+    PassthroughEchoEntity failing = createAndFetch(names[0]);
+    PassthroughEchoEntity surviving = createAndFetch(names[1]);
+    assertThat(failing.echo(1), equalTo(1L));
+    assertThat(surviving.echo(2), equalTo(2L));
+    PassthroughServer oldActive = activeServerOf(0);
+    PassthroughServer survivingActive = activeServerOf(1);
+
+    this.cluster.getStripeControl(0).terminateActive();
+    // The other stripe carries on, whatever the failed stripe is doing.
+    assertThat(surviving.echo(3), equalTo(3L));
+    this.cluster.getStripeControl(0).waitForActive();
+
+    // The failed stripe's passive took over and the client reconnected its entity to it.
+    assertThat(activeServerOf(0), not(sameInstance(oldActive)));
+    assertThat(failing.echo(4), equalTo(4L));
+    assertThat(activeServiceOf(0).getActiveValues().contains(4L), equalTo(true));
+    assertThat(surviving.echo(5), equalTo(5L));
+    // Nothing moved on the surviving stripe.
+    assertThat(activeServerOf(1), sameInstance(survivingActive));
+    assertThat(activeServiceOf(1).getActiveValues(), contains(2L, 3L, 5L));
+    assertThat(this.connection.isValid(), equalTo(true));
+    failing.close();
+    surviving.close();
+  }
+
+  private String[] namesForEachStripe() {
+    String[] names = new String[this.cluster.getStripeCount()];
+    int found = 0;
+    for (int i = 0; found < names.length; ++i) {
+      String name = "entity" + i;
+      int stripe = this.connection.getStripeIndexForEntity(name);
+      if (null == names[stripe]) {
+        names[stripe] = name;
+        found += 1;
+      }
+    }
+    return names;
+  }
+
+  private PassthroughEchoEntity createAndFetch(String name) throws Exception {
+    EntityRef<PassthroughEchoEntity, Void, Void> ref = this.connection.getEntityRef(PassthroughEchoEntity.class, 1, name);
+    ref.create(null);
+    return ref.fetchEntity(null);
+  }
+
+  private PassthroughServer activeServerOf(int stripe) {
+    return PassthroughServerRegistry.getSharedInstance().getServerForName(this.cluster.getStripeControl(stripe).getStripeName());
+  }
+
+  private PassthroughEchoEntity.ServerService activeServiceOf(int stripe) {
+    return this.services.get(activeServerOf(stripe));
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.terracotta.connection.entity.EntityRef;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Measures what the active's execution thread allocates to decode and run an invoke, from the real server's message
+ * queue through its decoder, entity lookup, invoke and response.
+ */
+public class PassthroughServerAllocationTest {
+  private static final String STRIPE_NAME = "allocation";
+  private static final int PAYLOAD_SIZE = 16 * 1024;
+  // Each invoke still creates a few small objects on the execution thread:  the view of its payload, its invoke context
+  //  (entities may keep it), its response, its response message and the hand-off of that message to the response thread.  This is a
+  //  generous bound for those but far less than any copy of the payload.
+  private static final long ALLOCATION_PER_INVOKE_LIMIT = 1024;
+
+  private PassthroughClusterControl cluster;
+  private PassthroughConnection connection;
+
+  @Before
+  public void setUp() throws Exception {
+    this.cluster = PassthroughTestHelpers.createActiveOnly(STRIPE_NAME, server -> {
+      server.registerServerEntityService(new PassthroughSinkEntity.ServerService());
+      server.registerClientEntityService(new PassthroughSinkEntity.ClientService());
+    });
+    this.cluster.waitForActive();
+    this.connection = PassthroughServerRegistry.getSharedInstance().getServerForName(STRIPE_NAME).connectNewClient("allocation client");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    this.connection.close();
+    this.cluster.tearDown();
+  }
+
+  @Test
+  public void testInvokeDoesNotCopyPayloadOnExecutionThread() throws Exception {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+
+    EntityRef<PassthroughSinkEntity, Void, Void> ref = this.connection.getEntityRef(PassthroughSinkEntity.class, 1, "sink");
+    ref.create(null);
+    PassthroughSinkEntity entity = ref.fetchEntity(null);
+
+    int iterations = 2000;
+    // Warm up so that the server's reused state exists and the path is compiled.
+    for (int i = 0; i < 5 * iterations; ++i) {
+      assertThat(entity.sink(PAYLOAD_SIZE), equalTo(PAYLOAD_SIZE));
+    }
+    long threadID = executionThreadID();
+    // The JIT can allocate on the thread while it is still compiling so we take the best of a few rounds:  any allocation
+    //  which scales with the payload would show up in all of them.
+    long allocated = Long.MAX_VALUE;
+    for (int round = 0; round < 5; ++round) {
+      long before = allocations.getThreadAllocatedBytes(threadID);
+      for (int i = 0; i < iterations; ++i) {
+        entity.sink(PAYLOAD_SIZE);
+      }
+      allocated = Math.min(allocated, allocations.getThreadAllocatedBytes(threadID) - before);
+    }
+    assertThat(allocated / iterations, lessThan(ALLOCATION_PER_INVOKE_LIMIT));
+    entity.close();
+  }
+
+  private static long executionThreadID() {
+    long threadID = -1;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().equals("Server execution thread isActive: active")) {
+        assertThat(threadID, equalTo(-1L));
+        threadID = thread.getId();
+      }
+    }
+    assertThat(threadID == -1, equalTo(false));
+    return threadID;
+  }
+}
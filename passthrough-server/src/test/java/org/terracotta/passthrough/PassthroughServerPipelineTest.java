@@ -0,0 +1,91 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.terracotta.connection.entity.EntityRef;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Drives messages through the decode, execution and response stages of a real active and passive.
+ */
+public class PassthroughServerPipelineTest {
+  private static final String STRIPE_NAME = "pipeline";
+
+  private final List<PassthroughEchoEntity.ServerService> serverServices = Collections.synchronizedList(new ArrayList<>());
+  private PassthroughClusterControl cluster;
+  private PassthroughConnection connection;
+
+  @Before
+  public void setUp() throws Exception {
+    this.cluster = PassthroughTestHelpers.createActivePassive(STRIPE_NAME, server -> {
+      PassthroughEchoEntity.ServerService service = new PassthroughEchoEntity.ServerService();
+      this.serverServices.add(service);
+      server.registerServerEntityService(service);
+      server.registerClientEntityService(new PassthroughEchoEntity.ClientService());
+      server.setExecutionLaneCount(2);
+    });
+    this.cluster.waitForActive();
+    this.connection = PassthroughServerRegistry.getSharedInstance().getServerForName(STRIPE_NAME).connectNewClient("pipeline client");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    this.connection.close();
+    this.cluster.tearDown();
+  }
+
+  @Test
+  public void testMessagesKeepOrderThroughAllStages() throws Exception {
+    EntityRef<PassthroughEchoEntity, Void, Void> ref = this.connection.getEntityRef(PassthroughEchoEntity.class, 1, "echo");
+    ref.create(null);
+    PassthroughEchoEntity entity = ref.fetchEntity(null);
+
+    int count = 2000;
+    List<Long> expected = new ArrayList<>();
+    List<Long> completionOrder = Collections.synchronizedList(new ArrayList<>());
+    List<CompletableFuture<Long>> futures = new ArrayList<>();
+    for (long i = 0; i < count; ++i) {
+      expected.add(i);
+      futures.add(entity.echoAsync(i).whenComplete((value, failure) -> completionOrder.add(value)));
+    }
+    for (int i = 0; i < count; ++i) {
+      assertThat(futures.get(i).get(30, TimeUnit.SECONDS), equalTo((long) i));
+    }
+    // The responses reach the client in the order the messages were sent and both servers run them in that order.
+    assertThat(completionOrder, equalTo(expected));
+    List<Long> active = new ArrayList<>();
+    List<Long> passive = new ArrayList<>();
+    for (PassthroughEchoEntity.ServerService service : this.serverServices) {
+      active.addAll(service.getActiveValues());
+      passive.addAll(service.getPassiveValues());
+    }
+    assertThat(active, equalTo(expected));
+    assertThat(passive, equalTo(expected));
+    entity.close();
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PassthroughServerStageTest {
+
+  @Test
+  public void testItemsKeepOrderAcrossStages() throws Exception {
+    // Chain three stages the way the server chains its decode, execution and response stages.
+    int count = 10000;
+    List<Integer> delivered = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch done = new CountDownLatch(count);
+    PassthroughServerStage<Integer> response = new PassthroughServerStage<>("response", PassthroughThreadMode.PLATFORM, value -> {
+      delivered.add(value);
+      done.countDown();
+    }, null);
+    PassthroughServerStage<Integer> execution = new PassthroughServerStage<>("execution", PassthroughThreadMode.PLATFORM, response::submit, null, 16);
+    PassthroughServerStage<Integer> decode = new PassthroughServerStage<>("decode", PassthroughThreadMode.PLATFORM, execution::submit, null, 16);
+    response.start();
+    execution.start();
+    decode.start();
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      expected.add(i);
+      decode.submit(i);
+    }
+    assertThat(done.await(30, TimeUnit.SECONDS), is(true));
+    assertThat(delivered, equalTo(expected));
+    decode.stop();
+    execution.stop();
+    response.stop();
+  }
+
+  @Test
+  public void testStopDropsQueuedItems() throws Exception {
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch neverReleased = new CountDownLatch(1);
+    List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+    PassthroughServerStage<Integer> stage = new PassthroughServerStage<>("stage", PassthroughThreadMode.PLATFORM, value -> {
+      handled.add(value);
+      running.countDown();
+      try {
+        neverReleased.await();
+      } catch (InterruptedException e) {
+        // Entity code failing on the interrupt, during shutdown, must not crash the stage.
+        throw new IllegalStateException(e);
+      }
+    }, null, 16);
+    stage.start();
+    for (int i = 0; i < 10; ++i) {
+      stage.submit(i);
+    }
+    // The first item is in-flight, blocking the stage, and the rest are queued behind it when we stop.
+    assertThat(running.await(10, TimeUnit.SECONDS), is(true));
+    stage.stop();
+    stage.submit(10);
+    assertThat(handled, equalTo(Collections.singletonList(0)));
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.terracotta.connection.entity.Entity;
+import org.terracotta.entity.ActiveInvokeContext;
+import org.terracotta.entity.ActiveServerEntity;
+import org.terracotta.entity.ClientDescriptor;
+import org.terracotta.entity.ConcurrencyStrategy;
+import org.terracotta.entity.ConfigurationException;
+import org.terracotta.entity.EntityClientEndpoint;
+import org.terracotta.entity.EntityClientService;
+import org.terracotta.entity.EntityMessage;
+import org.terracotta.entity.EntityResponse;
+import org.terracotta.entity.EntityServerService;
+import org.terracotta.entity.ExecutionStrategy;
+import org.terracotta.entity.InvocationCallback;
+import org.terracotta.entity.MessageCodec;
+import org.terracotta.entity.PassiveServerEntity;
+import org.terracotta.entity.PassiveSynchronizationChannel;
+import org.terracotta.entity.ServiceRegistry;
+import org.terracotta.entity.SyncMessageCodec;
+
+
+/**
+ * A minimal entity for the tests which need to send large messages through a real server:  each message is a zeroed
+ * payload of a given size, which the active entity only measures through the view the server passes to its codec, and
+ * the response is empty.  It only runs on the active.
+ */
+public class PassthroughSinkEntity implements Entity {
+  private static final Set<InvocationCallback.Types> CALLBACKS = EnumSet.of(InvocationCallback.Types.RESULT, InvocationCallback.Types.FAILURE);
+  private static final byte[] EMPTY = new byte[0];
+
+  private final EntityClientEndpoint<SinkMessage, SinkResponse> endpoint;
+
+  public PassthroughSinkEntity(EntityClientEndpoint<SinkMessage, SinkResponse> endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  /**
+   * @return The size of the payload seen by the active entity
+   */
+  public int sink(int size) throws InterruptedException, ExecutionException {
+    CompletableFuture<Integer> future = new CompletableFuture<>();
+    this.endpoint.message(new SinkMessage(size)).invoke(new InvocationCallback<SinkResponse>() {
+      @Override
+      public void result(SinkResponse response) {
+        future.complete(response.size);
+      }
+      @Override
+      public void failure(Throwable failure) {
+        future.completeExceptionally(failure);
+      }
+    }, CALLBACKS);
+    return future.get();
+  }
+
+  @Override
+  public void close() {
+    this.endpoint.close();
+  }
+
+
+  public static class SinkMessage implements EntityMessage {
+    public final int size;
+
+    public SinkMessage(int size) {
+      this.size = size;
+    }
+  }
+
+
+  public static class SinkResponse implements EntityResponse {
+    public final int size;
+
+    public SinkResponse(int size) {
+      this.size = size;
+    }
+  }
+
+
+  public static class SinkCodec implements MessageCodec<SinkMessage, SinkResponse>, PassthroughBufferMessageCodec<SinkMessage, SinkResponse>, SyncMessageCodec<SinkMessage> {
+    @Override
+    public byte[] encodeMessage(SinkMessage message) {
+      return new byte[message.size];
+    }
+
+    @Override
+    public SinkMessage decodeMessage(byte[] payload) {
+      return new SinkMessage(payload.length);
+    }
+
+    @Override
+    public SinkMessage decodeMessage(ByteBuffer payload) {
+      return new SinkMessage(payload.remaining());
+    }
+
+    @Override
+    public byte[] encodeResponse(SinkResponse response) {
+      return ByteBuffer.allocate(Integer.BYTES).putInt(response.size).array();
+    }
+
+    @Override
+    public SinkResponse decodeResponse(byte[] payload) {
+      return new SinkResponse(ByteBuffer.wrap(payload).getInt());
+    }
+
+    @Override
+    public SinkResponse decodeResponse(ByteBuffer payload) {
+      return new SinkResponse(payload.getInt(payload.position()));
+    }
+
+    @Override
+    public byte[] encode(int concurrencyKey, SinkMessage message) {
+      return EMPTY;
+    }
+
+    @Override
+    public SinkMessage decode(int concurrencyKey, byte[] payload) {
+      return new SinkMessage(0);
+    }
+  }
+
+
+  public static class ClientService implements EntityClientService<PassthroughSinkEntity, Void, SinkMessage, SinkResponse, Void> {
+    @Override
+    public boolean handlesEntityType(Class<PassthroughSinkEntity> cls) {
+      return PassthroughSinkEntity.class == cls;
+    }
+
+    @Override
+    public byte[] serializeConfiguration(Void configuration) {
+      return EMPTY;
+    }
+
+    @Override
+    public Void deserializeConfiguration(byte[] configuration) {
+      return null;
+    }
+
+    @Override
+    public PassthroughSinkEntity create(EntityClientEndpoint<SinkMessage, SinkResponse> endpoint, Void userData) {
+      return new PassthroughSinkEntity(endpoint);
+    }
+
+    @Override
+    public MessageCodec<SinkMessage, SinkResponse> getMessageCodec() {
+      return new SinkCodec();
+    }
+  }
+
+
+  public static class ServerService implements EntityServerService<SinkMessage, SinkResponse> {
+    @Override
+    public long getVersion() {
+      return 1;
+    }
+
+    @Override
+    public boolean handlesEntityType(String typeName) {
+      return PassthroughSinkEntity.class.getName().equals(typeName);
+    }
+
+    @Override
+    public ActiveServerEntity<SinkMessage, SinkResponse> createActiveEntity(ServiceRegistry registry, byte[] configuration) {
+      return new ActiveEntity();
+    }
+
+    @Override
+    public PassiveServerEntity<SinkMessage, SinkResponse> createPassiveEntity(ServiceRegistry registry, byte[] configuration) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ConcurrencyStrategy<SinkMessage> getConcurrencyStrategy(byte[] configuration) {
+      return new ConcurrencyStrategy<SinkMessage>() {
+        @Override
+        public int concurrencyKey(SinkMessage message) {
+          return 1;
+        }
+        @Override
+        public Set<Integer> getKeysForSynchronization() {
+          return Collections.singleton(1);
+        }
+      };
+    }
+
+    @Override
+    public ExecutionStrategy<SinkMessage> getExecutionStrategy(byte[] configuration) {
+      return new ExecutionStrategy<SinkMessage>() {
+        @Override
+        public Location getExecutionLocation(SinkMessage message) {
+          return Location.ACTIVE;
+        }
+      };
+    }
+
+    @Override
+    public MessageCodec<SinkMessage, SinkResponse> getMessageCodec() {
+      return new SinkCodec();
+    }
+
+    @Override
+    public SyncMessageCodec<SinkMessage> getSyncMessageCodec() {
+      return new SinkCodec();
+    }
+  }
+
+
+  private static class ActiveEntity implements ActiveServerEntity<SinkMessage, SinkResponse> {
+    @Override
+    public SinkResponse invokeActive(ActiveInvokeContext<SinkResponse> context, SinkMessage message) {
+      return new SinkResponse(message.size);
+    }
+
+    @Override
+    public void connected(ClientDescriptor clientDescriptor) {
+    }
+
+    @Override
+    public void disconnected(ClientDescriptor clientDescriptor) {
+    }
+
+    @Override
+    public void loadExisting() {
+    }
+
+    @Override
+    public void synchronizeKeyToPassive(PassiveSynchronizationChannel<SinkMessage> syncChannel, int concurrencyKey) {
+    }
+
+    @Override
+    public void createNew() throws ConfigurationException {
+    }
+
+    @Override
+    public void destroy() {
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class PassthroughStripeRouterTest {
+  private static final int ENTITY_COUNT = 20000;
+
+  @Test
+  public void testSpreadIsEven() throws Exception {
+    PassthroughStripeRouter router = new PassthroughStripeRouter(Arrays.asList("cluster_stripe0", "cluster_stripe1", "cluster_stripe2", "cluster_stripe3"));
+    int[] counts = new int[router.getStripeCount()];
+    for (int i = 0; i < ENTITY_COUNT; ++i) {
+      counts[router.stripeIndexFor("entity" + i)] += 1;
+    }
+    int fairShare = ENTITY_COUNT / counts.length;
+    for (int count : counts) {
+      assertThat(count, greaterThan(fairShare * 3 / 4));
+      assertThat(count, lessThan(fairShare * 5 / 4));
+    }
+  }
+
+  @Test
+  public void testAddingStripeOnlyMovesEntitiesToIt() throws Exception {
+    List<String> stripes = Arrays.asList("cluster_stripe0", "cluster_stripe1", "cluster_stripe2");
+    PassthroughStripeRouter before = new PassthroughStripeRouter(stripes);
+    PassthroughStripeRouter after = new PassthroughStripeRouter(Arrays.asList("cluster_stripe0", "cluster_stripe1", "cluster_stripe2", "cluster_stripe3"));
+    int moved = 0;
+    for (int i = 0; i < ENTITY_COUNT; ++i) {
+      String name = "entity" + i;
+      int oldStripe = before.stripeIndexFor(name);
+      int newStripe = after.stripeIndexFor(name);
+      if (oldStripe != newStripe) {
+        assertThat(newStripe, equalTo(3));
+        moved += 1;
+      }
+    }
+    // Roughly a quarter of the entities belong to the new stripe.
+    assertThat(moved, greaterThan(ENTITY_COUNT / 8));
+    assertThat(moved, lessThan(ENTITY_COUNT * 3 / 8));
+  }
+}
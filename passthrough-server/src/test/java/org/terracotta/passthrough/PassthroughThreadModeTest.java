@@ -0,0 +1,122 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.terracotta.connection.entity.EntityRef;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PassthroughThreadModeTest {
+
+  @Test
+  public void testVirtualThreadsAreCreatedWhenSupported() throws Exception {
+    Assume.assumeTrue(PassthroughThreadMode.VIRTUAL.isSupported());
+    CountDownLatch ran = new CountDownLatch(1);
+    Thread thread = PassthroughThreadMode.VIRTUAL.newThread("virtual", ran::countDown);
+    assertThat(thread.getName(), equalTo("virtual"));
+    assertThat(thread.isDaemon(), is(true));
+    thread.start();
+    assertThat(ran.await(10, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test
+  public void testTimerOnVirtualThread() throws Exception {
+    Assume.assumeTrue(PassthroughThreadMode.VIRTUAL.isSupported());
+    runTimer(PassthroughThreadMode.VIRTUAL);
+  }
+
+  @Test
+  public void testTimerOnPlatformThread() throws Exception {
+    runTimer(PassthroughThreadMode.PLATFORM);
+  }
+
+  @Test
+  public void testVirtualStripeRunsInvokesAndFailsOver() throws Exception {
+    Assume.assumeTrue(PassthroughThreadMode.VIRTUAL.isSupported());
+    runStripe(PassthroughThreadMode.VIRTUAL);
+  }
+
+  @Test
+  public void testPlatformStripeRunsInvokesAndFailsOver() throws Exception {
+    runStripe(PassthroughThreadMode.PLATFORM);
+  }
+
+  private static void runStripe(PassthroughThreadMode threadMode) throws Exception {
+    String stripeName = "threadMode" + threadMode;
+    PassthroughClusterControl cluster = PassthroughTestHelpers.createMultiServerStripe(stripeName, 2, threadMode, server -> {
+      server.registerServerEntityService(new PassthroughEchoEntity.ServerService());
+      server.registerClientEntityService(new PassthroughEchoEntity.ClientService());
+      server.setExecutionLaneCount(2);
+      server.setServerQueueCapacity(16, PassthroughRingBufferQueue.FullPolicy.BLOCK);
+    });
+    cluster.waitForActive();
+    PassthroughConnection connection = PassthroughServerRegistry.getSharedInstance().getServerForName(stripeName).connectNewClient("client");
+    try {
+      EntityRef<PassthroughEchoEntity, Void, Void> ref = connection.getEntityRef(PassthroughEchoEntity.class, 1, "echo");
+      ref.create(null);
+      PassthroughEchoEntity entity = ref.fetchEntity(null);
+      // Many more invokes than the server queue holds so that senders block on it.
+      List<CompletableFuture<Long>> futures = new ArrayList<>();
+      for (long i = 0; i < 500; ++i) {
+        futures.add(entity.echoAsync(i));
+      }
+      for (int i = 0; i < futures.size(); ++i) {
+        assertThat(futures.get(i).get(30, TimeUnit.SECONDS), equalTo((long) i));
+      }
+      cluster.terminateActive();
+      assertThat(entity.echo(1000), equalTo(1000L));
+      entity.close();
+    } finally {
+      connection.close();
+      cluster.tearDown();
+    }
+  }
+
+  private static void runTimer(PassthroughThreadMode threadMode) throws Exception {
+    PassthroughTimerThread timer = new PassthroughTimerThread("timer", threadMode);
+    timer.start();
+    CountDownLatch delayed = new CountDownLatch(1);
+    CountDownLatch periodic = new CountDownLatch(3);
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    long cancelled = timer.scheduleAfterDelay(() -> order.add("cancelled"), 50);
+    timer.scheduleAfterDelay(() -> {
+      order.add("late");
+      delayed.countDown();
+    }, 100);
+    timer.scheduleAfterDelay(() -> order.add("early"), 10);
+    long repeating = timer.schedulePeriodically(periodic::countDown, 5);
+    timer.cancelMessage(cancelled);
+    assertThat(delayed.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(periodic.await(10, TimeUnit.SECONDS), is(true));
+    timer.cancelMessage(repeating);
+    assertThat(order, equalTo(Arrays.asList("early", "late")));
+    timer.shutdown();
+    timer.join();
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.terracotta.persistence.IPlatformPersistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+
+public class PassthroughTransactionOrderManagerTest {
+
+  @Test
+  public void testBatchStoresSameSequenceAsSingleStores() throws Exception {
+    Random random = new Random(42);
+    PassthroughNullPlatformPersistentStorage batched = new PassthroughNullPlatformPersistentStorage();
+    PassthroughNullPlatformPersistentStorage sequential = new PassthroughNullPlatformPersistentStorage();
+    long nextTransactionID = 1;
+    long oldestTransactionID = 1;
+    long globalID = 0;
+    for (int round = 0; round < 200; ++round) {
+      int count = 1 + random.nextInt(10);
+      List<IPlatformPersistence.SequenceTuple> entries = new ArrayList<>();
+      long[] oldestIDs = new long[count];
+      for (int i = 0; i < count; ++i) {
+        IPlatformPersistence.SequenceTuple tuple = new IPlatformPersistence.SequenceTuple();
+        tuple.globalSequenceID = ++globalID;
+        if (random.nextInt(4) == 0) {
+          // A re-send of an older transaction, which doesn't clear anything.
+          tuple.localSequenceID = oldestTransactionID + random.nextInt((int) (nextTransactionID - oldestTransactionID) + 1);
+          oldestIDs[i] = 0;
+        } else {
+          tuple.localSequenceID = nextTransactionID++;
+          oldestTransactionID += random.nextInt((int) (nextTransactionID - oldestTransactionID));
+          oldestIDs[i] = oldestTransactionID;
+        }
+        entries.add(tuple);
+        sequential.fastStoreSequence(7, tuple, oldestIDs[i]);
+      }
+      batched.fastStoreSequenceBatch(7, entries, oldestIDs);
+      assertThat(describe(batched.loadSequence(7)), equalTo(describe(sequential.loadSequence(7))));
+    }
+  }
+
+  @Test
+  public void testCommitTrackingStoresEachConnectionInOrder() throws Exception {
+    PassthroughNullPlatformPersistentStorage persistence = new PassthroughNullPlatformPersistentStorage();
+    PassthroughTransactionOrderManager manager = new PassthroughTransactionOrderManager(persistence, false, Collections.<Long>emptySet());
+    // The first entry for a connection isn't stored, as with the real persistence.
+    manager.updateTracking(1, 1, 1);
+    manager.updateTracking(2, 1, 1);
+    manager.commitTracking();
+    manager.updateTracking(1, 2, 1);
+    manager.updateTracking(2, 2, 2);
+    // A re-send passes 0, which mustn't keep the entries the message before it cleared.
+    manager.updateTracking(1, 3, 3);
+    manager.updateTracking(1, 1, 0);
+    manager.updateTracking(2, 3, 2);
+    manager.commitTracking();
+    assertThat(describe(persistence.loadSequence(1)), equalTo("3/5 1/6 "));
+    assertThat(describe(persistence.loadSequence(2)), equalTo("2/4 3/7 "));
+    // Nothing is stored again until there are new updates.
+    manager.commitTracking();
+    assertThat(describe(persistence.loadSequence(1)), equalTo("3/5 1/6 "));
+  }
+
+  @Test
+  public void testCommitTrackingWithoutBatchedPersistence() throws Exception {
+    IPlatformPersistence persistence = mock(IPlatformPersistence.class);
+    PassthroughTransactionOrderManager manager = new PassthroughTransactionOrderManager(persistence, false, Collections.<Long>emptySet());
+    manager.updateTracking(1, 5, 4);
+    manager.updateTracking(1, 2, 0);
+    manager.updateTracking(1, 6, 5);
+    manager.commitTracking();
+    // Each entry is stored with the oldest ID it was received with.
+    InOrder order = inOrder(persistence);
+    order.verify(persistence).fastStoreSequence(eq(1L), any(IPlatformPersistence.SequenceTuple.class), eq(4L));
+    order.verify(persistence).fastStoreSequence(eq(1L), any(IPlatformPersistence.SequenceTuple.class), eq(0L));
+    order.verify(persistence).fastStoreSequence(eq(1L), any(IPlatformPersistence.SequenceTuple.class), eq(5L));
+  }
+
+  private static String describe(List<IPlatformPersistence.SequenceTuple> sequence) {
+    StringBuilder builder = new StringBuilder();
+    if (null != sequence) {
+      for (IPlatformPersistence.SequenceTuple tuple : sequence) {
+        builder.append(tuple.localSequenceID).append('/').append(tuple.globalSequenceID).append(' ');
+      }
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright Super iPaaS Integration LLC, an IBM Company 2024
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+import org.terracotta.connection.entity.EntityRef;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks the wait strategies on their own and that the server stages and client threads waiting with them still wake, and
+ * deliver in order, once they have gone idle.
+ */
+public class PassthroughWaitStrategyTest {
+  private static final String STRIPE_NAME = "waiting";
+  // Few enough spins and yields that a short pause is long enough for a waiting thread to park.
+  private static final List<PassthroughWaitStrategy> STRATEGIES = Arrays.asList(PassthroughWaitStrategy.BLOCKING, PassthroughWaitStrategy.spinYieldPark(100, 10), PassthroughWaitStrategy.BUSY_SPIN);
+
+  @Test
+  public void testIdleSequence() throws Exception {
+    PassthroughWaitStrategy strategy = PassthroughWaitStrategy.spinYieldPark(2, 1);
+    assertThat(strategy.idle(0), is(true));
+    assertThat(strategy.idle(1), is(true));
+    assertThat(strategy.idle(2), is(true));
+    assertThat(strategy.idle(3), is(false));
+    assertThat(PassthroughWaitStrategy.BLOCKING.idle(0), is(false));
+    assertThat(PassthroughWaitStrategy.BUSY_SPIN.idle(Integer.MAX_VALUE), is(true));
+  }
+
+  @Test
+  public void testStageWakesAfterGoingIdle() throws Exception {
+    for (PassthroughWaitStrategy strategy : STRATEGIES) {
+      LinkedBlockingQueue<Integer> handled = new LinkedBlockingQueue<>();
+      PassthroughServerStage<Integer> stage = new PassthroughServerStage<>("stage", PassthroughThreadMode.PLATFORM, strategy, handled::add, null, 16);
+      stage.start();
+      for (int i = 0; i < 20; ++i) {
+        // Give the stage time to run out of spins and yields, and park, before some of the items.
+        if (0 == (i % 5)) {
+          Thread.sleep(20);
+        }
+        stage.submit(i);
+      }
+      for (int i = 0; i < 20; ++i) {
+        assertThat(strategy.toString(), handled.poll(10, TimeUnit.SECONDS), equalTo(i));
+      }
+      stage.stop();
+    }
+  }
+
+  @Test
+  public void testClientRoundTripsAfterGoingIdle() throws Exception {
+    for (PassthroughWaitStrategy strategy : STRATEGIES) {
+      // This covers the server's message queue and stages, and the client thread, all waiting with the strategy.
+      PassthroughClusterControl cluster = PassthroughTestHelpers.createActiveOnly(STRIPE_NAME, server -> {
+        server.setWaitStrategy(strategy);
+        server.registerServerEntityService(new PassthroughEchoEntity.ServerService());
+        server.registerClientEntityService(new PassthroughEchoEntity.ClientService());
+      });
+      try {
+        cluster.waitForActive();
+        PassthroughConnection connection = PassthroughServerRegistry.getSharedInstance().getServerForName(STRIPE_NAME).connectNewClient("waiting client");
+        EntityRef<PassthroughEchoEntity, Void, Void> ref = connection.getEntityRef(PassthroughEchoEntity.class, 1, "echo");
+        ref.create(null);
+        PassthroughEchoEntity entity = ref.fetchEntity(null);
+        for (long i = 0; i < 5; ++i) {
+          Thread.sleep(20);
+          assertThat(strategy.toString(), entity.echoAsync(i).get(10, TimeUnit.SECONDS), equalTo(i));
+        }
+        entity.close();
+        connection.close();
+      } finally {
+        cluster.tearDown();
+      }
+    }
+  }
+}